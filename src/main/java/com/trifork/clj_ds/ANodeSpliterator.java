@@ -0,0 +1,128 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+ * Spliterator over a tree, kept as a frontier of items that are either whole
+ * subtrees or single entries. Splitting hands out the first half of the
+ * frontier; a frontier of one subtree is first replaced by the items of its
+ * root node. Sizes are exact until the first split, and halved estimates
+ * after it.
+ */
+abstract class ANodeSpliterator<T> implements ISpliterator<T>{
+Object[] items;
+int lo;
+int hi;
+Iterator current;
+long est;
+int characteristics;
+final boolean keys;
+
+ANodeSpliterator(Object[] items, int lo, int hi, Iterator current, long est, int characteristics, boolean keys){
+	this.items = items;
+	this.lo = lo;
+	this.hi = hi;
+	this.current = current;
+	this.est = est;
+	this.characteristics = characteristics;
+	this.keys = keys;
+}
+
+abstract boolean isSubtree(Object item);
+
+/*
+ * Iterator over the entries of a subtree.
+ */
+abstract Iterator iterate(Object subtree);
+
+/*
+ * The items of the root of a subtree, in encounter order.
+ */
+abstract Object[] expand(Object subtree);
+
+abstract ANodeSpliterator<T> create(Object[] items, int lo, int hi, Iterator current, long est);
+
+private Object emit(Object entry){
+	return keys ? ((Map.Entry) entry).getKey() : entry;
+}
+
+public boolean tryAdvance(IFn f) throws Exception{
+	for(;;)
+		{
+		if(current != null)
+			{
+			if(current.hasNext())
+				{
+				f.invoke(emit(current.next()));
+				return true;
+				}
+			current = null;
+			}
+		if(lo >= hi)
+			return false;
+		Object item = items[lo++];
+		if(isSubtree(item))
+			current = iterate(item);
+		else
+			{
+			f.invoke(emit(item));
+			return true;
+			}
+		}
+}
+
+public void forEachRemaining(IFn f) throws Exception{
+	if(current != null)
+		while(current.hasNext())
+			f.invoke(emit(current.next()));
+	current = null;
+	for(; lo < hi; lo++)
+		{
+		Object item = items[lo];
+		if(isSubtree(item))
+			for(Iterator i = iterate(item); i.hasNext();)
+				f.invoke(emit(i.next()));
+		else
+			f.invoke(emit(item));
+		}
+}
+
+public ISpliterator<T> trySplit(){
+	if(hi - lo == 1 && current == null && isSubtree(items[lo]))
+		{
+		items = expand(items[lo]);
+		lo = 0;
+		hi = items.length;
+		}
+	if(hi - lo < 2)
+		return null;
+	int mid = (lo + hi) >>> 1;
+	long half = est >>> 1;
+	ANodeSpliterator<T> prefix = create(items, lo, mid, current, half);
+	characteristics &= ~(SIZED | SUBSIZED);
+	prefix.characteristics = characteristics;
+	current = null;
+	lo = mid;
+	est -= half;
+	return prefix;
+}
+
+public long estimateSize(){
+	return est;
+}
+
+public int characteristics(){
+	return characteristics;
+}
+}
@@ -150,11 +150,11 @@ static public class ValSeq extends ASeq{
 
 
 public Object invoke(Object arg1) throws Exception{
-	return valAt((K) arg1);
+	return acceptsKey(arg1) ? valAt((K) arg1) : null;
 }
 
 public Object invoke(Object arg1, Object notFound) throws Exception{
-	return valAt((K) arg1, (V) notFound);
+	return acceptsKey(arg1) ? valAt((K) arg1, (V) notFound) : notFound;
 }
 
 // java.util.Map implementation
@@ -183,7 +183,7 @@ public Set<Map.Entry<K, V>> entrySet(){
 		}
 
 		public boolean contains(Object o){
-			if(o instanceof Entry)
+			if(o instanceof Entry && acceptsKey(((Entry) o).getKey()))
 				{
 				Entry e = (Entry) o;
 				Entry found = entryAt((K) e.getKey());
@@ -199,6 +199,17 @@ public V get(Object key){
 	return valAt((K) key);
 }
 
+public boolean containsKey(Object key){
+	return acceptsKey(key) && entryAt((K) key) != null;
+}
+
+// Whether key may be passed on as a K. A map that fixes K to a concrete
+// class overrides this, as the bridges of its entryAt and valAt cast the
+// key to that class, and containsKey(Object) cannot be overridden there.
+protected boolean acceptsKey(Object key){
+	return true;
+}
+
 public boolean isEmpty(){
 	return count() == 0;
 }
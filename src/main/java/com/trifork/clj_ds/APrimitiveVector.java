@@ -0,0 +1,609 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The trie of {@link PersistentVector}, with leaves and tail held in
+ * primitive arrays instead of Object[]s, after clojure.core/vector-of.
+ * Subclasses fix the element type: they allocate the arrays, box single
+ * elements for the generic interfaces, and add the primitive accessors,
+ * which reach the arrays directly.
+ */
+public abstract class APrimitiveVector<T> extends APersistentVector<T> implements IObj, IEditableCollection<T>{
+
+static final class Node implements Serializable{
+	final AtomicReference<Thread> edit;
+	// Object[32] of children, or a primitive leaf of 32 elements
+	final Object array;
+
+	Node(AtomicReference<Thread> edit, Object array){
+		this.edit = edit;
+		this.array = array;
+	}
+
+	Node(AtomicReference<Thread> edit){
+		this(edit, new Object[32]);
+	}
+}
+
+final static Node EMPTY_NODE = new Node(PersistentVector.NOEDIT);
+
+final int cnt;
+final int shift;
+final Node root;
+// a primitive array of exactly cnt - tailoff() elements
+final Object tail;
+final IPersistentMap _meta;
+
+APrimitiveVector(IPersistentMap meta, int cnt, int shift, Node root, Object tail){
+	this._meta = meta;
+	this.cnt = cnt;
+	this.shift = shift;
+	this.root = root;
+	this.tail = tail;
+}
+
+/**
+ * Returns a new primitive array of the element type.
+ */
+abstract Object array(int size);
+
+/**
+ * Returns element i of the primitive array, boxed.
+ */
+abstract T aget(Object array, int i);
+
+abstract APrimitiveVector<T> make(IPersistentMap meta, int cnt, int shift, Node root, Object tail);
+
+abstract IChunk<T> chunk(Object array, int off, int end);
+
+public abstract ATransientVector<T> asTransient();
+
+final int tailoff(){
+	if(cnt < 32)
+		return 0;
+	return ((cnt - 1) >>> 5) << 5;
+}
+
+/**
+ * Returns the primitive array holding element i, at index i & 0x01f.
+ */
+final Object arrayFor(int i){
+	if(i >= 0 && i < cnt)
+		{
+		if(i >= tailoff())
+			return tail;
+		Node node = root;
+		for(int level = shift; level > 0; level -= 5)
+			node = (Node) ((Object[]) node.array)[(i >>> level) & 0x01f];
+		return node.array;
+		}
+	throw new IndexOutOfBoundsException();
+}
+
+/**
+ * Copies the elements, leaf by leaf, into dst: a primitive array of the
+ * leaves' type and at least count() elements.
+ */
+final void copyTo(Object dst){
+	for(int i = 0; i < cnt; i += 32)
+		System.arraycopy(arrayFor(i), 0, dst, i, Math.min(32, cnt - i));
+}
+
+public T nth(int i){
+	return aget(arrayFor(i), i & 0x01f);
+}
+
+public int count(){
+	return cnt;
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+public APrimitiveVector<T> withMeta(IPersistentMap meta){
+	return make(meta, cnt, shift, root, tail);
+}
+
+/**
+ * Returns this vector with element i set to the element of the one element
+ * array one, or with that element appended if i is count().
+ */
+final APrimitiveVector<T> assocFrom(int i, Object one){
+	if(i >= 0 && i < cnt)
+		{
+		if(i >= tailoff())
+			{
+			int n = cnt - tailoff();
+			Object newTail = array(n);
+			System.arraycopy(tail, 0, newTail, 0, n);
+			System.arraycopy(one, 0, newTail, i & 0x01f, 1);
+			return make(_meta, cnt, shift, root, newTail);
+			}
+		return make(_meta, cnt, shift, doAssoc(shift, root, i, one), tail);
+		}
+	if(i == cnt)
+		return consFrom(one);
+	throw new IndexOutOfBoundsException();
+}
+
+private Node doAssoc(int level, Node node, int i, Object one){
+	if(level == 0)
+		{
+		Object array = array(32);
+		System.arraycopy(node.array, 0, array, 0, 32);
+		System.arraycopy(one, 0, array, i & 0x01f, 1);
+		return new Node(node.edit, array);
+		}
+	Object[] array = ((Object[]) node.array).clone();
+	int subidx = (i >>> level) & 0x01f;
+	array[subidx] = doAssoc(level - 5, (Node) array[subidx], i, one);
+	return new Node(node.edit, array);
+}
+
+/**
+ * Returns this vector with the element of the one element array one
+ * appended. one may become the new tail, so it must not be shared.
+ */
+final APrimitiveVector<T> consFrom(Object one){
+	int n = cnt - tailoff();
+	//room in tail?
+	if(n < 32)
+		{
+		Object newTail = array(n + 1);
+		System.arraycopy(tail, 0, newTail, 0, n);
+		System.arraycopy(one, 0, newTail, n, 1);
+		return make(_meta, cnt + 1, shift, root, newTail);
+		}
+	//full tail, push into tree
+	Node newroot;
+	Node tailnode = new Node(root.edit, tail);
+	int newshift = shift;
+	//overflow root?
+	if((cnt >>> 5) > (1 << shift))
+		{
+		newroot = new Node(root.edit);
+		Object[] array = (Object[]) newroot.array;
+		array[0] = root;
+		array[1] = newPath(root.edit, shift, tailnode);
+		newshift += 5;
+		}
+	else
+		newroot = pushTail(shift, root, tailnode);
+	return make(_meta, cnt + 1, newshift, newroot, one);
+}
+
+private Node pushTail(int level, Node parent, Node tailnode){
+	int subidx = ((cnt - 1) >>> level) & 0x01f;
+	Object[] array = ((Object[]) parent.array).clone();
+	Node nodeToInsert;
+	if(level == 5)
+		{
+		nodeToInsert = tailnode;
+		}
+	else
+		{
+		Node child = (Node) array[subidx];
+		nodeToInsert = (child != null) ?
+		               pushTail(level - 5, child, tailnode)
+		                               : newPath(root.edit, level - 5, tailnode);
+		}
+	array[subidx] = nodeToInsert;
+	return new Node(parent.edit, array);
+}
+
+static Node newPath(AtomicReference<Thread> edit, int level, Node node){
+	if(level == 0)
+		return node;
+	Node ret = new Node(edit);
+	((Object[]) ret.array)[0] = newPath(edit, level - 5, node);
+	return ret;
+}
+
+public APrimitiveVector<T> pop(){
+	if(cnt == 0)
+		throw new IllegalStateException("Can't pop empty vector");
+	if(cnt == 1)
+		return (APrimitiveVector<T>) empty();
+	int n = cnt - tailoff();
+	if(n > 1)
+		{
+		Object newTail = array(n - 1);
+		System.arraycopy(tail, 0, newTail, 0, n - 1);
+		return make(_meta, cnt - 1, shift, root, newTail);
+		}
+	Object newtail = arrayFor(cnt - 2);
+
+	Node newroot = popTail(shift, root);
+	int newshift = shift;
+	if(newroot == null)
+		{
+		newroot = EMPTY_NODE;
+		}
+	if(shift > 5 && ((Object[]) newroot.array)[1] == null)
+		{
+		newroot = (Node) ((Object[]) newroot.array)[0];
+		newshift -= 5;
+		}
+	return make(_meta, cnt - 1, newshift, newroot, newtail);
+}
+
+private Node popTail(int level, Node node){
+	int subidx = ((cnt - 2) >>> level) & 0x01f;
+	Object[] array;
+	if(level > 5)
+		{
+		Node newchild = popTail(level - 5, (Node) ((Object[]) node.array)[subidx]);
+		if(newchild == null && subidx == 0)
+			return null;
+		array = ((Object[]) node.array).clone();
+		array[subidx] = newchild;
+		}
+	else if(subidx == 0)
+		return null;
+	else
+		{
+		array = ((Object[]) node.array).clone();
+		array[subidx] = null;
+		}
+	return new Node(root.edit, array);
+}
+
+/**
+ * Returns a seq whose chunks are primitive array chunks over the leaves.
+ */
+public IChunkedSeq<T> chunkedSeq(){
+	if(count() == 0)
+		return null;
+	return new ChunkedSeq<T>(this, 0, 0);
+}
+
+public ISeq<T> seq(){
+	return chunkedSeq();
+}
+
+public Iterator<T> iterator(){
+	return new Iterator<T>(){
+		int i = 0;
+		Object array;
+
+		public boolean hasNext(){
+			return i < cnt;
+		}
+
+		public T next(){
+			if(i >= cnt)
+				throw new NoSuchElementException();
+			if((i & 0x01f) == 0)
+				array = arrayFor(i);
+			return aget(array, i++ & 0x01f);
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	};
+}
+
+static public final class ChunkedSeq<T> extends ASeq<T> implements IChunkedSeq<T>{
+
+	public final APrimitiveVector<T> vec;
+	final Object node;
+	final int i;
+	public final int offset;
+
+	ChunkedSeq(APrimitiveVector<T> vec, int i, int offset){
+		this.vec = vec;
+		this.i = i;
+		this.offset = offset;
+		this.node = vec.arrayFor(i);
+	}
+
+	ChunkedSeq(IPersistentMap meta, APrimitiveVector<T> vec, Object node, int i, int offset){
+		super(meta);
+		this.vec = vec;
+		this.node = node;
+		this.i = i;
+		this.offset = offset;
+	}
+
+	private int end(){
+		return Math.min(32, vec.cnt - i);
+	}
+
+	public IChunk<T> chunkedFirst(){
+		return vec.chunk(node, offset, end());
+	}
+
+	public ISeq<T> chunkedNext(){
+		if(i + 32 < vec.cnt)
+			return new ChunkedSeq<T>(vec, i + 32, 0);
+		return null;
+	}
+
+	public ISeq<T> chunkedMore(){
+		ISeq<T> s = chunkedNext();
+		if(s == null)
+			return (ISeq<T>) PersistentList.emptyList();
+		return s;
+	}
+
+	public Obj withMeta(IPersistentMap meta){
+		if(meta == this._meta)
+			return this;
+		return new ChunkedSeq<T>(meta, vec, node, i, offset);
+	}
+
+	public T first(){
+		return vec.aget(node, offset);
+	}
+
+	public ISeq<T> next(){
+		if(offset + 1 < end())
+			return new ChunkedSeq<T>(_meta, vec, node, i, offset + 1);
+		return chunkedNext();
+	}
+}
+
+/**
+ * The transient of a primitive vector. Its tail always has room for 32
+ * elements.
+ */
+static public abstract class ATransientVector<T> extends AFn implements ITransientVector<T>, Counted{
+	// the vector this was made from, for its array operations
+	final APrimitiveVector<T> am;
+	int cnt;
+	int shift;
+	Node root;
+	Object tail;
+
+	ATransientVector(APrimitiveVector<T> v){
+		this.am = v;
+		this.cnt = v.cnt;
+		this.shift = v.shift;
+		this.root = new Node(new AtomicReference<Thread>(Thread.currentThread()),
+		                     ((Object[]) v.root.array).clone());
+		this.tail = am.array(32);
+		System.arraycopy(v.tail, 0, tail, 0, v.cnt - v.tailoff());
+	}
+
+	public int count(){
+		ensureEditable();
+		return cnt;
+	}
+
+	final void ensureEditable(){
+		Thread owner = root.edit.get();
+		if(owner == Thread.currentThread())
+			return;
+		if(owner != null)
+			throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	private Node ensureEditable(Node node){
+		if(node.edit == root.edit)
+			return node;
+		if(node.array instanceof Object[])
+			return new Node(root.edit, ((Object[]) node.array).clone());
+		Object array = am.array(32);
+		System.arraycopy(node.array, 0, array, 0, 32);
+		return new Node(root.edit, array);
+	}
+
+	final int tailoff(){
+		if(cnt < 32)
+			return 0;
+		return ((cnt - 1) >>> 5) << 5;
+	}
+
+	final Object arrayFor(int i){
+		if(i >= 0 && i < cnt)
+			{
+			if(i >= tailoff())
+				return tail;
+			Node node = root;
+			for(int level = shift; level > 0; level -= 5)
+				node = (Node) ((Object[]) node.array)[(i >>> level) & 0x01f];
+			return node.array;
+			}
+		throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Returns the array holding element i, copying it and the path to it
+	 * from the persistent vector if they are still shared with it.
+	 */
+	final Object editableArrayFor(int i){
+		ensureEditable();
+		if(i < 0 || i >= cnt)
+			throw new IndexOutOfBoundsException();
+		if(i >= tailoff())
+			return tail;
+		root = ensureEditable(root);
+		Node node = root;
+		for(int level = shift; level > 0; level -= 5)
+			{
+			Object[] array = (Object[]) node.array;
+			int subidx = (i >>> level) & 0x01f;
+			node = ensureEditable((Node) array[subidx]);
+			array[subidx] = node;
+			}
+		return node.array;
+	}
+
+	/**
+	 * Grows the vector by one element and returns the index in the tail
+	 * where the caller stores it.
+	 */
+	final int conjIndex(){
+		ensureEditable();
+		int i = cnt;
+		//room in tail?
+		if(i - tailoff() < 32)
+			{
+			++cnt;
+			return i & 0x01f;
+			}
+		//full tail, push into tree
+		Node newroot;
+		Node tailnode = new Node(root.edit, tail);
+		tail = am.array(32);
+		int newshift = shift;
+		//overflow root?
+		if((cnt >>> 5) > (1 << shift))
+			{
+			newroot = new Node(root.edit);
+			Object[] array = (Object[]) newroot.array;
+			array[0] = root;
+			array[1] = newPath(root.edit, shift, tailnode);
+			newshift += 5;
+			}
+		else
+			newroot = pushTail(shift, root, tailnode);
+		root = newroot;
+		shift = newshift;
+		++cnt;
+		return 0;
+	}
+
+	private Node pushTail(int level, Node parent, Node tailnode){
+		parent = ensureEditable(parent);
+		Object[] array = (Object[]) parent.array;
+		int subidx = ((cnt - 1) >>> level) & 0x01f;
+		Node nodeToInsert;
+		if(level == 5)
+			{
+			nodeToInsert = tailnode;
+			}
+		else
+			{
+			Node child = (Node) array[subidx];
+			nodeToInsert = (child != null) ?
+			               pushTail(level - 5, child, tailnode)
+			                               : newPath(root.edit, level - 5, tailnode);
+			}
+		array[subidx] = nodeToInsert;
+		return parent;
+	}
+
+	public T nth(int i){
+		ensureEditable();
+		return am.aget(arrayFor(i), i & 0x01f);
+	}
+
+	public T nth(int i, T notFound){
+		if(i >= 0 && i < count())
+			return nth(i);
+		return notFound;
+	}
+
+	public Object valAt(Object key){
+		//note - relies on ensureEditable in 2-arg valAt
+		return valAt(key, null);
+	}
+
+	public Object valAt(Object key, Object notFound){
+		ensureEditable();
+		if(Util.isInteger(key))
+			{
+			int i = ((Number) key).intValue();
+			if(i >= 0 && i < cnt)
+				return nth(i);
+			}
+		return notFound;
+	}
+
+	public Object invoke(Object arg1) throws Exception{
+		//note - relies on ensureEditable in nth
+		if(Util.isInteger(arg1))
+			return nth(((Number) arg1).intValue());
+		throw new IllegalArgumentException("Key must be integer");
+	}
+
+	public ATransientVector<T> assoc(Object key, Object val){
+		//note - relies on ensureEditable in assocN
+		if(Util.isInteger(key))
+			return (ATransientVector<T>) assocN(((Number) key).intValue(), (T) val);
+		throw new IllegalArgumentException("Key must be integer");
+	}
+
+	public ATransientVector<T> pop(){
+		ensureEditable();
+		if(cnt == 0)
+			throw new IllegalStateException("Can't pop empty vector");
+		if(cnt == 1)
+			{
+			cnt = 0;
+			return this;
+			}
+		int i = cnt - 1;
+		//pop in tail?
+		if((i & 0x01f) > 0)
+			{
+			--cnt;
+			return this;
+			}
+
+		Object newtail = editableArrayFor(cnt - 2);
+
+		Node newroot = popTail(shift, root);
+		int newshift = shift;
+		if(newroot == null)
+			{
+			newroot = new Node(root.edit);
+			}
+		if(shift > 5 && ((Object[]) newroot.array)[1] == null)
+			{
+			newroot = (Node) ((Object[]) newroot.array)[0];
+			newshift -= 5;
+			}
+		root = newroot;
+		shift = newshift;
+		--cnt;
+		tail = newtail;
+		return this;
+	}
+
+	private Node popTail(int level, Node node){
+		node = ensureEditable(node);
+		Object[] array = (Object[]) node.array;
+		int subidx = ((cnt - 2) >>> level) & 0x01f;
+		if(level > 5)
+			{
+			Node newchild = popTail(level - 5, (Node) array[subidx]);
+			if(newchild == null && subidx == 0)
+				return null;
+			array[subidx] = newchild;
+			return node;
+			}
+		else if(subidx == 0)
+			return null;
+		array[subidx] = null;
+		return node;
+	}
+
+	public APrimitiveVector<T> persistent(){
+		ensureEditable();
+		root.edit.set(null);
+		int n = cnt - tailoff();
+		Object trimmedTail = am.array(n);
+		System.arraycopy(tail, 0, trimmedTail, 0, n);
+		return am.make(null, cnt, shift, root, trimmedTail);
+	}
+}
+}
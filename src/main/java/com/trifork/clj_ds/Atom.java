@@ -0,0 +1,182 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jsr166y.ThreadLocalRandom;
+
+/**
+ * A shared, synchronously and independently updated reference to an
+ * immutable value, typically a persistent collection. Updates go through
+ * {@link #swap(IFn)}, which applies a function to the current value and
+ * retries with compare-and-set until no other thread got in between, so the
+ * function must be free of side effects.
+ * <p>
+ * An optional validator is called with every proposed new value and rejects
+ * it by returning false (or null); watches are called after every change.
+ */
+public class Atom<T>{
+
+/*
+ * After a failed compare-and-set a thread spins for a random number of reads
+ * below a bound that doubles with every failure, so that contending threads
+ * spread out rather than retry in lock-step. After more than MAX_SPIN_SHIFT
+ * failures in a row it yields instead.
+ */
+static final int MAX_SPIN_SHIFT = 10;
+
+final AtomicReference<T> state;
+volatile IFn validator;
+volatile PersistentHashMap<Object, IFn> watches = PersistentHashMap.emptyMap();
+
+public Atom(T state){
+	this.state = new AtomicReference<T>(state);
+}
+
+public Atom(T state, IFn validator) throws Exception{
+	validate(validator, state);
+	this.state = new AtomicReference<T>(state);
+	this.validator = validator;
+}
+
+public T deref(){
+	return state.get();
+}
+
+/**
+ * Atomically sets the value to f.invoke(value) and returns the new value.
+ */
+public T swap(IFn f) throws Exception{
+	return swap(f, 0, null, null);
+}
+
+/**
+ * Atomically sets the value to f.invoke(value, arg) and returns the new value.
+ */
+public T swap(IFn f, Object arg) throws Exception{
+	return swap(f, 1, arg, null);
+}
+
+/**
+ * Atomically sets the value to f.invoke(value, arg1, arg2) and returns the
+ * new value.
+ */
+public T swap(IFn f, Object arg1, Object arg2) throws Exception{
+	return swap(f, 2, arg1, arg2);
+}
+
+@SuppressWarnings("unchecked")
+private T swap(IFn f, int arity, Object arg1, Object arg2) throws Exception{
+	for(int failures = 1; ; failures++)
+		{
+		T v = state.get();
+		T newv;
+		switch(arity)
+			{
+			case 0:
+				newv = (T) f.invoke(v);
+				break;
+			case 1:
+				newv = (T) f.invoke(v, arg1);
+				break;
+			default:
+				newv = (T) f.invoke(v, arg1, arg2);
+			}
+		validate(newv);
+		if(state.compareAndSet(v, newv))
+			{
+			notifyWatches(v, newv);
+			return newv;
+			}
+		backoff(failures, state);
+		}
+}
+
+/**
+ * Sets the value to newv if the current value is identical to oldv.
+ */
+public boolean compareAndSet(T oldv, T newv) throws Exception{
+	validate(newv);
+	boolean ret = state.compareAndSet(oldv, newv);
+	if(ret)
+		notifyWatches(oldv, newv);
+	return ret;
+}
+
+/**
+ * Sets the value to newv regardless of the current value.
+ */
+public T reset(T newv) throws Exception{
+	validate(newv);
+	T oldv = state.getAndSet(newv);
+	notifyWatches(oldv, newv);
+	return newv;
+}
+
+static void backoff(int failures, AtomicReference<?> ref){
+	if(failures > MAX_SPIN_SHIFT)
+		{
+		Thread.yield();
+		return;
+		}
+	for(int i = ThreadLocalRandom.current().nextInt(1 << failures); i > 0; i--)
+		ref.get();
+}
+
+public void setValidator(IFn vf) throws Exception{
+	validate(vf, deref());
+	validator = vf;
+}
+
+public IFn getValidator(){
+	return validator;
+}
+
+void validate(Object val) throws Exception{
+	validate(validator, val);
+}
+
+static void validate(IFn vf, Object val) throws Exception{
+	if(vf != null && !RT.booleanCast(vf.invoke(val)))
+		throw new IllegalStateException("Invalid reference state");
+}
+
+/**
+ * Adds a watch under key, which is called as
+ * callback.invoke(key, atom, oldValue, newValue) after every change of the
+ * value, on the thread that made it. An earlier watch under the same key is
+ * replaced.
+ */
+synchronized public Atom<T> addWatch(Object key, IFn callback){
+	watches = (PersistentHashMap<Object, IFn>) watches.assoc(key, callback);
+	return this;
+}
+
+synchronized public Atom<T> removeWatch(Object key){
+	watches = (PersistentHashMap<Object, IFn>) watches.without(key);
+	return this;
+}
+
+public IPersistentMap<Object, IFn> getWatches(){
+	return watches;
+}
+
+void notifyWatches(T oldv, T newv) throws Exception{
+	PersistentHashMap<Object, IFn> ws = watches;
+	if(ws.count() > 0)
+		{
+		for(Map.Entry<Object, IFn> e : ws)
+			e.getValue().invoke(e.getKey(), this, oldv, newv);
+		}
+}
+}
@@ -87,4 +87,12 @@ public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object
 		throws Exception;
 
 public Object applyTo(ISeq arglist) throws Exception;
+
+/*
+ * Functions of primitive arguments, used by the reductions of the primitive
+ * vectors and chunks to avoid boxing.
+ */
+static public interface LLL{long invokePrim(long arg0, long arg1);}
+
+static public interface DDD{double invokePrim(double arg0, double arg1);}
 }
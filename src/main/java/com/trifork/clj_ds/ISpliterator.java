@@ -0,0 +1,49 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+/**
+ * A traversal that can be split along the structure of a collection, so the
+ * parts can be processed in parallel, see {@link Reducers#fold}. Follows the
+ * contract of java.util.Spliterator, including the characteristic bits, but
+ * takes an IFn where that takes a Consumer.
+ */
+public interface ISpliterator<T>{
+int DISTINCT = 0x00000001;
+int ORDERED = 0x00000010;
+int SIZED = 0x00000040;
+int IMMUTABLE = 0x00000400;
+int SUBSIZED = 0x00004000;
+
+/**
+ * Invokes f with the next element and returns true, or returns false if no
+ * elements remain.
+ */
+boolean tryAdvance(IFn f) throws Exception;
+
+/**
+ * Invokes f with each remaining element, in encounter order.
+ */
+void forEachRemaining(IFn f) throws Exception;
+
+/**
+ * Returns a spliterator covering a prefix of the remaining elements, which
+ * this one will no longer cover, or null if this one can't be split.
+ */
+ISpliterator<T> trySplit();
+
+/**
+ * The number of remaining elements; exact if SIZED is reported.
+ */
+long estimateSize();
+
+int characteristics();
+}
@@ -0,0 +1,71 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.io.Serializable;
+
+/**
+ * An {@link ArrayChunk} over a long[], with unboxed access.
+ */
+public final class LongArrayChunk implements IChunk<Long>, Serializable{
+
+final long[] array;
+final int off;
+final int end;
+
+public LongArrayChunk(long[] array){
+	this(array, 0, array.length);
+}
+
+public LongArrayChunk(long[] array, int off, int end){
+	this.array = array;
+	this.off = off;
+	this.end = end;
+}
+
+public long nthLong(int i){
+	return array[off + i];
+}
+
+public Long nth(int i){
+	return array[off + i];
+}
+
+public Long nth(int i, Long notFound){
+	if(i >= 0 && i < count())
+		return nth(i);
+	return notFound;
+}
+
+public int count(){
+	return end - off;
+}
+
+public IChunk<Long> dropFirst(){
+	if(off == end)
+		throw new IllegalStateException("dropFirst of empty chunk");
+	return new LongArrayChunk(array, off + 1, end);
+}
+
+public Object reduce(IFn f, Object start) throws Exception{
+	Object ret = start;
+	for(int x = off; x < end; x++)
+		ret = f.invoke(ret, array[x]);
+	return ret;
+}
+
+public long reduce(IFn.LLL f, long start){
+	long ret = start;
+	for(int x = off; x < end; x++)
+		ret = f.invokePrim(ret, array[x]);
+	return ret;
+}
+}
@@ -0,0 +1,574 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Persistent red-black tree, as {@link PersistentTreeMap}, in which every
+ * node also keeps the values of its subtree combined in key order. The
+ * combine function must be associative and identity must be its identity,
+ * e.g. addition and 0 or min and a greatest value. The aggregate of a key
+ * range is then found in O(log n), combining O(log n) cached subtrees.
+ * <p/>
+ * Every node made by an update, on the copied path or by a rotation, calls
+ * combine at most twice.
+ */
+public class PersistentAggregateMap<K,V> extends APersistentMap<K,V> implements IObj, Reversible<Map.Entry<K, V>>, Sorted<K>{
+
+public final Comparator<K> comp;
+public final IFn combine;
+public final V identity;
+final Node tree;
+final int _count;
+final IPersistentMap _meta;
+
+public PersistentAggregateMap(IFn combine, V identity){
+	this(null, RT.DEFAULT_COMPARATOR, combine, identity);
+}
+
+public PersistentAggregateMap(IPersistentMap meta, Comparator<K> comp, IFn combine, V identity){
+	this(meta, comp, combine, identity, null, 0);
+}
+
+PersistentAggregateMap(IPersistentMap meta, Comparator<K> comp, IFn combine, V identity, Node tree, int _count){
+	this._meta = meta;
+	this.comp = comp;
+	this.combine = combine;
+	this.identity = identity;
+	this.tree = tree;
+	this._count = _count;
+}
+
+static public <K,V> PersistentAggregateMap<K,V> create(Comparator<K> comp, IFn combine, V identity, ISeq items){
+	PersistentAggregateMap<K,V> ret = new PersistentAggregateMap<K,V>(null, comp, combine, identity);
+	for(; items != null; items = items.next().next())
+		{
+		if(items.next() == null)
+			throw new IllegalArgumentException(String.format("No value supplied for key: %s", items.first()));
+		ret = ret.assoc((K) items.first(), (V) RT.second(items));
+		}
+	return ret;
+}
+
+public PersistentAggregateMap<K,V> withMeta(IPersistentMap meta){
+	return new PersistentAggregateMap<K,V>(meta, comp, combine, identity, tree, _count);
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+private PersistentAggregateMap<K,V> make(Node t, int count){
+	return new PersistentAggregateMap<K,V>(_meta, comp, combine, identity, t, count);
+}
+
+/**
+ * Returns the values of all entries combined in key order, in O(1).
+ */
+public V aggregate(){
+	return tree == null ? identity : (V) tree.agg;
+}
+
+/**
+ * Returns the values of the entries with keys from lo, inclusive, to hi,
+ * exclusive, combined in key order, in O(log n).
+ */
+public V aggregate(K lo, K hi){
+	if(doCompare(lo, hi) >= 0)
+		return identity;
+	Node t = tree;
+	while(t != null)
+		{
+		if(doCompare((K) t.key, lo) < 0)
+			t = t.right;
+		else if(doCompare((K) t.key, hi) >= 0)
+			t = t.left;
+		else
+			return (V) combine(combine(aggregateFrom(t.left, lo), t.val), aggregateBelow(t.right, hi));
+		}
+	return identity;
+}
+
+/**
+ * Returns the values of the entries with keys less than hi combined in key
+ * order, in O(log n).
+ */
+public V headAggregate(K hi){
+	return (V) aggregateBelow(tree, hi);
+}
+
+/**
+ * Returns the values of the entries with keys not less than lo combined in
+ * key order, in O(log n).
+ */
+public V tailAggregate(K lo){
+	return (V) aggregateFrom(tree, lo);
+}
+
+/*
+ * Walks down from t, combining whole left subtrees of the nodes below hi
+ * onto the front.
+ */
+Object aggregateBelow(Node t, K hi){
+	Object ret = identity;
+	while(t != null)
+		{
+		if(doCompare((K) t.key, hi) < 0)
+			{
+			ret = combine(ret, combine(agg(t.left), t.val));
+			t = t.right;
+			}
+		else
+			t = t.left;
+		}
+	return ret;
+}
+
+Object aggregateFrom(Node t, K lo){
+	Object ret = identity;
+	while(t != null)
+		{
+		if(doCompare((K) t.key, lo) >= 0)
+			{
+			ret = combine(combine(t.val, agg(t.right)), ret);
+			t = t.left;
+			}
+		else
+			t = t.right;
+		}
+	return ret;
+}
+
+/*
+ * Combining with identity is skipped, which the monoid laws allow.
+ */
+Object combine(Object a, Object b){
+	if(a == identity)
+		return b;
+	if(b == identity)
+		return a;
+	try
+		{
+		return combine.invoke(a, b);
+		}
+	catch(RuntimeException e)
+		{
+		throw e;
+		}
+	catch(Exception e)
+		{
+		throw new RuntimeException(e);
+		}
+}
+
+Object agg(Node t){
+	return t == null ? identity : t.agg;
+}
+
+public boolean containsKey(Object key){
+	return entryAt((K) key) != null;
+}
+
+public Object entryKey(Object entry){
+	return ((IMapEntry) entry).key();
+}
+
+public IMapEntry<K,V> entryAt(K key){
+	Node t = tree;
+	while(t != null)
+		{
+		int c = doCompare(key, (K) t.key);
+		if(c == 0)
+			return t;
+		t = c < 0 ? t.left : t.right;
+		}
+	return null;
+}
+
+public V valAt(K key, V notFound){
+	IMapEntry<K,V> e = entryAt(key);
+	return e != null ? e.val() : notFound;
+}
+
+public V valAt(K key){
+	return valAt(key, null);
+}
+
+public PersistentAggregateMap<K,V> assocEx(K key, V val) throws Exception{
+	Box found = new Box(null);
+	Node t = add(tree, key, val, found);
+	if(t == null)   //null == already contains key
+		throw new Exception("Key already present");
+	return make(blacken(t), _count + 1);
+}
+
+public PersistentAggregateMap<K,V> assoc(K key, V val){
+	Box found = new Box(null);
+	Node t = add(tree, key, val, found);
+	if(t == null)   //null == already contains key
+		{
+		if(((Node) found.val).val == val)  //note only get same collection on identity of val, not equals()
+			return this;
+		return make(replace(tree, key, val), _count);
+		}
+	return make(blacken(t), _count + 1);
+}
+
+public PersistentAggregateMap<K,V> without(K key){
+	Box found = new Box(null);
+	Node t = remove(tree, key, found);
+	if(found.val == null)//null == doesn't contain key
+		return this;
+	return make(t == null ? null : blacken(t), _count - 1);
+}
+
+public int count(){
+	return _count;
+}
+
+public IPersistentCollection empty(){
+	return new PersistentAggregateMap<K,V>(_meta, comp, combine, identity);
+}
+
+public Comparator<K> comparator(){
+	return comp;
+}
+
+public ISeq seq(){
+	return seq(true);
+}
+
+public ISeq rseq(){
+	return seq(false);
+}
+
+public ISeq seq(boolean ascending){
+	return IteratorSeq.create(new NodeIterator(tree, ascending));
+}
+
+/**
+ * Returns the entries from key on: those not less than key if ascending,
+ * else those not greater than key in descending order.
+ */
+public ISeq seqFrom(K key, boolean ascending){
+	return IteratorSeq.create(new NodeIterator(tree, comp, key, ascending));
+}
+
+public Iterator<Map.Entry<K, V>> iterator(){
+	return new NodeIterator(tree, true);
+}
+
+public Iterator<Map.Entry<K, V>> reverseIterator(){
+	return new NodeIterator(tree, false);
+}
+
+public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
+	return new NodeIterator(tree, comp, key, true);
+}
+
+public Object minKey(){
+	Node t = tree;
+	if(t == null)
+		return null;
+	while(t.left != null)
+		t = t.left;
+	return t.key;
+}
+
+public Object maxKey(){
+	Node t = tree;
+	if(t == null)
+		return null;
+	while(t.right != null)
+		t = t.right;
+	return t.key;
+}
+
+public int doCompare(K k1, K k2){
+	return comp.compare(k1, k2);
+}
+
+/*
+ * The insertion and deletion of PersistentTreeMap, with the color a field
+ * of the node rather than its class.
+ */
+
+static boolean isRed(Node t){
+	return t != null && t.red;
+}
+
+static boolean isBlack(Node t){
+	return t != null && !t.red;
+}
+
+Node red(Object key, Object val, Node left, Node right){
+	return new Node(true, key, val, left, right, combine(combine(agg(left), val), agg(right)));
+}
+
+Node black(Object key, Object val, Node left, Node right){
+	return new Node(false, key, val, left, right, combine(combine(agg(left), val), agg(right)));
+}
+
+static Node blacken(Node t){
+	return t.red ? new Node(false, t.key, t.val, t.left, t.right, t.agg) : t;
+}
+
+static Node redden(Node t){
+	if(t.red)
+		throw new UnsupportedOperationException("Invariant violation");
+	return new Node(true, t.key, t.val, t.left, t.right, t.agg);
+}
+
+Node add(Node t, Object key, Object val, Box found){
+	if(t == null)
+		return new Node(true, key, val, null, null, val);
+	int c = doCompare((K) key, (K) t.key);
+	if(c == 0)
+		{
+		found.val = t;
+		return null;
+		}
+	Node ins = c < 0 ? add(t.left, key, val, found) : add(t.right, key, val, found);
+	if(ins == null) //found below
+		return null;
+	if(c < 0)
+		return t.red ? red(t.key, t.val, ins, t.right) : balanceLeft(ins, t);
+	return t.red ? red(t.key, t.val, t.left, ins) : balanceRight(ins, t);
+}
+
+Node balanceLeft(Node ins, Node parent){
+	if(ins.red && isRed(ins.left))
+		return red(ins.key, ins.val, blacken(ins.left), black(parent.key, parent.val, ins.right, parent.right));
+	else if(ins.red && isRed(ins.right))
+		return red(ins.right.key, ins.right.val, black(ins.key, ins.val, ins.left, ins.right.left),
+		           black(parent.key, parent.val, ins.right.right, parent.right));
+	else
+		return black(parent.key, parent.val, ins, parent.right);
+}
+
+Node balanceRight(Node ins, Node parent){
+	if(ins.red && isRed(ins.right))
+		return red(ins.key, ins.val, black(parent.key, parent.val, parent.left, ins.left), blacken(ins.right));
+	else if(ins.red && isRed(ins.left))
+		return red(ins.left.key, ins.left.val, black(parent.key, parent.val, parent.left, ins.left.left),
+		           black(ins.key, ins.val, ins.left.right, ins.right));
+	else
+		return black(parent.key, parent.val, parent.left, ins);
+}
+
+Node remove(Node t, K key, Box found){
+	if(t == null)
+		return null; //not found indicator
+	int c = doCompare(key, (K) t.key);
+	if(c == 0)
+		{
+		found.val = t;
+		return append(t.left, t.right);
+		}
+	Node del = c < 0 ? remove(t.left, key, found) : remove(t.right, key, found);
+	if(del == null && found.val == null) //not found below
+		return null;
+	if(c < 0)
+		{
+		if(isBlack(t.left))
+			return balanceLeftDel(t.key, t.val, del, t.right);
+		else
+			return red(t.key, t.val, del, t.right);
+		}
+	if(isBlack(t.right))
+		return balanceRightDel(t.key, t.val, t.left, del);
+	return red(t.key, t.val, t.left, del);
+}
+
+Node append(Node left, Node right){
+	if(left == null)
+		return right;
+	else if(right == null)
+		return left;
+	else if(left.red)
+		{
+		if(right.red)
+			{
+			Node app = append(left.right, right.left);
+			if(isRed(app))
+				return red(app.key, app.val,
+				           red(left.key, left.val, left.left, app.left),
+				           red(right.key, right.val, app.right, right.right));
+			else
+				return red(left.key, left.val, left.left, red(right.key, right.val, app, right.right));
+			}
+		else
+			return red(left.key, left.val, left.left, append(left.right, right));
+		}
+	else if(right.red)
+		return red(right.key, right.val, append(left, right.left), right.right);
+	else //black/black
+		{
+		Node app = append(left.right, right.left);
+		if(isRed(app))
+			return red(app.key, app.val,
+			           black(left.key, left.val, left.left, app.left),
+			           black(right.key, right.val, app.right, right.right));
+		else
+			return balanceLeftDel(left.key, left.val, left.left, black(right.key, right.val, app, right.right));
+		}
+}
+
+Node balanceLeftDel(Object key, Object val, Node del, Node right){
+	if(isRed(del))
+		return red(key, val, blacken(del), right);
+	else if(isBlack(right))
+		return rightBalance(key, val, del, redden(right));
+	else if(isRed(right) && isBlack(right.left))
+		return red(right.left.key, right.left.val,
+		           black(key, val, del, right.left.left),
+		           rightBalance(right.key, right.val, right.left.right, redden(right.right)));
+	else
+		throw new UnsupportedOperationException("Invariant violation");
+}
+
+Node balanceRightDel(Object key, Object val, Node left, Node del){
+	if(isRed(del))
+		return red(key, val, left, blacken(del));
+	else if(isBlack(left))
+		return leftBalance(key, val, redden(left), del);
+	else if(isRed(left) && isBlack(left.right))
+		return red(left.right.key, left.right.val,
+		           leftBalance(left.key, left.val, redden(left.left), left.right.left),
+		           black(key, val, left.right.right, del));
+	else
+		throw new UnsupportedOperationException("Invariant violation");
+}
+
+Node leftBalance(Object key, Object val, Node ins, Node right){
+	if(isRed(ins) && isRed(ins.left))
+		return red(ins.key, ins.val, blacken(ins.left), black(key, val, ins.right, right));
+	else if(isRed(ins) && isRed(ins.right))
+		return red(ins.right.key, ins.right.val,
+		           black(ins.key, ins.val, ins.left, ins.right.left),
+		           black(key, val, ins.right.right, right));
+	else
+		return black(key, val, ins, right);
+}
+
+Node rightBalance(Object key, Object val, Node left, Node ins){
+	if(isRed(ins) && isRed(ins.right))
+		return red(ins.key, ins.val, black(key, val, left, ins.left), blacken(ins.right));
+	else if(isRed(ins) && isRed(ins.left))
+		return red(ins.left.key, ins.left.val,
+		           black(key, val, left, ins.left.left),
+		           black(ins.key, ins.val, ins.left.right, ins.right));
+	else
+		return black(key, val, left, ins);
+}
+
+Node replace(Node t, K key, Object val){
+	int c = doCompare(key, (K) t.key);
+	Node left = c < 0 ? replace(t.left, key, val) : t.left;
+	Node right = c > 0 ? replace(t.right, key, val) : t.right;
+	Object v = c == 0 ? val : t.val;
+	return t.red ? red(t.key, v, left, right) : black(t.key, v, left, right);
+}
+
+static final class Node extends AMapEntry{
+	final boolean red;
+	final Object key;
+	final Object val;
+	final Node left;
+	final Node right;
+	// the values of this subtree combined in key order
+	final Object agg;
+
+	Node(boolean red, Object key, Object val, Node left, Node right, Object agg){
+		this.red = red;
+		this.key = key;
+		this.val = val;
+		this.left = left;
+		this.right = right;
+		this.agg = agg;
+	}
+
+	public Object key(){
+		return key;
+	}
+
+	public Object val(){
+		return val;
+	}
+
+	public Object getKey(){
+		return key;
+	}
+
+	public Object getValue(){
+		return val;
+	}
+}
+
+static final class NodeIterator implements Iterator{
+	final Stack<Node> stack = new Stack<Node>();
+	final boolean asc;
+
+	NodeIterator(Node t, boolean asc){
+		this.asc = asc;
+		push(t);
+	}
+
+	/*
+	 * Stacks the nodes on the path to key that are not before it.
+	 */
+	NodeIterator(Node t, Comparator comp, Object key, boolean asc){
+		this.asc = asc;
+		while(t != null)
+			{
+			int c = comp.compare(key, t.key);
+			if(c == 0)
+				{
+				stack.push(t);
+				return;
+				}
+			if(asc == c < 0)
+				{
+				stack.push(t);
+				t = asc ? t.left : t.right;
+				}
+			else
+				t = asc ? t.right : t.left;
+			}
+	}
+
+	void push(Node t){
+		while(t != null)
+			{
+			stack.push(t);
+			t = asc ? t.left : t.right;
+			}
+	}
+
+	public boolean hasNext(){
+		return !stack.isEmpty();
+	}
+
+	public Object next(){
+		Node t = stack.pop();
+		push(asc ? t.right : t.left);
+		return t;
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+}
+}
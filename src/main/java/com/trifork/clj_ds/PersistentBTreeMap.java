@@ -0,0 +1,708 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Persistent B+-tree: a sorted map with the interface of
+ * {@link PersistentTreeMap}, whose entries are kept in leaves of up to 32
+ * keys and values in parallel arrays, under branches of up to 32 children.
+ * A lookup binary searches a handful of arrays instead of chasing a
+ * pointer per comparison, and an update copies one node per level.
+ * <p/>
+ * Nodes are between half full and full, except the root. Branches hold
+ * for each child a separator key, not greater than any key of that child
+ * and greater than all keys of the child before it.
+ */
+public class PersistentBTreeMap<K,V> extends APersistentMap<K,V> implements IObj, IEditableCollection<Map.Entry<K, V>>,
+		Reversible<Map.Entry<K, V>>, Sorted<K>{
+
+static final int MAX = 32;
+static final int MIN = MAX / 2;
+// a root of 2 children above MIN-way branches holds 2^31 keys within 8 levels
+private static final int MAX_DEPTH = 8;
+
+public final Comparator<K> comp;
+final Node root;
+final int _count;
+final IPersistentMap _meta;
+
+final static public PersistentBTreeMap EMPTY = new PersistentBTreeMap();
+
+static public <K,V> PersistentBTreeMap<K,V> create(Map<? extends K,? extends V> other){
+	TransientBTreeMap<K,V> ret = ((PersistentBTreeMap<K,V>) EMPTY).asTransient();
+	for(Map.Entry<? extends K,? extends V> o : other.entrySet())
+		{
+		ret.assoc(o.getKey(), o.getValue());
+		}
+	return (PersistentBTreeMap<K,V>) ret.persistentMap();
+}
+
+static public <K,V> PersistentBTreeMap<K,V> create(ISeq items){
+	return create(RT.DEFAULT_COMPARATOR, items);
+}
+
+static public <K,V> PersistentBTreeMap<K,V> create(Comparator<K> comp, ISeq items){
+	TransientBTreeMap<K,V> ret = new PersistentBTreeMap<K,V>(null, comp).asTransient();
+	for(; items != null; items = items.next().next())
+		{
+		if(items.next() == null)
+			throw new IllegalArgumentException(String.format("No value supplied for key: %s", items.first()));
+		ret.assoc((K) items.first(), (V) RT.second(items));
+		}
+	return (PersistentBTreeMap<K,V>) ret.persistentMap();
+}
+
+public PersistentBTreeMap(){
+	this(null, RT.DEFAULT_COMPARATOR);
+}
+
+public PersistentBTreeMap(IPersistentMap meta, Comparator<K> comp){
+	this(meta, comp, null, 0);
+}
+
+PersistentBTreeMap(IPersistentMap meta, Comparator<K> comp, Node root, int _count){
+	this._meta = meta;
+	this.comp = comp;
+	this.root = root;
+	this._count = _count;
+}
+
+public PersistentBTreeMap<K,V> withMeta(IPersistentMap meta){
+	return new PersistentBTreeMap<K,V>(meta, comp, root, _count);
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+public TransientBTreeMap<K,V> asTransient(){
+	return new TransientBTreeMap<K,V>(this);
+}
+
+public boolean containsKey(Object key){
+	return find(root, comp, key, NOT_FOUND) != NOT_FOUND;
+}
+
+public IMapEntry<K,V> entryAt(K key){
+	Leaf leaf = leafFor(root, comp, key);
+	if(leaf == null)
+		return null;
+	int i = leaf.search(comp, key);
+	return i >= 0 ? new MapEntry<K,V>((K) leaf.keys[i], (V) leaf.vals[i]) : null;
+}
+
+public V valAt(K key, V notFound){
+	return (V) find(root, comp, key, notFound);
+}
+
+public V valAt(K key){
+	return valAt(key, null);
+}
+
+public Object entryKey(Object entry){
+	return ((IMapEntry) entry).key();
+}
+
+public PersistentBTreeMap<K,V> assocEx(K key, V val) throws Exception{
+	if(containsKey(key))
+		throw new Exception("Key already present");
+	return assoc(key, val);
+}
+
+public PersistentBTreeMap<K,V> assoc(K key, V val){
+	if(root == null)
+		return new PersistentBTreeMap<K,V>(_meta, comp, new Leaf(null, 1, new Object[]{key}, new Object[]{val}), 1);
+	Box addedLeaf = new Box(null);
+	Node newroot = add(null, root, comp, key, val, addedLeaf);
+	if(newroot == root)
+		return this;
+	return new PersistentBTreeMap<K,V>(_meta, comp, newroot, addedLeaf.val == null ? _count : _count + 1);
+}
+
+public PersistentBTreeMap<K,V> without(K key){
+	if(root == null)
+		return this;
+	Box removedLeaf = new Box(null);
+	Node newroot = remove(null, root, comp, key, removedLeaf);
+	if(removedLeaf.val == null)
+		return this;
+	return new PersistentBTreeMap<K,V>(_meta, comp, newroot, _count - 1);
+}
+
+public int count(){
+	return _count;
+}
+
+public IPersistentCollection empty(){
+	return new PersistentBTreeMap(_meta, comp);
+}
+
+public Comparator<K> comparator(){
+	return comp;
+}
+
+public ISeq seq(){
+	return IteratorSeq.create(iterator());
+}
+
+public ISeq rseq(){
+	return IteratorSeq.create(reverseIterator());
+}
+
+public ISeq seq(boolean ascending){
+	return IteratorSeq.create(new NodeIterator(root, ascending));
+}
+
+/**
+ * Returns the entries from key on: those not less than key if ascending,
+ * else those not greater than key in descending order.
+ */
+public ISeq seqFrom(K key, boolean ascending){
+	return IteratorSeq.create(new NodeIterator(root, comp, key, ascending));
+}
+
+public Iterator<Map.Entry<K, V>> iterator(){
+	return new NodeIterator(root, true);
+}
+
+public Iterator<Map.Entry<K, V>> reverseIterator(){
+	return new NodeIterator(root, false);
+}
+
+public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
+	return new NodeIterator(root, comp, key, true);
+}
+
+public Object minKey(){
+	Node t = root;
+	if(t == null)
+		return null;
+	while(t instanceof Branch)
+		t = ((Branch) t).children[0];
+	return t.keys[0];
+}
+
+public Object maxKey(){
+	Node t = root;
+	if(t == null)
+		return null;
+	while(t instanceof Branch)
+		t = ((Branch) t).children[t.n - 1];
+	return t.keys[t.n - 1];
+}
+
+public int depth(){
+	int depth = 0;
+	for(Node t = root; t != null; t = t instanceof Branch ? ((Branch) t).children[0] : null)
+		depth++;
+	return depth;
+}
+
+final private static Object NOT_FOUND = new Object();
+
+static Leaf leafFor(Node node, Comparator comp, Object key){
+	if(node == null)
+		return null;
+	while(node instanceof Branch)
+		{
+		Branch b = (Branch) node;
+		node = b.children[b.childIndex(comp, key)];
+		}
+	return (Leaf) node;
+}
+
+static Object find(Node node, Comparator comp, Object key, Object notFound){
+	Leaf leaf = leafFor(node, comp, key);
+	if(leaf == null)
+		return notFound;
+	int i = leaf.search(comp, key);
+	return i >= 0 ? leaf.vals[i] : notFound;
+}
+
+/*
+ * Adds a root above the halves if the root overflowed.
+ */
+static Node add(AtomicReference<Thread> edit, Node root, Comparator comp, Object key, Object val, Box addedLeaf){
+	Node ret = root.assoc(edit, comp, key, val, addedLeaf);
+	if(ret.n <= MAX)
+		return ret;
+	Node[] halves = ret.split(edit);
+	Object[] keys = new Object[capacity(edit, 2)];
+	Node[] children = new Node[keys.length];
+	keys[0] = halves[0].keys[0];
+	keys[1] = halves[1].keys[0];
+	children[0] = halves[0];
+	children[1] = halves[1];
+	return new Branch(edit, 2, keys, children);
+}
+
+/*
+ * Drops a root left with a single child, and returns null for an empty
+ * tree.
+ */
+static Node remove(AtomicReference<Thread> edit, Node root, Comparator comp, Object key, Box removedLeaf){
+	Node ret = root.without(edit, comp, key, removedLeaf);
+	if(ret.n == 0)
+		return null;
+	if(ret instanceof Branch && ret.n == 1)
+		return ((Branch) ret).children[0];
+	return ret;
+}
+
+/*
+ * Nodes made by a transient have room for one key over MAX, so they can
+ * overflow in place before they are split. Persistent nodes are exact.
+ */
+static int capacity(AtomicReference<Thread> edit, int n){
+	return edit == null ? n : Math.max(MAX + 1, n);
+}
+
+static abstract class Node implements Serializable {
+	transient final AtomicReference<Thread> edit;
+	int n;
+	final Object[] keys;
+
+	Node(AtomicReference<Thread> edit, int n, Object[] keys){
+		this.edit = edit;
+		this.n = n;
+		this.keys = keys;
+	}
+
+	final boolean isEditable(AtomicReference<Thread> edit){
+		return edit != null && this.edit == edit;
+	}
+
+	/*
+	 * May return a node of MAX + 1 keys, for the parent to split. Sets
+	 * addedLeaf.val if key was not present.
+	 */
+	abstract Node assoc(AtomicReference<Thread> edit, Comparator comp, Object key, Object val, Box addedLeaf);
+
+	/*
+	 * May return a node of fewer than MIN keys, for the parent to refill.
+	 * Sets removedLeaf.val if key was present.
+	 */
+	abstract Node without(AtomicReference<Thread> edit, Comparator comp, Object key, Box removedLeaf);
+
+	/*
+	 * The keys of this node, then of right, in a new node.
+	 */
+	abstract Node concat(AtomicReference<Thread> edit, Node right);
+
+	/*
+	 * This node's keys in two new nodes, the larger half on the right.
+	 */
+	abstract Node[] split(AtomicReference<Thread> edit);
+}
+
+static final class Leaf extends Node {
+	final Object[] vals;
+
+	Leaf(AtomicReference<Thread> edit, int n, Object[] keys, Object[] vals){
+		super(edit, n, keys);
+		this.vals = vals;
+	}
+
+	/*
+	 * Index of key, or -(insertion point) - 1.
+	 */
+	int search(Comparator comp, Object key){
+		int lo = 0;
+		int hi = n - 1;
+		while(lo <= hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			int c = comp.compare(keys[mid], key);
+			if(c < 0)
+				lo = mid + 1;
+			else if(c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+			}
+		return -(lo + 1);
+	}
+
+	Leaf copy(AtomicReference<Thread> edit, int from, int to){
+		int len = to - from;
+		Object[] k = new Object[capacity(edit, len)];
+		Object[] v = new Object[k.length];
+		System.arraycopy(keys, from, k, 0, len);
+		System.arraycopy(vals, from, v, 0, len);
+		return new Leaf(edit, len, k, v);
+	}
+
+	Node assoc(AtomicReference<Thread> edit, Comparator comp, Object key, Object val, Box addedLeaf){
+		int i = search(comp, key);
+		if(i >= 0)
+			{
+			if(vals[i] == val)
+				return this;
+			Leaf ret = isEditable(edit) ? this : copy(edit, 0, n);
+			ret.vals[i] = val;
+			return ret;
+			}
+		i = -i - 1;
+		addedLeaf.val = addedLeaf;
+		if(isEditable(edit) && n < keys.length)
+			{
+			System.arraycopy(keys, i, keys, i + 1, n - i);
+			System.arraycopy(vals, i, vals, i + 1, n - i);
+			keys[i] = key;
+			vals[i] = val;
+			n++;
+			return this;
+			}
+		Object[] k = new Object[capacity(edit, n + 1)];
+		Object[] v = new Object[k.length];
+		System.arraycopy(keys, 0, k, 0, i);
+		System.arraycopy(vals, 0, v, 0, i);
+		k[i] = key;
+		v[i] = val;
+		System.arraycopy(keys, i, k, i + 1, n - i);
+		System.arraycopy(vals, i, v, i + 1, n - i);
+		return new Leaf(edit, n + 1, k, v);
+	}
+
+	Node without(AtomicReference<Thread> edit, Comparator comp, Object key, Box removedLeaf){
+		int i = search(comp, key);
+		if(i < 0)
+			return this;
+		removedLeaf.val = removedLeaf;
+		if(isEditable(edit))
+			{
+			System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+			System.arraycopy(vals, i + 1, vals, i, n - i - 1);
+			n--;
+			keys[n] = null;
+			vals[n] = null;
+			return this;
+			}
+		Object[] k = new Object[capacity(edit, n - 1)];
+		Object[] v = new Object[k.length];
+		System.arraycopy(keys, 0, k, 0, i);
+		System.arraycopy(vals, 0, v, 0, i);
+		System.arraycopy(keys, i + 1, k, i, n - i - 1);
+		System.arraycopy(vals, i + 1, v, i, n - i - 1);
+		return new Leaf(edit, n - 1, k, v);
+	}
+
+	Node concat(AtomicReference<Thread> edit, Node right){
+		Leaf r = (Leaf) right;
+		Object[] k = new Object[capacity(edit, n + r.n)];
+		Object[] v = new Object[k.length];
+		System.arraycopy(keys, 0, k, 0, n);
+		System.arraycopy(vals, 0, v, 0, n);
+		System.arraycopy(r.keys, 0, k, n, r.n);
+		System.arraycopy(r.vals, 0, v, n, r.n);
+		return new Leaf(edit, n + r.n, k, v);
+	}
+
+	Node[] split(AtomicReference<Thread> edit){
+		return new Node[]{copy(edit, 0, n / 2), copy(edit, n / 2, n)};
+	}
+}
+
+static final class Branch extends Node {
+	final Node[] children;
+
+	Branch(AtomicReference<Thread> edit, int n, Object[] keys, Node[] children){
+		super(edit, n, keys);
+		this.children = children;
+	}
+
+	/*
+	 * Index of the child that holds key, if any does: the last whose
+	 * separator is not greater than key, or the first.
+	 */
+	int childIndex(Comparator comp, Object key){
+		int lo = 1;
+		int hi = n - 1;
+		while(lo <= hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			if(comp.compare(keys[mid], key) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+			}
+		return hi;
+	}
+
+	Branch copy(AtomicReference<Thread> edit, int from, int to){
+		int len = to - from;
+		Object[] k = new Object[capacity(edit, len)];
+		Node[] c = new Node[k.length];
+		System.arraycopy(keys, from, k, 0, len);
+		System.arraycopy(children, from, c, 0, len);
+		return new Branch(edit, len, k, c);
+	}
+
+	Branch editable(AtomicReference<Thread> edit){
+		return isEditable(edit) ? this : copy(edit, 0, n);
+	}
+
+	Node assoc(AtomicReference<Thread> edit, Comparator comp, Object key, Object val, Box addedLeaf){
+		int i = childIndex(comp, key);
+		Node child = children[i];
+		Node node = child.assoc(edit, comp, key, val, addedLeaf);
+		if(node.n > MAX)
+			{
+			Node[] halves = node.split(edit);
+			Branch ret;
+			if(isEditable(edit) && n < keys.length)
+				{
+				System.arraycopy(keys, i + 1, keys, i + 2, n - i - 1);
+				System.arraycopy(children, i + 1, children, i + 2, n - i - 1);
+				ret = this;
+				}
+			else
+				{
+				Object[] k = new Object[capacity(edit, n + 1)];
+				Node[] c = new Node[k.length];
+				System.arraycopy(keys, 0, k, 0, i + 1);
+				System.arraycopy(children, 0, c, 0, i + 1);
+				System.arraycopy(keys, i + 1, k, i + 2, n - i - 1);
+				System.arraycopy(children, i + 1, c, i + 2, n - i - 1);
+				ret = new Branch(edit, n, k, c);
+				}
+			ret.children[i] = halves[0];
+			ret.children[i + 1] = halves[1];
+			ret.keys[i + 1] = halves[1].keys[0];
+			ret.n++;
+			return ret;
+			}
+		if(node == child)
+			return this;
+		Branch ret = editable(edit);
+		ret.children[i] = node;
+		return ret;
+	}
+
+	Node without(AtomicReference<Thread> edit, Comparator comp, Object key, Box removedLeaf){
+		int i = childIndex(comp, key);
+		Node child = children[i];
+		Node node = child.without(edit, comp, key, removedLeaf);
+		if(removedLeaf.val == null)
+			return this;
+		if(node.n >= MIN && node == child)
+			return this;
+		// ret is new or ours, so it can be changed in place
+		Branch ret = editable(edit);
+		ret.children[i] = node;
+		if(node.n < MIN && n > 1)
+			ret.refill(edit, i);
+		return ret;
+	}
+
+	/*
+	 * Merges the underfull child i with a neighbour, or if they do not
+	 * fit in one node, shares their keys evenly between two.
+	 */
+	void refill(AtomicReference<Thread> edit, int i){
+		int l = i > 0 ? i - 1 : i;
+		Node left = children[l];
+		Node right = children[l + 1];
+		Node merged = left.concat(edit, right);
+		if(merged.n <= MAX)
+			{
+			children[l] = merged;
+			System.arraycopy(keys, l + 2, keys, l + 1, n - l - 2);
+			System.arraycopy(children, l + 2, children, l + 1, n - l - 2);
+			n--;
+			keys[n] = null;
+			children[n] = null;
+			}
+		else
+			{
+			Node[] halves = merged.split(edit);
+			children[l] = halves[0];
+			children[l + 1] = halves[1];
+			keys[l + 1] = halves[1].keys[0];
+			}
+	}
+
+	Node concat(AtomicReference<Thread> edit, Node right){
+		Branch r = (Branch) right;
+		Object[] k = new Object[capacity(edit, n + r.n)];
+		Node[] c = new Node[k.length];
+		System.arraycopy(keys, 0, k, 0, n);
+		System.arraycopy(children, 0, c, 0, n);
+		System.arraycopy(r.keys, 0, k, n, r.n);
+		System.arraycopy(r.children, 0, c, n, r.n);
+		return new Branch(edit, n + r.n, k, c);
+	}
+
+	Node[] split(AtomicReference<Thread> edit){
+		return new Node[]{copy(edit, 0, n / 2), copy(edit, n / 2, n)};
+	}
+}
+
+static public final class TransientBTreeMap<K,V> extends ATransientMap<K,V> {
+	final AtomicReference<Thread> edit;
+	final Comparator<K> comp;
+	Node root;
+	int count;
+	final Box leafFlag = new Box(null);
+
+	TransientBTreeMap(PersistentBTreeMap<K,V> m){
+		this.edit = new AtomicReference<Thread>(Thread.currentThread());
+		this.comp = m.comp;
+		this.root = m.root;
+		this.count = m._count;
+	}
+
+	ITransientMap<K,V> doAssoc(K key, V val){
+		leafFlag.val = null;
+		if(root == null)
+			{
+			Object[] keys = new Object[capacity(edit, 1)];
+			Object[] vals = new Object[keys.length];
+			keys[0] = key;
+			vals[0] = val;
+			root = new Leaf(edit, 1, keys, vals);
+			count++;
+			return this;
+			}
+		root = add(edit, root, comp, key, val, leafFlag);
+		if(leafFlag.val != null)
+			count++;
+		return this;
+	}
+
+	ITransientMap<K,V> doWithout(K key){
+		if(root == null)
+			return this;
+		leafFlag.val = null;
+		root = remove(edit, root, comp, key, leafFlag);
+		if(leafFlag.val != null)
+			count--;
+		return this;
+	}
+
+	IPersistentMap<K,V> doPersistent(){
+		edit.set(null);
+		return new PersistentBTreeMap<K,V>(null, comp, root, count);
+	}
+
+	V doValAt(K key, V notFound){
+		return (V) find(root, comp, key, notFound);
+	}
+
+	int doCount(){
+		return count;
+	}
+
+	void ensureEditable(){
+		Thread owner = edit.get();
+		if(owner == Thread.currentThread())
+			return;
+		if(owner != null)
+			throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	public IPersistentCollection persistent(){
+		return persistentMap();
+	}
+}
+
+/*
+ * Walks the leaves with an explicit path from the root, index[d] being the
+ * position in path[d]. An index past either end of a node moves its parent
+ * on to the next child.
+ */
+static final class NodeIterator implements Iterator {
+	final Node[] path = new Node[MAX_DEPTH];
+	final int[] index = new int[MAX_DEPTH];
+	int depth = -1;
+	final boolean asc;
+
+	NodeIterator(Node root, boolean asc){
+		this.asc = asc;
+		if(root != null)
+			{
+			depth = 0;
+			path[0] = root;
+			index[0] = asc ? 0 : root.n - 1;
+			}
+	}
+
+	NodeIterator(Node root, Comparator comp, Object key, boolean asc){
+		this.asc = asc;
+		for(Node node = root; node != null;)
+			{
+			path[++depth] = node;
+			if(node instanceof Branch)
+				{
+				int i = ((Branch) node).childIndex(comp, key);
+				index[depth] = i;
+				node = ((Branch) node).children[i];
+				}
+			else
+				{
+				int i = ((Leaf) node).search(comp, key);
+				if(i < 0)
+					i = asc ? -i - 1 : -i - 2;
+				index[depth] = i;
+				node = null;
+				}
+			}
+	}
+
+	private boolean ready(){
+		while(depth >= 0)
+			{
+			Node node = path[depth];
+			int i = index[depth];
+			if(i < 0 || i >= node.n)
+				{
+				path[depth--] = null;
+				if(depth >= 0)
+					index[depth] += asc ? 1 : -1;
+				}
+			else if(node instanceof Leaf)
+				return true;
+			else
+				{
+				Node child = ((Branch) node).children[i];
+				path[++depth] = child;
+				index[depth] = asc ? 0 : child.n - 1;
+				}
+			}
+		return false;
+	}
+
+	public boolean hasNext(){
+		return ready();
+	}
+
+	public Object next(){
+		if(!ready())
+			throw new NoSuchElementException();
+		Leaf leaf = (Leaf) path[depth];
+		int i = index[depth];
+		index[depth] = asc ? i + 1 : i - 1;
+		return new MapEntry(leaf.keys[i], leaf.vals[i]);
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+}
+}
@@ -0,0 +1,866 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ A persistent rendition of Steindorfer and Vinju's CHAMP
+ (Compressed Hash-Array Mapped Prefix-tree)
+
+ Same hashing and path copying as PersistentHashMap, but each node keeps
+ two bitmaps: one for inline entries and one for sub-nodes. The array holds
+ all key/value pairs first and the sub-nodes last (in reverse order), so
+ there are no null markers and iteration never has to test slot types.
+ Deletion compacts the trie back into its canonical shape, which lets
+ equality compare two maps node by node.
+ */
+
+public class PersistentChampMap<K, V> extends APersistentMap<K, V> implements
+		IEditableCollection<Map.Entry<K, V>>, IObj{
+
+private static final int BITS_PER_LEVEL = 5;
+// 7 bitmap levels cover the 32 hash bits, plus one level of collision nodes
+private static final int MAX_DEPTH = 8;
+
+final int count;
+final Node root;
+final boolean hasNull;
+final V nullValue;
+final IPersistentMap _meta;
+
+final public static PersistentChampMap EMPTY = new PersistentChampMap(0, BitmapIndexedNode.EMPTY, false, null);
+final private static Object NOT_FOUND = new Object();
+
+@SuppressWarnings("unchecked")
+final public static <K,V> PersistentChampMap<K, V> emptyMap() {
+	return EMPTY;
+}
+
+@SuppressWarnings("unchecked")
+static public <K,V> PersistentChampMap<K,V> create(Map<? extends K, ? extends V> other){
+	ITransientMap<K,V> ret = EMPTY.asTransient();
+	for(Map.Entry<? extends K, ? extends V> e : other.entrySet())
+		{
+		ret = ret.assoc(e.getKey(), e.getValue());
+		}
+	return (PersistentChampMap<K, V>) ret.persistentMap();
+}
+
+/*
+ * @param init {key1,val1,key2,val2,...}
+ */
+@SuppressWarnings("unchecked")
+public static <K,V> PersistentChampMap<K,V> create(Object... init){
+	ITransientMap<K,V> ret = EMPTY.asTransient();
+	for(int i = 0; i < init.length; i += 2)
+		{
+		ret = ret.assoc((K) init[i], (V) init[i+1]);
+		}
+	return (PersistentChampMap<K,V>) ret.persistentMap();
+}
+
+PersistentChampMap(int count, Node root, boolean hasNull, V nullValue){
+	this(null, count, root, hasNull, nullValue);
+}
+
+PersistentChampMap(IPersistentMap meta, int count, Node root, boolean hasNull, V nullValue){
+	this._meta = meta;
+	this.count = count;
+	this.root = root;
+	this.hasNull = hasNull;
+	this.nullValue = nullValue;
+}
+
+public boolean containsKey(Object key){
+	if(key == null)
+		return hasNull;
+	return root.find(0, Util.hash(key), key, NOT_FOUND) != NOT_FOUND;
+}
+
+public IMapEntry<K,V> entryAt(K key){
+	if(key == null)
+		return hasNull ? new MapEntry<K,V>(null, nullValue) : null;
+	return root.findEntry(0, Util.hash(key), key);
+}
+
+public PersistentChampMap<K,V> assoc(K key, V val){
+	if(key == null) {
+		if(hasNull && val == nullValue)
+			return this;
+		return new PersistentChampMap<K,V>(meta(), hasNull ? count : count + 1, root, true, val);
+	}
+	Box addedLeaf = new Box(null);
+	Node newroot = root.assoc(null, 0, Util.hash(key), key, val, addedLeaf);
+	if(newroot == root)
+		return this;
+	return new PersistentChampMap<K,V>(meta(), addedLeaf.val == null ? count : count + 1, newroot, hasNull, nullValue);
+}
+
+@SuppressWarnings("unchecked")
+public V valAt(K key, V notFound){
+	if(key == null)
+		return hasNull ? nullValue : notFound;
+	return (V) root.find(0, Util.hash(key), key, notFound);
+}
+
+public V valAt(K key){
+	return valAt(key, null);
+}
+
+public PersistentChampMap<K,V> assocEx(K key, V val) throws Exception{
+	if(containsKey(key))
+		throw new Exception("Key already present");
+	return assoc(key, val);
+}
+
+public PersistentChampMap<K,V> without(K key){
+	if(key == null)
+		return hasNull ? new PersistentChampMap<K,V>(meta(), count - 1, root, false, null) : this;
+	Box removedLeaf = new Box(null);
+	Node newroot = root.without(null, 0, Util.hash(key), key, removedLeaf);
+	if(removedLeaf.val == null)
+		return this;
+	return new PersistentChampMap<K,V>(meta(), count - 1, newroot, hasNull, nullValue);
+}
+
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<K, V>> iterator(){
+	return new NodeIterator(root, false, hasNull, nullValue);
+}
+
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<K, V>> reverseIterator(){
+	return new NodeIterator(root, true, hasNull, nullValue);
+}
+
+/**
+ * Iterates in the same order as {@link #iterator()}, starting at the entry
+ * for key. The iterator is empty if key is not in the map.
+ */
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
+	if (hasNull) {throw new UnsupportedOperationException("not supported for maps with null entries yet");}
+	return new NodeIterator(root, Util.hash(key), key);
+}
+
+public int count(){
+	return count;
+}
+
+@SuppressWarnings("unchecked")
+public ISeq<IMapEntry<K, V>> seq(){
+	return IteratorSeq.create(iterator());
+}
+
+public IPersistentCollection empty(){
+	return EMPTY.withMeta(meta());
+}
+
+public boolean equals(Object obj){
+	if(obj instanceof PersistentChampMap)
+		return equivMap((PersistentChampMap) obj, false);
+	return super.equals(obj);
+}
+
+public boolean equiv(Object obj){
+	if(obj instanceof PersistentChampMap)
+		return equivMap((PersistentChampMap) obj, true);
+	return super.equiv(obj);
+}
+
+/*
+ * Both tries are canonical, so equal maps have equal shapes and can be
+ * compared node by node, skipping any sub-tree the two maps share.
+ */
+private boolean equivMap(PersistentChampMap other, boolean equiv){
+	if(this == other)
+		return true;
+	if(count != other.count || hasNull != other.hasNull)
+		return false;
+	if(hasNull && !(equiv ? Util.equiv(nullValue, other.nullValue) : Util.equals(nullValue, other.nullValue)))
+		return false;
+	return root.equivNode(other.root, equiv);
+}
+
+public int hashCode(){
+	if(_hash == -1)
+		{
+		int hash = root.hashEntries();
+		if(hasNull)
+			hash += nullValue == null ? 0 : nullValue.hashCode();
+		this._hash = hash;
+		}
+	return _hash;
+}
+
+static int mask(int hash, int shift){
+	return (hash >>> shift) & 0x01f;
+}
+
+private static int bitpos(int hash, int shift){
+	return 1 << mask(hash, shift);
+}
+
+public PersistentChampMap<K,V> withMeta(IPersistentMap meta){
+	return new PersistentChampMap<K,V>(meta, count, root, hasNull, nullValue);
+}
+
+public TransientChampMap<K,V> asTransient() {
+	return new TransientChampMap<K,V>(this);
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+static final class TransientChampMap<K,V> extends ATransientMap<K,V> {
+	final AtomicReference<Thread> edit;
+	Node root;
+	int count;
+	boolean hasNull;
+	V nullValue;
+	final Box leafFlag = new Box(null);
+
+	TransientChampMap(PersistentChampMap<K,V> m) {
+		this.edit = new AtomicReference<Thread>(Thread.currentThread());
+		this.root = m.root;
+		this.count = m.count;
+		this.hasNull = m.hasNull;
+		this.nullValue = m.nullValue;
+	}
+
+	ITransientMap<K,V> doAssoc(K key, V val) {
+		if (key == null) {
+			this.nullValue = val;
+			if (!hasNull) {
+				this.count++;
+				this.hasNull = true;
+			}
+			return this;
+		}
+		leafFlag.val = null;
+		Node n = root.assoc(edit, 0, Util.hash(key), key, val, leafFlag);
+		if (n != this.root)
+			this.root = n;
+		if(leafFlag.val != null) this.count++;
+		return this;
+	}
+
+	ITransientMap<K,V> doWithout(K key) {
+		if (key == null) {
+			if (!hasNull) return this;
+			hasNull = false;
+			nullValue = null;
+			this.count--;
+			return this;
+		}
+		leafFlag.val = null;
+		Node n = root.without(edit, 0, Util.hash(key), key, leafFlag);
+		if (n != root)
+			this.root = n;
+		if(leafFlag.val != null) this.count--;
+		return this;
+	}
+
+	IPersistentMap<K,V> doPersistent() {
+		edit.set(null);
+		return new PersistentChampMap<K,V>(count, root, hasNull, nullValue);
+	}
+
+	@SuppressWarnings("unchecked")
+	V doValAt(K key, V notFound) {
+		if (key == null)
+			return hasNull ? nullValue : notFound;
+		return (V) root.find(0, Util.hash(key), key, notFound);
+	}
+
+	int doCount() {
+		return count;
+	}
+
+	void ensureEditable(){
+		Thread owner = edit.get();
+		if(owner == Thread.currentThread())
+			return;
+		if(owner != null)
+			throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	public IPersistentCollection persistent() {
+		return persistentMap();
+	}
+}
+
+static abstract class Node implements Serializable {
+	static final int SIZE_EMPTY = 0;
+	static final int SIZE_ONE = 1;
+	static final int SIZE_MORE = 2;
+
+	/*
+	 * A null edit means persistent update: nodes are only ever modified in
+	 * place when edit is non-null and owned by the node.
+	 */
+	abstract Node assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object val, Box addedLeaf);
+
+	abstract Node without(AtomicReference<Thread> edit, int shift, int hash, Object key, Box removedLeaf);
+
+	abstract Object find(int shift, int hash, Object key, Object notFound);
+
+	abstract IMapEntry findEntry(int shift, int hash, Object key);
+
+	/*
+	 * Iteration position of key within this node: a payload index, payloadArity() + the
+	 * index of the sub-node to descend into, or -1 if key is absent.
+	 */
+	abstract int findPosition(int shift, int hash, Object key);
+
+	abstract int payloadArity();
+
+	abstract int nodeArity();
+
+	abstract Object getKey(int i);
+
+	abstract Object getValue(int i);
+
+	abstract Node getNode(int i);
+
+	abstract int sizePredicate();
+
+	abstract boolean equivNode(Node other, boolean equiv);
+
+	int hashEntries(){
+		int hash = 0;
+		for(int i = 0; i < payloadArity(); i++)
+			{
+			Object k = getKey(i);
+			Object v = getValue(i);
+			hash += (k == null ? 0 : k.hashCode()) ^ (v == null ? 0 : v.hashCode());
+			}
+		for(int i = 0; i < nodeArity(); i++)
+			hash += getNode(i).hashEntries();
+		return hash;
+	}
+}
+
+final static class BitmapIndexedNode extends Node {
+
+	static final BitmapIndexedNode EMPTY = new BitmapIndexedNode(null, 0, 0, new Object[0]);
+
+	int dataMap;
+	int nodeMap;
+	Object[] array;
+	transient final AtomicReference<Thread> edit;
+
+	BitmapIndexedNode(AtomicReference<Thread> edit, int dataMap, int nodeMap, Object[] array){
+		this.edit = edit;
+		this.dataMap = dataMap;
+		this.nodeMap = nodeMap;
+		this.array = array;
+	}
+
+	int dataIndex(int bit){
+		return BitCount.bitCount(dataMap & (bit - 1));
+	}
+
+	int nodeIndex(int bit){
+		return BitCount.bitCount(nodeMap & (bit - 1));
+	}
+
+	Node nodeAt(int bit){
+		return (Node) array[array.length - 1 - nodeIndex(bit)];
+	}
+
+	int payloadArity(){
+		return BitCount.bitCount(dataMap);
+	}
+
+	int nodeArity(){
+		return BitCount.bitCount(nodeMap);
+	}
+
+	Object getKey(int i){
+		return array[2*i];
+	}
+
+	Object getValue(int i){
+		return array[2*i+1];
+	}
+
+	Node getNode(int i){
+		return (Node) array[array.length - 1 - i];
+	}
+
+	int sizePredicate(){
+		if(nodeMap != 0)
+			return SIZE_MORE;
+		if(dataMap == 0)
+			return SIZE_EMPTY;
+		return (dataMap & (dataMap - 1)) == 0 ? SIZE_ONE : SIZE_MORE;
+	}
+
+	private boolean isAllowedToEdit(AtomicReference<Thread> edit){
+		return edit != null && this.edit == edit;
+	}
+
+	public Node assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object val, Box addedLeaf){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			Object k = array[2*idx];
+			if(Util.equals(key, k)) {
+				if(array[2*idx+1] == val)
+					return this;
+				return copyAndSetValue(edit, idx, val);
+			}
+			Object v = array[2*idx+1];
+			Node sub = mergeTwoKeyValPairs(edit, shift + BITS_PER_LEVEL, k, v, Util.hash(k), key, val, hash);
+			addedLeaf.val = addedLeaf;
+			return copyAndMigrateFromInlineToNode(edit, bit, sub);
+		}
+		if((nodeMap & bit) != 0) {
+			Node sub = nodeAt(bit);
+			Node n = sub.assoc(edit, shift + BITS_PER_LEVEL, hash, key, val, addedLeaf);
+			if(n == sub)
+				return this;
+			return copyAndSetNode(edit, bit, n);
+		}
+		addedLeaf.val = addedLeaf;
+		return copyAndInsertValue(edit, bit, key, val);
+	}
+
+	public Node without(AtomicReference<Thread> edit, int shift, int hash, Object key, Box removedLeaf){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			if(!Util.equals(key, array[2*idx]))
+				return this;
+			removedLeaf.val = removedLeaf;
+			if(shift > 0 && dataMap == bit && nodeArity() == 1) {
+				// the only thing left is a sub-node; collision nodes can move up
+				Node only = getNode(0);
+				if(only instanceof HashCollisionNode)
+					return only;
+			}
+			return copyAndRemoveValue(edit, bit, idx);
+		}
+		if((nodeMap & bit) != 0) {
+			Node sub = nodeAt(bit);
+			Node n = sub.without(edit, shift + BITS_PER_LEVEL, hash, key, removedLeaf);
+			if(n == sub)
+				return this;
+			if(n.sizePredicate() == SIZE_ONE)
+				// inline the single remaining entry; if that leaves this node with
+				// a single entry too, our parent will inline it in turn
+				return copyAndMigrateFromNodeToInline(edit, bit, n);
+			if(shift > 0 && dataMap == 0 && nodeMap == bit && n instanceof HashCollisionNode)
+				return n;
+			return copyAndSetNode(edit, bit, n);
+		}
+		return this;
+	}
+
+	public Object find(int shift, int hash, Object key, Object notFound){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			if(Util.equals(key, array[2*idx]))
+				return array[2*idx+1];
+			return notFound;
+		}
+		if((nodeMap & bit) != 0)
+			return nodeAt(bit).find(shift + BITS_PER_LEVEL, hash, key, notFound);
+		return notFound;
+	}
+
+	public IMapEntry findEntry(int shift, int hash, Object key){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			if(Util.equals(key, array[2*idx]))
+				return new MapEntry(array[2*idx], array[2*idx+1]);
+			return null;
+		}
+		if((nodeMap & bit) != 0)
+			return nodeAt(bit).findEntry(shift + BITS_PER_LEVEL, hash, key);
+		return null;
+	}
+
+	int findPosition(int shift, int hash, Object key){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			return Util.equals(key, array[2*idx]) ? idx : -1;
+		}
+		if((nodeMap & bit) != 0)
+			return payloadArity() + nodeIndex(bit);
+		return -1;
+	}
+
+	boolean equivNode(Node other, boolean equiv){
+		if(this == other)
+			return true;
+		if(!(other instanceof BitmapIndexedNode))
+			return false;
+		BitmapIndexedNode that = (BitmapIndexedNode) other;
+		if(dataMap != that.dataMap || nodeMap != that.nodeMap)
+			return false;
+		int payload = 2*payloadArity();
+		for(int i = 0; i < payload; i += 2)
+			{
+			if(!Util.equals(array[i], that.array[i]))
+				return false;
+			if(!(equiv ? Util.equiv(array[i+1], that.array[i+1]) : Util.equals(array[i+1], that.array[i+1])))
+				return false;
+			}
+		for(int i = payload; i < array.length; i++)
+			{
+			if(!((Node) array[i]).equivNode((Node) that.array[i], equiv))
+				return false;
+			}
+		return true;
+	}
+
+	private Node copyAndSetValue(AtomicReference<Thread> edit, int idx, Object val){
+		if(isAllowedToEdit(edit)) {
+			array[2*idx+1] = val;
+			return this;
+		}
+		Object[] newArray = array.clone();
+		newArray[2*idx+1] = val;
+		return new BitmapIndexedNode(edit, dataMap, nodeMap, newArray);
+	}
+
+	private Node copyAndSetNode(AtomicReference<Thread> edit, int bit, Node node){
+		int idx = array.length - 1 - nodeIndex(bit);
+		if(isAllowedToEdit(edit)) {
+			array[idx] = node;
+			return this;
+		}
+		Object[] newArray = array.clone();
+		newArray[idx] = node;
+		return new BitmapIndexedNode(edit, dataMap, nodeMap, newArray);
+	}
+
+	private Node copyAndInsertValue(AtomicReference<Thread> edit, int bit, Object key, Object val){
+		int idx = 2*dataIndex(bit);
+		Object[] newArray = new Object[array.length + 2];
+		System.arraycopy(array, 0, newArray, 0, idx);
+		newArray[idx] = key;
+		newArray[idx+1] = val;
+		System.arraycopy(array, idx, newArray, idx + 2, array.length - idx);
+		return update(edit, dataMap | bit, nodeMap, newArray);
+	}
+
+	private Node copyAndRemoveValue(AtomicReference<Thread> edit, int bit, int dataIdx){
+		int idx = 2*dataIdx;
+		Object[] newArray = new Object[array.length - 2];
+		System.arraycopy(array, 0, newArray, 0, idx);
+		System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+		return update(edit, dataMap ^ bit, nodeMap, newArray);
+	}
+
+	private Node copyAndMigrateFromInlineToNode(AtomicReference<Thread> edit, int bit, Node node){
+		int idxOld = 2*dataIndex(bit);
+		int idxNew = array.length - 2 - nodeIndex(bit);
+		Object[] newArray = new Object[array.length - 1];
+		System.arraycopy(array, 0, newArray, 0, idxOld);
+		System.arraycopy(array, idxOld + 2, newArray, idxOld, idxNew - idxOld);
+		newArray[idxNew] = node;
+		System.arraycopy(array, idxNew + 2, newArray, idxNew + 1, array.length - idxNew - 2);
+		return update(edit, dataMap ^ bit, nodeMap | bit, newArray);
+	}
+
+	private Node copyAndMigrateFromNodeToInline(AtomicReference<Thread> edit, int bit, Node node){
+		int idxOld = array.length - 1 - nodeIndex(bit);
+		int idxNew = 2*dataIndex(bit);
+		Object[] newArray = new Object[array.length + 1];
+		System.arraycopy(array, 0, newArray, 0, idxNew);
+		newArray[idxNew] = node.getKey(0);
+		newArray[idxNew+1] = node.getValue(0);
+		System.arraycopy(array, idxNew, newArray, idxNew + 2, idxOld - idxNew);
+		System.arraycopy(array, idxOld + 1, newArray, idxOld + 2, array.length - idxOld - 1);
+		return update(edit, dataMap | bit, nodeMap ^ bit, newArray);
+	}
+
+	private Node update(AtomicReference<Thread> edit, int dataMap, int nodeMap, Object[] newArray){
+		if(isAllowedToEdit(edit)) {
+			this.dataMap = dataMap;
+			this.nodeMap = nodeMap;
+			this.array = newArray;
+			return this;
+		}
+		return new BitmapIndexedNode(edit, dataMap, nodeMap, newArray);
+	}
+}
+
+final static class HashCollisionNode extends Node {
+
+	final int hash;
+	final Object[] array;
+
+	HashCollisionNode(int hash, Object[] array){
+		this.hash = hash;
+		this.array = array;
+	}
+
+	int payloadArity(){
+		return array.length / 2;
+	}
+
+	int nodeArity(){
+		return 0;
+	}
+
+	Object getKey(int i){
+		return array[2*i];
+	}
+
+	Object getValue(int i){
+		return array[2*i+1];
+	}
+
+	Node getNode(int i){
+		throw new IndexOutOfBoundsException();
+	}
+
+	int sizePredicate(){
+		return SIZE_MORE;
+	}
+
+	int findIndex(Object key){
+		for(int i = 0; i < array.length; i += 2)
+			{
+			if(Util.equals(key, array[i]))
+				return i;
+			}
+		return -1;
+	}
+
+	public Node assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object val, Box addedLeaf){
+		if(hash == this.hash) {
+			int idx = findIndex(key);
+			if(idx != -1) {
+				if(array[idx + 1] == val)
+					return this;
+				return new HashCollisionNode(hash, cloneAndSet(array, idx + 1, val));
+			}
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key;
+			newArray[array.length + 1] = val;
+			addedLeaf.val = addedLeaf;
+			return new HashCollisionNode(hash, newArray);
+		}
+		// nest it in a bitmap node
+		return new BitmapIndexedNode(edit, 0, bitpos(this.hash, shift), new Object[] {this})
+			.assoc(edit, shift, hash, key, val, addedLeaf);
+	}
+
+	public Node without(AtomicReference<Thread> edit, int shift, int hash, Object key, Box removedLeaf){
+		if(hash != this.hash)
+			return this;
+		int idx = findIndex(key);
+		if(idx == -1)
+			return this;
+		removedLeaf.val = removedLeaf;
+		if(array.length == 4) {
+			// a single remaining entry is inlined by the parent
+			int other = idx == 0 ? 2 : 0;
+			return new BitmapIndexedNode(edit, bitpos(hash, shift), 0, new Object[] {array[other], array[other+1]});
+		}
+		Object[] newArray = new Object[array.length - 2];
+		System.arraycopy(array, 0, newArray, 0, idx);
+		System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+		return new HashCollisionNode(hash, newArray);
+	}
+
+	public Object find(int shift, int hash, Object key, Object notFound){
+		if(hash != this.hash)
+			return notFound;
+		int idx = findIndex(key);
+		if(idx < 0)
+			return notFound;
+		return array[idx+1];
+	}
+
+	public IMapEntry findEntry(int shift, int hash, Object key){
+		if(hash != this.hash)
+			return null;
+		int idx = findIndex(key);
+		if(idx < 0)
+			return null;
+		return new MapEntry(array[idx], array[idx+1]);
+	}
+
+	int findPosition(int shift, int hash, Object key){
+		if(hash != this.hash)
+			return -1;
+		int idx = findIndex(key);
+		return idx < 0 ? -1 : idx / 2;
+	}
+
+	boolean equivNode(Node other, boolean equiv){
+		if(this == other)
+			return true;
+		if(!(other instanceof HashCollisionNode))
+			return false;
+		HashCollisionNode that = (HashCollisionNode) other;
+		if(hash != that.hash || array.length != that.array.length)
+			return false;
+		for(int i = 0; i < array.length; i += 2)
+			{
+			int j = that.findIndex(array[i]);
+			if(j < 0)
+				return false;
+			if(!(equiv ? Util.equiv(array[i+1], that.array[j+1]) : Util.equals(array[i+1], that.array[j+1])))
+				return false;
+			}
+		return true;
+	}
+}
+
+private static Node mergeTwoKeyValPairs(AtomicReference<Thread> edit, int shift, Object key0, Object val0, int key0hash,
+		Object key1, Object val1, int key1hash){
+	if(key0hash == key1hash)
+		return new HashCollisionNode(key0hash, new Object[] {key0, val0, key1, val1});
+	int mask0 = mask(key0hash, shift);
+	int mask1 = mask(key1hash, shift);
+	if(mask0 != mask1) {
+		int dataMap = (1 << mask0) | (1 << mask1);
+		if(mask0 < mask1)
+			return new BitmapIndexedNode(edit, dataMap, 0, new Object[] {key0, val0, key1, val1});
+		return new BitmapIndexedNode(edit, dataMap, 0, new Object[] {key1, val1, key0, val0});
+	}
+	Node node = mergeTwoKeyValPairs(edit, shift + BITS_PER_LEVEL, key0, val0, key0hash, key1, val1, key1hash);
+	return new BitmapIndexedNode(edit, 0, 1 << mask0, new Object[] {node});
+}
+
+private static Object[] cloneAndSet(Object[] array, int i, Object a) {
+	Object[] clone = array.clone();
+	clone[i] = a;
+	return clone;
+}
+
+/*
+ * Walks the trie with an explicit stack, so iteration allocates nothing but
+ * the entries themselves. Each node yields its payload first, then its
+ * sub-nodes; the reverse iterator visits the exact opposite order.
+ */
+static final class NodeIterator implements Iterator {
+	final Node[] nodes = new Node[MAX_DEPTH];
+	final int[] cursors = new int[MAX_DEPTH];
+	int depth = -1;
+	final boolean reverse;
+	boolean nullReady;
+	final Object nullValue;
+
+	NodeIterator(Node root, boolean reverse, boolean hasNull, Object nullValue){
+		this.reverse = reverse;
+		this.nullReady = hasNull;
+		this.nullValue = nullValue;
+		push(root);
+	}
+
+	NodeIterator(Node root, int hash, Object key){
+		this.reverse = false;
+		this.nullReady = false;
+		this.nullValue = null;
+		Node node = root;
+		int shift = 0;
+		for(;;)
+			{
+			push(node);
+			int pos = node.findPosition(shift, hash, key);
+			if(pos < 0) {
+				depth = -1;
+				return;
+			}
+			int p = node.payloadArity();
+			if(pos < p) {
+				cursors[depth] = pos;
+				return;
+			}
+			cursors[depth] = pos + 1;
+			node = node.getNode(pos - p);
+			shift += BITS_PER_LEVEL;
+			}
+	}
+
+	private void push(Node node){
+		depth++;
+		nodes[depth] = node;
+		cursors[depth] = reverse ? node.payloadArity() + node.nodeArity() - 1 : 0;
+	}
+
+	private boolean advance(){
+		while(depth >= 0)
+			{
+			Node node = nodes[depth];
+			int pos = cursors[depth];
+			int p = node.payloadArity();
+			if(!reverse) {
+				if(pos < p)
+					return true;
+				if(pos < p + node.nodeArity()) {
+					cursors[depth] = pos + 1;
+					push(node.getNode(pos - p));
+				} else
+					nodes[depth--] = null;
+			} else {
+				if(pos < 0)
+					nodes[depth--] = null;
+				else if(pos < p)
+					return true;
+				else {
+					cursors[depth] = pos - 1;
+					push(node.getNode(pos - p));
+				}
+			}
+			}
+		return false;
+	}
+
+	public boolean hasNext(){
+		if(nullReady && !reverse)
+			return true;
+		return advance() || nullReady;
+	}
+
+	public Object next(){
+		if(nullReady && !reverse) {
+			nullReady = false;
+			return new MapEntry(null, nullValue);
+		}
+		if(advance()) {
+			Node node = nodes[depth];
+			int pos = cursors[depth];
+			cursors[depth] = reverse ? pos - 1 : pos + 1;
+			return new MapEntry(node.getKey(pos), node.getValue(pos));
+		}
+		if(nullReady) {
+			nullReady = false;
+			return new MapEntry(null, nullValue);
+		}
+		throw new NoSuchElementException();
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+}
+
+}
@@ -0,0 +1,416 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.trifork.clj_ds.PersistentVector.Node;
+
+/**
+ * A persistent vector that grows and shrinks at both ends in amortized
+ * constant time. Like {@link PersistentVector} it keeps whole 32 element
+ * leaves in a radix tree and buffers the last elements in a tail; the first
+ * elements are buffered the same way in a head. When the head fills up it
+ * is pushed into the tree as a leaf before the first one. To make room
+ * there, the tree is addressed from an origin, and gets a new root with the
+ * old one as its last child when the origin would drop below zero.
+ */
+public class PersistentDeque<T> extends APersistentVector<T> implements IObj{
+
+static final Object[] EMPTY_ARRAY = new Object[0];
+
+@SuppressWarnings("unchecked")
+public final static PersistentDeque EMPTY = new PersistentDeque(null, EMPTY_ARRAY, 0, 0, 5,
+                                                                PersistentVector.EMPTY_NODE, EMPTY_ARRAY);
+
+final int cnt;
+// the first 0 to 32 elements
+final Object[] head;
+// the tree index of the first leaf; indexes are long as the tree can grow
+// at both ends beyond the int range
+final long origin;
+// the number of elements in the leaves of the tree, a multiple of 32
+final int treeCnt;
+final int shift;
+final Node root;
+// the last 0 to 32 elements
+final Object[] tail;
+final IPersistentMap _meta;
+
+PersistentDeque(IPersistentMap meta, Object[] head, long origin, int treeCnt, int shift, Node root, Object[] tail){
+	this._meta = meta;
+	this.cnt = head.length + treeCnt + tail.length;
+	this.head = head;
+	this.origin = origin;
+	this.treeCnt = treeCnt;
+	this.shift = shift;
+	this.root = root;
+	this.tail = tail;
+}
+
+@SuppressWarnings("unchecked")
+static public <T> PersistentDeque<T> emptyDeque(){
+	return EMPTY;
+}
+
+static public <T> PersistentDeque<T> create(T... items){
+	PersistentDeque<T> ret = emptyDeque();
+	for(T item : items)
+		ret = ret.cons(item);
+	return ret;
+}
+
+public int count(){
+	return cnt;
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+public PersistentDeque<T> withMeta(IPersistentMap meta){
+	return new PersistentDeque<T>(meta, head, origin, treeCnt, shift, root, tail);
+}
+
+public IPersistentCollection<T> empty(){
+	return EMPTY.withMeta(meta());
+}
+
+private Object[] leafFor(long j){
+	Node node = root;
+	for(int level = shift; level > 0; level -= 5)
+		node = (Node) node.array[(int) (j >>> level) & 0x01f];
+	return node.array;
+}
+
+public T nth(int i){
+	if(i < 0 || i >= cnt)
+		throw new IndexOutOfBoundsException();
+	if(i < head.length)
+		return (T) head[i];
+	i -= head.length;
+	if(i < treeCnt)
+		{
+		long j = origin + i;
+		return (T) leafFor(j)[(int) j & 0x01f];
+		}
+	return (T) tail[i - treeCnt];
+}
+
+public T peekFirst(){
+	if(cnt > 0)
+		return nth(0);
+	return null;
+}
+
+public PersistentDeque<T> assocN(int i, T val){
+	if(i == cnt)
+		return cons(val);
+	if(i < 0 || i > cnt)
+		throw new IndexOutOfBoundsException();
+	if(i < head.length)
+		{
+		Object[] newHead = head.clone();
+		newHead[i] = val;
+		return new PersistentDeque<T>(_meta, newHead, origin, treeCnt, shift, root, tail);
+		}
+	i -= head.length;
+	if(i < treeCnt)
+		return new PersistentDeque<T>(_meta, head, origin, treeCnt, shift,
+		                              doAssoc(shift, root, origin + i, val), tail);
+	Object[] newTail = tail.clone();
+	newTail[i - treeCnt] = val;
+	return new PersistentDeque<T>(_meta, head, origin, treeCnt, shift, root, newTail);
+}
+
+private static Node doAssoc(int level, Node node, long j, Object val){
+	Node ret = new Node(node.edit, node.array.clone());
+	if(level == 0)
+		{
+		ret.array[(int) j & 0x01f] = val;
+		}
+	else
+		{
+		int subidx = (int) (j >>> level) & 0x01f;
+		ret.array[subidx] = doAssoc(level - 5, (Node) node.array[subidx], j, val);
+		}
+	return ret;
+}
+
+/**
+ * Appends val at the end.
+ */
+public PersistentDeque<T> cons(T val){
+	if(tail.length < 32)
+		{
+		Object[] newTail = new Object[tail.length + 1];
+		System.arraycopy(tail, 0, newTail, 0, tail.length);
+		newTail[tail.length] = val;
+		return new PersistentDeque<T>(_meta, head, origin, treeCnt, shift, root, newTail);
+		}
+	//full tail, push into tree after the last leaf
+	if(treeCnt == 0)
+		return new PersistentDeque<T>(_meta, head, 0, 32, 5, setLeaf(5, null, 0, tail), new Object[]{val});
+	long j = origin + treeCnt;
+	Node newroot = root;
+	int newshift = shift;
+	//overflow root?
+	if(j >= 1L << (shift + 5))
+		{
+		newroot = new Node(root.edit);
+		newroot.array[0] = root;
+		newshift += 5;
+		}
+	newroot = setLeaf(newshift, newroot, j, tail);
+	return new PersistentDeque<T>(_meta, head, origin, treeCnt + 32, newshift, newroot, new Object[]{val});
+}
+
+/**
+ * Prepends val at the front.
+ */
+public PersistentDeque<T> conjFirst(T val){
+	if(head.length < 32)
+		{
+		Object[] newHead = new Object[head.length + 1];
+		System.arraycopy(head, 0, newHead, 1, head.length);
+		newHead[0] = val;
+		return new PersistentDeque<T>(_meta, newHead, origin, treeCnt, shift, root, tail);
+		}
+	//full head, push into tree before the first leaf
+	if(treeCnt == 0)
+		return new PersistentDeque<T>(_meta, new Object[]{val}, 0, 32, 5, setLeaf(5, null, 0, head), tail);
+	long neworigin = origin;
+	Node newroot = root;
+	int newshift = shift;
+	//no room before the origin? make the root the last child of a new one
+	if(neworigin == 0)
+		{
+		newroot = new Node(root.edit);
+		newroot.array[31] = root;
+		neworigin = 31L << (shift + 5);
+		newshift += 5;
+		}
+	neworigin -= 32;
+	newroot = setLeaf(newshift, newroot, neworigin, head);
+	return new PersistentDeque<T>(_meta, new Object[]{val}, neworigin, treeCnt + 32, newshift, newroot, tail);
+}
+
+/**
+ * Removes the last element.
+ */
+public PersistentDeque<T> pop(){
+	if(cnt == 0)
+		throw new IllegalStateException("Can't pop empty deque");
+	if(cnt == 1)
+		return EMPTY.withMeta(meta());
+	if(tail.length > 0)
+		{
+		Object[] newTail = Arrays.copyOf(tail, tail.length - 1);
+		return new PersistentDeque<T>(_meta, head, origin, treeCnt, shift, root, newTail);
+		}
+	if(treeCnt > 0)
+		{
+		long j = origin + treeCnt - 32;
+		Object[] newTail = Arrays.copyOf(leafFor(j), 31);
+		return withoutLeaf(j, head, origin, newTail);
+		}
+	return new PersistentDeque<T>(_meta, Arrays.copyOf(head, head.length - 1), origin, treeCnt, shift, root, tail);
+}
+
+/**
+ * Removes the first element.
+ */
+public PersistentDeque<T> popFirst(){
+	if(cnt == 0)
+		throw new IllegalStateException("Can't pop empty deque");
+	if(cnt == 1)
+		return EMPTY.withMeta(meta());
+	if(head.length > 0)
+		{
+		Object[] newHead = Arrays.copyOfRange(head, 1, head.length);
+		return new PersistentDeque<T>(_meta, newHead, origin, treeCnt, shift, root, tail);
+		}
+	if(treeCnt > 0)
+		{
+		Object[] newHead = Arrays.copyOfRange(leafFor(origin), 1, 32);
+		return withoutLeaf(origin, newHead, origin + 32, tail);
+		}
+	return new PersistentDeque<T>(_meta, head, origin, treeCnt, shift, root,
+	                              Arrays.copyOfRange(tail, 1, tail.length));
+}
+
+/*
+ * Returns the deque with the first or last leaf, at j, removed from the
+ * tree, and while the remaining leaves all hang below one child of the
+ * root, that child made the root.
+ */
+private PersistentDeque<T> withoutLeaf(long j, Object[] newHead, long neworigin, Object[] newTail){
+	int newCnt = treeCnt - 32;
+	if(newCnt == 0)
+		return new PersistentDeque<T>(_meta, newHead, 0, 0, 5, PersistentVector.EMPTY_NODE, newTail);
+	Node newroot = setLeaf(shift, root, j, null);
+	int newshift = shift;
+	long last = neworigin + newCnt - 1;
+	while(newshift > 5 && (neworigin >>> newshift) == (last >>> newshift))
+		{
+		int subidx = (int) (neworigin >>> newshift) & 0x01f;
+		newroot = (Node) newroot.array[subidx];
+		neworigin -= (long) subidx << newshift;
+		newshift -= 5;
+		}
+	return new PersistentDeque<T>(_meta, newHead, neworigin, newCnt, newshift, newroot, newTail);
+}
+
+/*
+ * Returns a copy of the path from node to the leaf at j, with the leaf set
+ * to leaf, creating missing nodes. A null leaf removes it, and with it the
+ * nodes left empty.
+ */
+private static Node setLeaf(int level, Node node, long j, Object[] leaf){
+	Object[] array = node == null ? new Object[32] : node.array.clone();
+	int subidx = (int) (j >>> level) & 0x01f;
+	if(level == 5)
+		array[subidx] = leaf == null ? null : new Node(PersistentVector.NOEDIT, leaf);
+	else
+		array[subidx] = setLeaf(level - 5, (Node) array[subidx], j, leaf);
+	if(leaf == null && array[subidx] == null)
+		{
+		for(Object child : array)
+			if(child != null)
+				return new Node(PersistentVector.NOEDIT, array);
+		return null;
+		}
+	return new Node(PersistentVector.NOEDIT, array);
+}
+
+/**
+ * Returns a seq whose chunks are the head, the leaves and the tail.
+ */
+public IChunkedSeq<T> chunkedSeq(){
+	if(cnt == 0)
+		return null;
+	return new ChunkedSeq<T>(this, 0);
+}
+
+public ISeq<T> seq(){
+	return chunkedSeq();
+}
+
+/*
+ * Returns the chunk of elements starting at index start, which must be 0,
+ * the index of the first element of a leaf or the start of the tail.
+ */
+Object[] chunkFor(int start){
+	if(start < head.length)
+		return head;
+	start -= head.length;
+	if(start < treeCnt)
+		return leafFor(origin + start);
+	return tail;
+}
+
+int chunkEnd(int start){
+	if(start < head.length)
+		return head.length;
+	if(start - head.length < treeCnt)
+		return 32;
+	return tail.length;
+}
+
+public Iterator<T> iterator(){
+	return new Iterator<T>(){
+		int start = 0;
+		Object[] array = EMPTY_ARRAY;
+		int i = 0;
+
+		public boolean hasNext(){
+			return start + i < cnt;
+		}
+
+		public T next(){
+			if(i == array.length)
+				{
+				if(start + i >= cnt)
+					throw new NoSuchElementException();
+				start += i;
+				array = chunkFor(start);
+				i = 0;
+				}
+			return (T) array[i++];
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	};
+}
+
+static public final class ChunkedSeq<T> extends ASeq<T> implements IChunkedSeq<T>{
+
+	final PersistentDeque<T> deque;
+	final Object[] node;
+	final int start;
+	final int offset;
+	final int end;
+
+	ChunkedSeq(PersistentDeque<T> deque, int start){
+		this.deque = deque;
+		this.start = start;
+		this.offset = 0;
+		this.node = deque.chunkFor(start);
+		this.end = deque.chunkEnd(start);
+	}
+
+	ChunkedSeq(IPersistentMap meta, PersistentDeque<T> deque, Object[] node, int start, int offset, int end){
+		super(meta);
+		this.deque = deque;
+		this.node = node;
+		this.start = start;
+		this.offset = offset;
+		this.end = end;
+	}
+
+	public IChunk<T> chunkedFirst(){
+		return new ArrayChunk<T>(node, offset, end);
+	}
+
+	public ISeq<T> chunkedNext(){
+		if(start + end < deque.cnt)
+			return new ChunkedSeq<T>(deque, start + end);
+		return null;
+	}
+
+	public ISeq<T> chunkedMore(){
+		ISeq<T> s = chunkedNext();
+		if(s == null)
+			return (ISeq<T>) PersistentList.emptyList();
+		return s;
+	}
+
+	public Obj withMeta(IPersistentMap meta){
+		if(meta == this._meta)
+			return this;
+		return new ChunkedSeq<T>(meta, deque, node, start, offset, end);
+	}
+
+	public T first(){
+		return (T) node[offset];
+	}
+
+	public ISeq<T> next(){
+		if(offset + 1 < end)
+			return new ChunkedSeq<T>(_meta, deque, node, start, offset + 1, end);
+		return chunkedNext();
+	}
+}
+}
@@ -0,0 +1,162 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Arrays;
+
+/**
+ * A persistent vector of doubles, stored unboxed in double[] leaves. The
+ * primitive accessors are {@link #nthDouble(int)}, {@link #cons(double)},
+ * {@link #assocN(int, double)} and {@link #reduce(IFn.DDD, double)}; the
+ * chunks of {@link #chunkedSeq()} are {@link DoubleArrayChunk}s.
+ */
+public class PersistentDoubleVector extends APrimitiveVector<Double>{
+
+public final static PersistentDoubleVector EMPTY = new PersistentDoubleVector(null, 0, 5, EMPTY_NODE, new double[0]);
+
+static public PersistentDoubleVector emptyVector(){
+	return EMPTY;
+}
+
+static public PersistentDoubleVector create(double... items){
+	TransientDoubleVector ret = EMPTY.asTransient();
+	for(double item : items)
+		ret.conj(item);
+	return ret.persistent();
+}
+
+PersistentDoubleVector(IPersistentMap meta, int cnt, int shift, Node root, Object tail){
+	super(meta, cnt, shift, root, tail);
+}
+
+Object array(int size){
+	return new double[size];
+}
+
+Double aget(Object array, int i){
+	return ((double[]) array)[i];
+}
+
+PersistentDoubleVector make(IPersistentMap meta, int cnt, int shift, Node root, Object tail){
+	return new PersistentDoubleVector(meta, cnt, shift, root, tail);
+}
+
+IChunk<Double> chunk(Object array, int off, int end){
+	return new DoubleArrayChunk((double[]) array, off, end);
+}
+
+public double nthDouble(int i){
+	return ((double[]) arrayFor(i))[i & 0x01f];
+}
+
+public double nthDouble(int i, double notFound){
+	if(i >= 0 && i < cnt)
+		return nthDouble(i);
+	return notFound;
+}
+
+public PersistentDoubleVector assocN(int i, double val){
+	return (PersistentDoubleVector) assocFrom(i, new double[]{val});
+}
+
+public PersistentDoubleVector assocN(int i, Double val){
+	return assocN(i, val.doubleValue());
+}
+
+public PersistentDoubleVector cons(double val){
+	return (PersistentDoubleVector) consFrom(new double[]{val});
+}
+
+public PersistentDoubleVector cons(Double val){
+	return cons(val.doubleValue());
+}
+
+public PersistentDoubleVector pop(){
+	return (PersistentDoubleVector) super.pop();
+}
+
+public PersistentDoubleVector withMeta(IPersistentMap meta){
+	return new PersistentDoubleVector(meta, cnt, shift, root, tail);
+}
+
+public IPersistentCollection<Double> empty(){
+	return EMPTY.withMeta(meta());
+}
+
+/**
+ * Reduces the elements with f, leaf by leaf, without boxing.
+ */
+public double reduce(IFn.DDD f, double start){
+	double ret = start;
+	for(int i = 0; i < cnt; i += 32)
+		{
+		double[] array = (double[]) arrayFor(i);
+		int end = Math.min(32, cnt - i);
+		for(int j = 0; j < end; j++)
+			ret = f.invokePrim(ret, array[j]);
+		}
+	return ret;
+}
+
+/**
+ * Returns the elements in ascending order, as a new vector with the same
+ * meta. The elements are sorted unboxed with Arrays.sort. Like
+ * Arrays.sort(double[]), it orders -0.0 before 0.0 and NaN last.
+ */
+public PersistentDoubleVector sorted(){
+	double[] a = new double[cnt];
+	copyTo(a);
+	Arrays.sort(a);
+	PersistentDoubleVector ret = create(a);
+	return _meta == null ? ret : ret.withMeta(_meta);
+}
+
+public TransientDoubleVector asTransient(){
+	return new TransientDoubleVector(this);
+}
+
+static public final class TransientDoubleVector extends ATransientVector<Double>{
+
+	TransientDoubleVector(PersistentDoubleVector v){
+		super(v);
+	}
+
+	public double nthDouble(int i){
+		ensureEditable();
+		return ((double[]) arrayFor(i))[i & 0x01f];
+	}
+
+	public TransientDoubleVector conj(double val){
+		int i = conjIndex();
+		((double[]) tail)[i] = val;
+		return this;
+	}
+
+	public TransientDoubleVector conj(Object val){
+		return conj(((Number) val).doubleValue());
+	}
+
+	public TransientDoubleVector assocN(int i, double val){
+		if(i == count())
+			return conj(val);
+		((double[]) editableArrayFor(i))[i & 0x01f] = val;
+		return this;
+	}
+
+	public TransientDoubleVector assocN(int i, Double val){
+		return assocN(i, val.doubleValue());
+	}
+
+	public PersistentDoubleVector persistent(){
+		return (PersistentDoubleVector) super.persistent();
+	}
+}
+}
@@ -11,10 +11,16 @@
 package com.trifork.clj_ds;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
+import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveAction;
+import jsr166y.RecursiveTask;
+
 /*
  A persistent rendition of Phil Bagwell's Hash Array Mapped Trie
 
@@ -26,7 +32,7 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 
 public class PersistentHashMap<K, V> extends APersistentMap<K, V> implements
-		IEditableCollection<MapEntry<K, V>>, IObj{
+		IEditableCollection<MapEntry<K, V>>, IObj, IKVReduce{
 
 private static final int BITS_PER_INTEGER = 32;
 private static final int BITS_PER_LEVEL = 5;
@@ -97,6 +103,218 @@ public static <K,V> PersistentHashMap<K,V> create(IPersistentMap meta, Object...
 	return create(init).withMeta(meta);
 }
 
+/*
+ * Below this many entries a subtree is built sequentially by a single task.
+ */
+static final int PARALLEL_BUILD_THRESHOLD = 4096;
+
+/**
+ * Same as {@link #create(Map)}, but the trie is built in parallel on the
+ * fork/join pool shared with {@link PersistentVector#pvectormap}.
+ */
+static public <K,V> PersistentHashMap<K,V> createParallel(Map<K,V> other){
+	return createParallel(PersistentVector.mainPool, other);
+}
+
+static public <K,V> PersistentHashMap<K,V> createParallel(ForkJoinPool pool, Map<K,V> other){
+	Object[] init = new Object[2 * other.size()];
+	int i = 0;
+	for(Map.Entry<K, V> e : other.entrySet())
+		{
+		init[i++] = e.getKey();
+		init[i++] = e.getValue();
+		}
+	return buildParallel(pool, init, i);
+}
+
+/*
+ * @param init {key1,val1,key2,val2,...}
+ */
+public static <K,V> PersistentHashMap<K,V> createParallel(Object... init){
+	return createParallel(PersistentVector.mainPool, init);
+}
+
+/*
+ * @param init {key1,val1,key2,val2,...}
+ */
+public static <K,V> PersistentHashMap<K,V> createParallel(ForkJoinPool pool, Object[] init){
+	return buildParallel(pool, init, init.length);
+}
+
+/*
+ * Joins maps whose keys are split by the low bits of their hashes, maps[i]
+ * holding just the keys with hash & (maps.length - 1) == i. Those are the
+ * bits the root level is indexed by, so every root slot comes from a single
+ * map and the subtrees below it are shared as they are.
+ */
+static <K,V> PersistentHashMap<K,V> join(PersistentHashMap<K,V>[] maps){
+	Object[] keys = new Object[32];
+	Object[] vals = new Object[32];
+	int bits = 0;
+	int count = 0;
+	boolean hasNull = false;
+	V nullValue = null;
+	for(PersistentHashMap<K,V> m : maps)
+		{
+		count += m.count;
+		if(m.root != null)
+			bits |= SetOp.expand(m.root, keys, vals);
+		if(m.hasNull)
+			{
+			hasNull = true;
+			nullValue = m.nullValue;
+			}
+		}
+	return new PersistentHashMap<K,V>(count, SetOp.node(0, bits, keys, vals), hasNull, nullValue);
+}
+
+/*
+ * The entries are hashed in parallel, then partitioned on the hash bits of
+ * each level (a stable counting sort, so a later duplicate key still wins)
+ * until the partitions are small enough to be built by one task each. Every
+ * partition becomes the subtree below one ArrayNode slot, so the tasks never
+ * touch each other's nodes.
+ */
+@SuppressWarnings("unchecked")
+static <K,V> PersistentHashMap<K,V> buildParallel(ForkJoinPool pool, Object[] init, int len){
+	if((len & 1) != 0)
+		throw new IllegalArgumentException(String.format("No value supplied for key: %s", init[len - 1]));
+	if(len < 2 * PARALLEL_BUILD_THRESHOLD)
+		{
+		ITransientMap<K,V> ret = EMPTY.asTransient();
+		for(int i = 0; i < len; i += 2)
+			ret = ret.assoc((K) init[i], (V) init[i+1]);
+		return (PersistentHashMap<K,V>) ret.persistentMap();
+		}
+	int n = len / 2;
+	int[] order = new int[n];
+	int m = 0;
+	boolean hasNull = false;
+	Object nullValue = null;
+	for(int i = 0; i < n; i++)
+		{
+		if(init[2*i] == null)
+			{
+			hasNull = true;
+			nullValue = init[2*i+1];
+			}
+		else
+			order[m++] = i;
+		}
+	int[] hashes = new int[n];
+	pool.invoke(new HashTask(init, hashes, order, 0, m));
+	BuildTask task = new BuildTask(init, hashes, order, new int[m], 0, 0, m);
+	INode root = pool.invoke(task);
+	return new PersistentHashMap<K,V>(task.count + (hasNull ? 1 : 0), root, hasNull, (V) nullValue);
+}
+
+static final class HashTask extends RecursiveAction {
+	final Object[] init;
+	final int[] hashes;
+	final int[] order;
+	final int from;
+	final int to;
+
+	HashTask(Object[] init, int[] hashes, int[] order, int from, int to){
+		this.init = init;
+		this.hashes = hashes;
+		this.order = order;
+		this.from = from;
+		this.to = to;
+	}
+
+	protected void compute(){
+		if(to - from <= PARALLEL_BUILD_THRESHOLD)
+			{
+			for(int i = from; i < to; i++)
+				hashes[order[i]] = Util.hash(init[2*order[i]]);
+			return;
+			}
+		int mid = (from + to) >>> 1;
+		invokeAll(new HashTask(init, hashes, order, from, mid), new HashTask(init, hashes, order, mid, to));
+	}
+}
+
+static final class BuildTask extends RecursiveTask<INode> {
+	final Object[] init;
+	final int[] hashes;
+	final int[] order;
+	final int[] scratch;
+	final int shift;
+	final int from;
+	final int to;
+	int count;
+
+	BuildTask(Object[] init, int[] hashes, int[] order, int[] scratch, int shift, int from, int to){
+		this.init = init;
+		this.hashes = hashes;
+		this.order = order;
+		this.scratch = scratch;
+		this.shift = shift;
+		this.from = from;
+		this.to = to;
+	}
+
+	protected INode compute(){
+		// stop splitting while there are still whole levels left in the hash
+		if(to - from <= PARALLEL_BUILD_THRESHOLD || shift + 2 * BITS_PER_LEVEL > BITS_PER_INTEGER)
+			return buildSequential();
+
+		int[] bounds = new int[33];
+		for(int i = from; i < to; i++)
+			bounds[mask(hashes[order[i]], shift) + 1]++;
+		bounds[0] = from;
+		for(int b = 1; b <= 32; b++)
+			bounds[b] += bounds[b - 1];
+		int[] pos = bounds.clone();
+		for(int i = from; i < to; i++)
+			{
+			int j = order[i];
+			scratch[pos[mask(hashes[j], shift)]++] = j;
+			}
+		System.arraycopy(scratch, from, order, from, to - from);
+
+		BuildTask[] tasks = new BuildTask[32];
+		int children = 0;
+		for(int b = 0; b < 32; b++)
+			if(bounds[b] < bounds[b + 1])
+				{
+				tasks[b] = new BuildTask(init, hashes, order, scratch, shift + BITS_PER_LEVEL, bounds[b], bounds[b + 1]);
+				children++;
+				}
+		BuildTask[] forked = new BuildTask[children];
+		for(int b = 0, i = 0; b < 32; b++)
+			if(tasks[b] != null)
+				forked[i++] = tasks[b];
+		invokeAll(forked);
+
+		INode[] nodes = new INode[32];
+		for(int b = 0; b < 32; b++)
+			if(tasks[b] != null)
+				{
+				nodes[b] = tasks[b].join();
+				count += tasks[b].count;
+				}
+		return new ArrayNode(null, children, nodes);
+	}
+
+	private INode buildSequential(){
+		AtomicReference<Thread> edit = new AtomicReference<Thread>(Thread.currentThread());
+		Box addedLeaf = new Box(null);
+		INode node = BitmapIndexedNode.EMPTY;
+		for(int i = from; i < to; i++)
+			{
+			int j = order[i];
+			addedLeaf.val = null;
+			node = node.assoc(edit, shift, hashes[j], init[2*j], init[2*j+1], addedLeaf);
+			if(addedLeaf.val != null)
+				count++;
+			}
+		edit.set(null);
+		return count == 0 ? null : node;
+	}
+}
+
 PersistentHashMap(int count, INode root, boolean hasNull, V nullValue){
 	this.count = count;
 	this.root = root;
@@ -249,6 +467,29 @@ public int count(){
 	return count;
 }
 
+/**
+ * Reduces over the entries with f.invoke(acc, key, val), in iteration order.
+ * Walks the node arrays directly, so no entries or iterators are allocated.
+ */
+public Object reduceKV(IFn f, Object init) throws Exception{
+	if(hasNull)
+		init = f.invoke(init, null, nullValue);
+	return root != null ? root.kvreduce(f, init) : init;
+}
+
+/**
+ * Calls f.invoke(key, val) for each entry, in iteration order, without
+ * allocating entries or iterators.
+ */
+public void forEach(final IFn f) throws Exception{
+	reduceKV(new AFn(){
+		public Object invoke(Object acc, Object key, Object val) throws Exception{
+			f.invoke(key, val);
+			return null;
+		}
+	}, null);
+}
+
 public ISeq<IMapEntry<K, V>> seq(){
 	ISeq<IMapEntry<K, V>> s = root != null ? root.nodeSeq() : null; 
 	return hasNull ? new Cons<IMapEntry<K, V>>(new MapEntry<K,V>(null, nullValue), s) : s;
@@ -260,6 +501,192 @@ public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
 	return s;
 }
 
+/**
+ * Returns a map with the entries of both maps, the values in other winning
+ * where a key is in both.
+ */
+public PersistentHashMap<K,V> merge(PersistentHashMap<K,V> other){
+	return merge(other, null);
+}
+
+/**
+ * Returns a map with the entries of both maps. Where a key is in both, the
+ * value is f.invoke(thisValue, otherValue), or the value in other if f is
+ * null. The two tries are walked in lock-step and subtrees only present on
+ * one side, or identical when f is null, are shared with the result
+ * unchanged, so merging a small map into a large one costs about the size of
+ * the small one. f is called for every key in both maps, even where they
+ * share the entry.
+ */
+@SuppressWarnings("unchecked")
+public PersistentHashMap<K,V> merge(PersistentHashMap<K,V> other, IFn f){
+	if(other.count == 0 || f == null && other.root == root && other.hasNull == hasNull && other.nullValue == nullValue)
+		return this;
+	if(count == 0)
+		return other.withMeta(_meta);
+	// walk from the larger trie, so only the smaller one is ever counted
+	boolean flip = count < other.count;
+	SetOp op = new SetOp(f, flip);
+	INode newroot = flip ? op.union(0, other.root, root) : op.union(0, root, other.root);
+	PersistentHashMap<K,V> larger = flip ? other : this;
+	int newcount = larger.count - (larger.hasNull ? 1 : 0) + op.count;
+	V newNullValue = hasNull ? nullValue : other.nullValue;
+	if(hasNull && other.hasNull)
+		newNullValue = (V) (f == null ? other.nullValue : op.invoke(nullValue, other.nullValue));
+	boolean newHasNull = hasNull || other.hasNull;
+	if(newroot == root && newHasNull == hasNull && newNullValue == nullValue)
+		return this;
+	return new PersistentHashMap<K,V>(_meta, newcount + (newHasNull ? 1 : 0), newroot, newHasNull, newNullValue);
+}
+
+/**
+ * Returns the entries of this map whose keys are also in other.
+ */
+public PersistentHashMap<K,V> intersection(PersistentHashMap<K,?> other){
+	return intersection(other, null);
+}
+
+/**
+ * Returns the entries of this map whose keys are also in other, with the
+ * value f.invoke(thisValue, otherValue), or the value in this map if f is
+ * null. When f is null, identical subtrees are shared with the result
+ * unchanged and not walked; f is called for every key in both maps.
+ */
+@SuppressWarnings("unchecked")
+public PersistentHashMap<K,V> intersection(PersistentHashMap<K,?> other, IFn f){
+	if(f == null && other.root == root && other.hasNull == hasNull && other.nullValue == nullValue)
+		return this;
+	SetOp op = new SetOp(f, false);
+	// op counts the entries of this map left out
+	INode newroot = root == null || other.root == null ? null : op.intersect(0, root, other.root);
+	boolean newHasNull = hasNull && other.hasNull;
+	V newNullValue = newHasNull ? (V) op.resolveLeft(nullValue, other.nullValue) : null;
+	if(newroot == root && newHasNull == hasNull && newNullValue == nullValue)
+		return this;
+	int newcount = newroot == null ? 0 : count - (hasNull ? 1 : 0) - op.count;
+	return new PersistentHashMap<K,V>(_meta, newcount + (newHasNull ? 1 : 0), newroot, newHasNull, newNullValue);
+}
+
+/**
+ * Returns the entries of this map whose keys are not in other. Subtrees only
+ * present in this map are shared with the result unchanged.
+ */
+public PersistentHashMap<K,V> difference(PersistentHashMap<K,?> other){
+	if(other.count == 0)
+		return this;
+	SetOp op = new SetOp(null, false);
+	// op counts the entries of this map kept, so shared subtrees need no walk
+	INode newroot = root == null || other.root == null ? root : op.difference(0, root, other.root);
+	boolean newHasNull = hasNull && !other.hasNull;
+	if(newroot == root && newHasNull == hasNull)
+		return this;
+	int newcount = newroot == root ? count - (hasNull ? 1 : 0) : op.count;
+	return new PersistentHashMap<K,V>(_meta, newcount + (newHasNull ? 1 : 0), newroot, newHasNull, newHasNull ? nullValue : null);
+}
+
+/**
+ * Receives the differences found by {@link PersistentHashMap#diff}.
+ */
+public static interface DiffVisitor<K,V> {
+	void added(K key, V val);
+
+	void removed(K key, V val);
+
+	void changed(K key, V oldVal, V newVal);
+}
+
+/**
+ * Reports the entries that were added, removed or changed (values not
+ * Util.equals) going from this map to newer. The tries of both maps are
+ * descended together and subtrees they share are skipped, so for two
+ * versions of one map the cost is proportional to the changed paths rather
+ * than the size of the maps.
+ */
+@SuppressWarnings("unchecked")
+public void diff(PersistentHashMap<K,V> newer, DiffVisitor<? super K, ? super V> visitor){
+	if(hasNull && newer.hasNull)
+		{
+		if(!Util.equals(nullValue, newer.nullValue))
+			visitor.changed(null, nullValue, newer.nullValue);
+		}
+	else if(hasNull)
+		visitor.removed(null, nullValue);
+	else if(newer.hasNull)
+		visitor.added(null, newer.nullValue);
+	new SetOp(null, false).diff(0, root, newer.root, (DiffVisitor<Object,Object>) visitor);
+}
+
+/**
+ * Returns a spliterator over the entries that splits along the nodes of the
+ * trie, for use with {@link Reducers#fold}.
+ */
+public ISpliterator<Map.Entry<K, V>> splitIterator(){
+	return nodeSpliterator(false);
+}
+
+/*
+ * Over the keys only if keys is set, as PersistentHashSet needs.
+ */
+ISpliterator nodeSpliterator(boolean keys){
+	Object[] items;
+	if(root == null)
+		items = hasNull ? new Object[] {new MapEntry(null, nullValue)} : new Object[0];
+	else
+		items = hasNull ? new Object[] {new MapEntry(null, nullValue), root} : new Object[] {root};
+	return new NodeSpliterator(items, 0, items.length, null, count, keys);
+}
+
+static final class NodeSpliterator extends ANodeSpliterator {
+	NodeSpliterator(Object[] items, int lo, int hi, Iterator current, long est, boolean keys){
+		super(items, lo, hi, current, est, ISpliterator.SIZED | ISpliterator.DISTINCT | ISpliterator.IMMUTABLE, keys);
+	}
+
+	boolean isSubtree(Object item){
+		return item instanceof INode;
+	}
+
+	Iterator iterate(Object subtree){
+		return ((INode) subtree).nodeIt(false);
+	}
+
+	Object[] expand(Object subtree){
+		if(subtree instanceof ArrayNode)
+			{
+			INode[] array = ((ArrayNode) subtree).array;
+			int n = 0;
+			for(INode child : array)
+				if(child != null)
+					n++;
+			Object[] items = new Object[n];
+			n = 0;
+			for(INode child : array)
+				if(child != null)
+					items[n++] = child;
+			return items;
+			}
+		if(subtree instanceof BitmapIndexedNode)
+			{
+			BitmapIndexedNode node = (BitmapIndexedNode) subtree;
+			Object[] items = new Object[BitCount.bitCount(node.bitmap)];
+			for(int j = 0; j < items.length; j++)
+				{
+				Object key = node.array[2*j];
+				items[j] = key != null ? new MapEntry(key, node.array[2*j+1]) : node.array[2*j+1];
+				}
+			return items;
+			}
+		HashCollisionNode node = (HashCollisionNode) subtree;
+		Object[] items = new Object[node.count];
+		for(int j = 0; j < items.length; j++)
+			items[j] = new MapEntry(node.array[2*j], node.array[2*j+1]);
+		return items;
+	}
+
+	ANodeSpliterator create(Object[] items, int lo, int hi, Iterator current, long est){
+		return new NodeSpliterator(items, lo, hi, current, est, keys);
+	}
+}
+
 public IPersistentCollection empty(){
 	return EMPTY.withMeta(meta());	
 }
@@ -281,7 +708,7 @@ public IPersistentMap meta(){
 	return _meta;
 }
 
-static final class TransientHashMap<K,V> extends ATransientMap<K,V> {
+public static final class TransientHashMap<K,V> extends ATransientMap<K,V> {
 	AtomicReference<Thread> edit;
 	INode root;
 	int count;
@@ -345,6 +772,49 @@ static final class TransientHashMap<K,V> extends ATransientMap<K,V> {
 		return new PersistentHashMap<K,V>(count, root, hasNull, nullValue);
 	}
 
+	/**
+	 * Associates the pairs {key1,val1,key2,val2,...}, a later pair winning
+	 * over an earlier one with the same key. The batch is partitioned on the
+	 * hash bits of each level, so all keys below one node are applied in a
+	 * single descent.
+	 */
+	@SuppressWarnings("unchecked")
+	public TransientHashMap<K,V> assocAll(Object[] kvs) {
+		ensureEditable();
+		if((kvs.length & 1) != 0)
+			throw new IllegalArgumentException(String.format("No value supplied for key: %s", kvs[kvs.length - 1]));
+		Batch batch = Batch.create(edit, kvs, 2, false);
+		for(int i = 0; i < kvs.length; i += 2)
+			if(kvs[i] == null)
+				doAssoc(null, (V) kvs[i+1]);
+		if(batch.n > 0)
+			{
+			root = batch.apply(root == null ? BitmapIndexedNode.EMPTY : root, 0, 0, batch.n);
+			count += batch.changed;
+			}
+		return this;
+	}
+
+	/**
+	 * Removes all the keys, applying the keys below one node in a single
+	 * descent like {@link #assocAll(Object[])}.
+	 */
+	public TransientHashMap<K,V> withoutAll(Object[] keys) {
+		ensureEditable();
+		for(int i = 0; i < keys.length; i++)
+			if(keys[i] == null)
+				doWithout(null);
+		if(root == null)
+			return this;
+		Batch batch = Batch.create(edit, keys, 1, true);
+		if(batch.n > 0)
+			{
+			root = batch.apply(root, 0, 0, batch.n);
+			count -= batch.changed;
+			}
+		return this;
+	}
+
 	V doValAt(K key, V notFound) {
 		if (key == null)
 			if (hasNull)
@@ -376,6 +846,135 @@ static final class TransientHashMap<K,V> extends ATransientMap<K,V> {
 
 }
 
+/*
+ * A batch of keys (stride 1) or key/value pairs (stride 2) applied to a
+ * transient trie. At each level the keys are stably sorted on the hash bits
+ * of that level; a run of keys going into the same subnode is applied to it
+ * by one recursive call, and keys landing on an empty slot or inline entry
+ * are applied one at a time until the slot holds a subnode.
+ */
+static final class Batch {
+	final AtomicReference<Thread> edit;
+	final Object[] items;
+	final int stride;
+	final boolean remove;
+	final int[] hashes;
+	final int[] order;
+	final int[] scratch;
+	final int n;
+	final Box leafFlag = new Box(null);
+	int changed;
+
+	private Batch(AtomicReference<Thread> edit, Object[] items, int stride, boolean remove, int[] order, int n){
+		this.edit = edit;
+		this.items = items;
+		this.stride = stride;
+		this.remove = remove;
+		this.order = order;
+		this.n = n;
+		this.hashes = new int[items.length / stride];
+		this.scratch = new int[n];
+		for(int i = 0; i < n; i++)
+			hashes[order[i]] = Util.hash(items[stride * order[i]]);
+	}
+
+	/*
+	 * Skips null keys, which the transient keeps outside the trie.
+	 */
+	static Batch create(AtomicReference<Thread> edit, Object[] items, int stride, boolean remove){
+		int[] order = new int[items.length / stride];
+		int n = 0;
+		for(int i = 0; i < order.length; i++)
+			if(items[stride * i] != null)
+				order[n++] = i;
+		return new Batch(edit, items, stride, remove, order, n);
+	}
+
+	INode apply(INode node, int shift, int from, int to){
+		if(to - from == 1 || node instanceof HashCollisionNode || shift + BITS_PER_LEVEL >= BITS_PER_INTEGER)
+			{
+			for(int i = from; i < to && node != null; i++)
+				node = applyOne(node, shift, order[i]);
+			return node;
+			}
+		int[] bounds = new int[33];
+		for(int i = from; i < to; i++)
+			bounds[mask(hashes[order[i]], shift) + 1]++;
+		bounds[0] = from;
+		for(int b = 1; b <= 32; b++)
+			bounds[b] += bounds[b - 1];
+		int[] pos = bounds.clone();
+		for(int i = from; i < to; i++)
+			{
+			int j = order[i];
+			scratch[pos[mask(hashes[j], shift)]++] = j;
+			}
+		System.arraycopy(scratch, from, order, from, to - from);
+
+		for(int b = 0; b < 32 && node != null; b++)
+			for(int i = bounds[b], end = bounds[b + 1]; i < end && node != null;)
+				{
+				INode child = childAt(node, b);
+				if(child != null && end - i > 1)
+					{
+					node = replaceChild(node, b, child, apply(child, shift + BITS_PER_LEVEL, i, end));
+					i = end;
+					}
+				else
+					node = applyOne(node, shift, order[i++]);
+				}
+		return node;
+	}
+
+	private INode applyOne(INode node, int shift, int j){
+		leafFlag.val = null;
+		if(remove)
+			node = node.without(edit, shift, hashes[j], items[j], leafFlag);
+		else
+			node = node.assoc(edit, shift, hashes[j], items[2*j], items[2*j+1], leafFlag);
+		if(leafFlag.val != null)
+			changed++;
+		return node;
+	}
+
+	private static INode childAt(INode node, int slot){
+		if(node instanceof ArrayNode)
+			return ((ArrayNode) node).array[slot];
+		if(node instanceof BitmapIndexedNode)
+			{
+			BitmapIndexedNode bn = (BitmapIndexedNode) node;
+			int bit = 1 << slot;
+			if((bn.bitmap & bit) == 0)
+				return null;
+			int idx = bn.index(bit);
+			return bn.array[2*idx] == null ? (INode) bn.array[2*idx+1] : null;
+			}
+		return null;
+	}
+
+	private INode replaceChild(INode node, int slot, INode child, INode n){
+		if(n == child)
+			return node;
+		if(node instanceof ArrayNode)
+			{
+			ArrayNode an = (ArrayNode) node;
+			if(n != null)
+				return an.editAndSet(edit, slot, n);
+			if(an.count <= 8) // shrink
+				return an.pack(edit, slot);
+			ArrayNode editable = an.editAndSet(edit, slot, null);
+			editable.count--;
+			return editable;
+			}
+		BitmapIndexedNode bn = (BitmapIndexedNode) node;
+		int bit = 1 << slot;
+		int idx = bn.index(bit);
+		if(n != null)
+			return bn.editAndSet(edit, 2*idx+1, n);
+		return bn.editAndRemovePair(edit, bit, idx);
+	}
+}
+
 static interface INode extends Serializable {
 	INode assoc(int shift, int hash, Object key, Object val, Box addedLeaf);
 
@@ -391,6 +990,8 @@ static interface INode extends Serializable {
 
 	ISeq nodeSeq();
 
+	Object kvreduce(IFn f, Object init) throws Exception;
+
 	INode assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object val, Box addedLeaf);
 
 	INode without(AtomicReference<Thread> edit, int shift, int hash, Object key, Box removedLeaf);
@@ -549,6 +1150,13 @@ final static class ArrayNode implements INode{
 		return Seq.create(array);
 	}
 
+	public Object kvreduce(IFn f, Object init) throws Exception{
+		for(INode node : array)
+			if(node != null)
+				init = node.kvreduce(f, init);
+		return init;
+	}
+
 	private ArrayNode ensureEditable(AtomicReference<Thread> edit){
 		if(this.edit == edit)
 			return this;
@@ -966,6 +1574,17 @@ final static class BitmapIndexedNode implements INode{
 		return NodeSeq.create(array);
 	}
 
+	public Object kvreduce(IFn f, Object init) throws Exception{
+		for(int i = 0; i < array.length; i += 2)
+			{
+			if(array[i] != null)
+				init = f.invoke(init, array[i], array[i+1]);
+			else if(array[i+1] != null)
+				init = ((INode) array[i+1]).kvreduce(f, init);
+			}
+		return init;
+	}
+
 	private BitmapIndexedNode ensureEditable(AtomicReference<Thread> edit){
 		if(this.edit == edit)
 			return this;
@@ -1116,10 +1735,20 @@ final static class BitmapIndexedNode implements INode{
 
 final static class HashCollisionNode implements INode{
 
+	/*
+	 * Colliding keys are kept in insertion order and found by a linear scan.
+	 * Crafted keys can force any number of entries into one node, so once a
+	 * node grows past SORT_THRESHOLD entries whose keys are all of one
+	 * Comparable class, its pairs are kept sorted by key and found by binary
+	 * search instead, much like the tree bins of java.util.HashMap.
+	 */
+	static final int SORT_THRESHOLD = 8;
+
 	final int hash;
 	int count;
 	Object[] array;
 	final AtomicReference<Thread> edit;
+	boolean sorted;
 
 	HashCollisionNode(AtomicReference<Thread> edit, int hash, int count, Object... array){
 		this.edit = edit;
@@ -1127,6 +1756,11 @@ final static class HashCollisionNode implements INode{
 		this.count = count;
 		this.array = array;
 	}
+
+	HashCollisionNode(AtomicReference<Thread> edit, int hash, int count, Object[] array, boolean sorted){
+		this(edit, hash, count, array);
+		this.sorted = sorted;
+	}
 	
 	static final class HashCollisionNodeIterator implements Iterator {
 		Object[] array;
@@ -1197,18 +1831,15 @@ final static class HashCollisionNode implements INode{
 	
 	public INode assoc(int shift, int hash, Object key, Object val, Box addedLeaf){
 		if(hash == this.hash) {
-			int idx = findIndex(key);
-			if(idx != -1) {
+			int idx = indexOf(key);
+			if(idx >= 0) {
 				if(array[idx + 1] == val)
 					return this;
-				return new HashCollisionNode(null, hash, count, cloneAndSet(array, idx + 1, val));
+				return new HashCollisionNode(null, hash, count, cloneAndSet(array, idx + 1, val), sorted);
 			}
-			Object[] newArray = new Object[array.length + 2];
-			System.arraycopy(array, 0, newArray, 0, array.length);
-			newArray[array.length] = key;
-			newArray[array.length + 1] = val;
+			boolean keepSorted = sorted && key.getClass() == array[0].getClass();
 			addedLeaf.val = addedLeaf;
-			return new HashCollisionNode(edit, hash, count + 1, newArray);
+			return new HashCollisionNode(edit, hash, count + 1, insertPair(-idx - 1, key, val)).added(keepSorted);
 		}
 		// nest it in a bitmap node
 		return new BitmapIndexedNode(null, bitpos(this.hash, shift), new Object[] {null, this})
@@ -1221,7 +1852,7 @@ final static class HashCollisionNode implements INode{
 			return this;
 		if(count == 1)
 			return null;
-		return new HashCollisionNode(null, hash, count - 1, removePair(array, idx/2));
+		return new HashCollisionNode(null, hash, count - 1, removePair(array, idx/2), sorted);
 	}
 
 	public IMapEntry find(int shift, int hash, Object key){
@@ -1246,19 +1877,109 @@ final static class HashCollisionNode implements INode{
 		return NodeSeq.create(array);
 	}
 
+	public Object kvreduce(IFn f, Object init) throws Exception{
+		for(int i = 0; i < 2*count; i += 2)
+			init = f.invoke(init, array[i], array[i+1]);
+		return init;
+	}
+
 	public int findIndex(Object key){
+		int idx = indexOf(key);
+		return idx < 0 ? -1 : idx;
+	}
+
+	/*
+	 * Returns the index of key in array, or -(i + 1) where i is the index at
+	 * which key is to be inserted.
+	 */
+	private int indexOf(Object key){
+		if(sorted && key != null && key.getClass() == array[0].getClass())
+			return search(key);
 		for(int i = 0; i < 2*count; i+=2)
 			{
 			if(Util.equals(key, array[i]))
 				return i;
 			}
-		return -1;
+		return -(2*count) - 1;
 	}
 
+	private int search(Object key){
+		Comparable k = (Comparable) key;
+		int lo = 0;
+		int hi = count - 1;
+		while(lo <= hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			int c = k.compareTo(array[2*mid]);
+			if(c > 0)
+				lo = mid + 1;
+			else if(c < 0)
+				hi = mid - 1;
+			else
+				{
+				// compareTo may be coarser than equals, so try all keys comparing equal
+				for(int i = mid; i >= 0 && k.compareTo(array[2*i]) == 0; i--)
+					if(Util.equals(key, array[2*i]))
+						return 2*i;
+				for(int i = mid + 1; i < count && k.compareTo(array[2*i]) == 0; i++)
+					if(Util.equals(key, array[2*i]))
+						return 2*i;
+				return -(2*mid) - 1;
+				}
+			}
+		return -(2*lo) - 1;
+	}
+
+	private Object[] insertPair(int i, Object key, Object val){
+		Object[] newArray = new Object[2*(count+1)];
+		System.arraycopy(array, 0, newArray, 0, i);
+		newArray[i] = key;
+		newArray[i+1] = val;
+		System.arraycopy(array, i, newArray, i + 2, 2*count - i);
+		return newArray;
+	}
+
+	/*
+	 * Settles the order of this node after a key was added to it: it stays
+	 * sorted if the key was inserted in order, otherwise it is sorted once it
+	 * is past SORT_THRESHOLD if all its keys are of one Comparable class.
+	 */
+	private HashCollisionNode added(boolean keepSorted){
+		sorted = keepSorted;
+		if(!sorted && count > SORT_THRESHOLD)
+			{
+			Class c = array[0].getClass();
+			if(!Comparable.class.isAssignableFrom(c))
+				return this;
+			for(int i = 2; i < 2*count; i += 2)
+				if(array[i].getClass() != c)
+					return this;
+			MapEntry[] entries = new MapEntry[count];
+			for(int i = 0; i < count; i++)
+				entries[i] = new MapEntry(array[2*i], array[2*i+1]);
+			Arrays.sort(entries, KEY_ORDER);
+			for(int i = 0; i < count; i++)
+				{
+				array[2*i] = entries[i].key();
+				array[2*i+1] = entries[i].val();
+				}
+			sorted = true;
+			}
+		return this;
+	}
+
+	static final Comparator<MapEntry> KEY_ORDER = new Comparator<MapEntry>(){
+		public int compare(MapEntry e1, MapEntry e2){
+			return ((Comparable) e1.key()).compareTo(e2.key());
+		}
+	};
+
 	private HashCollisionNode ensureEditable(AtomicReference<Thread> edit){
 		if(this.edit == edit)
 			return this;
-		return new HashCollisionNode(edit, hash, count, array);
+		Object[] newArray = new Object[2*(count+1)]; // make room for next assoc
+		System.arraycopy(array, 0, newArray, 0, 2*count);
+		return new HashCollisionNode(edit, hash, count, newArray, sorted);
 	}
 
 	private HashCollisionNode ensureEditable(AtomicReference<Thread> edit, int count, Object[] array){
@@ -1267,7 +1988,7 @@ final static class HashCollisionNode implements INode{
 			this.count = count;
 			return this;
 		}
-		return new HashCollisionNode(edit, hash, count, array);
+		return new HashCollisionNode(edit, hash, count, array, sorted);
 	}
 
 	private HashCollisionNode editAndSet(AtomicReference<Thread> edit, int i, Object a) {
@@ -1276,34 +1997,28 @@ final static class HashCollisionNode implements INode{
 		return editable;
 	}
 
-	private HashCollisionNode editAndSet(AtomicReference<Thread> edit, int i, Object a, int j, Object b) {
-		HashCollisionNode editable = ensureEditable(edit);
-		editable.array[i] = a;
-		editable.array[j] = b;
-		return editable;
-	}
 
 
 	public INode assoc(AtomicReference<Thread> edit, int shift, int hash, Object key, Object val, Box addedLeaf){
 		if(hash == this.hash) {
-			int idx = findIndex(key);
-			if(idx != -1) {
+			int idx = indexOf(key);
+			if(idx >= 0) {
 				if(array[idx + 1] == val)
 					return this;
 				return editAndSet(edit, idx+1, val); 
 			}
+			boolean keepSorted = sorted && key.getClass() == array[0].getClass();
+			addedLeaf.val = addedLeaf;
+			idx = -idx - 1;
 			if (array.length > 2*count) {
-				addedLeaf.val = addedLeaf;
-				HashCollisionNode editable = editAndSet(edit, 2*count, key, 2*count+1, val);
+				HashCollisionNode editable = ensureEditable(edit);
+				System.arraycopy(editable.array, idx, editable.array, idx + 2, 2*count - idx);
+				editable.array[idx] = key;
+				editable.array[idx+1] = val;
 				editable.count++;
-				return editable;
+				return editable.added(keepSorted);
 			}
-			Object[] newArray = new Object[array.length + 2];
-			System.arraycopy(array, 0, newArray, 0, array.length);
-			newArray[array.length] = key;
-			newArray[array.length + 1] = val;
-			addedLeaf.val = addedLeaf;
-			return ensureEditable(edit, count + 1, newArray);
+			return ensureEditable(edit, count + 1, insertPair(idx, key, val)).added(keepSorted);
 		}
 		// nest it in a bitmap node
 		return new BitmapIndexedNode(edit, bitpos(this.hash, shift), new Object[] {null, this, null, null})
@@ -1314,17 +2029,531 @@ final static class HashCollisionNode implements INode{
 		int idx = findIndex(key);
 		if(idx == -1)
 			return this;
+		removedLeaf.val = removedLeaf;
 		if(count == 1)
 			return null;
 		HashCollisionNode editable = ensureEditable(edit);
-		editable.array[idx] = editable.array[2*count-2];
-		editable.array[idx+1] = editable.array[2*count-1];
+		if(sorted)
+			System.arraycopy(editable.array, idx + 2, editable.array, idx, 2*count - idx - 2);
+		else
+			{
+			editable.array[idx] = editable.array[2*count-2];
+			editable.array[idx+1] = editable.array[2*count-1];
+			}
 		editable.array[2*count-2] = editable.array[2*count-1] = null;
 		editable.count--;
 		return editable;
 	}
 }
 
+/*
+ * Lock-step walk of two tries for merge, intersection, difference and diff.
+ * At each level both nodes are spread over the 32 slots of that level; slots
+ * that are only on one side, or identical on both, are taken over as they are
+ * and only slots holding different content on both sides are combined. The
+ * result node is the left (or right) node itself when none of its slots
+ * changed. HashCollisionNodes are small, so their entries are simply looked
+ * up in, or associated into, the other side.
+ *
+ * count accumulates what each operation needs to compute the result size
+ * without walking shared subtrees of the larger side: the keys of the right
+ * trie missing on the left for a union, the common keys for an
+ * intersection, and the removed keys for a difference.
+ */
+static final class SetOp {
+	final IFn f;
+	final boolean flip;
+	final Box addedLeaf = new Box(null);
+	int count;
+
+	SetOp(IFn f, boolean flip){
+		this.f = f;
+		this.flip = flip;
+	}
+
+	/*
+	 * Scratch slot arrays of each level, reused by all nodes of the level:
+	 * only the slots named by the bitmaps are ever read, and each is written
+	 * before it is read.
+	 */
+	private final Object[][][] slots = new Object[8][][];
+
+	private Object[][] slots(int shift){
+		int level = shift / BITS_PER_LEVEL;
+		if(slots[level] == null)
+			slots[level] = new Object[6][32];
+		return slots[level];
+	}
+
+	Object invoke(Object thisVal, Object otherVal){
+		try
+			{
+			return f.invoke(thisVal, otherVal);
+			}
+		catch(RuntimeException e)
+			{
+			throw e;
+			}
+		catch(Exception e)
+			{
+			throw new RuntimeException(e);
+			}
+	}
+
+	/*
+	 * Value of a key in both tries of a union; the left trie is the other map
+	 * when flipped.
+	 */
+	Object resolveUnion(Object left, Object right){
+		Object thisVal = flip ? right : left;
+		Object otherVal = flip ? left : right;
+		return f == null ? otherVal : invoke(thisVal, otherVal);
+	}
+
+	Object resolveLeft(Object left, Object right){
+		return f == null ? left : invoke(left, right);
+	}
+
+	INode union(int shift, INode a, INode b){
+		// shared entries are only skipped when there is no f to call on them
+		if(b == null || a == b && f == null)
+			return a;
+		if(a == null)
+			{
+			count += size(b);
+			return b;
+			}
+		if(b instanceof HashCollisionNode)
+			{
+			HashCollisionNode h = (HashCollisionNode) b;
+			for(int i = 0; i < 2*h.count; i += 2)
+				a = assocResolved(shift, a, h.hash, h.array[i], h.array[i+1], false);
+			return a;
+			}
+		if(a instanceof HashCollisionNode)
+			{
+			HashCollisionNode h = (HashCollisionNode) a;
+			count += size(b);
+			for(int i = 0; i < 2*h.count; i += 2)
+				b = assocResolved(shift, b, h.hash, h.array[i], h.array[i+1], true);
+			return b;
+			}
+		Object[][] scratch = slots(shift);
+		Object[] ak = scratch[0], av = scratch[1], bk = scratch[2], bv = scratch[3], rk = scratch[4], rv = scratch[5];
+		int abits = expand(a, ak, av);
+		int bbits = expand(b, bk, bv);
+		for(int bits = abits | bbits; bits != 0; bits &= bits - 1)
+			{
+			int i = Integer.numberOfTrailingZeros(bits);
+			int bit = 1 << i;
+			if((bbits & bit) == 0)
+				{
+				rk[i] = ak[i];
+				rv[i] = av[i];
+				}
+			else if((abits & bit) == 0)
+				{
+				rk[i] = bk[i];
+				rv[i] = bv[i];
+				count += bk[i] != null ? 1 : size((INode) bv[i]);
+				}
+			else if(ak[i] != null && bk[i] != null)
+				{
+				if(Util.equals(ak[i], bk[i]))
+					{
+					rk[i] = ak[i];
+					rv[i] = resolveUnion(av[i], bv[i]);
+					}
+				else
+					{
+					rk[i] = null;
+					rv[i] = createNode(shift + BITS_PER_LEVEL, ak[i], av[i], Util.hash(bk[i]), bk[i], bv[i]);
+					count++;
+					}
+				}
+			else
+				{
+				rk[i] = null;
+				rv[i] = union(shift + BITS_PER_LEVEL, child(shift, ak[i], av[i]), child(shift, bk[i], bv[i]));
+				}
+			}
+		return build(shift, abits | bbits, rk, rv, a, abits, ak, av, b, bbits, bk, bv);
+	}
+
+	/*
+	 * Associates an entry of one side into a node of the other, where the
+	 * entry is from the left trie if entryIsLeft is set.
+	 */
+	private INode assocResolved(int shift, INode node, int hash, Object key, Object val, boolean entryIsLeft){
+		Object existing = node.find(shift, hash, key, NOT_FOUND);
+		if(existing == NOT_FOUND)
+			{
+			if(!entryIsLeft)
+				count++;
+			}
+		else
+			{
+			if(entryIsLeft)
+				count--;
+			val = entryIsLeft ? resolveUnion(val, existing) : resolveUnion(existing, val);
+			}
+		return node.assoc(shift, hash, key, val, addedLeaf);
+	}
+
+	/*
+	 * Counts the entries of a left out, so a subtree shared with b is not
+	 * walked when there is no f to call on it.
+	 */
+	INode intersect(int shift, INode a, INode b){
+		if(a == null || b == null)
+			{
+			count += size(a);
+			return null;
+			}
+		if(a == b && f == null)
+			return a;
+		if(a instanceof HashCollisionNode || b instanceof HashCollisionNode)
+			{
+			boolean left = a instanceof HashCollisionNode;
+			HashCollisionNode h = (HashCollisionNode) (left ? a : b);
+			INode other = left ? b : a;
+			INode ret = null;
+			count += size(a);
+			for(int i = 0; i < 2*h.count; i += 2)
+				{
+				IMapEntry e = other.find(shift, h.hash, h.array[i]);
+				if(e == null)
+					continue;
+				count--;
+				Object key = left ? h.array[i] : e.key();
+				Object val = left ? resolveLeft(h.array[i+1], e.val()) : resolveLeft(e.val(), h.array[i+1]);
+				ret = (ret == null ? BitmapIndexedNode.EMPTY : ret).assoc(shift, h.hash, key, val, addedLeaf);
+				}
+			return ret;
+			}
+		Object[][] scratch = slots(shift);
+		Object[] ak = scratch[0], av = scratch[1], bk = scratch[2], bv = scratch[3], rk = scratch[4], rv = scratch[5];
+		int abits = expand(a, ak, av);
+		int bbits = expand(b, bk, bv);
+		int rbits = 0;
+		for(int bits = abits & ~bbits; bits != 0; bits &= bits - 1)
+			{
+			int i = Integer.numberOfTrailingZeros(bits);
+			count += ak[i] != null ? 1 : size((INode) av[i]);
+			}
+		for(int bits = abits & bbits; bits != 0; bits &= bits - 1)
+			{
+			int i = Integer.numberOfTrailingZeros(bits);
+			rk[i] = rv[i] = null;
+			if(ak[i] != null && bk[i] != null)
+				{
+				if(Util.equals(ak[i], bk[i]))
+					{
+					rk[i] = ak[i];
+					rv[i] = resolveLeft(av[i], bv[i]);
+					}
+				else
+					count++;
+				}
+			else if(ak[i] != null)
+				{
+				Object val = ((INode) bv[i]).find(shift + BITS_PER_LEVEL, Util.hash(ak[i]), ak[i], NOT_FOUND);
+				if(val != NOT_FOUND)
+					{
+					rk[i] = ak[i];
+					rv[i] = resolveLeft(av[i], val);
+					}
+				else
+					count++;
+				}
+			else if(bk[i] != null)
+				{
+				IMapEntry e = ((INode) av[i]).find(shift + BITS_PER_LEVEL, Util.hash(bk[i]), bk[i]);
+				count += size((INode) av[i]);
+				if(e != null)
+					{
+					rk[i] = e.key();
+					rv[i] = resolveLeft(e.val(), bv[i]);
+					count--;
+					}
+				}
+			else
+				rv[i] = intersect(shift + BITS_PER_LEVEL, (INode) av[i], (INode) bv[i]);
+			if(rv[i] != null || rk[i] != null)
+				rbits |= 1 << i;
+			}
+		return build(shift, rbits, rk, rv, a, abits, ak, av, b, bbits, bk, bv);
+	}
+
+	/*
+	 * Counts the entries of a kept, so a subtree shared with b, which is
+	 * dropped whole, is not walked.
+	 */
+	INode difference(int shift, INode a, INode b){
+		if(a == null || b == null)
+			{
+			count += size(a);
+			return a;
+			}
+		if(a == b)
+			return null;
+		if(a instanceof HashCollisionNode || b instanceof HashCollisionNode)
+			{
+			boolean left = a instanceof HashCollisionNode;
+			HashCollisionNode h = (HashCollisionNode) (left ? a : b);
+			INode other = left ? b : a;
+			int n = size(a);
+			for(int i = 0; i < 2*h.count && a != null; i += 2)
+				if(other.find(shift, h.hash, h.array[i], NOT_FOUND) != NOT_FOUND)
+					{
+					n--;
+					a = a.without(shift, h.hash, h.array[i]);
+					}
+			count += n;
+			return a;
+			}
+		Object[][] scratch = slots(shift);
+		Object[] ak = scratch[0], av = scratch[1], bk = scratch[2], bv = scratch[3], rk = scratch[4], rv = scratch[5];
+		int abits = expand(a, ak, av);
+		int bbits = expand(b, bk, bv);
+		int rbits = 0;
+		for(int bits = abits; bits != 0; bits &= bits - 1)
+			{
+			int i = Integer.numberOfTrailingZeros(bits);
+			int bit = 1 << i;
+			rk[i] = ak[i];
+			rv[i] = av[i];
+			if((bbits & bit) == 0)
+				count += ak[i] != null ? 1 : size((INode) av[i]);
+			else
+				{
+				if(ak[i] != null && bk[i] != null)
+					{
+					if(Util.equals(ak[i], bk[i]))
+						rk[i] = rv[i] = null;
+					else
+						count++;
+					}
+				else if(ak[i] != null)
+					{
+					if(((INode) bv[i]).find(shift + BITS_PER_LEVEL, Util.hash(ak[i]), ak[i], NOT_FOUND) != NOT_FOUND)
+						rk[i] = rv[i] = null;
+					else
+						count++;
+					}
+				else if(bk[i] != null)
+					{
+					int hash = Util.hash(bk[i]);
+					count += size((INode) av[i]);
+					if(((INode) av[i]).find(shift + BITS_PER_LEVEL, hash, bk[i], NOT_FOUND) != NOT_FOUND)
+						{
+						rv[i] = ((INode) av[i]).without(shift + BITS_PER_LEVEL, hash, bk[i]);
+						count--;
+						}
+					}
+				else
+					rv[i] = difference(shift + BITS_PER_LEVEL, (INode) av[i], (INode) bv[i]);
+				}
+			if(rk[i] != null || rv[i] != null)
+				rbits |= bit;
+			}
+		return build(shift, rbits, rk, rv, a, abits, ak, av, b, bbits, bk, bv);
+	}
+
+	void diff(int shift, INode a, INode b, DiffVisitor<Object,Object> visitor){
+		if(a == b)
+			return;
+		if(a == null || b == null)
+			{
+			for(Iterator<Map.Entry> i = (a == null ? b : a).nodeIt(false); i.hasNext();)
+				{
+				Map.Entry e = i.next();
+				if(a == null)
+					visitor.added(e.getKey(), e.getValue());
+				else
+					visitor.removed(e.getKey(), e.getValue());
+				}
+			return;
+			}
+		if(a instanceof HashCollisionNode || b instanceof HashCollisionNode)
+			{
+			for(Iterator<Map.Entry> i = a.nodeIt(false); i.hasNext();)
+				{
+				Map.Entry e = i.next();
+				Object val = b.find(shift, Util.hash(e.getKey()), e.getKey(), NOT_FOUND);
+				if(val == NOT_FOUND)
+					visitor.removed(e.getKey(), e.getValue());
+				else if(!Util.equals(e.getValue(), val))
+					visitor.changed(e.getKey(), e.getValue(), val);
+				}
+			for(Iterator<Map.Entry> i = b.nodeIt(false); i.hasNext();)
+				{
+				Map.Entry e = i.next();
+				if(a.find(shift, Util.hash(e.getKey()), e.getKey(), NOT_FOUND) == NOT_FOUND)
+					visitor.added(e.getKey(), e.getValue());
+				}
+			return;
+			}
+		Object[][] scratch = slots(shift);
+		Object[] ak = scratch[0], av = scratch[1], bk = scratch[2], bv = scratch[3];
+		int abits = expand(a, ak, av);
+		int bbits = expand(b, bk, bv);
+		for(int bits = abits | bbits; bits != 0; bits &= bits - 1)
+			{
+			int i = Integer.numberOfTrailingZeros(bits);
+			int bit = 1 << i;
+			if((bbits & bit) == 0)
+				diffEntryOrNode(shift, ak[i], av[i], null, null, visitor);
+			else if((abits & bit) == 0)
+				diffEntryOrNode(shift, null, null, bk[i], bv[i], visitor);
+			else if(ak[i] != null && bk[i] != null && Util.equals(ak[i], bk[i]))
+				{
+				if(av[i] != bv[i] && !Util.equals(av[i], bv[i]))
+					visitor.changed(ak[i], av[i], bv[i]);
+				}
+			else if(ak[i] != null && bk[i] != null)
+				{
+				visitor.removed(ak[i], av[i]);
+				visitor.added(bk[i], bv[i]);
+				}
+			else
+				diff(shift + BITS_PER_LEVEL, child(shift, ak[i], av[i]), child(shift, bk[i], bv[i]), visitor);
+			}
+	}
+
+	private void diffEntryOrNode(int shift, Object ak, Object av, Object bk, Object bv, DiffVisitor<Object,Object> visitor){
+		if(ak != null)
+			visitor.removed(ak, av);
+		else if(bk != null)
+			visitor.added(bk, bv);
+		else
+			diff(shift + BITS_PER_LEVEL, (INode) av, (INode) bv, visitor);
+	}
+
+	/*
+	 * The subnode for a slot, wrapping a single entry in a node of the next level.
+	 */
+	private static INode child(int shift, Object key, Object val){
+		if(key == null)
+			return (INode) val;
+		return new BitmapIndexedNode(null, bitpos(Util.hash(key), shift + BITS_PER_LEVEL), new Object[] {key, val});
+	}
+
+	/*
+	 * Spreads an ArrayNode or BitmapIndexedNode over the 32 slots of its
+	 * level. keys[i] is null where vals[i] holds a subnode. Returns the bitmap
+	 * of used slots.
+	 */
+	private static int expand(INode node, Object[] keys, Object[] vals){
+		if(node instanceof ArrayNode)
+			{
+			INode[] array = ((ArrayNode) node).array;
+			int bits = 0;
+			for(int i = 0; i < array.length; i++)
+				if(array[i] != null)
+					{
+					keys[i] = null;
+					vals[i] = array[i];
+					bits |= 1 << i;
+					}
+			return bits;
+			}
+		BitmapIndexedNode bn = (BitmapIndexedNode) node;
+		int j = 0;
+		for(int bits = bn.bitmap; bits != 0; bits &= bits - 1, j += 2)
+			{
+			int i = Integer.numberOfTrailingZeros(bits);
+			keys[i] = bn.array[j];
+			vals[i] = bn.array[j+1];
+			}
+		return bn.bitmap;
+	}
+
+	/*
+	 * Builds the node for the result slots, returning a or b themselves when
+	 * the result equals either of them. Subnodes that were emptied are
+	 * dropped, and new ones holding a single entry are inlined.
+	 */
+	private static INode build(int shift, int bits, Object[] rk, Object[] rv,
+			INode a, int abits, Object[] ak, Object[] av, INode b, int bbits, Object[] bk, Object[] bv){
+		boolean sameAsA = bits == abits, sameAsB = bits == bbits;
+		for(int rest = bits; rest != 0; rest &= rest - 1)
+			{
+			int i = Integer.numberOfTrailingZeros(rest);
+			if(rk[i] == null && rv[i] != av[i] && rv[i] != bv[i] && rv[i] instanceof BitmapIndexedNode)
+				{
+				BitmapIndexedNode n = (BitmapIndexedNode) rv[i];
+				if(n.bitmap == 0)
+					{
+					bits &= ~(1 << i);
+					rv[i] = null;
+					}
+				else if(BitCount.bitCount(n.bitmap) == 1 && n.array[0] != null)
+					{
+					rk[i] = n.array[0];
+					rv[i] = n.array[1];
+					}
+				}
+			sameAsA &= rk[i] == ak[i] && rv[i] == av[i];
+			sameAsB &= rk[i] == bk[i] && rv[i] == bv[i];
+			}
+		if(sameAsA && bits == abits)
+			return a;
+		if(sameAsB && bits == bbits)
+			return b;
+		return node(shift, bits, rk, rv);
+	}
+
+	/*
+	 * Builds a node from the slots named by bits, as left by expand.
+	 */
+	static INode node(int shift, int bits, Object[] rk, Object[] rv){
+		int n = BitCount.bitCount(bits);
+		if(n == 0)
+			return null;
+		if(n <= 16)
+			{
+			Object[] array = new Object[2*n];
+			int j = 0;
+			for(int rest = bits; rest != 0; rest &= rest - 1, j += 2)
+				{
+				int i = Integer.numberOfTrailingZeros(rest);
+				array[j] = rk[i];
+				array[j+1] = rv[i];
+				}
+			return new BitmapIndexedNode(null, bits, array);
+			}
+		INode[] nodes = new INode[32];
+		for(int rest = bits; rest != 0; rest &= rest - 1)
+			{
+			int i = Integer.numberOfTrailingZeros(rest);
+			nodes[i] = child(shift, rk[i], rv[i]);
+			}
+		return new ArrayNode(null, n, nodes);
+	}
+
+	/*
+	 * Number of entries below a node.
+	 */
+	static int size(INode node){
+		if(node == null)
+			return 0;
+		if(node instanceof HashCollisionNode)
+			return ((HashCollisionNode) node).count;
+		int n = 0;
+		if(node instanceof ArrayNode)
+			{
+			for(INode child : ((ArrayNode) node).array)
+				n += size(child);
+			return n;
+			}
+		BitmapIndexedNode bn = (BitmapIndexedNode) node;
+		for(int j = 0; j < 2*BitCount.bitCount(bn.bitmap); j += 2)
+			n += bn.array[j] != null ? 1 : size((INode) bn.array[j+1]);
+		return n;
+	}
+}
+
 /*
 public static void main(String[] args){
 	try
@@ -0,0 +1,505 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ A persistent hash array mapped trie with 64-way nodes
+
+ Same hashing and node layout as the bitmap nodes of PersistentHashMap, but
+ the bitmap is a long and the hash is consumed 6 bits per level, so the trie
+ is at most 6 levels deep (plus collision nodes) instead of 7. Every node is
+ a bitmap node; there is no ArrayNode, as a full 64-way bitmap node is only
+ one slot per child larger. Persistent only.
+ */
+
+public class PersistentHashMap64<K, V> extends APersistentMap<K, V> implements IObj{
+
+// 6 bitmap levels cover the 32 hash bits, plus one level of collision nodes
+private static final int MAX_DEPTH = 7;
+
+final int count;
+final Node root;
+final boolean hasNull;
+final V nullValue;
+final IPersistentMap _meta;
+
+final public static PersistentHashMap64 EMPTY = new PersistentHashMap64(null, 0, BitmapIndexedNode.EMPTY, false, null);
+final private static Object NOT_FOUND = new Object();
+
+@SuppressWarnings("unchecked")
+final public static <K,V> PersistentHashMap64<K, V> emptyMap() {
+	return EMPTY;
+}
+
+@SuppressWarnings("unchecked")
+static public <K,V> PersistentHashMap64<K,V> create(Map<? extends K, ? extends V> other){
+	PersistentHashMap64<K,V> ret = EMPTY;
+	for(Map.Entry<? extends K, ? extends V> e : other.entrySet())
+		{
+		ret = ret.assoc(e.getKey(), e.getValue());
+		}
+	return ret;
+}
+
+/*
+ * @param init {key1,val1,key2,val2,...}
+ */
+@SuppressWarnings("unchecked")
+public static <K,V> PersistentHashMap64<K,V> create(Object... init){
+	PersistentHashMap64<K,V> ret = EMPTY;
+	for(int i = 0; i < init.length; i += 2)
+		{
+		ret = ret.assoc((K) init[i], (V) init[i+1]);
+		}
+	return ret;
+}
+
+PersistentHashMap64(IPersistentMap meta, int count, Node root, boolean hasNull, V nullValue){
+	this._meta = meta;
+	this.count = count;
+	this.root = root;
+	this.hasNull = hasNull;
+	this.nullValue = nullValue;
+}
+
+public boolean containsKey(Object key){
+	if(key == null)
+		return hasNull;
+	return root.find(0, Util.hash(key), key, NOT_FOUND) != NOT_FOUND;
+}
+
+public IMapEntry<K,V> entryAt(K key){
+	if(key == null)
+		return hasNull ? new MapEntry<K,V>(null, nullValue) : null;
+	return root.find(0, Util.hash(key), key);
+}
+
+public PersistentHashMap64<K,V> assoc(K key, V val){
+	if(key == null) {
+		if(hasNull && val == nullValue)
+			return this;
+		return new PersistentHashMap64<K,V>(meta(), hasNull ? count : count + 1, root, true, val);
+	}
+	Box addedLeaf = new Box(null);
+	Node newroot = root.assoc(0, Util.hash(key), key, val, addedLeaf);
+	if(newroot == root)
+		return this;
+	return new PersistentHashMap64<K,V>(meta(), addedLeaf.val == null ? count : count + 1, newroot, hasNull, nullValue);
+}
+
+@SuppressWarnings("unchecked")
+public V valAt(K key, V notFound){
+	if(key == null)
+		return hasNull ? nullValue : notFound;
+	return (V) root.find(0, Util.hash(key), key, notFound);
+}
+
+public V valAt(K key){
+	return valAt(key, null);
+}
+
+public PersistentHashMap64<K,V> assocEx(K key, V val) throws Exception{
+	if(containsKey(key))
+		throw new Exception("Key already present");
+	return assoc(key, val);
+}
+
+public PersistentHashMap64<K,V> without(K key){
+	if(key == null)
+		return hasNull ? new PersistentHashMap64<K,V>(meta(), count - 1, root, false, null) : this;
+	Node newroot = root.without(0, Util.hash(key), key);
+	if(newroot == root)
+		return this;
+	return new PersistentHashMap64<K,V>(meta(), count - 1, newroot == null ? BitmapIndexedNode.EMPTY : newroot,
+			hasNull, nullValue);
+}
+
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<K, V>> iterator(){
+	return new NodeIterator(root, false, hasNull, nullValue);
+}
+
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<K, V>> reverseIterator(){
+	return new NodeIterator(root, true, hasNull, nullValue);
+}
+
+/**
+ * Iterates in the same order as {@link #iterator()}, starting at the entry
+ * for key. The iterator is empty if key is not in the map.
+ */
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<K, V>> iteratorFrom(K key){
+	if (hasNull) {throw new UnsupportedOperationException("not supported for maps with null entries yet");}
+	return new NodeIterator(root, Util.hash(key), key);
+}
+
+public int count(){
+	return count;
+}
+
+@SuppressWarnings("unchecked")
+public ISeq<IMapEntry<K, V>> seq(){
+	return IteratorSeq.create(iterator());
+}
+
+public IPersistentCollection empty(){
+	return EMPTY.withMeta(meta());
+}
+
+static int mask(int hash, int shift){
+	return (hash >>> shift) & 0x03f;
+}
+
+private static long bitpos(int hash, int shift){
+	return 1L << mask(hash, shift);
+}
+
+public PersistentHashMap64<K,V> withMeta(IPersistentMap meta){
+	return new PersistentHashMap64<K,V>(meta, count, root, hasNull, nullValue);
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+/*
+ * Both node types keep their entries as key/value pairs in array, so the
+ * iterator can walk them without knowing which kind of node it is in. A
+ * null key marks a pair whose value is a sub-node.
+ */
+static abstract class Node implements Serializable {
+	final Object[] array;
+
+	Node(Object[] array){
+		this.array = array;
+	}
+
+	abstract Node assoc(int shift, int hash, Object key, Object val, Box addedLeaf);
+
+	/*
+	 * Returns null when the last entry of the node is removed.
+	 */
+	abstract Node without(int shift, int hash, Object key);
+
+	abstract Object find(int shift, int hash, Object key, Object notFound);
+
+	abstract IMapEntry find(int shift, int hash, Object key);
+
+	/*
+	 * Index in array of the pair holding key, or of the sub-node that would
+	 * hold it; -1 if key cannot be in this node.
+	 */
+	abstract int findPair(int shift, int hash, Object key);
+}
+
+final static class BitmapIndexedNode extends Node {
+	static final BitmapIndexedNode EMPTY = new BitmapIndexedNode(0L, new Object[0]);
+
+	final long bitmap;
+
+	BitmapIndexedNode(long bitmap, Object[] array){
+		super(array);
+		this.bitmap = bitmap;
+	}
+
+	final int index(long bit){
+		return Long.bitCount(bitmap & (bit - 1));
+	}
+
+	Node assoc(int shift, int hash, Object key, Object val, Box addedLeaf){
+		long bit = bitpos(hash, shift);
+		int idx = index(bit);
+		if((bitmap & bit) != 0) {
+			Object keyOrNull = array[2*idx];
+			Object valOrNode = array[2*idx+1];
+			if(keyOrNull == null) {
+				Node n = ((Node) valOrNode).assoc(shift + 6, hash, key, val, addedLeaf);
+				if(n == valOrNode)
+					return this;
+				return new BitmapIndexedNode(bitmap, cloneAndSet(array, 2*idx+1, n));
+			}
+			if(Util.equals(key, keyOrNull)) {
+				if(val == valOrNode)
+					return this;
+				return new BitmapIndexedNode(bitmap, cloneAndSet(array, 2*idx+1, val));
+			}
+			addedLeaf.val = addedLeaf;
+			Object[] newArray = cloneAndSet(array, 2*idx, null);
+			newArray[2*idx+1] = createNode(shift + 6, keyOrNull, valOrNode, hash, key, val);
+			return new BitmapIndexedNode(bitmap, newArray);
+		} else {
+			int n = Long.bitCount(bitmap);
+			Object[] newArray = new Object[2*(n+1)];
+			System.arraycopy(array, 0, newArray, 0, 2*idx);
+			newArray[2*idx] = key;
+			newArray[2*idx+1] = val;
+			System.arraycopy(array, 2*idx, newArray, 2*(idx+1), 2*(n-idx));
+			addedLeaf.val = addedLeaf;
+			return new BitmapIndexedNode(bitmap | bit, newArray);
+		}
+	}
+
+	Node without(int shift, int hash, Object key){
+		long bit = bitpos(hash, shift);
+		if((bitmap & bit) == 0)
+			return this;
+		int idx = index(bit);
+		Object keyOrNull = array[2*idx];
+		Object valOrNode = array[2*idx+1];
+		if(keyOrNull == null) {
+			Node n = ((Node) valOrNode).without(shift + 6, hash, key);
+			if(n == valOrNode)
+				return this;
+			if(n != null)
+				return new BitmapIndexedNode(bitmap, cloneAndSet(array, 2*idx+1, n));
+		} else if(!Util.equals(key, keyOrNull))
+			return this;
+		if(bitmap == bit)
+			return null;
+		return new BitmapIndexedNode(bitmap ^ bit, removePair(array, idx));
+	}
+
+	Object find(int shift, int hash, Object key, Object notFound){
+		long bit = bitpos(hash, shift);
+		if((bitmap & bit) == 0)
+			return notFound;
+		int idx = index(bit);
+		Object keyOrNull = array[2*idx];
+		Object valOrNode = array[2*idx+1];
+		if(keyOrNull == null)
+			return ((Node) valOrNode).find(shift + 6, hash, key, notFound);
+		if(Util.equals(key, keyOrNull))
+			return valOrNode;
+		return notFound;
+	}
+
+	IMapEntry find(int shift, int hash, Object key){
+		long bit = bitpos(hash, shift);
+		if((bitmap & bit) == 0)
+			return null;
+		int idx = index(bit);
+		Object keyOrNull = array[2*idx];
+		Object valOrNode = array[2*idx+1];
+		if(keyOrNull == null)
+			return ((Node) valOrNode).find(shift + 6, hash, key);
+		if(Util.equals(key, keyOrNull))
+			return new MapEntry(keyOrNull, valOrNode);
+		return null;
+	}
+
+	int findPair(int shift, int hash, Object key){
+		long bit = bitpos(hash, shift);
+		if((bitmap & bit) == 0)
+			return -1;
+		int idx = 2 * index(bit);
+		Object keyOrNull = array[idx];
+		return keyOrNull == null || Util.equals(key, keyOrNull) ? idx : -1;
+	}
+}
+
+final static class HashCollisionNode extends Node {
+
+	final int hash;
+
+	HashCollisionNode(int hash, Object[] array){
+		super(array);
+		this.hash = hash;
+	}
+
+	int findIndex(Object key){
+		for(int i = 0; i < array.length; i += 2)
+			{
+			if(Util.equals(key, array[i]))
+				return i;
+			}
+		return -1;
+	}
+
+	Node assoc(int shift, int hash, Object key, Object val, Box addedLeaf){
+		if(hash == this.hash) {
+			int idx = findIndex(key);
+			if(idx != -1) {
+				if(array[idx + 1] == val)
+					return this;
+				return new HashCollisionNode(hash, cloneAndSet(array, idx + 1, val));
+			}
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key;
+			newArray[array.length + 1] = val;
+			addedLeaf.val = addedLeaf;
+			return new HashCollisionNode(hash, newArray);
+		}
+		// nest it in a bitmap node
+		return new BitmapIndexedNode(bitpos(this.hash, shift), new Object[] {null, this})
+			.assoc(shift, hash, key, val, addedLeaf);
+	}
+
+	Node without(int shift, int hash, Object key){
+		if(hash != this.hash)
+			return this;
+		int idx = findIndex(key);
+		if(idx == -1)
+			return this;
+		if(array.length == 2)
+			return null;
+		return new HashCollisionNode(hash, removePair(array, idx / 2));
+	}
+
+	Object find(int shift, int hash, Object key, Object notFound){
+		if(hash != this.hash)
+			return notFound;
+		int idx = findIndex(key);
+		if(idx < 0)
+			return notFound;
+		return array[idx+1];
+	}
+
+	IMapEntry find(int shift, int hash, Object key){
+		if(hash != this.hash)
+			return null;
+		int idx = findIndex(key);
+		if(idx < 0)
+			return null;
+		return new MapEntry(array[idx], array[idx+1]);
+	}
+
+	int findPair(int shift, int hash, Object key){
+		return hash == this.hash ? findIndex(key) : -1;
+	}
+}
+
+private static Node createNode(int shift, Object key1, Object val1, int key2hash, Object key2, Object val2){
+	int key1hash = Util.hash(key1);
+	if(key1hash == key2hash)
+		return new HashCollisionNode(key1hash, new Object[] {key1, val1, key2, val2});
+	Box addedLeaf = new Box(null);
+	return BitmapIndexedNode.EMPTY
+		.assoc(shift, key1hash, key1, val1, addedLeaf)
+		.assoc(shift, key2hash, key2, val2, addedLeaf);
+}
+
+private static Object[] cloneAndSet(Object[] array, int i, Object a) {
+	Object[] clone = array.clone();
+	clone[i] = a;
+	return clone;
+}
+
+private static Object[] removePair(Object[] array, int i) {
+	Object[] newArray = new Object[array.length - 2];
+	System.arraycopy(array, 0, newArray, 0, 2*i);
+	System.arraycopy(array, 2*(i+1), newArray, 2*i, newArray.length - 2*i);
+	return newArray;
+}
+
+/*
+ * Walks the trie with an explicit stack of node arrays. Entries and
+ * sub-nodes are visited in array order; the reverse iterator visits the
+ * exact opposite order.
+ */
+static final class NodeIterator implements Iterator {
+	final Object[][] arrays = new Object[MAX_DEPTH][];
+	final int[] cursors = new int[MAX_DEPTH];
+	int depth = -1;
+	final boolean reverse;
+	boolean nullReady;
+	final Object nullValue;
+
+	NodeIterator(Node root, boolean reverse, boolean hasNull, Object nullValue){
+		this.reverse = reverse;
+		this.nullReady = hasNull;
+		this.nullValue = nullValue;
+		push(root);
+	}
+
+	NodeIterator(Node root, int hash, Object key){
+		this.reverse = false;
+		this.nullReady = false;
+		this.nullValue = null;
+		Node node = root;
+		int shift = 0;
+		for(;;)
+			{
+			push(node);
+			int idx = node.findPair(shift, hash, key);
+			if(idx < 0) {
+				depth = -1;
+				return;
+			}
+			if(node.array[idx] != null) {
+				cursors[depth] = idx;
+				return;
+			}
+			cursors[depth] = idx + 2;
+			node = (Node) node.array[idx+1];
+			shift += 6;
+			}
+	}
+
+	private void push(Node node){
+		depth++;
+		arrays[depth] = node.array;
+		cursors[depth] = reverse ? node.array.length - 2 : 0;
+	}
+
+	private boolean advance(){
+		while(depth >= 0)
+			{
+			Object[] array = arrays[depth];
+			int pos = cursors[depth];
+			if(pos < 0 || pos >= array.length)
+				arrays[depth--] = null;
+			else if(array[pos] != null)
+				return true;
+			else {
+				cursors[depth] = reverse ? pos - 2 : pos + 2;
+				push((Node) array[pos+1]);
+			}
+			}
+		return false;
+	}
+
+	public boolean hasNext(){
+		if(nullReady && !reverse)
+			return true;
+		return advance() || nullReady;
+	}
+
+	public Object next(){
+		if(nullReady && !reverse) {
+			nullReady = false;
+			return new MapEntry(null, nullValue);
+		}
+		if(advance()) {
+			Object[] array = arrays[depth];
+			int pos = cursors[depth];
+			cursors[depth] = reverse ? pos - 2 : pos + 2;
+			return new MapEntry(array[pos], array[pos+1]);
+		}
+		if(nullReady) {
+			nullReady = false;
+			return new MapEntry(null, nullValue);
+		}
+		throw new NoSuchElementException();
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+}
+
+}
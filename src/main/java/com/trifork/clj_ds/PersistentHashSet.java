@@ -127,6 +127,49 @@ public IPersistentSet<T> cons(T o){
 	return new PersistentHashSet<T>(meta(),impl.assoc(o,o));
 }
 
+/*
+ * Resolves a key in both sets to the element already in this set.
+ */
+static final IFn KEEP_FIRST = new AFn(){
+	public Object invoke(Object arg1, Object arg2){
+		return arg1;
+	}
+};
+
+/**
+ * Returns the elements in this or the other set. The hash tries of both sets
+ * are walked in lock-step and shared with the result where they agree, see
+ * {@link PersistentHashMap#merge(PersistentHashMap, IFn)}.
+ */
+public PersistentHashSet<T> union(PersistentHashSet<T> other){
+	IPersistentMap m = ((PersistentHashMap) impl).merge((PersistentHashMap) other.impl, KEEP_FIRST);
+	return m == impl ? this : new PersistentHashSet<T>(meta(), m);
+}
+
+/**
+ * Returns the elements of this set that are also in other.
+ */
+public PersistentHashSet<T> intersection(PersistentHashSet<?> other){
+	IPersistentMap m = ((PersistentHashMap) impl).intersection((PersistentHashMap) other.impl);
+	return m == impl ? this : new PersistentHashSet<T>(meta(), m);
+}
+
+/**
+ * Returns the elements of this set that are not in other.
+ */
+public PersistentHashSet<T> difference(PersistentHashSet<?> other){
+	IPersistentMap m = ((PersistentHashMap) impl).difference((PersistentHashMap) other.impl);
+	return m == impl ? this : new PersistentHashSet<T>(meta(), m);
+}
+
+/**
+ * Returns a spliterator over the elements that splits along the nodes of the
+ * hash trie, for use with {@link Reducers#fold}.
+ */
+public ISpliterator<T> splitIterator(){
+	return ((PersistentHashMap) impl).nodeSpliterator(true);
+}
+
 public IPersistentCollection<T> empty(){
 	return EMPTY.withMeta(meta());	
 }
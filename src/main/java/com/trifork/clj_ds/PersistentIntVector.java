@@ -0,0 +1,162 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Arrays;
+
+/**
+ * A persistent vector of ints, stored unboxed in int[] leaves. The
+ * primitive accessors are {@link #nthInt(int)}, {@link #cons(int)},
+ * {@link #assocN(int, int)} and {@link #reduce(IFn.LLL, long)}; the
+ * chunks of {@link #chunkedSeq()} are {@link IntArrayChunk}s.
+ */
+public class PersistentIntVector extends APrimitiveVector<Integer>{
+
+public final static PersistentIntVector EMPTY = new PersistentIntVector(null, 0, 5, EMPTY_NODE, new int[0]);
+
+static public PersistentIntVector emptyVector(){
+	return EMPTY;
+}
+
+static public PersistentIntVector create(int... items){
+	TransientIntVector ret = EMPTY.asTransient();
+	for(int item : items)
+		ret.conj(item);
+	return ret.persistent();
+}
+
+PersistentIntVector(IPersistentMap meta, int cnt, int shift, Node root, Object tail){
+	super(meta, cnt, shift, root, tail);
+}
+
+Object array(int size){
+	return new int[size];
+}
+
+Integer aget(Object array, int i){
+	return ((int[]) array)[i];
+}
+
+PersistentIntVector make(IPersistentMap meta, int cnt, int shift, Node root, Object tail){
+	return new PersistentIntVector(meta, cnt, shift, root, tail);
+}
+
+IChunk<Integer> chunk(Object array, int off, int end){
+	return new IntArrayChunk((int[]) array, off, end);
+}
+
+public int nthInt(int i){
+	return ((int[]) arrayFor(i))[i & 0x01f];
+}
+
+public int nthInt(int i, int notFound){
+	if(i >= 0 && i < cnt)
+		return nthInt(i);
+	return notFound;
+}
+
+public PersistentIntVector assocN(int i, int val){
+	return (PersistentIntVector) assocFrom(i, new int[]{val});
+}
+
+public PersistentIntVector assocN(int i, Integer val){
+	return assocN(i, val.intValue());
+}
+
+public PersistentIntVector cons(int val){
+	return (PersistentIntVector) consFrom(new int[]{val});
+}
+
+public PersistentIntVector cons(Integer val){
+	return cons(val.intValue());
+}
+
+public PersistentIntVector pop(){
+	return (PersistentIntVector) super.pop();
+}
+
+public PersistentIntVector withMeta(IPersistentMap meta){
+	return new PersistentIntVector(meta, cnt, shift, root, tail);
+}
+
+public IPersistentCollection<Integer> empty(){
+	return EMPTY.withMeta(meta());
+}
+
+/**
+ * Reduces the elements, widened to long, with f, leaf by leaf, without
+ * boxing.
+ */
+public long reduce(IFn.LLL f, long start){
+	long ret = start;
+	for(int i = 0; i < cnt; i += 32)
+		{
+		int[] array = (int[]) arrayFor(i);
+		int end = Math.min(32, cnt - i);
+		for(int j = 0; j < end; j++)
+			ret = f.invokePrim(ret, array[j]);
+		}
+	return ret;
+}
+
+/**
+ * Returns the elements in ascending order, as a new vector with the same
+ * meta. The elements are sorted unboxed with Arrays.sort.
+ */
+public PersistentIntVector sorted(){
+	int[] a = new int[cnt];
+	copyTo(a);
+	Arrays.sort(a);
+	PersistentIntVector ret = create(a);
+	return _meta == null ? ret : ret.withMeta(_meta);
+}
+
+public TransientIntVector asTransient(){
+	return new TransientIntVector(this);
+}
+
+static public final class TransientIntVector extends ATransientVector<Integer>{
+
+	TransientIntVector(PersistentIntVector v){
+		super(v);
+	}
+
+	public int nthInt(int i){
+		ensureEditable();
+		return ((int[]) arrayFor(i))[i & 0x01f];
+	}
+
+	public TransientIntVector conj(int val){
+		int i = conjIndex();
+		((int[]) tail)[i] = val;
+		return this;
+	}
+
+	public TransientIntVector conj(Object val){
+		return conj(((Number) val).intValue());
+	}
+
+	public TransientIntVector assocN(int i, int val){
+		if(i == count())
+			return conj(val);
+		((int[]) editableArrayFor(i))[i & 0x01f] = val;
+		return this;
+	}
+
+	public TransientIntVector assocN(int i, Integer val){
+		return assocN(i, val.intValue());
+	}
+
+	public PersistentIntVector persistent(){
+		return (PersistentIntVector) super.persistent();
+	}
+}
+}
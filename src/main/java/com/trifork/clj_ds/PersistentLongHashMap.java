@@ -0,0 +1,602 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ A hash array mapped trie specialised for long keys
+
+ Same bitmap trie and path copying as PersistentHashMap, but keys are kept
+ unboxed in a long[] next to the values. The trie is indexed by a mixed
+ 64-bit hash of the key; the mix is a bijection, so distinct keys never
+ collide and no collision nodes are needed.
+ */
+
+public class PersistentLongHashMap<V> extends APersistentMap<Long, V> implements
+		IEditableCollection<Map.Entry<Long, V>>, IObj{
+
+private static final int BITS_PER_LEVEL = 5;
+// 13 levels cover the 64 hash bits
+private static final int MAX_DEPTH = 13;
+
+final int count;
+final Node root;
+final IPersistentMap _meta;
+
+final public static PersistentLongHashMap EMPTY = new PersistentLongHashMap(null, 0, Node.EMPTY);
+final private static Object NOT_FOUND = new Object();
+
+@SuppressWarnings("unchecked")
+final public static <V> PersistentLongHashMap<V> emptyMap() {
+	return EMPTY;
+}
+
+@SuppressWarnings("unchecked")
+static public <V> PersistentLongHashMap<V> create(Map<Long, ? extends V> other){
+	TransientLongHashMap<V> ret = EMPTY.asTransient();
+	for(Map.Entry<Long, ? extends V> e : other.entrySet())
+		{
+		ret = ret.assocLong(e.getKey().longValue(), e.getValue());
+		}
+	return (PersistentLongHashMap<V>) ret.persistentMap();
+}
+
+@SuppressWarnings("unchecked")
+static public <V> PersistentLongHashMap<V> create(long[] keys, V[] vals){
+	if(keys.length != vals.length)
+		throw new IllegalArgumentException("Keys and values differ in length");
+	TransientLongHashMap<V> ret = EMPTY.asTransient();
+	for(int i = 0; i < keys.length; i++)
+		{
+		ret = ret.assocLong(keys[i], vals[i]);
+		}
+	return (PersistentLongHashMap<V>) ret.persistentMap();
+}
+
+PersistentLongHashMap(IPersistentMap meta, int count, Node root){
+	this._meta = meta;
+	this.count = count;
+	this.root = root;
+}
+
+/*
+ * MurmurHash3 finalizer. Spreads sequential ids over the whole trie.
+ */
+static long mix(long key){
+	key ^= key >>> 33;
+	key *= 0xff51afd7ed558ccdL;
+	key ^= key >>> 33;
+	key *= 0xc4ceb9fe1a85ec53L;
+	key ^= key >>> 33;
+	return key;
+}
+
+// unboxed entry points, named apart from the boxed ones so that calls
+// stay unambiguous when V is Long
+
+public boolean containsKeyLong(long key){
+	return root.find(0, mix(key), key, NOT_FOUND) != NOT_FOUND;
+}
+
+@SuppressWarnings("unchecked")
+public V getLong(long key){
+	return (V) root.find(0, mix(key), key, null);
+}
+
+@SuppressWarnings("unchecked")
+public V getLong(long key, V notFound){
+	return (V) root.find(0, mix(key), key, notFound);
+}
+
+public PersistentLongHashMap<V> assocLong(long key, V val){
+	Box addedLeaf = new Box(null);
+	Node newroot = root.assoc(null, 0, mix(key), key, val, addedLeaf);
+	if(newroot == root)
+		return this;
+	return new PersistentLongHashMap<V>(meta(), addedLeaf.val == null ? count : count + 1, newroot);
+}
+
+public PersistentLongHashMap<V> withoutLong(long key){
+	Box removedLeaf = new Box(null);
+	Node newroot = root.without(null, 0, mix(key), key, removedLeaf);
+	if(removedLeaf.val == null)
+		return this;
+	return new PersistentLongHashMap<V>(meta(), count - 1, newroot);
+}
+
+// boxed IPersistentMap / java.util.Map implementation
+
+public V get(Object key){
+	return key instanceof Long ? getLong(((Long) key).longValue()) : null;
+}
+
+protected boolean acceptsKey(Object key){
+	return key instanceof Long;
+}
+
+public IMapEntry<Long,V> entryAt(Long key){
+	if(key == null)
+		return null;
+	Object v = root.find(0, mix(key), key, NOT_FOUND);
+	return v == NOT_FOUND ? null : new MapEntry<Long,V>(key, (V) v);
+}
+
+public PersistentLongHashMap<V> assoc(Long key, V val){
+	return assocLong(key.longValue(), val);
+}
+
+public V valAt(Long key, V notFound){
+	return key == null ? notFound : getLong(key.longValue(), notFound);
+}
+
+public V valAt(Long key){
+	return valAt(key, null);
+}
+
+public PersistentLongHashMap<V> assocEx(Long key, V val) throws Exception{
+	if(containsKeyLong(key.longValue()))
+		throw new Exception("Key already present");
+	return assocLong(key.longValue(), val);
+}
+
+public PersistentLongHashMap<V> without(Long key){
+	return key == null ? this : withoutLong(key.longValue());
+}
+
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<Long, V>> iterator(){
+	return new NodeIterator(root, false);
+}
+
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<Long, V>> reverseIterator(){
+	return new NodeIterator(root, true);
+}
+
+/**
+ * Iterates in the same order as {@link #iterator()}, starting at the entry
+ * for key. The iterator is empty if key is not in the map.
+ */
+@SuppressWarnings("unchecked")
+public Iterator<Map.Entry<Long, V>> iteratorFrom(Long key){
+	return new NodeIterator(root, mix(key), key);
+}
+
+public int count(){
+	return count;
+}
+
+@SuppressWarnings("unchecked")
+public ISeq<IMapEntry<Long, V>> seq(){
+	return IteratorSeq.create(iterator());
+}
+
+public IPersistentCollection empty(){
+	return EMPTY.withMeta(meta());
+}
+
+static int mask(long hash, int shift){
+	return (int) (hash >>> shift) & 0x01f;
+}
+
+private static int bitpos(long hash, int shift){
+	return 1 << mask(hash, shift);
+}
+
+public PersistentLongHashMap<V> withMeta(IPersistentMap meta){
+	return new PersistentLongHashMap<V>(meta, count, root);
+}
+
+public TransientLongHashMap<V> asTransient() {
+	return new TransientLongHashMap<V>(this);
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+public static final class TransientLongHashMap<V> extends ATransientMap<Long,V> {
+	final AtomicReference<Thread> edit;
+	Node root;
+	int count;
+	final Box leafFlag = new Box(null);
+
+	TransientLongHashMap(PersistentLongHashMap<V> m) {
+		this.edit = new AtomicReference<Thread>(Thread.currentThread());
+		this.root = m.root;
+		this.count = m.count;
+	}
+
+	public TransientLongHashMap<V> assocLong(long key, V val) {
+		ensureEditable();
+		leafFlag.val = null;
+		Node n = root.assoc(edit, 0, mix(key), key, val, leafFlag);
+		if (n != this.root)
+			this.root = n;
+		if(leafFlag.val != null) this.count++;
+		return this;
+	}
+
+	public TransientLongHashMap<V> withoutLong(long key) {
+		ensureEditable();
+		leafFlag.val = null;
+		Node n = root.without(edit, 0, mix(key), key, leafFlag);
+		if (n != root)
+			this.root = n;
+		if(leafFlag.val != null) this.count--;
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V getLong(long key, V notFound) {
+		ensureEditable();
+		return (V) root.find(0, mix(key), key, notFound);
+	}
+
+	public V getLong(long key) {
+		return getLong(key, null);
+	}
+
+	ITransientMap<Long,V> doAssoc(Long key, V val) {
+		return assocLong(key.longValue(), val);
+	}
+
+	ITransientMap<Long,V> doWithout(Long key) {
+		return key == null ? this : withoutLong(key.longValue());
+	}
+
+	IPersistentMap<Long,V> doPersistent() {
+		edit.set(null);
+		return new PersistentLongHashMap<V>(null, count, root);
+	}
+
+	V doValAt(Long key, V notFound) {
+		return key == null ? notFound : getLong(key.longValue(), notFound);
+	}
+
+	int doCount() {
+		return count;
+	}
+
+	void ensureEditable(){
+		Thread owner = edit.get();
+		if(owner == Thread.currentThread())
+			return;
+		if(owner != null)
+			throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	public IPersistentCollection persistent() {
+		return persistentMap();
+	}
+}
+
+/*
+ * Inline entries live in keys[i]/array[i]; sub-nodes follow the values in
+ * array, in reverse order. Nodes with a single entry are inlined into their
+ * parent, so the trie stays canonical under removal.
+ */
+final static class Node implements Serializable {
+
+	static final Node EMPTY = new Node(null, 0, 0, new long[0], new Object[0]);
+
+	int dataMap;
+	int nodeMap;
+	long[] keys;
+	Object[] array;
+	transient final AtomicReference<Thread> edit;
+
+	Node(AtomicReference<Thread> edit, int dataMap, int nodeMap, long[] keys, Object[] array){
+		this.edit = edit;
+		this.dataMap = dataMap;
+		this.nodeMap = nodeMap;
+		this.keys = keys;
+		this.array = array;
+	}
+
+	int dataIndex(int bit){
+		return BitCount.bitCount(dataMap & (bit - 1));
+	}
+
+	int nodeIndex(int bit){
+		return BitCount.bitCount(nodeMap & (bit - 1));
+	}
+
+	Node nodeAt(int bit){
+		return (Node) array[array.length - 1 - nodeIndex(bit)];
+	}
+
+	int payloadArity(){
+		return keys.length;
+	}
+
+	int nodeArity(){
+		return array.length - keys.length;
+	}
+
+	Node getNode(int i){
+		return (Node) array[array.length - 1 - i];
+	}
+
+	private boolean isAllowedToEdit(AtomicReference<Thread> edit){
+		return edit != null && this.edit == edit;
+	}
+
+	Object find(int shift, long hash, long key, Object notFound){
+		Node node = this;
+		for(;;)
+			{
+			int bit = bitpos(hash, shift);
+			if((node.dataMap & bit) != 0) {
+				int idx = node.dataIndex(bit);
+				return node.keys[idx] == key ? node.array[idx] : notFound;
+			}
+			if((node.nodeMap & bit) == 0)
+				return notFound;
+			node = node.nodeAt(bit);
+			shift += BITS_PER_LEVEL;
+			}
+	}
+
+	Node assoc(AtomicReference<Thread> edit, int shift, long hash, long key, Object val, Box addedLeaf){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			long k = keys[idx];
+			if(k == key) {
+				if(array[idx] == val)
+					return this;
+				return copyAndSetValue(edit, idx, val);
+			}
+			Node sub = mergeTwoKeyValPairs(edit, shift + BITS_PER_LEVEL, k, array[idx], mix(k), key, val, hash);
+			addedLeaf.val = addedLeaf;
+			return copyAndMigrateFromInlineToNode(edit, bit, sub);
+		}
+		if((nodeMap & bit) != 0) {
+			Node sub = nodeAt(bit);
+			Node n = sub.assoc(edit, shift + BITS_PER_LEVEL, hash, key, val, addedLeaf);
+			if(n == sub)
+				return this;
+			return copyAndSetNode(edit, bit, n);
+		}
+		addedLeaf.val = addedLeaf;
+		return copyAndInsertValue(edit, bit, key, val);
+	}
+
+	Node without(AtomicReference<Thread> edit, int shift, long hash, long key, Box removedLeaf){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			if(keys[idx] != key)
+				return this;
+			removedLeaf.val = removedLeaf;
+			return copyAndRemoveValue(edit, bit, idx);
+		}
+		if((nodeMap & bit) != 0) {
+			Node sub = nodeAt(bit);
+			Node n = sub.without(edit, shift + BITS_PER_LEVEL, hash, key, removedLeaf);
+			if(n == sub)
+				return this;
+			if(n.nodeMap == 0 && n.keys.length == 1)
+				return copyAndMigrateFromNodeToInline(edit, bit, n);
+			return copyAndSetNode(edit, bit, n);
+		}
+		return this;
+	}
+
+	int findPosition(int shift, long hash, long key){
+		int bit = bitpos(hash, shift);
+		if((dataMap & bit) != 0) {
+			int idx = dataIndex(bit);
+			return keys[idx] == key ? idx : -1;
+		}
+		if((nodeMap & bit) != 0)
+			return keys.length + nodeIndex(bit);
+		return -1;
+	}
+
+	private Node copyAndSetValue(AtomicReference<Thread> edit, int idx, Object val){
+		if(isAllowedToEdit(edit)) {
+			array[idx] = val;
+			return this;
+		}
+		Object[] newArray = array.clone();
+		newArray[idx] = val;
+		return new Node(edit, dataMap, nodeMap, keys, newArray);
+	}
+
+	private Node copyAndSetNode(AtomicReference<Thread> edit, int bit, Node node){
+		int idx = array.length - 1 - nodeIndex(bit);
+		if(isAllowedToEdit(edit)) {
+			array[idx] = node;
+			return this;
+		}
+		Object[] newArray = array.clone();
+		newArray[idx] = node;
+		return new Node(edit, dataMap, nodeMap, keys, newArray);
+	}
+
+	private Node copyAndInsertValue(AtomicReference<Thread> edit, int bit, long key, Object val){
+		int idx = dataIndex(bit);
+		long[] newKeys = new long[keys.length + 1];
+		System.arraycopy(keys, 0, newKeys, 0, idx);
+		newKeys[idx] = key;
+		System.arraycopy(keys, idx, newKeys, idx + 1, keys.length - idx);
+		Object[] newArray = new Object[array.length + 1];
+		System.arraycopy(array, 0, newArray, 0, idx);
+		newArray[idx] = val;
+		System.arraycopy(array, idx, newArray, idx + 1, array.length - idx);
+		return update(edit, dataMap | bit, nodeMap, newKeys, newArray);
+	}
+
+	private Node copyAndRemoveValue(AtomicReference<Thread> edit, int bit, int idx){
+		return update(edit, dataMap ^ bit, nodeMap, removeKey(idx), removeSlot(array, idx));
+	}
+
+	private Node copyAndMigrateFromInlineToNode(AtomicReference<Thread> edit, int bit, Node node){
+		int idxOld = dataIndex(bit);
+		int idxNew = array.length - 1 - nodeIndex(bit);
+		Object[] newArray = new Object[array.length];
+		System.arraycopy(array, 0, newArray, 0, idxOld);
+		System.arraycopy(array, idxOld + 1, newArray, idxOld, idxNew - idxOld);
+		newArray[idxNew] = node;
+		System.arraycopy(array, idxNew + 1, newArray, idxNew + 1, array.length - idxNew - 1);
+		return update(edit, dataMap ^ bit, nodeMap | bit, removeKey(idxOld), newArray);
+	}
+
+	private Node copyAndMigrateFromNodeToInline(AtomicReference<Thread> edit, int bit, Node node){
+		int idxOld = array.length - 1 - nodeIndex(bit);
+		int idxNew = dataIndex(bit);
+		long[] newKeys = new long[keys.length + 1];
+		System.arraycopy(keys, 0, newKeys, 0, idxNew);
+		newKeys[idxNew] = node.keys[0];
+		System.arraycopy(keys, idxNew, newKeys, idxNew + 1, keys.length - idxNew);
+		Object[] newArray = new Object[array.length];
+		System.arraycopy(array, 0, newArray, 0, idxNew);
+		newArray[idxNew] = node.array[0];
+		System.arraycopy(array, idxNew, newArray, idxNew + 1, idxOld - idxNew);
+		System.arraycopy(array, idxOld + 1, newArray, idxOld + 1, array.length - idxOld - 1);
+		return update(edit, dataMap | bit, nodeMap ^ bit, newKeys, newArray);
+	}
+
+	private long[] removeKey(int idx){
+		long[] newKeys = new long[keys.length - 1];
+		System.arraycopy(keys, 0, newKeys, 0, idx);
+		System.arraycopy(keys, idx + 1, newKeys, idx, keys.length - idx - 1);
+		return newKeys;
+	}
+
+	private Node update(AtomicReference<Thread> edit, int dataMap, int nodeMap, long[] newKeys, Object[] newArray){
+		if(isAllowedToEdit(edit)) {
+			this.dataMap = dataMap;
+			this.nodeMap = nodeMap;
+			this.keys = newKeys;
+			this.array = newArray;
+			return this;
+		}
+		return new Node(edit, dataMap, nodeMap, newKeys, newArray);
+	}
+}
+
+private static Node mergeTwoKeyValPairs(AtomicReference<Thread> edit, int shift, long key0, Object val0, long key0hash,
+		long key1, Object val1, long key1hash){
+	int mask0 = mask(key0hash, shift);
+	int mask1 = mask(key1hash, shift);
+	if(mask0 != mask1) {
+		int dataMap = (1 << mask0) | (1 << mask1);
+		if(mask0 < mask1)
+			return new Node(edit, dataMap, 0, new long[] {key0, key1}, new Object[] {val0, val1});
+		return new Node(edit, dataMap, 0, new long[] {key1, key0}, new Object[] {val1, val0});
+	}
+	Node node = mergeTwoKeyValPairs(edit, shift + BITS_PER_LEVEL, key0, val0, key0hash, key1, val1, key1hash);
+	return new Node(edit, 0, 1 << mask0, new long[0], new Object[] {node});
+}
+
+private static Object[] removeSlot(Object[] array, int idx) {
+	Object[] newArray = new Object[array.length - 1];
+	System.arraycopy(array, 0, newArray, 0, idx);
+	System.arraycopy(array, idx + 1, newArray, idx, array.length - idx - 1);
+	return newArray;
+}
+
+static final class NodeIterator implements Iterator {
+	final Node[] nodes = new Node[MAX_DEPTH];
+	final int[] cursors = new int[MAX_DEPTH];
+	int depth = -1;
+	final boolean reverse;
+
+	NodeIterator(Node root, boolean reverse){
+		this.reverse = reverse;
+		push(root);
+	}
+
+	NodeIterator(Node root, long hash, long key){
+		this.reverse = false;
+		Node node = root;
+		int shift = 0;
+		for(;;)
+			{
+			push(node);
+			int pos = node.findPosition(shift, hash, key);
+			if(pos < 0) {
+				depth = -1;
+				return;
+			}
+			int p = node.payloadArity();
+			if(pos < p) {
+				cursors[depth] = pos;
+				return;
+			}
+			cursors[depth] = pos + 1;
+			node = node.getNode(pos - p);
+			shift += BITS_PER_LEVEL;
+			}
+	}
+
+	private void push(Node node){
+		depth++;
+		nodes[depth] = node;
+		cursors[depth] = reverse ? node.array.length - 1 : 0;
+	}
+
+	private boolean advance(){
+		while(depth >= 0)
+			{
+			Node node = nodes[depth];
+			int pos = cursors[depth];
+			int p = node.payloadArity();
+			if(!reverse) {
+				if(pos < p)
+					return true;
+				if(pos < node.array.length) {
+					cursors[depth] = pos + 1;
+					push(node.getNode(pos - p));
+				} else
+					nodes[depth--] = null;
+			} else {
+				if(pos < 0)
+					nodes[depth--] = null;
+				else if(pos < p)
+					return true;
+				else {
+					cursors[depth] = pos - 1;
+					push(node.getNode(pos - p));
+				}
+			}
+			}
+		return false;
+	}
+
+	public boolean hasNext(){
+		return advance();
+	}
+
+	public Object next(){
+		if(!advance())
+			throw new NoSuchElementException();
+		Node node = nodes[depth];
+		int pos = cursors[depth];
+		cursors[depth] = reverse ? pos - 1 : pos + 1;
+		return new MapEntry(node.keys[pos], node.array[pos]);
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+}
+
+}
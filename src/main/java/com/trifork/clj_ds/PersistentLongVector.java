@@ -0,0 +1,161 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Arrays;
+
+/**
+ * A persistent vector of longs, stored unboxed in long[] leaves. The
+ * primitive accessors are {@link #nthLong(int)}, {@link #cons(long)},
+ * {@link #assocN(int, long)} and {@link #reduce(IFn.LLL, long)}; the
+ * chunks of {@link #chunkedSeq()} are {@link LongArrayChunk}s.
+ */
+public class PersistentLongVector extends APrimitiveVector<Long>{
+
+public final static PersistentLongVector EMPTY = new PersistentLongVector(null, 0, 5, EMPTY_NODE, new long[0]);
+
+static public PersistentLongVector emptyVector(){
+	return EMPTY;
+}
+
+static public PersistentLongVector create(long... items){
+	TransientLongVector ret = EMPTY.asTransient();
+	for(long item : items)
+		ret.conj(item);
+	return ret.persistent();
+}
+
+PersistentLongVector(IPersistentMap meta, int cnt, int shift, Node root, Object tail){
+	super(meta, cnt, shift, root, tail);
+}
+
+Object array(int size){
+	return new long[size];
+}
+
+Long aget(Object array, int i){
+	return ((long[]) array)[i];
+}
+
+PersistentLongVector make(IPersistentMap meta, int cnt, int shift, Node root, Object tail){
+	return new PersistentLongVector(meta, cnt, shift, root, tail);
+}
+
+IChunk<Long> chunk(Object array, int off, int end){
+	return new LongArrayChunk((long[]) array, off, end);
+}
+
+public long nthLong(int i){
+	return ((long[]) arrayFor(i))[i & 0x01f];
+}
+
+public long nthLong(int i, long notFound){
+	if(i >= 0 && i < cnt)
+		return nthLong(i);
+	return notFound;
+}
+
+public PersistentLongVector assocN(int i, long val){
+	return (PersistentLongVector) assocFrom(i, new long[]{val});
+}
+
+public PersistentLongVector assocN(int i, Long val){
+	return assocN(i, val.longValue());
+}
+
+public PersistentLongVector cons(long val){
+	return (PersistentLongVector) consFrom(new long[]{val});
+}
+
+public PersistentLongVector cons(Long val){
+	return cons(val.longValue());
+}
+
+public PersistentLongVector pop(){
+	return (PersistentLongVector) super.pop();
+}
+
+public PersistentLongVector withMeta(IPersistentMap meta){
+	return new PersistentLongVector(meta, cnt, shift, root, tail);
+}
+
+public IPersistentCollection<Long> empty(){
+	return EMPTY.withMeta(meta());
+}
+
+/**
+ * Reduces the elements with f, leaf by leaf, without boxing.
+ */
+public long reduce(IFn.LLL f, long start){
+	long ret = start;
+	for(int i = 0; i < cnt; i += 32)
+		{
+		long[] array = (long[]) arrayFor(i);
+		int end = Math.min(32, cnt - i);
+		for(int j = 0; j < end; j++)
+			ret = f.invokePrim(ret, array[j]);
+		}
+	return ret;
+}
+
+/**
+ * Returns the elements in ascending order, as a new vector with the same
+ * meta. The elements are sorted unboxed with Arrays.sort.
+ */
+public PersistentLongVector sorted(){
+	long[] a = new long[cnt];
+	copyTo(a);
+	Arrays.sort(a);
+	PersistentLongVector ret = create(a);
+	return _meta == null ? ret : ret.withMeta(_meta);
+}
+
+public TransientLongVector asTransient(){
+	return new TransientLongVector(this);
+}
+
+static public final class TransientLongVector extends ATransientVector<Long>{
+
+	TransientLongVector(PersistentLongVector v){
+		super(v);
+	}
+
+	public long nthLong(int i){
+		ensureEditable();
+		return ((long[]) arrayFor(i))[i & 0x01f];
+	}
+
+	public TransientLongVector conj(long val){
+		int i = conjIndex();
+		((long[]) tail)[i] = val;
+		return this;
+	}
+
+	public TransientLongVector conj(Object val){
+		return conj(((Number) val).longValue());
+	}
+
+	public TransientLongVector assocN(int i, long val){
+		if(i == count())
+			return conj(val);
+		((long[]) editableArrayFor(i))[i & 0x01f] = val;
+		return this;
+	}
+
+	public TransientLongVector assocN(int i, Long val){
+		return assocN(i, val.longValue());
+	}
+
+	public PersistentLongVector persistent(){
+		return (PersistentLongVector) super.persistent();
+	}
+}
+}
@@ -0,0 +1,647 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import com.trifork.clj_ds.PersistentVector.Node;
+
+/**
+ * A relaxed radix balanced (RRB) variant of PersistentVector, which adds
+ * {@link #concat}, {@link #splitAt}, {@link #subvec}, {@link #insertAt} and
+ * {@link #removeAt} in O(log n), next to the usual vector operations.
+ * <p>
+ * The trie has the layout of PersistentVector: 32-way Nodes with the last
+ * leaf kept apart as the tail, so a PersistentVector is wrapped in constant
+ * time by {@link #create(IPersistentVector)}. Concatenation and slicing
+ * leave leaves and subtrees that are not full in the middle of the trie;
+ * the parents of those are "relaxed" nodes, which hold the cumulative sizes
+ * of their children in a 33rd array slot to find the child holding an index.
+ * Nodes without a size table are regular: all their children but the last
+ * are full, and are indexed by radix as in PersistentVector.
+ */
+public class PersistentRRBVector<T> extends APersistentVector<T> implements IObj{
+
+/*
+ * Extra children per node that concatenation tolerates over the optimum
+ * before it redistributes their contents, bounding the linear search through
+ * the size tables of relaxed nodes.
+ */
+static final int E_MAX = 2;
+
+static final Object[] EMPTY_ARRAY = new Object[0];
+
+final int cnt;
+final int shift;
+final Node root;
+final Object[] tail;
+final IPersistentMap _meta;
+
+@SuppressWarnings("unchecked")
+public final static PersistentRRBVector EMPTY =
+		new PersistentRRBVector(null, 0, 5, PersistentVector.EMPTY_NODE, EMPTY_ARRAY);
+
+@SuppressWarnings("unchecked")
+static public <T> PersistentRRBVector<T> emptyVector(){
+	return EMPTY;
+}
+
+/**
+ * Returns v as a PersistentRRBVector, sharing the trie of a PersistentVector.
+ */
+@SuppressWarnings("unchecked")
+static public <T> PersistentRRBVector<T> create(IPersistentVector<T> v){
+	if(v instanceof PersistentRRBVector)
+		return (PersistentRRBVector<T>) v;
+	if(v instanceof PersistentVector)
+		{
+		PersistentVector<T> pv = (PersistentVector<T>) v;
+		return new PersistentRRBVector<T>(pv.meta(), pv.cnt, pv.shift, pv.root, pv.tail);
+		}
+	PersistentRRBVector<T> ret = EMPTY;
+	for(int i = 0; i < v.count(); i++)
+		ret = ret.cons(v.nth(i));
+	return ret;
+}
+
+static public <T> PersistentRRBVector<T> create(T ... items){
+	return create(PersistentVector.create(items));
+}
+
+PersistentRRBVector(IPersistentMap meta, int cnt, int shift, Node root, Object[] tail){
+	this._meta = meta;
+	this.cnt = cnt;
+	this.shift = shift;
+	this.root = root;
+	this.tail = tail;
+}
+
+/*
+ * Makes a vector of a trie and a tail, moving the last leaf of the trie
+ * into an empty tail and dropping roots with a single child.
+ */
+private static <T> PersistentRRBVector<T> make(IPersistentMap meta, int cnt, int shift, Node root, Object[] tail){
+	if(root == null)
+		{
+		root = PersistentVector.EMPTY_NODE;
+		shift = 5;
+		}
+	if(tail.length == 0 && cnt > 0)
+		{
+		Node leaf = root;
+		for(int level = shift; level > 0; level -= 5)
+			leaf = (Node) leaf.array[childCount(leaf) - 1];
+		tail = leaf.array;
+		root = popLeaf(shift, root, tail.length);
+		if(root == null)
+			{
+			root = PersistentVector.EMPTY_NODE;
+			shift = 5;
+			}
+		}
+	while(shift > 5 && childCount(root) == 1)
+		{
+		root = (Node) root.array[0];
+		shift -= 5;
+		}
+	return new PersistentRRBVector<T>(meta, cnt, shift, root, tail);
+}
+
+final int tailoff(){
+	return cnt - tail.length;
+}
+
+@SuppressWarnings("unchecked")
+public T nth(int i){
+	if(i < 0 || i >= cnt)
+		throw new IndexOutOfBoundsException();
+	int tailoff = tailoff();
+	if(i >= tailoff)
+		return (T) tail[i - tailoff];
+	Node node = root;
+	for(int level = shift; level > 0; level -= 5)
+		{
+		int idx = slot(node, level, i);
+		i -= offset(node, level, idx);
+		node = (Node) node.array[idx];
+		}
+	return (T) node.array[i];
+}
+
+public PersistentRRBVector<T> assocN(int i, T val){
+	if(i >= 0 && i < cnt)
+		{
+		int tailoff = tailoff();
+		if(i >= tailoff)
+			{
+			Object[] newTail = tail.clone();
+			newTail[i - tailoff] = val;
+			return new PersistentRRBVector<T>(meta(), cnt, shift, root, newTail);
+			}
+		return new PersistentRRBVector<T>(meta(), cnt, shift, doAssoc(shift, root, i, val), tail);
+		}
+	if(i == cnt)
+		return cons(val);
+	throw new IndexOutOfBoundsException();
+}
+
+private static Node doAssoc(int level, Node node, int i, Object val){
+	Node ret = new Node(PersistentVector.NOEDIT, node.array.clone());
+	if(level == 0)
+		ret.array[i] = val;
+	else
+		{
+		int idx = slot(node, level, i);
+		ret.array[idx] = doAssoc(level - 5, (Node) node.array[idx], i - offset(node, level, idx), val);
+		}
+	return ret;
+}
+
+public int count(){
+	return cnt;
+}
+
+public PersistentRRBVector<T> withMeta(IPersistentMap meta){
+	return new PersistentRRBVector<T>(meta, cnt, shift, root, tail);
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+@SuppressWarnings("unchecked")
+public IPersistentCollection<T> empty(){
+	return EMPTY.withMeta(meta());
+}
+
+public PersistentRRBVector<T> cons(T val){
+	if(tail.length < 32)
+		{
+		Object[] newTail = new Object[tail.length + 1];
+		System.arraycopy(tail, 0, newTail, 0, tail.length);
+		newTail[tail.length] = val;
+		return new PersistentRRBVector<T>(meta(), cnt + 1, shift, root, newTail);
+		}
+	Node leaf = new Node(PersistentVector.NOEDIT, tail);
+	Node newroot = pushLeaf(shift, root, leaf);
+	int newshift = shift;
+	if(newroot == null)
+		{
+		newroot = node(shift + 5, new Object[]{root, newPath(shift, leaf)}, 2);
+		newshift += 5;
+		}
+	return new PersistentRRBVector<T>(meta(), cnt + 1, newshift, newroot, new Object[]{val});
+}
+
+@SuppressWarnings("unchecked")
+public PersistentRRBVector<T> pop(){
+	if(cnt == 0)
+		throw new IllegalStateException("Can't pop empty vector");
+	if(cnt == 1)
+		return EMPTY.withMeta(meta());
+	if(tail.length > 1)
+		{
+		Object[] newTail = new Object[tail.length - 1];
+		System.arraycopy(tail, 0, newTail, 0, newTail.length);
+		return new PersistentRRBVector<T>(meta(), cnt - 1, shift, root, newTail);
+		}
+	return make(meta(), cnt - 1, shift, root, EMPTY_ARRAY);
+}
+
+/**
+ * Returns the elements of this vector followed by those of v.
+ */
+public PersistentRRBVector<T> concat(IPersistentVector<T> v){
+	PersistentRRBVector<T> other = create(v);
+	if(other.cnt == 0)
+		return this;
+	if(cnt == 0)
+		return other.withMeta(meta());
+	if(other.tailoff() == 0)
+		{
+		PersistentRRBVector<T> ret = this;
+		for(Object x : other.tail)
+			ret = ret.cons((T) x);
+		return ret;
+		}
+	// the tail becomes the last leaf of the left trie, whether full or not
+	Node leaf = new Node(PersistentVector.NOEDIT, tail);
+	Node left = pushLeaf(shift, root, leaf);
+	int lshift = shift;
+	if(left == null)
+		{
+		left = node(shift + 5, new Object[]{root, newPath(shift, leaf)}, 2);
+		lshift += 5;
+		}
+	Node merged = mergeTrees(lshift, left, other.shift, other.root);
+	return make(meta(), cnt + other.cnt, Math.max(lshift, other.shift) + 5, merged, other.tail);
+}
+
+/**
+ * Returns the first n elements and the rest, as two vectors.
+ */
+@SuppressWarnings("unchecked")
+public PersistentRRBVector<T>[] splitAt(int n){
+	if(n < 0 || n > cnt)
+		throw new IndexOutOfBoundsException();
+	return new PersistentRRBVector[]{take(n), drop(n)};
+}
+
+/**
+ * Returns the elements from start (inclusive) to end (exclusive). Unlike
+ * {@link RT#subvec}, the result only holds on to the part of this vector's
+ * trie it needs.
+ */
+public PersistentRRBVector<T> subvec(int start, int end){
+	if(start < 0 || end > cnt || start > end)
+		throw new IndexOutOfBoundsException();
+	return take(end).drop(start);
+}
+
+/**
+ * Returns this vector with val inserted at index i, shifting the elements
+ * from i on up by one.
+ */
+public PersistentRRBVector<T> insertAt(int i, T val){
+	if(i == cnt)
+		return cons(val);
+	if(i < 0 || i > cnt)
+		throw new IndexOutOfBoundsException();
+	return take(i).cons(val).concat(drop(i));
+}
+
+/**
+ * Returns this vector without the element at index i, shifting the elements
+ * after it down by one.
+ */
+public PersistentRRBVector<T> removeAt(int i){
+	if(i < 0 || i >= cnt)
+		throw new IndexOutOfBoundsException();
+	if(i == cnt - 1)
+		return pop();
+	return take(i).concat(drop(i + 1));
+}
+
+@SuppressWarnings("unchecked")
+private PersistentRRBVector<T> take(int n){
+	if(n >= cnt)
+		return this;
+	if(n == 0)
+		return EMPTY.withMeta(meta());
+	int tailoff = tailoff();
+	if(n > tailoff)
+		{
+		Object[] newTail = new Object[n - tailoff];
+		System.arraycopy(tail, 0, newTail, 0, newTail.length);
+		return new PersistentRRBVector<T>(meta(), n, shift, root, newTail);
+		}
+	return make(meta(), n, shift, sliceRight(shift, root, n), EMPTY_ARRAY);
+}
+
+@SuppressWarnings("unchecked")
+private PersistentRRBVector<T> drop(int n){
+	if(n == 0)
+		return this;
+	if(n == cnt)
+		return EMPTY.withMeta(meta());
+	int tailoff = tailoff();
+	if(n >= tailoff)
+		{
+		Object[] newTail = new Object[cnt - n];
+		System.arraycopy(tail, n - tailoff, newTail, 0, newTail.length);
+		return new PersistentRRBVector<T>(meta(), cnt - n, 5, PersistentVector.EMPTY_NODE, newTail);
+		}
+	return make(meta(), cnt - n, shift, sliceLeft(shift, root, n), tail);
+}
+
+/*
+ * Nodes at level 0 are leaves, holding their elements in an array of
+ * exactly their size. A node at level > 0 holds its children, which are at
+ * level - 5 and hold at most 1 << level elements each.
+ */
+
+static int childCount(Node node){
+	if(node.array.length > 32)
+		return ((int[]) node.array[32]).length;
+	int n = 32;
+	while(n > 0 && node.array[n - 1] == null)
+		n--;
+	return n;
+}
+
+/*
+ * Number of children of a node, or elements of a leaf.
+ */
+private static int slots(int level, Node node){
+	return level == 0 ? node.array.length : childCount(node);
+}
+
+/*
+ * Number of elements below a node.
+ */
+static int size(int level, Node node){
+	if(level == 0)
+		return node.array.length;
+	if(node.array.length > 32)
+		{
+		int[] sizes = (int[]) node.array[32];
+		return sizes[sizes.length - 1];
+		}
+	int n = childCount(node);
+	if(n == 0)
+		return 0;
+	return ((n - 1) << level) + size(level - 5, (Node) node.array[n - 1]);
+}
+
+/*
+ * The child holding index i of a node. Children hold at most 1 << level
+ * elements, so i >>> level is where the search of a size table starts.
+ */
+private static int slot(Node node, int level, int i){
+	int idx = i >>> level;
+	if(node.array.length > 32)
+		{
+		int[] sizes = (int[]) node.array[32];
+		while(sizes[idx] <= i)
+			idx++;
+		}
+	return idx;
+}
+
+/*
+ * Index of the first element of child idx of a node.
+ */
+private static int offset(Node node, int level, int idx){
+	if(idx == 0)
+		return 0;
+	if(node.array.length > 32)
+		return ((int[]) node.array[32])[idx - 1];
+	return idx << level;
+}
+
+/*
+ * Builds a node at level over the first n children, relaxed unless all
+ * children but the last are full.
+ */
+static Node node(int level, Object[] children, int n){
+	int[] sizes = new int[n];
+	boolean regular = true;
+	int sum = 0;
+	for(int i = 0; i < n; i++)
+		{
+		int size = size(level - 5, (Node) children[i]);
+		if(i < n - 1 && size != 1 << level)
+			regular = false;
+		sum += size;
+		sizes[i] = sum;
+		}
+	Object[] array = new Object[regular ? 32 : 33];
+	System.arraycopy(children, 0, array, 0, n);
+	if(!regular)
+		array[32] = sizes;
+	return new Node(PersistentVector.NOEDIT, array);
+}
+
+private static Node newPath(int level, Node node){
+	if(level == 0)
+		return node;
+	Node ret = new Node(PersistentVector.NOEDIT);
+	ret.array[0] = newPath(level - 5, node);
+	return ret;
+}
+
+/*
+ * Replaces the last of the n children of a node by child, which has delta
+ * more elements.
+ */
+private static Node setLast(Node node, int n, Node child, int delta){
+	Node ret = new Node(PersistentVector.NOEDIT, node.array.clone());
+	ret.array[n - 1] = child;
+	if(node.array.length > 32)
+		{
+		int[] sizes = ((int[]) node.array[32]).clone();
+		sizes[n - 1] += delta;
+		ret.array[32] = sizes;
+		}
+	return ret;
+}
+
+/*
+ * Appends child to the n children of a node, which stays regular if its
+ * last child was full.
+ */
+private static Node append(int level, Node node, int n, Node child){
+	if(node.array.length == 32 && (n == 0 || size(level - 5, (Node) node.array[n - 1]) == 1 << level))
+		{
+		Node ret = new Node(PersistentVector.NOEDIT, node.array.clone());
+		ret.array[n] = child;
+		return ret;
+		}
+	Object[] children = new Object[n + 1];
+	System.arraycopy(node.array, 0, children, 0, n);
+	children[n] = child;
+	return node(level, children, n + 1);
+}
+
+/*
+ * Appends leaf at the end of the trie below node, or returns null if there
+ * is no room for it.
+ */
+private static Node pushLeaf(int level, Node node, Node leaf){
+	int n = childCount(node);
+	if(level > 5 && n > 0)
+		{
+		Node child = pushLeaf(level - 5, (Node) node.array[n - 1], leaf);
+		if(child != null)
+			return setLast(node, n, child, leaf.array.length);
+		}
+	if(n == 32)
+		return null;
+	return append(level, node, n, newPath(level - 5, leaf));
+}
+
+/*
+ * Removes the last leaf, of the given size, of the trie below node, or
+ * returns null if that leaves node empty.
+ */
+private static Node popLeaf(int level, Node node, int size){
+	int n = childCount(node);
+	if(level > 5)
+		{
+		Node child = popLeaf(level - 5, (Node) node.array[n - 1], size);
+		if(child != null)
+			return setLast(node, n, child, -size);
+		}
+	if(n == 1)
+		return null;
+	Node ret = new Node(PersistentVector.NOEDIT, node.array.clone());
+	ret.array[n - 1] = null;
+	if(node.array.length > 32)
+		{
+		int[] sizes = new int[n - 1];
+		System.arraycopy((int[]) node.array[32], 0, sizes, 0, n - 1);
+		ret.array[32] = sizes;
+		}
+	return ret;
+}
+
+/*
+ * Keeps the first n elements below node, n > 0.
+ */
+private static Node sliceRight(int level, Node node, int n){
+	if(level == 0)
+		{
+		if(n == node.array.length)
+			return node;
+		Object[] array = new Object[n];
+		System.arraycopy(node.array, 0, array, 0, n);
+		return new Node(PersistentVector.NOEDIT, array);
+		}
+	int idx = slot(node, level, n - 1);
+	Node child = sliceRight(level - 5, (Node) node.array[idx], n - offset(node, level, idx));
+	Object[] array = new Object[node.array.length];
+	System.arraycopy(node.array, 0, array, 0, idx);
+	array[idx] = child;
+	if(node.array.length > 32)
+		{
+		int[] sizes = new int[idx + 1];
+		System.arraycopy((int[]) node.array[32], 0, sizes, 0, idx);
+		sizes[idx] = n;
+		array[32] = sizes;
+		}
+	return new Node(PersistentVector.NOEDIT, array);
+}
+
+/*
+ * Drops the first n elements below node, leaving at least one.
+ */
+private static Node sliceLeft(int level, Node node, int n){
+	if(n == 0)
+		return node;
+	if(level == 0)
+		{
+		Object[] array = new Object[node.array.length - n];
+		System.arraycopy(node.array, n, array, 0, array.length);
+		return new Node(PersistentVector.NOEDIT, array);
+		}
+	int idx = slot(node, level, n);
+	Node child = sliceLeft(level - 5, (Node) node.array[idx], n - offset(node, level, idx));
+	int m = childCount(node) - idx;
+	Object[] children = new Object[m];
+	children[0] = child;
+	System.arraycopy(node.array, idx + 1, children, 1, m - 1);
+	return node(level, children, m);
+}
+
+/*
+ * Concatenates the tries below left and right, joining them along the
+ * right edge of left and the left edge of right. Returns a node one level
+ * above the higher of the two, with one or two children.
+ */
+private static Node mergeTrees(int llevel, Node left, int rlevel, Node right){
+	if(llevel > rlevel)
+		{
+		int n = childCount(left);
+		Node mid = mergeTrees(llevel - 5, (Node) left.array[n - 1], rlevel, right);
+		return rebalance(llevel, left, n - 1, mid, null, 0);
+		}
+	if(llevel < rlevel)
+		{
+		Node mid = mergeTrees(llevel, left, rlevel - 5, (Node) right.array[0]);
+		return rebalance(rlevel, null, 0, mid, right, 1);
+		}
+	if(llevel == 0)
+		return node(5, new Object[]{left, right}, 2);
+	int n = childCount(left);
+	Node mid = mergeTrees(llevel - 5, (Node) left.array[n - 1], rlevel - 5, (Node) right.array[0]);
+	return rebalance(llevel, left, n - 1, mid, right, 1);
+}
+
+/*
+ * Takes the first lto children of left, the children of center and the
+ * children of right from rfrom on, all at level - 5, and redistributes
+ * their contents until no more than E_MAX nodes more than needed remain.
+ * Children that are not involved in the redistribution are kept as they
+ * are. Returns a node at level + 5 holding the result in one or two nodes.
+ */
+private static Node rebalance(int level, Node left, int lto, Node center, Node right, int rfrom){
+	int nc = childCount(center);
+	int rto = right == null ? 0 : childCount(right);
+	int n = lto + nc + (rto - rfrom);
+	Node[] all = new Node[n];
+	int k = 0;
+	for(int i = 0; i < lto; i++)
+		all[k++] = (Node) left.array[i];
+	for(int i = 0; i < nc; i++)
+		all[k++] = (Node) center.array[i];
+	for(int i = rfrom; i < rto; i++)
+		all[k++] = (Node) right.array[i];
+
+	int childLevel = level - 5;
+	int[] counts = new int[n];
+	int total = 0;
+	for(int i = 0; i < n; i++)
+		{
+		counts[i] = slots(childLevel, all[i]);
+		total += counts[i];
+		}
+	// merge the contents of nodes with room into their successors, until the
+	// number of nodes is close enough to the optimum
+	int optimal = (total + 31) / 32;
+	int m = n;
+	for(int i = 0; m > optimal + E_MAX; i--, m--)
+		{
+		while(counts[i] > 32 - E_MAX / 2)
+			i++;
+		int rest = counts[i];
+		while(rest > 0)
+			{
+			int size = Math.min(rest + counts[i + 1], 32);
+			counts[i] = size;
+			rest = rest + counts[i + 1] - size;
+			i++;
+			}
+		System.arraycopy(counts, i + 1, counts, i, m - i - 1);
+		}
+
+	Object[] out = new Object[m];
+	int src = 0;
+	int srcOff = 0;
+	for(int j = 0; j < m; j++)
+		{
+		int want = counts[j];
+		if(srcOff == 0 && slots(childLevel, all[src]) == want)
+			{
+			out[j] = all[src++];
+			continue;
+			}
+		Object[] contents = new Object[want];
+		for(int filled = 0; filled < want; )
+			{
+			int avail = slots(childLevel, all[src]) - srcOff;
+			int take = Math.min(avail, want - filled);
+			System.arraycopy(all[src].array, srcOff, contents, filled, take);
+			filled += take;
+			srcOff += take;
+			if(take == avail)
+				{
+				src++;
+				srcOff = 0;
+				}
+			}
+		out[j] = childLevel == 0 ? new Node(PersistentVector.NOEDIT, contents) : node(childLevel, contents, want);
+		}
+
+	if(m <= 32)
+		return node(level + 5, new Object[]{node(level, out, m)}, 1);
+	Object[] rest = new Object[m - 32];
+	System.arraycopy(out, 32, rest, 0, m - 32);
+	return node(level + 5, new Object[]{node(level, out, 32), node(level, rest, m - 32)}, 2);
+}
+}
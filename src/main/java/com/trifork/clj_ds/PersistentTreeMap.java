@@ -12,10 +12,12 @@
 
 package com.trifork.clj_ds;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Persistent Red Black Tree
@@ -25,7 +27,8 @@ import java.util.Stack;
  * See Okasaki, Kahrs, Larsen et al
  */
 
-public class PersistentTreeMap<K,V> extends APersistentMap<K,V> implements IObj, Reversible<Map.Entry<K, V>>, Sorted<K>{
+public class PersistentTreeMap<K,V> extends APersistentMap<K,V> implements IObj, IEditableCollection<Map.Entry<K, V>>,
+		Reversible<Map.Entry<K, V>>, Sorted<K>{
 
 public final Comparator<K> comp;
 public final Node tree;
@@ -35,12 +38,12 @@ final IPersistentMap _meta;
 final static public PersistentTreeMap EMPTY = new PersistentTreeMap();
 
 static public <K,V> IPersistentMap<K,V> create(Map<? extends K,? extends V> other){
-	IPersistentMap<K,V> ret = EMPTY;
+	TransientTreeMap<K,V> ret = ((PersistentTreeMap<K,V>) EMPTY).asTransient();
 	for(Map.Entry<? extends K,? extends V> o : other.entrySet())
 		{
-		ret = ret.assoc(o.getKey(), o.getValue());
+		ret.assoc(o.getKey(), o.getValue());
 		}
-	return ret;
+	return ret.persistentMap();
 }
 
 public PersistentTreeMap(){
@@ -71,25 +74,84 @@ PersistentTreeMap(IPersistentMap meta, Comparator<K> comp, Node tree, int _count
 }
 
 static public <K,V> PersistentTreeMap<K,V> create(ISeq items){
-	IPersistentMap<K,V> ret = EMPTY;
+	return create(RT.DEFAULT_COMPARATOR, items);
+}
+
+static public <K,V> PersistentTreeMap<K,V> create(Comparator<K> comp, ISeq items){
+	TransientTreeMap<K,V> ret = new PersistentTreeMap<K,V>(comp).asTransient();
 	for(; items != null; items = items.next().next())
 		{
 		if(items.next() == null)
 			throw new IllegalArgumentException(String.format("No value supplied for key: %s", items.first()));
-		ret = ret.assoc((K) items.first(), (V) RT.second(items));
+		ret.assoc((K) items.first(), (V) RT.second(items));
 		}
-	return (PersistentTreeMap<K,V>) ret;
+	return (PersistentTreeMap<K,V>) ret.persistentMap();
 }
 
-static public <K,V> PersistentTreeMap<K,V> create(Comparator<K> comp, ISeq items){
-	IPersistentMap<K,V> ret = new PersistentTreeMap(comp);
-	for(; items != null; items = items.next().next())
+/**
+ * Returns a map of the entries, which must be in strictly ascending key
+ * order by comp, built bottom-up in O(n) with one allocation per node.
+ *
+ * @throws IllegalArgumentException if a key is not greater than the one
+ *         before it
+ */
+static public <K,V> PersistentTreeMap<K,V> createFromSorted(Comparator<K> comp,
+		Iterator<? extends Map.Entry<? extends K,? extends V>> entries){
+	Object[] keys = new Object[16];
+	Object[] vals = new Object[16];
+	int n = 0;
+	while(entries.hasNext())
 		{
-		if(items.next() == null)
-			throw new IllegalArgumentException(String.format("No value supplied for key: %s", items.first()));
-		ret = ret.assoc((K) items.first(), (V) RT.second(items));
+		Map.Entry<? extends K,? extends V> e = entries.next();
+		if(n == keys.length)
+			{
+			keys = Arrays.copyOf(keys, n * 2);
+			vals = Arrays.copyOf(vals, n * 2);
+			}
+		keys[n] = e.getKey();
+		vals[n++] = e.getValue();
+		}
+	return fromSorted(comp, keys, vals, n);
+}
+
+/**
+ * Returns a map of keys[i] to vals[i], in O(n). The keys must be in
+ * strictly ascending order by comp.
+ *
+ * @throws IllegalArgumentException if a key is not greater than the one
+ *         before it
+ */
+static public <K,V> PersistentTreeMap<K,V> createFromSorted(Comparator<K> comp, K[] keys, V[] vals){
+	if(keys.length != vals.length)
+		throw new IllegalArgumentException("Keys and values differ in length");
+	return fromSorted(comp, keys, vals, keys.length);
+}
+
+static <K,V> PersistentTreeMap<K,V> fromSorted(Comparator<K> comp, Object[] keys, Object[] vals, int n){
+	for(int i = 1; i < n; i++)
+		{
+		if(comp.compare((K) keys[i - 1], (K) keys[i]) >= 0)
+			throw new IllegalArgumentException(String.format("Key out of order: %s", keys[i]));
 		}
-	return (PersistentTreeMap<K,V>) ret;
+	// a tree split at midpoints is full down to depth log2(n+1), below
+	// which the remaining nodes are red leaves
+	int redDepth = 31 - Integer.numberOfLeadingZeros(n + 1);
+	return new PersistentTreeMap<K,V>(null, comp, build(keys, vals, 0, n, 0, redDepth), n);
+}
+
+static Node build(Object[] keys, Object[] vals, int lo, int hi, int depth, int redDepth){
+	if(lo == hi)
+		return null;
+	int mid = (lo + hi) >>> 1;
+	Node left = build(keys, vals, lo, mid, depth + 1, redDepth);
+	Node right = build(keys, vals, mid + 1, hi, depth + 1, redDepth);
+	if(depth == redDepth)
+		return red(keys[mid], vals[mid], left, right);
+	return black(keys[mid], vals[mid], left, right);
+}
+
+public TransientTreeMap<K,V> asTransient(){
+	return new TransientTreeMap<K,V>(this);
 }
 
 public boolean containsKey(Object key){
@@ -125,7 +187,7 @@ public PersistentTreeMap<K,V> assoc(K key, V val){
 
 public PersistentTreeMap<K,V> without(K key){
 	Box found = new Box(null);
-	Node t = remove(tree, key, found);
+	Node t = remove(null, comp, tree, key, found);
 	if(t == null)
 		{
 		if(found.val == null)//null == doesn't contain key
@@ -215,6 +277,48 @@ public NodeIterator reverseIterator(){
 	return new NodeIterator(tree, false);
 }
 
+/**
+ * Returns a spliterator over the entries in key order that splits into
+ * subtrees, for use with {@link Reducers#fold}.
+ */
+public ISpliterator<Map.Entry<K, V>> splitIterator(){
+	return nodeSpliterator(false);
+}
+
+/*
+ * Over the keys only if keys is set, as PersistentTreeSet needs.
+ */
+ISpliterator nodeSpliterator(boolean keys){
+	Object[] items = tree == null ? new Object[0] : new Object[] {tree};
+	return new NodeSpliterator(items, 0, items.length, null, _count, keys);
+}
+
+static final class NodeSpliterator extends ANodeSpliterator {
+	NodeSpliterator(Object[] items, int lo, int hi, Iterator current, long est, boolean keys){
+		super(items, lo, hi, current, est, ISpliterator.SIZED | ISpliterator.ORDERED | ISpliterator.DISTINCT | ISpliterator.IMMUTABLE, keys);
+	}
+
+	boolean isSubtree(Object item){
+		return item instanceof Node;
+	}
+
+	Iterator iterate(Object subtree){
+		return new NodeIterator((Node) subtree, true);
+	}
+
+	Object[] expand(Object subtree){
+		Node t = (Node) subtree;
+		Object entry = new MapEntry(t.key(), t.val());
+		if(t.left() == null)
+			return t.right() == null ? new Object[] {entry} : new Object[] {entry, t.right()};
+		return t.right() == null ? new Object[] {t.left(), entry} : new Object[] {t.left(), entry, t.right()};
+	}
+
+	ANodeSpliterator create(Object[] items, int lo, int hi, Iterator current, long est){
+		return new NodeSpliterator(items, lo, hi, current, est, keys);
+	}
+}
+
 public Iterator<K> keys(){
 	return keys(iterator());
 }
@@ -303,6 +407,299 @@ public Node entryAt(K key){
 	return t;
 }
 
+static int treeSize(Node t){
+	return t == null ? 0 : t.treeSize();
+}
+
+/**
+ * Returns the entry at index i in key order, in O(log n) using the subtree
+ * sizes kept in the branch nodes.
+ */
+public IMapEntry<K,V> nth(int i){
+	if(i < 0 || i >= _count)
+		throw new IndexOutOfBoundsException();
+	Node t = tree;
+	for(;;)
+		{
+		int left = treeSize(t.left());
+		if(i < left)
+			t = t.left();
+		else if(i == left)
+			return t;
+		else
+			{
+			i -= left + 1;
+			t = t.right();
+			}
+		}
+}
+
+/**
+ * Returns the number of keys less than key, which is the index of key if
+ * it is present.
+ */
+public int rank(K key){
+	int rank = 0;
+	Node t = tree;
+	while(t != null)
+		{
+		int c = doCompare(key, (K) t.key);
+		if(c <= 0)
+			{
+			if(c == 0)
+				return rank + treeSize(t.left());
+			t = t.left();
+			}
+		else
+			{
+			rank += treeSize(t.left()) + 1;
+			t = t.right();
+			}
+		}
+	return rank;
+}
+
+/**
+ * Returns the number of keys from lo, inclusive, to hi, exclusive.
+ */
+public int countRange(K lo, K hi){
+	return Math.max(0, rank(hi) - rank(lo));
+}
+
+/**
+ * Returns the entries from index start, inclusive, to end, exclusive, in
+ * key order, or null if there are none. The seq is found in O(log n).
+ */
+public ISeq slice(int start, int end){
+	if(start < 0 || end > _count || start > end)
+		throw new IndexOutOfBoundsException();
+	if(start == end)
+		return null;
+	ISeq stack = null;
+	Node t = tree;
+	int i = start;
+	for(;;)
+		{
+		int left = treeSize(t.left());
+		if(i < left)
+			{
+			stack = RT.cons(t, stack);
+			t = t.left();
+			}
+		else if(i == left)
+			{
+			stack = RT.cons(t, stack);
+			return new Seq(stack, true, end - start);
+			}
+		else
+			{
+			i -= left + 1;
+			t = t.right();
+			}
+		}
+}
+
+/**
+ * Returns {the entries with keys less than key, the rest}, in O(log n).
+ */
+public PersistentTreeMap<K,V>[] split(K key){
+	Node[] s = new Node[2];
+	int[] hs = new int[2];
+	split(tree, blackHeight(tree), key, s, hs);
+	return new PersistentTreeMap[]{make(s[0]), make(s[1])};
+}
+
+/**
+ * Returns the entries with keys from lo, inclusive, to hi, exclusive, in
+ * O(log n).
+ */
+public PersistentTreeMap<K,V> subMap(K lo, K hi){
+	if(doCompare(lo, hi) >= 0)
+		return make(null);
+	Node[] s = new Node[2];
+	int[] hs = new int[2];
+	split(tree, blackHeight(tree), lo, s, hs);
+	split(s[1], hs[1], hi, s, hs);
+	return make(s[0]);
+}
+
+/**
+ * Returns this map without the keys from lo, inclusive, to hi, exclusive,
+ * in O(log n) however many keys that removes.
+ */
+public PersistentTreeMap<K,V> withoutRange(K lo, K hi){
+	if(doCompare(lo, hi) >= 0)
+		return this;
+	Node[] s = new Node[2];
+	int[] hs = new int[2];
+	split(tree, blackHeight(tree), hi, s, hs);
+	Node right = s[1];
+	split(tree, blackHeight(tree), lo, s, hs);
+	if(treeSize(s[0]) + treeSize(right) == _count)
+		return this;
+	return make(concat(s[0], right));
+}
+
+/**
+ * Returns the entries of left and right in one map, in O(log n). All keys
+ * of left must be less than all keys of right. The map has the comparator
+ * and meta of left.
+ */
+static public <K,V> PersistentTreeMap<K,V> join(PersistentTreeMap<K,V> left, PersistentTreeMap<K,V> right){
+	if(left._count > 0 && right._count > 0 && left.doCompare((K) left.maxKey(), (K) right.minKey()) >= 0)
+		throw new IllegalArgumentException("Keys of left must be less than keys of right");
+	return left.make(concat(left.tree, right.tree));
+}
+
+private PersistentTreeMap<K,V> make(Node t){
+	return new PersistentTreeMap<K,V>(comp, t == null ? null : t.blacken(), treeSize(t), meta());
+}
+
+/*
+ * The join-based algorithms of Blelloch, Ferizovic and Sun, "Just Join for
+ * Parallel Ordered Sets". A black height counts the black nodes on a path
+ * from a node down to, but not including, the empty tree.
+ */
+
+static int blackHeight(Node t){
+	int h = 0;
+	for(; t != null; t = t.left())
+		{
+		if(t instanceof Black)
+			h++;
+		}
+	return h;
+}
+
+/*
+ * Splits t, of black height h, into the trees of the keys less than key
+ * and of the rest. These are stored in s, and their black heights in hs.
+ */
+void split(Node t, int h, K key, Node[] s, int[] hs){
+	if(t == null)
+		{
+		s[0] = s[1] = null;
+		hs[0] = hs[1] = 0;
+		return;
+		}
+	int ch = t instanceof Black ? h - 1 : h;
+	int c = doCompare(key, (K) t.key);
+	if(c == 0)
+		{
+		s[0] = t.left();
+		hs[0] = ch;
+		s[1] = join(null, 0, t.key, t.val(), t.right(), ch, hs, 1);
+		}
+	else if(c < 0)
+		{
+		split(t.left(), ch, key, s, hs);
+		s[1] = join(s[1], hs[1], t.key, t.val(), t.right(), ch, hs, 1);
+		}
+	else
+		{
+		split(t.right(), ch, key, s, hs);
+		s[0] = join(t.left(), ch, t.key, t.val(), s[0], hs[0], hs, 0);
+		}
+}
+
+/*
+ * Joins tl, key and tr, whose keys are in that order, into a tree with a
+ * black root, whose black height is stored in hs[i]. Takes time
+ * proportional to the difference of the black heights hl and hr.
+ */
+static Node join(Node tl, int hl, Object key, Object val, Node tr, int hr, int[] hs, int i){
+	if(tl instanceof Red)
+		{
+		tl = tl.blacken();
+		hl++;
+		}
+	if(tr instanceof Red)
+		{
+		tr = tr.blacken();
+		hr++;
+		}
+	Node t;
+	if(hl == hr)
+		{
+		hs[i] = hl + 1;
+		return black(key, val, tl, tr);
+		}
+	if(hl > hr)
+		t = joinRight(tl, hl, key, val, tr, hr);
+	else
+		t = joinLeft(tl, hl, key, val, tr, hr);
+	hs[i] = Math.max(hl, hr);
+	if(t instanceof Red)
+		{
+		hs[i]++;
+		t = t.blacken();
+		}
+	return t;
+}
+
+/*
+ * Hangs key and tr off the right spine of t, at the first black node of
+ * black height hr, and repairs a red right child of a red right child by
+ * a left rotation on the way up.
+ */
+static Node joinRight(Node t, int h, Object key, Object val, Node tr, int hr){
+	if(h == hr && !(t instanceof Red))
+		return red(key, val, t, tr);
+	boolean black = t instanceof Black;
+	Node r = joinRight(t.right(), black ? h - 1 : h, key, val, tr, hr);
+	if(!black)
+		return red(t.key, t.val(), t.left(), r);
+	if(r instanceof Red && r.right() instanceof Red)
+		return red(r.key, r.val(), black(t.key, t.val(), t.left(), r.left()), r.right().blacken());
+	return black(t.key, t.val(), t.left(), r);
+}
+
+static Node joinLeft(Node tl, int hl, Object key, Object val, Node t, int h){
+	if(h == hl && !(t instanceof Red))
+		return red(key, val, tl, t);
+	boolean black = t instanceof Black;
+	Node l = joinLeft(tl, hl, key, val, t.left(), black ? h - 1 : h);
+	if(!black)
+		return red(t.key, t.val(), l, t.right());
+	if(l instanceof Red && l.left() instanceof Red)
+		return red(l.key, l.val(), l.left().blacken(), black(t.key, t.val(), l.right(), t.right()));
+	return black(t.key, t.val(), l, t.right());
+}
+
+/*
+ * Joins two trees whose keys are in order, taking the least entry of tr
+ * as the middle key.
+ */
+static Node concat(Node tl, Node tr){
+	if(tl == null)
+		return tr;
+	if(tr == null)
+		return tl;
+	Node min = tr;
+	while(min.left() != null)
+		min = min.left();
+	Node[] s = new Node[2];
+	int[] hs = new int[2];
+	splitMin(tr, blackHeight(tr), s, hs);
+	return join(tl, blackHeight(tl), min.key, min.val(), s[1], hs[1], hs, 0);
+}
+
+/*
+ * Removes the least entry of t, storing the rest in s[1] and its black
+ * height in hs[1].
+ */
+static void splitMin(Node t, int h, Node[] s, int[] hs){
+	int ch = t instanceof Black ? h - 1 : h;
+	if(t.left() == null)
+		{
+		s[1] = t.right();
+		hs[1] = ch;
+		return;
+		}
+	splitMin(t.left(), ch, s, hs);
+	s[1] = join(s[1], hs[1], t.key, t.val(), t.right(), ch, hs, 1);
+}
+
 public int doCompare(K k1, K k2){
 //	if(comp != null)
 		return comp.compare(k1, k2);
@@ -330,33 +727,83 @@ Node add(Node t, Object key, Object val, Box found){
 	return t.addRight(ins);
 }
 
-Node remove(Node t, K key, Box found){
+/*
+ * As add, for a transient: nodes owned by edit are set in place and the
+ * others on the path are copied into owned nodes, so a batch allocates
+ * about one node per new key. Returns the new subtree, never null, and
+ * sets found to the node of a key already present.
+ */
+static Node add(AtomicReference<Thread> edit, Comparator comp, Node t, Object key, Object val, Box found){
+	if(t == null)
+		return new RedEdit(edit, key, val, null, null);
+	int c = comp.compare(key, t.key);
+	if(c == 0)
+		{
+		found.val = t;
+		if(t.val() == val)
+			return t;
+		return t.replace(edit, val, t.left(), t.right());
+		}
+	Node child = c < 0 ? t.left() : t.right();
+	Node ins = add(edit, comp, child, key, val, found);
+	if(ins == child && found.val != null)
+		return t;
+	if(t instanceof Red || !(ins instanceof Red))
+		return c < 0 ? t.replace(edit, t.val(), ins, t.right()) : t.replace(edit, t.val(), t.left(), ins);
+	// the rotations of Node.balanceLeft and balanceRight, keeping all but
+	// the node that turns black
+	Node l = ins.left();
+	Node r = ins.right();
+	if(c < 0)
+		{
+		if(l instanceof Red)
+			return ins.replace(edit, ins.val(), l.blacken(), t.replace(edit, t.val(), r, t.right()));
+		if(r instanceof Red)
+			return r.replace(edit, r.val(), new BlackEdit(edit, ins.key, ins.val(), l, r.left()),
+			                 t.replace(edit, t.val(), r.right(), t.right()));
+		}
+	else
+		{
+		if(r instanceof Red)
+			return ins.replace(edit, ins.val(), t.replace(edit, t.val(), t.left(), l), r.blacken());
+		if(l instanceof Red)
+			return l.replace(edit, l.val(), t.replace(edit, t.val(), t.left(), l.left()),
+			                 new BlackEdit(edit, ins.key, ins.val(), l.right(), r));
+		}
+	return c < 0 ? t.replace(edit, t.val(), ins, t.right()) : t.replace(edit, t.val(), t.left(), ins);
+}
+
+/*
+ * The deletion of a transient passes its edit, so every node it makes is
+ * owned, as TransientTreeMap needs; edit is null for a persistent map.
+ */
+static Node remove(AtomicReference<Thread> edit, Comparator comp, Node t, Object key, Box found){
 	if(t == null)
 		return null; //not found indicator
-	int c = doCompare(key, (K) t.key);
+	int c = comp.compare(key, t.key);
 	if(c == 0)
 		{
 		found.val = t;
-		return append(t.left(), t.right());
+		return append(edit, t.left(), t.right());
 		}
-	Node del = c < 0 ? remove(t.left(), key, found) : remove(t.right(), key, found);
+	Node del = c < 0 ? remove(edit, comp, t.left(), key, found) : remove(edit, comp, t.right(), key, found);
 	if(del == null && found.val == null) //not found below
 		return null;
 	if(c < 0)
 		{
 		if(t.left() instanceof Black)
-			return balanceLeftDel(t.key, t.val(), del, t.right());
+			return balanceLeftDel(edit, t.key, t.val(), del, t.right());
 		else
-			return red(t.key, t.val(), del, t.right());
+			return red(edit, t.key, t.val(), del, t.right());
 		}
 	if(t.right() instanceof Black)
-		return balanceRightDel(t.key, t.val(), t.left(), del);
-	return red(t.key, t.val(), t.left(), del);
+		return balanceRightDel(edit, t.key, t.val(), t.left(), del);
+	return red(edit, t.key, t.val(), t.left(), del);
 //		return t.removeLeft(del);
 //	return t.removeRight(del);
 }
 
-static Node append(Node left, Node right){
+static Node append(AtomicReference<Thread> edit, Node left, Node right){
 	if(left == null)
 		return right;
 	else if(right == null)
@@ -365,78 +812,78 @@ static Node append(Node left, Node right){
 		{
 		if(right instanceof Red)
 			{
-			Node app = append(left.right(), right.left());
+			Node app = append(edit, left.right(), right.left());
 			if(app instanceof Red)
-				return red(app.key, app.val(),
-				           red(left.key, left.val(), left.left(), app.left()),
-				           red(right.key, right.val(), app.right(), right.right()));
+				return red(edit, app.key, app.val(),
+				           red(edit, left.key, left.val(), left.left(), app.left()),
+				           red(edit, right.key, right.val(), app.right(), right.right()));
 			else
-				return red(left.key, left.val(), left.left(), red(right.key, right.val(), app, right.right()));
+				return red(edit, left.key, left.val(), left.left(), red(edit, right.key, right.val(), app, right.right()));
 			}
 		else
-			return red(left.key, left.val(), left.left(), append(left.right(), right));
+			return red(edit, left.key, left.val(), left.left(), append(edit, left.right(), right));
 		}
 	else if(right instanceof Red)
-		return red(right.key, right.val(), append(left, right.left()), right.right());
+		return red(edit, right.key, right.val(), append(edit, left, right.left()), right.right());
 	else //black/black
 		{
-		Node app = append(left.right(), right.left());
+		Node app = append(edit, left.right(), right.left());
 		if(app instanceof Red)
-			return red(app.key, app.val(),
-			           black(left.key, left.val(), left.left(), app.left()),
-			           black(right.key, right.val(), app.right(), right.right()));
+			return red(edit, app.key, app.val(),
+			           black(edit, left.key, left.val(), left.left(), app.left()),
+			           black(edit, right.key, right.val(), app.right(), right.right()));
 		else
-			return balanceLeftDel(left.key, left.val(), left.left(), black(right.key, right.val(), app, right.right()));
+			return balanceLeftDel(edit, left.key, left.val(), left.left(), black(edit, right.key, right.val(), app, right.right()));
 		}
 }
 
-static Node balanceLeftDel(Object key, Object val, Node del, Node right){
+static Node balanceLeftDel(AtomicReference<Thread> edit, Object key, Object val, Node del, Node right){
 	if(del instanceof Red)
-		return red(key, val, del.blacken(), right);
+		return red(edit, key, val, del.blacken(), right);
 	else if(right instanceof Black)
-		return rightBalance(key, val, del, right.redden());
+		return rightBalance(edit, key, val, del, right.redden());
 	else if(right instanceof Red && right.left() instanceof Black)
-		return red(right.left().key, right.left().val(),
-		           black(key, val, del, right.left().left()),
-		           rightBalance(right.key, right.val(), right.left().right(), right.right().redden()));
+		return red(edit, right.left().key, right.left().val(),
+		           black(edit, key, val, del, right.left().left()),
+		           rightBalance(edit, right.key, right.val(), right.left().right(), right.right().redden()));
 	else
 		throw new UnsupportedOperationException("Invariant violation");
 }
 
-static Node balanceRightDel(Object key, Object val, Node left, Node del){
+static Node balanceRightDel(AtomicReference<Thread> edit, Object key, Object val, Node left, Node del){
 	if(del instanceof Red)
-		return red(key, val, left, del.blacken());
+		return red(edit, key, val, left, del.blacken());
 	else if(left instanceof Black)
-		return leftBalance(key, val, left.redden(), del);
+		return leftBalance(edit, key, val, left.redden(), del);
 	else if(left instanceof Red && left.right() instanceof Black)
-		return red(left.right().key, left.right().val(),
-		           leftBalance(left.key, left.val(), left.left().redden(), left.right().left()),
-		           black(key, val, left.right().right(), del));
+		return red(edit, left.right().key, left.right().val(),
+		           leftBalance(edit, left.key, left.val(), left.left().redden(), left.right().left()),
+		           black(edit, key, val, left.right().right(), del));
 	else
 		throw new UnsupportedOperationException("Invariant violation");
 }
 
-static Node leftBalance(Object key, Object val, Node ins, Node right){
+static Node leftBalance(AtomicReference<Thread> edit, Object key, Object val, Node ins, Node right){
 	if(ins instanceof Red && ins.left() instanceof Red)
-		return red(ins.key, ins.val(), ins.left().blacken(), black(key, val, ins.right(), right));
+		return red(edit, ins.key, ins.val(), ins.left().blacken(), black(edit, key, val, ins.right(), right));
 	else if(ins instanceof Red && ins.right() instanceof Red)
-		return red(ins.right().key, ins.right().val(),
-		           black(ins.key, ins.val(), ins.left(), ins.right().left()),
-		           black(key, val, ins.right().right(), right));
+		return red(edit, ins.right().key, ins.right().val(),
+		           black(edit, ins.key, ins.val(), ins.left(), ins.right().left()),
+		           black(edit, key, val, ins.right().right(), right));
 	else
-		return black(key, val, ins, right);
+		return black(edit, key, val, ins, right);
 }
 
 
-static Node rightBalance(Object key, Object val, Node left, Node ins){
+static Node rightBalance(AtomicReference<Thread> edit, Object key, Object val, Node left, Node ins){
 	if(ins instanceof Red && ins.right() instanceof Red)
-		return red(ins.key, ins.val(), black(key, val, left, ins.left()), ins.right().blacken());
+		return red(edit, ins.key, ins.val(), black(edit, key, val, left, ins.left()), ins.right().blacken());
 	else if(ins instanceof Red && ins.left() instanceof Red)
-		return red(ins.left().key, ins.left().val(),
-		           black(key, val, left, ins.left().left()),
-		           black(ins.key, ins.val(), ins.left().right(), ins.right()));
+		return red(edit, ins.left().key, ins.left().val(),
+		           black(edit, key, val, left, ins.left().left()),
+		           black(edit, ins.key, ins.val(), ins.left().right(), ins.right()));
 	else
-		return black(key, val, left, ins);
+		return black(edit, key, val, left, ins);
 }
 
 Node replace(Node t, K key, Object val){
@@ -478,6 +925,18 @@ static Black black(Object key, Object val, Node left, Node right){
 	return new BlackBranchVal(key, val, left, right);
 }
 
+static Node red(AtomicReference<Thread> edit, Object key, Object val, Node left, Node right){
+	if(edit == null)
+		return red(key, val, left, right);
+	return new RedEdit(edit, key, val, left, right);
+}
+
+static Node black(AtomicReference<Thread> edit, Object key, Object val, Node left, Node right){
+	if(edit == null)
+		return black(key, val, left, right);
+	return new BlackEdit(edit, key, val, left, right);
+}
+
 public IPersistentMap meta(){
 	return _meta;
 }
@@ -513,6 +972,13 @@ static abstract class Node extends AMapEntry{
 		return null;
 	}
 
+	/*
+	 * The number of entries in this subtree.
+	 */
+	int treeSize(){
+		return 1;
+	}
+
 	abstract Node addLeft(Node ins);
 
 	abstract Node addRight(Node ins);
@@ -535,6 +1001,12 @@ static abstract class Node extends AMapEntry{
 
 	abstract Node replace(Object key, Object val, Node left, Node right);
 
+	/*
+	 * A node of the same color owned by edit, which is this one when it is
+	 * already owned.
+	 */
+	abstract Node replace(AtomicReference<Thread> edit, Object val, Node left, Node right);
+
 }
 
 static class Black extends Node{
@@ -551,11 +1023,11 @@ static class Black extends Node{
 	}
 
 	Node removeLeft(Node del){
-		return balanceLeftDel(key, val(), del, right());
+		return balanceLeftDel(null, key, val(), del, right());
 	}
 
 	Node removeRight(Node del){
-		return balanceRightDel(key, val(), left(), del);
+		return balanceRightDel(null, key, val(), left(), del);
 	}
 
 	Node blacken(){
@@ -570,6 +1042,10 @@ static class Black extends Node{
 		return black(key, val, left, right);
 	}
 
+	Node replace(AtomicReference<Thread> edit, Object val, Node left, Node right){
+		return new BlackEdit(edit, key, val, left, right);
+	}
+
 }
 
 static class BlackVal extends Black{
@@ -595,10 +1071,13 @@ static class BlackBranch extends Black{
 
 	final Node right;
 
+	final int treeSize;
+
 	public BlackBranch(Object key, Node left, Node right){
 		super(key);
 		this.left = left;
 		this.right = right;
+		this.treeSize = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
 	}
 
 	public Node left(){
@@ -609,6 +1088,10 @@ static class BlackBranch extends Black{
 		return right;
 	}
 
+	int treeSize(){
+		return treeSize;
+	}
+
 	Node redden(){
 		return new RedBranch(key, left, right);
 	}
@@ -666,6 +1149,10 @@ static class Red extends Node{
 		return red(key, val, left, right);
 	}
 
+	Node replace(AtomicReference<Thread> edit, Object val, Node left, Node right){
+		return new RedEdit(edit, key, val, left, right);
+	}
+
 }
 
 static class RedVal extends Red{
@@ -691,10 +1178,13 @@ static class RedBranch extends Red{
 
 	final Node right;
 
+	final int treeSize;
+
 	public RedBranch(Object key, Node left, Node right){
 		super(key);
 		this.left = left;
 		this.right = right;
+		this.treeSize = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
 	}
 
 	public Node left(){
@@ -705,6 +1195,10 @@ static class RedBranch extends Red{
 		return right;
 	}
 
+	int treeSize(){
+		return treeSize;
+	}
+
 	Node balanceLeft(Node parent){
 		if(left instanceof Red)
 			return red(key, val(), left.blacken(), black(parent.key, parent.val(), right, parent.right()));
@@ -750,6 +1244,190 @@ static class RedBranchVal extends RedBranch{
 	}
 }
 
+/*
+ * Nodes made by a transient, set in place while their edit is live. They
+ * keep their own fields, the persistent nodes' being final, and are
+ * copied into persistent nodes by freeze(), so no map ever holds
+ * them. Leaves are made as these too, so children can be added without
+ * a copy. An edit node is only ever below other edit nodes.
+ */
+static final class BlackEdit extends Black{
+	final AtomicReference<Thread> edit;
+	Object val;
+	Node left;
+	Node right;
+	int treeSize;
+
+	BlackEdit(AtomicReference<Thread> edit, Object key, Object val, Node left, Node right){
+		super(key);
+		this.edit = edit;
+		this.val = val;
+		this.left = left;
+		this.right = right;
+		this.treeSize = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
+	}
+
+	public Object val(){
+		return val;
+	}
+
+	Node left(){
+		return left;
+	}
+
+	Node right(){
+		return right;
+	}
+
+	int treeSize(){
+		return treeSize;
+	}
+
+	Node redden(){
+		return new RedEdit(edit, key, val, left, right);
+	}
+
+	Node replace(AtomicReference<Thread> edit, Object val, Node left, Node right){
+		if(this.edit != edit)
+			return super.replace(edit, val, left, right);
+		this.val = val;
+		this.left = left;
+		this.right = right;
+		this.treeSize = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
+		return this;
+	}
+}
+
+static final class RedEdit extends Red{
+	final AtomicReference<Thread> edit;
+	Object val;
+	Node left;
+	Node right;
+	int treeSize;
+
+	RedEdit(AtomicReference<Thread> edit, Object key, Object val, Node left, Node right){
+		super(key);
+		this.edit = edit;
+		this.val = val;
+		this.left = left;
+		this.right = right;
+		this.treeSize = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
+	}
+
+	public Object val(){
+		return val;
+	}
+
+	Node left(){
+		return left;
+	}
+
+	Node right(){
+		return right;
+	}
+
+	int treeSize(){
+		return treeSize;
+	}
+
+	Node blacken(){
+		return new BlackEdit(edit, key, val, left, right);
+	}
+
+	Node replace(AtomicReference<Thread> edit, Object val, Node left, Node right){
+		if(this.edit != edit)
+			return super.replace(edit, val, left, right);
+		this.val = val;
+		this.left = left;
+		this.right = right;
+		this.treeSize = 1 + PersistentTreeMap.treeSize(left) + PersistentTreeMap.treeSize(right);
+		return this;
+	}
+}
+
+/*
+ * Copies the edit nodes of t into persistent ones. Only edit nodes are
+ * descended, so this costs the nodes a transient made, not the tree.
+ */
+static Node freeze(Node t){
+	if(t instanceof BlackEdit)
+		return black(t.key, t.val(), freeze(t.left()), freeze(t.right()));
+	if(t instanceof RedEdit)
+		return red(t.key, t.val(), freeze(t.left()), freeze(t.right()));
+	return t;
+}
+
+static public final class TransientTreeMap<K,V> extends ATransientMap<K,V> {
+	final AtomicReference<Thread> edit;
+	final Comparator<K> comp;
+	Node root;
+	int count;
+	final Box found = new Box(null);
+
+	TransientTreeMap(PersistentTreeMap<K,V> m){
+		this.edit = new AtomicReference<Thread>(Thread.currentThread());
+		this.comp = m.comp;
+		this.root = m.tree;
+		this.count = m._count;
+	}
+
+	ITransientMap<K,V> doAssoc(K key, V val){
+		found.val = null;
+		root = add(edit, comp, root, key, val, found).blacken();
+		if(found.val == null)
+			count++;
+		return this;
+	}
+
+	/*
+	 * Copies the path into edit nodes, the deletion rebalancing not being
+	 * done in place.
+	 */
+	ITransientMap<K,V> doWithout(K key){
+		found.val = null;
+		Node t = remove(edit, comp, root, key, found);
+		if(found.val != null)
+			{
+			root = t == null ? null : t.blacken();
+			count--;
+			}
+		return this;
+	}
+
+	IPersistentMap<K,V> doPersistent(){
+		edit.set(null);
+		return new PersistentTreeMap<K,V>(null, comp, freeze(root), count);
+	}
+
+	V doValAt(K key, V notFound){
+		Node t = root;
+		while(t != null)
+			{
+			int c = comp.compare(key, (K) t.key);
+			if(c == 0)
+				return (V) t.val();
+			t = c < 0 ? t.left() : t.right();
+			}
+		return notFound;
+	}
+
+	int doCount(){
+		return count;
+	}
+
+	void ensureEditable(){
+		Thread owner = edit.get();
+		if(owner == Thread.currentThread())
+			return;
+		if(owner != null)
+			throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	public IPersistentCollection persistent(){
+		return persistentMap();
+	}
+}
 
 static public class Seq extends ASeq{
 	final ISeq stack;
@@ -793,6 +1471,9 @@ static public class Seq extends ASeq{
 	}
 
 	public ISeq next(){
+		// a known count may end the seq before the tree does, see slice
+		if(cnt == 1)
+			return null;
 		Node t = (Node) stack.first();
 		ISeq nextstack = push(asc ? t.right() : t.left(), stack.next(), asc);
 		if(nextstack != null)
@@ -12,29 +12,46 @@
 
 package com.trifork.clj_ds;
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 
-public class PersistentTreeSet<T> extends APersistentSet<T> implements IObj, Reversible<T>, Sorted<T>{
+public class PersistentTreeSet<T> extends APersistentSet<T> implements IObj, IEditableCollection<T>, Reversible<T>, Sorted<T>{
 static public final PersistentTreeSet EMPTY = new PersistentTreeSet(null, PersistentTreeMap.EMPTY);
 final IPersistentMap _meta;
 
 
 static public <T> PersistentTreeSet<T> create(ISeq<? extends T> items){
-	PersistentTreeSet<T> ret = EMPTY;
+	return create(RT.DEFAULT_COMPARATOR, items);
+}
+
+static public <T> PersistentTreeSet<T> create(Comparator<T> comp, ISeq<? extends T> items){
+	TransientTreeSet<T> ret = new PersistentTreeSet<T>(null, new PersistentTreeMap(null, comp)).asTransient();
 	for(; items != null; items = items.next())
 		{
-		ret = (PersistentTreeSet<T>) ret.cons(items.first());
+		ret.conj(items.first());
 		}
-	return ret;
+	return ret.persistent();
 }
 
-static public <T> PersistentTreeSet<T> create(Comparator<T> comp, ISeq<? extends T> items){
-	PersistentTreeSet<T> ret = new PersistentTreeSet<T>(null, new PersistentTreeMap(null, comp));
-	for(; items != null; items = items.next())
+/**
+ * Returns a set of the items, which must be in strictly ascending order by
+ * comp, built in O(n). See {@link PersistentTreeMap#createFromSorted}.
+ */
+static public <T> PersistentTreeSet<T> createFromSorted(Comparator<T> comp, Iterator<? extends T> items){
+	Object[] keys = new Object[16];
+	int n = 0;
+	while(items.hasNext())
 		{
-		ret = (PersistentTreeSet<T>) ret.cons(items.first());
+		if(n == keys.length)
+			keys = Arrays.copyOf(keys, n * 2);
+		keys[n++] = items.next();
 		}
-	return ret;
+	return new PersistentTreeSet<T>(null, PersistentTreeMap.fromSorted(comp, keys, keys, n));
+}
+
+static public <T> PersistentTreeSet<T> createFromSorted(Comparator<T> comp, T[] items){
+	return new PersistentTreeSet<T>(null, PersistentTreeMap.fromSorted(comp, items, items, items.length));
 }
 
 PersistentTreeSet(IPersistentMap meta, IPersistentMap impl){
@@ -84,7 +101,91 @@ public ISeq<T> seqFrom(T key, boolean ascending){
 	return RT.keys(m.seqFrom(key,ascending));
 }
 
+/**
+ * Returns the element at index i in order, in O(log n). See
+ * {@link PersistentTreeMap#nth(int)}.
+ */
+public T nth(int i){
+	return (T) ((PersistentTreeMap) impl).nth(i).key();
+}
+
+/**
+ * Returns the number of elements less than key.
+ */
+public int rank(T key){
+	return ((PersistentTreeMap<T,T>) impl).rank(key);
+}
+
+/**
+ * Returns the number of elements from lo, inclusive, to hi, exclusive.
+ */
+public int countRange(T lo, T hi){
+	return ((PersistentTreeMap<T,T>) impl).countRange(lo, hi);
+}
+
+/**
+ * Returns the elements from index start, inclusive, to end, exclusive, or
+ * null if there are none.
+ */
+public ISeq<T> slice(int start, int end){
+	return RT.keys(((PersistentTreeMap) impl).slice(start, end));
+}
+
+/**
+ * Returns {the elements less than key, the rest}, in O(log n).
+ */
+public PersistentTreeSet<T>[] split(T key){
+	PersistentTreeMap<T,T>[] s = ((PersistentTreeMap<T,T>) impl).split(key);
+	return new PersistentTreeSet[]{new PersistentTreeSet<T>(meta(), s[0]), new PersistentTreeSet<T>(meta(), s[1])};
+}
+
+/**
+ * Returns the elements from lo, inclusive, to hi, exclusive, in O(log n).
+ */
+public PersistentTreeSet<T> subSet(T lo, T hi){
+	return new PersistentTreeSet<T>(meta(), ((PersistentTreeMap<T,T>) impl).subMap(lo, hi));
+}
+
+/**
+ * Returns this set without the elements from lo, inclusive, to hi,
+ * exclusive, in O(log n).
+ */
+public PersistentTreeSet<T> withoutRange(T lo, T hi){
+	return new PersistentTreeSet<T>(meta(), ((PersistentTreeMap<T,T>) impl).withoutRange(lo, hi));
+}
+
+/**
+ * Returns the elements of left and right in one set, in O(log n). All
+ * elements of left must be less than all elements of right.
+ */
+static public <T> PersistentTreeSet<T> join(PersistentTreeSet<T> left, PersistentTreeSet<T> right){
+	return new PersistentTreeSet<T>(left.meta(),
+			PersistentTreeMap.join((PersistentTreeMap<T,T>) left.impl, (PersistentTreeMap<T,T>) right.impl));
+}
+
+/**
+ * Returns a spliterator over the elements in order that splits into
+ * subtrees, for use with {@link Reducers#fold}.
+ */
+public ISpliterator<T> splitIterator(){
+	return ((PersistentTreeMap) impl).nodeSpliterator(true);
+}
+
+public TransientTreeSet<T> asTransient(){
+	return new TransientTreeSet<T>(((PersistentTreeMap) impl).asTransient());
+}
+
 public IPersistentMap meta(){
 	return _meta;
 }
+
+static public final class TransientTreeSet<T> extends ATransientSet<T> {
+	TransientTreeSet(ITransientMap impl) {
+		super(impl);
+	}
+
+	public PersistentTreeSet<T> persistent() {
+		return new PersistentTreeSet<T>(null, impl.persistentMap());
+	}
+}
 }
@@ -13,13 +13,19 @@
 package com.trifork.clj_ds;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Stack;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveAction;
 import jsr166y.RecursiveTask;
 
 public class PersistentVector<T> extends APersistentVector<T> implements IObj, IEditableCollection<T>{
@@ -68,17 +74,13 @@ static public <T> PersistentVector<T> create(ISeq<? extends T> items){
 @SuppressWarnings("unchecked")
 static public <T> PersistentVector<T> create(List<? extends T> items){
 	TransientVector<T> ret = EMPTY.asTransient();
-	for(T item : items)
-		ret = ret.conj(item);
-	return ret.persistentMap();
+	return ret.conjAll(items).persistentMap();
 }
 
 @SuppressWarnings("unchecked")
 static public <T> PersistentVector<T> create(T ... items){
 	TransientVector<T> ret = EMPTY.asTransient();
-	for(T item : items)
-		ret = ret.conj(item);
-	return ret.persistentMap();
+	return ret.conjAll(items, 0, items.length).persistentMap();
 }
 
 PersistentVector(int cnt, int shift, Node root, Object[] tail){
@@ -141,6 +143,60 @@ public T nth(int i, T notFound){
 	return notFound;
 }
 
+/**
+ * Returns a spliterator that splits on the boundaries of the 32 element
+ * leaves, for use with {@link Reducers#fold}.
+ */
+public ISpliterator<T> splitIterator(){
+	return new VecSpliterator<T>(this, 0, cnt);
+}
+
+static final class VecSpliterator<T> implements ISpliterator<T> {
+	final PersistentVector<T> v;
+	int i;
+	final int end;
+
+	VecSpliterator(PersistentVector<T> v, int start, int end){
+		this.v = v;
+		this.i = start;
+		this.end = end;
+	}
+
+	public boolean tryAdvance(IFn f) throws Exception{
+		if(i >= end)
+			return false;
+		f.invoke(v.nth(i++));
+		return true;
+	}
+
+	public void forEachRemaining(IFn f) throws Exception{
+		while(i < end)
+			{
+			Object[] array = v.arrayFor(i);
+			int stop = Math.min(end, (i & ~0x01f) + 32);
+			for(; i < stop; i++)
+				f.invoke(array[i & 0x01f]);
+			}
+	}
+
+	public ISpliterator<T> trySplit(){
+		int mid = ((i + end) >>> 1) & ~0x01f;
+		if(mid <= i)
+			return null;
+		VecSpliterator<T> prefix = new VecSpliterator<T>(v, i, mid);
+		i = mid;
+		return prefix;
+	}
+
+	public long estimateSize(){
+		return end - i;
+	}
+
+	public int characteristics(){
+		return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+	}
+}
+
 public PersistentVector<T> assocN(int i, T val){
 	if(i >= 0 && i < cnt)
 		{
@@ -160,6 +216,37 @@ public PersistentVector<T> assocN(int i, T val){
 	throw new IndexOutOfBoundsException();
 }
 
+/**
+ * Returns this vector with each element indices[k] set to vals[k], in
+ * order, as if by assocN. The updates are made on a transient, so every
+ * node on the paths to the touched leaves is copied once however many of
+ * the indices fall below it.
+ */
+public PersistentVector<T> assocMany(int[] indices, Object[] vals){
+	if(indices.length != vals.length)
+		throw new IllegalArgumentException("Indices and values differ in length");
+	if(indices.length == 0)
+		return this;
+	TransientVector<T> ret = asTransient();
+	for(int k = 0; k < indices.length; k++)
+		ret.assocN(indices[k], (T) vals[k]);
+	return _meta == null ? ret.persistentMap() : ret.persistentMap().withMeta(_meta);
+}
+
+/**
+ * Returns this vector with each element indices[k] replaced by f applied
+ * to it, in order, copying nodes as {@link #assocMany} does. An index
+ * given twice is updated twice.
+ */
+public PersistentVector<T> updateMany(int[] indices, IFn f) throws Exception{
+	if(indices.length == 0)
+		return this;
+	TransientVector<T> ret = asTransient();
+	for(int i : indices)
+		ret.assocN(i, (T) f.invoke(ret.nth(i)));
+	return _meta == null ? ret.persistentMap() : ret.persistentMap().withMeta(_meta);
+}
+
 private static Node doAssoc(int level, Node node, int i, Object val){
 	Node ret = new Node(node.edit,node.array.clone());
 	if(level == 0)
@@ -215,6 +302,41 @@ public PersistentVector<T> cons(T val){
 	return new PersistentVector<T>(meta(), cnt + 1, newshift, newroot, new Object[]{val});
 }
 
+/**
+ * Returns this vector with src[off] to src[off + len - 1] appended, built
+ * a leaf at a time by {@link TransientVector#conjAll(Object[], int, int)}.
+ */
+public PersistentVector<T> conjAll(Object[] src, int off, int len){
+	if(len == 0)
+		return this;
+	PersistentVector<T> ret = asTransient().conjAll(src, off, len).persistentMap();
+	return _meta == null ? ret : ret.withMeta(_meta);
+}
+
+public PersistentVector<T> conjAll(Collection<? extends T> items){
+	Object[] src = items.toArray();
+	return conjAll(src, 0, src.length);
+}
+
+/**
+ * Returns the elements of this vector sorted by comp, as a new vector
+ * with the same meta. The sort is stable. See also
+ * {@link #parallelSorted(Comparator)}.
+ */
+@SuppressWarnings("unchecked")
+public PersistentVector<T> sorted(Comparator<? super T> comp){
+	Object[] a = new Object[cnt];
+	for(int i = 0; i < cnt; i += 32)
+		System.arraycopy(arrayFor(i), 0, a, i, Math.min(32, cnt - i));
+	Arrays.sort(a, (Comparator) comp);
+	return fromSorted(a);
+}
+
+private PersistentVector<T> fromSorted(Object[] a){
+	PersistentVector<T> ret = EMPTY.asTransient().conjAll(a, 0, a.length).persistentMap();
+	return _meta == null ? ret : ret.withMeta(_meta);
+}
+
 private Node pushTail(int level, Node parent, Node tailnode){
 	//if parent is leaf, insert node,
 	// else does it map to an existing child? -> nodeToInsert = pushNode one more level
@@ -330,6 +452,9 @@ final static class PersistentVectorIterator<T> implements Iterator<T> {
 	}
 	@Override
 	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
 		return (T) current[currentIndex++];
 	}
 	
@@ -494,7 +619,7 @@ private Node popTail(int level, Node node){
 		}
 }
 
-static final class TransientVector<T> extends AFn implements ITransientVector<T>, Counted{
+static public final class TransientVector<T> extends AFn implements ITransientVector<T>, Counted{
 	int cnt;
 	int shift;
 	Node root;
@@ -590,6 +715,76 @@ static final class TransientVector<T> extends AFn implements ITransientVector<T>
 		return this;
 	}
 
+	/**
+	 * Appends src[off] to src[off + len - 1]. Whole leaves are copied out
+	 * of src with System.arraycopy and linked straight into the rightmost
+	 * leaf parent, which is looked up once per 32 leaves.
+	 */
+	public TransientVector<T> conjAll(Object[] src, int off, int len){
+		ensureEditable();
+		if(off < 0 || len < 0 || off + len > src.length)
+			throw new IndexOutOfBoundsException();
+		int end = off + len;
+		while(off < end)
+			{
+			int n = cnt - tailoff();
+			//room in tail?
+			if(n < 32)
+				{
+				int k = Math.min(32 - n, end - off);
+				System.arraycopy(src, off, tail, n, k);
+				cnt += k;
+				off += k;
+				}
+			else
+				off = pushLeaves(src, off, end);
+			}
+		return this;
+	}
+
+	public TransientVector<T> conjAll(Collection<? extends T> items){
+		Object[] src = items.toArray();
+		return conjAll(src, 0, src.length);
+	}
+
+	/*
+	 * Pushes the full tail into the tree, links as many whole leaves of src
+	 * as fit after it in its parent, and starts a new tail with what
+	 * follows. Returns the offset in src of the first element not consumed.
+	 */
+	private int pushLeaves(Object[] src, int off, int end){
+		Node tailnode = new Node(root.edit, tail);
+		//overflow root?
+		if((cnt >>> 5) > (1 << shift))
+			{
+			Node newroot = new Node(root.edit);
+			newroot.array[0] = root;
+			newroot.array[1] = newPath(root.edit,shift, tailnode);
+			root = newroot;
+			shift += 5;
+			}
+		else
+			root = pushTail(shift, root, tailnode);
+		//the path to the pushed leaf is now editable
+		Node parent = root;
+		for(int level = shift; level > 5; level -= 5)
+			parent = (Node) parent.array[((cnt - 1) >>> level) & 0x01f];
+		//leave 1 to 32 elements for the tail
+		for(int i = (((cnt - 1) >>> 5) & 0x01f) + 1; i < 32 && end - off > 32; i++)
+			{
+			Object[] leaf = new Object[32];
+			System.arraycopy(src, off, leaf, 0, 32);
+			parent.array[i] = new Node(root.edit, leaf);
+			off += 32;
+			cnt += 32;
+			}
+		int k = Math.min(32, end - off);
+		tail = new Object[32];
+		System.arraycopy(src, off, tail, 0, k);
+		cnt += k;
+		return off + k;
+	}
+
 	private Node pushTail(int level, Node parent, Node tailnode){
 		//if parent is leaf, insert node,
 		// else does it map to an existing child? -> nodeToInsert = pushNode one more level
@@ -870,8 +1065,18 @@ public static IPersistentVector vectormap(IFn f, PersistentVector v) {
 }
 static final ForkJoinPool mainPool = new ForkJoinPool();
 
+/*
+ * The parallel operations below run on mainPool and process parts of
+ * Reducers.DEFAULT_GRANULARITY elements sequentially, unless given a pool
+ * and a granularity n, which is rounded up to whole 32 element leaves.
+ */
+
 public static IPersistentVector pvectormap(IFn f, PersistentVector v) {
-	Node invoke = mainPool.invoke(new PMapTask(f, v.shift,v.root));
+	return pvectormap(mainPool, Reducers.DEFAULT_GRANULARITY, f, v);
+}
+
+public static IPersistentVector pvectormap(ForkJoinPool pool, int n, IFn f, PersistentVector v) {
+	Node invoke = pool.invoke(new PMapTask(f, v.shift, v.root, n));
 	return new PersistentVector(v._meta,v.cnt,v.shift,invoke, mapArray(f,v.tail));
 }
 
@@ -880,25 +1085,28 @@ static final class PMapTask extends RecursiveTask<Node> {
 	private IFn f;
 	private int shift;
 	private Node node;
+	private int n;
 
-	public PMapTask(IFn f, int shift, Node node) {
+	public PMapTask(IFn f, int shift, Node node, int n) {
 		this.f = f;
 		this.shift = shift;
 		this.node = node;
+		this.n = n;
 	}
    
 	public Node compute() {
 		if (node == null) {
 			return null;
 		}
-	   if (this.shift <= 5) {
+	   // map subtrees of at most n elements sequentially
+	   if (this.shift <= 5 || (1L << (shift + 5)) <= n) {
 		   return mapNode(f,node,shift);
 	   }
 
 	   PMapTask[] tasks = new PMapTask[node.array.length];
 	   shift -= 5;
 	   for (int i=0;i<tasks.length;i++) {
-		   tasks[i] = new PMapTask(f,shift,(Node) node.array[i]);
+		   tasks[i] = new PMapTask(f,shift,(Node) node.array[i],n);
 	   }
 	   invokeAll(tasks);
 	   Node[] nodes = new Node[node.array.length];
@@ -916,6 +1124,374 @@ static final class PMapTask extends RecursiveTask<Node> {
    }
 }	
 
+/**
+ * Returns the elements of v for which pred is true, in order, as a new
+ * dense vector. pred is applied in parallel.
+ */
+public static <T> PersistentVector<T> pfilter(IFn pred, PersistentVector<T> v) {
+	return pfilter(mainPool, Reducers.DEFAULT_GRANULARITY, pred, v);
+}
+
+public static <T> PersistentVector<T> pfilter(ForkJoinPool pool, int n, IFn pred, PersistentVector<T> v) {
+	FilterTask task = new FilterTask(v, partSize(n), pred);
+	pool.invoke(task);
+	TransientVector<T> ret = EMPTY.asTransient();
+	for (Object[] part : task.results) {
+		ret.conjAll(part, 0, part.length);
+	}
+	return ret.persistentMap();
+}
+
+/**
+ * Folds v in parallel with {@link Reducers#fold}: parts are reduced with
+ * reducef starting from combinef.invoke(), and adjacent results combined
+ * with combinef.
+ */
+public static Object pfold(IFn combinef, IFn reducef, PersistentVector v) {
+	return pfold(mainPool, Reducers.DEFAULT_GRANULARITY, combinef, reducef, v);
+}
+
+public static Object pfold(ForkJoinPool pool, int n, IFn combinef, IFn reducef, PersistentVector v) {
+	return Reducers.fold(pool, partSize(n), v.splitIterator(), combinef, reducef);
+}
+
+/**
+ * Returns the least index of an element of v for which pred is true, or
+ * -1. Parts are searched in parallel, and parts beyond an index already
+ * found are skipped.
+ */
+public static int pindexOf(IFn pred, PersistentVector v) {
+	return pindexOf(mainPool, Reducers.DEFAULT_GRANULARITY, pred, v);
+}
+
+public static int pindexOf(ForkJoinPool pool, int n, IFn pred, PersistentVector v) {
+	SearchTask task = new SearchTask(v, partSize(n), pred, true);
+	pool.invoke(task);
+	int i = task.found.get();
+	return i < v.cnt ? i : -1;
+}
+
+public static boolean pany(IFn pred, PersistentVector v) {
+	return pany(mainPool, Reducers.DEFAULT_GRANULARITY, pred, v);
+}
+
+public static boolean pany(ForkJoinPool pool, int n, IFn pred, PersistentVector v) {
+	return pindexOf(pool, n, pred, v) >= 0;
+}
+
+public static boolean pevery(IFn pred, PersistentVector v) {
+	return pevery(mainPool, Reducers.DEFAULT_GRANULARITY, pred, v);
+}
+
+public static boolean pevery(ForkJoinPool pool, int n, IFn pred, PersistentVector v) {
+	SearchTask task = new SearchTask(v, partSize(n), pred, false);
+	pool.invoke(task);
+	return task.found.get() >= v.cnt;
+}
+
+/**
+ * Sorts like {@link #sorted(Comparator)}, on mainPool. The leaves are copied
+ * out in parallel, then sorted with a fork-join merge sort whose parts of
+ * up to SORT_GRANULARITY elements are sorted with Arrays.sort, and whose
+ * merges are themselves split in parallel.
+ */
+public PersistentVector<T> parallelSorted(Comparator<? super T> comp) {
+	return parallelSorted(mainPool, SORT_GRANULARITY, comp);
+}
+
+// larger than Reducers.DEFAULT_GRANULARITY, as every halving of the parts
+// costs another merge pass over the whole array
+static final int SORT_GRANULARITY = 8192;
+
+public PersistentVector<T> parallelSorted(ForkJoinPool pool, int n, Comparator<? super T> comp) {
+	// a part of one element is sorted, so SortTask always reaches a leaf
+	n = Math.max(n, 1);
+	if (cnt <= n) {
+		return sorted(comp);
+	}
+	// both arrays start out holding the elements, see SortTask
+	Object[] a = new Object[cnt];
+	Object[] aux = new Object[cnt];
+	pool.invoke(new CopyTask(this, partSize(n), a, aux));
+	pool.invoke(new SortTask(aux, a, 0, cnt, n, comp));
+	return fromSorted(a);
+}
+
+private static int partSize(int n) {
+	return Math.max(32, (n + 31) & ~0x01f);
+}
+
+/*
+ * Processes the parts first until end of v, each of size elements except
+ * the last, splitting the range of parts in halves. The left half runs in
+ * the calling thread, so parts tend to complete from left to right.
+ */
+static abstract class PartTask extends RecursiveAction {
+	final PersistentVector v;
+	final int size;
+	final int first;
+	final int end;
+
+	PartTask(PersistentVector v, int size, int first, int end) {
+		this.v = v;
+		this.size = size;
+		this.first = first;
+		this.end = end;
+	}
+
+	PartTask(PersistentVector v, int size) {
+		this(v, size, 0, (v.cnt + size - 1) / size);
+	}
+
+	abstract PartTask split(int first, int end);
+
+	abstract void part(int part, int from, int to) throws Exception;
+
+	protected void compute() {
+		if (end - first > 1) {
+			int mid = (first + end) >>> 1;
+			invokeAll(split(first, mid), split(mid, end));
+			return;
+		}
+		if (end == first) {
+			return;
+		}
+		try {
+			part(first, first * size, Math.min(v.cnt, (first + 1) * size));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
+
+static final class FilterTask extends PartTask {
+	final IFn pred;
+	final Object[][] results;
+
+	FilterTask(PersistentVector v, int size, IFn pred) {
+		super(v, size);
+		this.pred = pred;
+		this.results = new Object[end][];
+	}
+
+	FilterTask(FilterTask parent, int first, int end) {
+		super(parent.v, parent.size, first, end);
+		this.pred = parent.pred;
+		this.results = parent.results;
+	}
+
+	PartTask split(int first, int end) {
+		return new FilterTask(this, first, end);
+	}
+
+	void part(int part, int from, int to) throws Exception {
+		Object[] kept = new Object[to - from];
+		int k = 0;
+		for (int i = from; i < to; i += 32) {
+			Object[] array = v.arrayFor(i);
+			for (int j = 0, stop = Math.min(32, to - i); j < stop; j++) {
+				if (RT.booleanCast(pred.invoke(array[j]))) {
+					kept[k++] = array[j];
+				}
+			}
+		}
+		Object[] ret = new Object[k];
+		System.arraycopy(kept, 0, ret, 0, k);
+		results[part] = ret;
+	}
+}
+
+/*
+ * Finds the least index whose element satisfies pred, or fails it when
+ * wanted is false. found holds the least index seen so far, or v.cnt.
+ */
+static final class SearchTask extends PartTask {
+	final IFn pred;
+	final boolean wanted;
+	final AtomicInteger found;
+
+	SearchTask(PersistentVector v, int size, IFn pred, boolean wanted) {
+		super(v, size);
+		this.pred = pred;
+		this.wanted = wanted;
+		this.found = new AtomicInteger(v.cnt);
+	}
+
+	SearchTask(SearchTask parent, int first, int end) {
+		super(parent.v, parent.size, first, end);
+		this.pred = parent.pred;
+		this.wanted = parent.wanted;
+		this.found = parent.found;
+	}
+
+	PartTask split(int first, int end) {
+		return new SearchTask(this, first, end);
+	}
+
+	protected void compute() {
+		if (first * size < found.get()) {
+			super.compute();
+		}
+	}
+
+	void part(int part, int from, int to) throws Exception {
+		for (int i = from; i < to && i < found.get(); i += 32) {
+			Object[] array = v.arrayFor(i);
+			for (int j = 0, stop = Math.min(32, to - i); j < stop; j++) {
+				if (RT.booleanCast(pred.invoke(array[j])) == wanted) {
+					for (int f = found.get(); i + j < f; f = found.get()) {
+						if (found.compareAndSet(f, i + j)) {
+							break;
+						}
+					}
+					return;
+				}
+			}
+		}
+	}
+}
+
+static final class CopyTask extends PartTask {
+	final Object[] a;
+	final Object[] b;
+
+	CopyTask(PersistentVector v, int size, Object[] a, Object[] b) {
+		super(v, size);
+		this.a = a;
+		this.b = b;
+	}
+
+	CopyTask(CopyTask parent, int first, int end) {
+		super(parent.v, parent.size, first, end);
+		this.a = parent.a;
+		this.b = parent.b;
+	}
+
+	PartTask split(int first, int end) {
+		return new CopyTask(this, first, end);
+	}
+
+	void part(int part, int from, int to) {
+		for (int i = from; i < to; i += 32) {
+			Object[] array = v.arrayFor(i);
+			int len = Math.min(32, to - i);
+			System.arraycopy(array, 0, a, i, len);
+			System.arraycopy(array, 0, b, i, len);
+		}
+	}
+}
+
+/*
+ * Sorts src[lo, hi) into dst[lo, hi). Both ranges must hold the same
+ * elements to begin with: the halves are sorted the other way round, from
+ * dst into src, and merged back, so the leaves can sort dst in place.
+ */
+static final class SortTask extends RecursiveAction {
+	final Object[] src;
+	final Object[] dst;
+	final int lo;
+	final int hi;
+	final int n;
+	final Comparator comp;
+
+	SortTask(Object[] src, Object[] dst, int lo, int hi, int n, Comparator comp) {
+		this.src = src;
+		this.dst = dst;
+		this.lo = lo;
+		this.hi = hi;
+		this.n = n;
+		this.comp = comp;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void compute() {
+		if (hi - lo <= n) {
+			Arrays.sort(dst, lo, hi, comp);
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		invokeAll(new SortTask(dst, src, lo, mid, n, comp), new SortTask(dst, src, mid, hi, n, comp));
+		new MergeTask(src, dst, lo, mid, mid, hi, lo, n, comp).compute();
+	}
+}
+
+/*
+ * Merges the sorted runs src[lo1, hi1) and src[lo2, hi2), the first run
+ * preceding the second, into dst from out. Large merges are split at the
+ * middle of the longer run and the matching position in the other, found
+ * by binary search on the side that keeps equal elements in order.
+ */
+static final class MergeTask extends RecursiveAction {
+	final Object[] src;
+	final Object[] dst;
+	final int lo1, hi1, lo2, hi2, out;
+	final int n;
+	final Comparator comp;
+
+	MergeTask(Object[] src, Object[] dst, int lo1, int hi1, int lo2, int hi2, int out, int n, Comparator comp) {
+		this.src = src;
+		this.dst = dst;
+		this.lo1 = lo1;
+		this.hi1 = hi1;
+		this.lo2 = lo2;
+		this.hi2 = hi2;
+		this.out = out;
+		this.n = n;
+		this.comp = comp;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void compute() {
+		if (lo1 == hi1 || lo2 == hi2 || comp.compare(src[hi1 - 1], src[lo2]) <= 0) {
+			System.arraycopy(src, lo1, dst, out, hi1 - lo1);
+			System.arraycopy(src, lo2, dst, out + hi1 - lo1, hi2 - lo2);
+			return;
+		}
+		if (hi1 - lo1 + hi2 - lo2 > n) {
+			int m1, m2;
+			if (hi1 - lo1 >= hi2 - lo2) {
+				// first element of the second run not less than src[m1]
+				m1 = (lo1 + hi1) >>> 1;
+				int l = lo2, h = hi2;
+				while (l < h) {
+					int m = (l + h) >>> 1;
+					if (comp.compare(src[m], src[m1]) < 0)
+						l = m + 1;
+					else
+						h = m;
+				}
+				m2 = l;
+			} else {
+				// first element of the first run greater than src[m2]
+				m2 = (lo2 + hi2) >>> 1;
+				int l = lo1, h = hi1;
+				while (l < h) {
+					int m = (l + h) >>> 1;
+					if (comp.compare(src[m], src[m2]) <= 0)
+						l = m + 1;
+					else
+						h = m;
+				}
+				m1 = l;
+			}
+			invokeAll(new MergeTask(src, dst, lo1, m1, lo2, m2, out, n, comp),
+					new MergeTask(src, dst, m1, hi1, m2, hi2, out + m1 - lo1 + m2 - lo2, n, comp));
+			return;
+		}
+		int i = lo1, j = lo2, k = out;
+		while (i < hi1 && j < hi2) {
+			if (comp.compare(src[j], src[i]) < 0)
+				dst[k++] = src[j++];
+			else
+				dst[k++] = src[i++];
+		}
+		System.arraycopy(src, i, dst, k, hi1 - i);
+		System.arraycopy(src, j, dst, k + hi1 - i, hi2 - j);
+	}
+}
+
 private static Object[] mapArray(IFn f, Object[] arr) {
 	Object[] res = new Object[arr.length];
 	System.arraycopy(arr, 0, res, 0, arr.length);
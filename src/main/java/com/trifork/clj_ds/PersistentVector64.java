@@ -0,0 +1,493 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.trifork.clj_ds.PersistentVector.Node;
+
+/**
+ * {@link PersistentVector} with 64-way nodes: the index is consumed 6 bits
+ * per level instead of 5, so a vector of a million elements is three
+ * levels deep instead of four, at the price of copying 64 slots per level
+ * on every update.
+ */
+public class PersistentVector64<T> extends APersistentVector<T> implements IObj, IEditableCollection<T>{
+
+final static Node EMPTY_NODE = new Node(PersistentVector.NOEDIT, new Object[64]);
+
+final int cnt;
+final int shift;
+final Node root;
+final Object[] tail;
+final IPersistentMap _meta;
+
+@SuppressWarnings("unchecked")
+public final static PersistentVector64 EMPTY = new PersistentVector64(null, 0, 6, EMPTY_NODE, new Object[]{});
+
+@SuppressWarnings("unchecked")
+static public <T> PersistentVector64<T> emptyVector(){
+	return EMPTY;
+}
+
+@SuppressWarnings("unchecked")
+static public <T> PersistentVector64<T> create(T... items){
+	TransientVector64<T> ret = EMPTY.asTransient();
+	for(T item : items)
+		ret = ret.conj(item);
+	return ret.persistentMap();
+}
+
+PersistentVector64(IPersistentMap meta, int cnt, int shift, Node root, Object[] tail){
+	this._meta = meta;
+	this.cnt = cnt;
+	this.shift = shift;
+	this.root = root;
+	this.tail = tail;
+}
+
+public TransientVector64<T> asTransient(){
+	return new TransientVector64<T>(this);
+}
+
+final int tailoff(){
+	if(cnt < 64)
+		return 0;
+	return ((cnt - 1) >>> 6) << 6;
+}
+
+Object[] arrayFor(int i){
+	if(i >= 0 && i < cnt)
+		{
+		if(i >= tailoff())
+			return tail;
+		Node node = root;
+		for(int level = shift; level > 0; level -= 6)
+			node = (Node) node.array[(i >>> level) & 0x03f];
+		return node.array;
+		}
+	throw new IndexOutOfBoundsException();
+}
+
+public T nth(int i){
+	Object[] node = arrayFor(i);
+	return (T) node[i & 0x03f];
+}
+
+public PersistentVector64<T> assocN(int i, T val){
+	if(i >= 0 && i < cnt)
+		{
+		if(i >= tailoff())
+			{
+			Object[] newTail = tail.clone();
+			newTail[i & 0x03f] = val;
+			return new PersistentVector64<T>(_meta, cnt, shift, root, newTail);
+			}
+		return new PersistentVector64<T>(_meta, cnt, shift, doAssoc(shift, root, i, val), tail);
+		}
+	if(i == cnt)
+		return cons(val);
+	throw new IndexOutOfBoundsException();
+}
+
+private static Node doAssoc(int level, Node node, int i, Object val){
+	Node ret = new Node(node.edit, node.array.clone());
+	if(level == 0)
+		{
+		ret.array[i & 0x03f] = val;
+		}
+	else
+		{
+		int subidx = (i >>> level) & 0x03f;
+		ret.array[subidx] = doAssoc(level - 6, (Node) node.array[subidx], i, val);
+		}
+	return ret;
+}
+
+public int count(){
+	return cnt;
+}
+
+public PersistentVector64<T> withMeta(IPersistentMap meta){
+	return new PersistentVector64<T>(meta, cnt, shift, root, tail);
+}
+
+public IPersistentMap meta(){
+	return _meta;
+}
+
+public PersistentVector64<T> cons(T val){
+	//room in tail?
+	if(cnt - tailoff() < 64)
+		{
+		Object[] newTail = new Object[tail.length + 1];
+		System.arraycopy(tail, 0, newTail, 0, tail.length);
+		newTail[tail.length] = val;
+		return new PersistentVector64<T>(_meta, cnt + 1, shift, root, newTail);
+		}
+	//full tail, push into tree
+	Node newroot;
+	Node tailnode = new Node(root.edit, tail);
+	int newshift = shift;
+	//overflow root?
+	if((cnt >>> 6) > (1 << shift))
+		{
+		newroot = new Node(root.edit, new Object[64]);
+		newroot.array[0] = root;
+		newroot.array[1] = newPath(root.edit, shift, tailnode);
+		newshift += 6;
+		}
+	else
+		newroot = pushTail(shift, root, tailnode);
+	return new PersistentVector64<T>(_meta, cnt + 1, newshift, newroot, new Object[]{val});
+}
+
+private Node pushTail(int level, Node parent, Node tailnode){
+	int subidx = ((cnt - 1) >>> level) & 0x03f;
+	Node ret = new Node(parent.edit, parent.array.clone());
+	Node nodeToInsert;
+	if(level == 6)
+		{
+		nodeToInsert = tailnode;
+		}
+	else
+		{
+		Node child = (Node) parent.array[subidx];
+		nodeToInsert = (child != null) ?
+		               pushTail(level - 6, child, tailnode)
+		                               : newPath(root.edit, level - 6, tailnode);
+		}
+	ret.array[subidx] = nodeToInsert;
+	return ret;
+}
+
+private static Node newPath(AtomicReference<Thread> edit, int level, Node node){
+	if(level == 0)
+		return node;
+	Node ret = new Node(edit, new Object[64]);
+	ret.array[0] = newPath(edit, level - 6, node);
+	return ret;
+}
+
+public PersistentVector64<T> pop(){
+	if(cnt == 0)
+		throw new IllegalStateException("Can't pop empty vector");
+	if(cnt == 1)
+		return EMPTY.withMeta(meta());
+	if(cnt - tailoff() > 1)
+		{
+		Object[] newTail = new Object[tail.length - 1];
+		System.arraycopy(tail, 0, newTail, 0, newTail.length);
+		return new PersistentVector64<T>(_meta, cnt - 1, shift, root, newTail);
+		}
+	Object[] newtail = arrayFor(cnt - 2);
+
+	Node newroot = popTail(shift, root);
+	int newshift = shift;
+	if(newroot == null)
+		{
+		newroot = EMPTY_NODE;
+		}
+	if(shift > 6 && newroot.array[1] == null)
+		{
+		newroot = (Node) newroot.array[0];
+		newshift -= 6;
+		}
+	return new PersistentVector64<T>(_meta, cnt - 1, newshift, newroot, newtail);
+}
+
+private Node popTail(int level, Node node){
+	int subidx = ((cnt - 2) >>> level) & 0x03f;
+	if(level > 6)
+		{
+		Node newchild = popTail(level - 6, (Node) node.array[subidx]);
+		if(newchild == null && subidx == 0)
+			return null;
+		Node ret = new Node(root.edit, node.array.clone());
+		ret.array[subidx] = newchild;
+		return ret;
+		}
+	else if(subidx == 0)
+		return null;
+	Node ret = new Node(root.edit, node.array.clone());
+	ret.array[subidx] = null;
+	return ret;
+}
+
+public IPersistentCollection<T> empty(){
+	return EMPTY.withMeta(meta());
+}
+
+public Iterator<T> iterator(){
+	return new Iterator<T>(){
+		int i = 0;
+		Object[] array;
+
+		public boolean hasNext(){
+			return i < cnt;
+		}
+
+		public T next(){
+			if(i >= cnt)
+				throw new NoSuchElementException();
+			if((i & 0x03f) == 0)
+				array = arrayFor(i);
+			return (T) array[i++ & 0x03f];
+		}
+
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	};
+}
+
+static public final class TransientVector64<T> extends AFn implements ITransientVector<T>, Counted{
+	int cnt;
+	int shift;
+	Node root;
+	Object[] tail;
+
+	TransientVector64(PersistentVector64<? extends T> v){
+		this.cnt = v.cnt;
+		this.shift = v.shift;
+		this.root = new Node(new AtomicReference<Thread>(Thread.currentThread()), v.root.array.clone());
+		this.tail = new Object[64];
+		System.arraycopy(v.tail, 0, tail, 0, v.tail.length);
+	}
+
+	public int count(){
+		ensureEditable();
+		return cnt;
+	}
+
+	Node ensureEditable(Node node){
+		if(node.edit == root.edit)
+			return node;
+		return new Node(root.edit, node.array.clone());
+	}
+
+	void ensureEditable(){
+		Thread owner = root.edit.get();
+		if(owner == Thread.currentThread())
+			return;
+		if(owner != null)
+			throw new IllegalAccessError("Transient used by non-owner thread");
+		throw new IllegalAccessError("Transient used after persistent! call");
+	}
+
+	public PersistentVector64<T> persistentMap(){
+		ensureEditable();
+		root.edit.set(null);
+		Object[] trimmedTail = new Object[cnt - tailoff()];
+		System.arraycopy(tail, 0, trimmedTail, 0, trimmedTail.length);
+		return new PersistentVector64<T>(null, cnt, shift, root, trimmedTail);
+	}
+
+	public IPersistentCollection persistent(){
+		return persistentMap();
+	}
+
+	public TransientVector64<T> conj(Object val){
+		ensureEditable();
+		int i = cnt;
+		//room in tail?
+		if(i - tailoff() < 64)
+			{
+			tail[i & 0x03f] = val;
+			++cnt;
+			return this;
+			}
+		//full tail, push into tree
+		Node newroot;
+		Node tailnode = new Node(root.edit, tail);
+		tail = new Object[64];
+		tail[0] = val;
+		int newshift = shift;
+		//overflow root?
+		if((cnt >>> 6) > (1 << shift))
+			{
+			newroot = new Node(root.edit, new Object[64]);
+			newroot.array[0] = root;
+			newroot.array[1] = newPath(root.edit, shift, tailnode);
+			newshift += 6;
+			}
+		else
+			newroot = pushTail(shift, root, tailnode);
+		root = newroot;
+		shift = newshift;
+		++cnt;
+		return this;
+	}
+
+	private Node pushTail(int level, Node parent, Node tailnode){
+		parent = ensureEditable(parent);
+		int subidx = ((cnt - 1) >>> level) & 0x03f;
+		Node nodeToInsert;
+		if(level == 6)
+			{
+			nodeToInsert = tailnode;
+			}
+		else
+			{
+			Node child = (Node) parent.array[subidx];
+			nodeToInsert = (child != null) ?
+			               pushTail(level - 6, child, tailnode)
+			                               : newPath(root.edit, level - 6, tailnode);
+			}
+		parent.array[subidx] = nodeToInsert;
+		return parent;
+	}
+
+	final private int tailoff(){
+		if(cnt < 64)
+			return 0;
+		return ((cnt - 1) >>> 6) << 6;
+	}
+
+	private Object[] arrayFor(int i){
+		if(i >= 0 && i < cnt)
+			{
+			if(i >= tailoff())
+				return tail;
+			Node node = root;
+			for(int level = shift; level > 0; level -= 6)
+				node = (Node) node.array[(i >>> level) & 0x03f];
+			return node.array;
+			}
+		throw new IndexOutOfBoundsException();
+	}
+
+	private Object[] editableArrayFor(int i){
+		if(i >= 0 && i < cnt)
+			{
+			if(i >= tailoff())
+				return tail;
+			root = ensureEditable(root);
+			Node node = root;
+			for(int level = shift; level > 0; level -= 6)
+				{
+				int subidx = (i >>> level) & 0x03f;
+				Node child = ensureEditable((Node) node.array[subidx]);
+				node.array[subidx] = child;
+				node = child;
+				}
+			return node.array;
+			}
+		throw new IndexOutOfBoundsException();
+	}
+
+	public Object valAt(Object key){
+		//note - relies on ensureEditable in 2-arg valAt
+		return valAt(key, null);
+	}
+
+	public Object valAt(Object key, Object notFound){
+		ensureEditable();
+		if(Util.isInteger(key))
+			{
+			int i = ((Number) key).intValue();
+			if(i >= 0 && i < cnt)
+				return nth(i);
+			}
+		return notFound;
+	}
+
+	public Object invoke(Object arg1) throws Exception{
+		//note - relies on ensureEditable in nth
+		if(Util.isInteger(arg1))
+			return nth(((Number) arg1).intValue());
+		throw new IllegalArgumentException("Key must be integer");
+	}
+
+	public T nth(int i){
+		ensureEditable();
+		Object[] node = arrayFor(i);
+		return (T) node[i & 0x03f];
+	}
+
+	public T nth(int i, T notFound){
+		if(i >= 0 && i < count())
+			return nth(i);
+		return notFound;
+	}
+
+	public TransientVector64<T> assocN(int i, T val){
+		ensureEditable();
+		if(i == cnt)
+			return conj(val);
+		editableArrayFor(i)[i & 0x03f] = val;
+		return this;
+	}
+
+	public TransientVector64<T> assoc(Object key, Object val){
+		//note - relies on ensureEditable in assocN
+		if(Util.isInteger(key))
+			return assocN(((Number) key).intValue(), (T) val);
+		throw new IllegalArgumentException("Key must be integer");
+	}
+
+	public TransientVector64<T> pop(){
+		ensureEditable();
+		if(cnt == 0)
+			throw new IllegalStateException("Can't pop empty vector");
+		if(cnt == 1)
+			{
+			cnt = 0;
+			return this;
+			}
+		int i = cnt - 1;
+		//pop in tail?
+		if((i & 0x03f) > 0)
+			{
+			--cnt;
+			return this;
+			}
+
+		Object[] newtail = editableArrayFor(cnt - 2);
+
+		Node newroot = popTail(shift, root);
+		int newshift = shift;
+		if(newroot == null)
+			{
+			newroot = new Node(root.edit, new Object[64]);
+			}
+		if(shift > 6 && newroot.array[1] == null)
+			{
+			newroot = (Node) newroot.array[0];
+			newshift -= 6;
+			}
+		root = newroot;
+		shift = newshift;
+		--cnt;
+		tail = newtail;
+		return this;
+	}
+
+	private Node popTail(int level, Node node){
+		node = ensureEditable(node);
+		int subidx = ((cnt - 2) >>> level) & 0x03f;
+		if(level > 6)
+			{
+			Node newchild = popTail(level - 6, (Node) node.array[subidx]);
+			if(newchild == null && subidx == 0)
+				return null;
+			node.array[subidx] = newchild;
+			return node;
+			}
+		else if(subidx == 0)
+			return null;
+		node.array[subidx] = null;
+		return node;
+	}
+}
+}
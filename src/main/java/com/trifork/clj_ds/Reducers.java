@@ -0,0 +1,86 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveTask;
+
+/**
+ * Parallel reduction over {@link ISpliterator}s on a fork/join pool, after
+ * clojure.core.reducers/fold.
+ */
+public final class Reducers{
+
+/*
+ * Default number of elements below which a part is reduced sequentially.
+ */
+static final int DEFAULT_GRANULARITY = 512;
+
+private Reducers(){
+}
+
+/**
+ * Reduces the elements of s in parallel on the pool shared with
+ * {@link PersistentVector#pvectormap}. Each part is reduced with reducef
+ * starting from combinef.invoke(), and the results of adjacent parts are
+ * combined with combinef.invoke(left, right).
+ */
+public static Object fold(ISpliterator s, IFn combinef, IFn reducef){
+	return fold(PersistentVector.mainPool, DEFAULT_GRANULARITY, s, combinef, reducef);
+}
+
+public static Object fold(ForkJoinPool pool, int n, ISpliterator s, IFn combinef, IFn reducef){
+	return pool.invoke(new FoldTask(s, n, combinef, reducef));
+}
+
+static final class FoldTask extends RecursiveTask<Object>{
+	final ISpliterator s;
+	final int n;
+	final IFn combinef;
+	final IFn reducef;
+
+	FoldTask(ISpliterator s, int n, IFn combinef, IFn reducef){
+		this.s = s;
+		this.n = n;
+		this.combinef = combinef;
+		this.reducef = reducef;
+	}
+
+	protected Object compute(){
+		try
+			{
+			ISpliterator prefix = s.estimateSize() > n ? s.trySplit() : null;
+			if(prefix == null)
+				{
+				final Object[] acc = {combinef.invoke()};
+				s.forEachRemaining(new AFn(){
+					public Object invoke(Object x) throws Exception{
+						return acc[0] = reducef.invoke(acc[0], x);
+					}
+				});
+				return acc[0];
+				}
+			FoldTask right = new FoldTask(s, n, combinef, reducef);
+			right.fork();
+			Object left = new FoldTask(prefix, n, combinef, reducef).compute();
+			return combinef.invoke(left, right.join());
+			}
+		catch(RuntimeException e)
+			{
+			throw e;
+			}
+		catch(Exception e)
+			{
+			throw new RuntimeException(e);
+			}
+	}
+}
+}
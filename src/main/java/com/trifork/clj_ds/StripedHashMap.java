@@ -0,0 +1,166 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package com.trifork.clj_ds;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A concurrent map kept as a number of independent PersistentHashMap
+ * stripes, each updated with its own compare-and-set, so that writers to
+ * different stripes never retry on each other's account. Keys are assigned
+ * to stripes by the low bits of their hashes, the bits the root of a
+ * PersistentHashMap is indexed by, which lets {@link #snapshot()} join the
+ * stripes into a single PersistentHashMap sharing all their subtrees.
+ * <p>
+ * Every single-key operation is atomic. {@link #size()} and
+ * {@link #snapshot()} read the stripes one after the other, so they are
+ * consistent per stripe but may see an update to one stripe and miss an
+ * earlier one to another, like the aggregate operations of
+ * java.util.concurrent.ConcurrentHashMap.
+ */
+public class StripedHashMap<K,V>{
+
+/*
+ * One stripe per slot of the root level at most.
+ */
+static final int MAX_STRIPES = 32;
+
+final Stripe<K,V>[] stripes;
+
+/*
+ * The root of one stripe. The padding keeps the roots of different stripes
+ * on different cache lines.
+ */
+@SuppressWarnings("serial")
+static final class Stripe<K,V> extends AtomicReference<PersistentHashMap<K,V>>{
+	long p1, p2, p3, p4, p5, p6, p7;
+
+	Stripe(PersistentHashMap<K,V> m){
+		super(m);
+	}
+}
+
+public StripedHashMap(){
+	this(MAX_STRIPES);
+}
+
+/**
+ * @param stripes the number of stripes, rounded up to a power of two and
+ * capped at 32
+ */
+@SuppressWarnings("unchecked")
+public StripedHashMap(int stripes){
+	int n = 1;
+	while(n < stripes && n < MAX_STRIPES)
+		n <<= 1;
+	this.stripes = new Stripe[n];
+	for(int i = 0; i < n; i++)
+		this.stripes[i] = new Stripe<K,V>(PersistentHashMap.<K,V> emptyMap());
+}
+
+private Stripe<K,V> stripe(Object key){
+	return stripes[Util.hash(key) & (stripes.length - 1)];
+}
+
+@SuppressWarnings("unchecked")
+public V get(Object key){
+	return stripe(key).get().valAt((K) key);
+}
+
+public boolean containsKey(Object key){
+	return stripe(key).get().containsKey(key);
+}
+
+/**
+ * Associates val with key and returns the previous value, or null.
+ */
+public V put(K key, V val){
+	Stripe<K,V> s = stripe(key);
+	for(int failures = 1; ; failures++)
+		{
+		PersistentHashMap<K,V> m = s.get();
+		PersistentHashMap<K,V> newm = (PersistentHashMap<K,V>) m.assoc(key, val);
+		if(newm == m || s.compareAndSet(m, newm))
+			return m.valAt(key);
+		Atom.backoff(failures, s);
+		}
+}
+
+/**
+ * Associates val with key unless key is present, and returns the value
+ * present before, or null.
+ */
+public V putIfAbsent(K key, V val){
+	Stripe<K,V> s = stripe(key);
+	for(int failures = 1; ; failures++)
+		{
+		PersistentHashMap<K,V> m = s.get();
+		if(m.containsKey(key))
+			return m.valAt(key);
+		if(s.compareAndSet(m, (PersistentHashMap<K,V>) m.assoc(key, val)))
+			return null;
+		Atom.backoff(failures, s);
+		}
+}
+
+/**
+ * Removes key and returns its value, or null.
+ */
+public V remove(K key){
+	Stripe<K,V> s = stripe(key);
+	for(int failures = 1; ; failures++)
+		{
+		PersistentHashMap<K,V> m = s.get();
+		PersistentHashMap<K,V> newm = (PersistentHashMap<K,V>) m.without(key);
+		if(newm == m || s.compareAndSet(m, newm))
+			return m.valAt(key);
+		Atom.backoff(failures, s);
+		}
+}
+
+/**
+ * Atomically associates key with f.invoke(value), where value is the current
+ * value of key or null, and returns the new value. f may be called more than
+ * once, so it must be free of side effects.
+ */
+@SuppressWarnings("unchecked")
+public V update(K key, IFn f) throws Exception{
+	Stripe<K,V> s = stripe(key);
+	for(int failures = 1; ; failures++)
+		{
+		PersistentHashMap<K,V> m = s.get();
+		V newv = (V) f.invoke(m.valAt(key));
+		PersistentHashMap<K,V> newm = (PersistentHashMap<K,V>) m.assoc(key, newv);
+		if(newm == m || s.compareAndSet(m, newm))
+			return newv;
+		Atom.backoff(failures, s);
+		}
+}
+
+public int size(){
+	int n = 0;
+	for(Stripe<K,V> s : stripes)
+		n += s.get().count();
+	return n;
+}
+
+/**
+ * Returns the contents as a PersistentHashMap, in time proportional to the
+ * number of stripes rather than the number of entries.
+ */
+@SuppressWarnings("unchecked")
+public PersistentHashMap<K,V> snapshot(){
+	PersistentHashMap<K,V>[] maps = new PersistentHashMap[stripes.length];
+	for(int i = 0; i < maps.length; i++)
+		maps[i] = stripes[i].get();
+	return PersistentHashMap.join(maps);
+}
+}
@@ -7,5 +7,17 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses( { 
 	PersistentHashSetTest.class,
 	PersistentVectorTest.class, 
-	PersistentHashMapTest.class })
+	PersistentHashMapTest.class,
+	PersistentChampMapTest.class,
+	PersistentPrimitiveHashMapTest.class,
+	SpliteratorTest.class,
+	AtomTest.class,
+	StripedHashMapTest.class,
+	PersistentRRBVectorTest.class,
+	PersistentPrimitiveVectorTest.class,
+	PersistentDequeTest.class,
+	Persistent64Test.class,
+	PersistentBTreeMapTest.class,
+	PersistentTreeMapTest.class,
+	PersistentAggregateMapTest.class })
 public class AllTests {}
@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.AFn;
+import com.trifork.clj_ds.Atom;
+import com.trifork.clj_ds.IFn;
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.PersistentHashMap;
+import com.trifork.clj_ds.StripedHashMap;
+
+/**
+ * Throughput of PersistentHashMaps shared between a growing number of
+ * threads, through an Atom or a StripedHashMap, against a ConcurrentHashMap.
+ */
+public class AtomPerformanceTest {
+	static final int KEYS = 10000;
+	static final int OPERATIONS = 1000000;
+	static final double READ_PROBABILITY = 0.95;
+
+	static final IFn ASSOC = new AFn() {
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object m, Object k, Object v) {
+			return ((IPersistentMap<Object, Object>) m).assoc(k, v);
+		}
+	};
+
+	public Object found;
+
+	interface Workload {
+		void run(Random rnd, int operations) throws Exception;
+	}
+
+	@Test
+	public void testReadMostly() throws Exception {
+		final ConcurrentHashMap<Integer, Integer> cmap = new ConcurrentHashMap<Integer, Integer>();
+		IPersistentMap<Integer, Integer> pmap = PersistentHashMap.emptyMap();
+		for (int i = 0; i < KEYS; i++) {
+			cmap.put(i, i);
+			pmap = pmap.assoc(i, i);
+		}
+		final Atom<IPersistentMap<Integer, Integer>> atom = new Atom<IPersistentMap<Integer, Integer>>(pmap);
+
+		Workload concurrent = new Workload() {
+			public void run(Random rnd, int operations) {
+				for (int i = 0; i < operations; i++) {
+					Integer key = rnd.nextInt(KEYS);
+					if (rnd.nextDouble() < READ_PROBABILITY)
+						found = cmap.get(key);
+					else
+						cmap.put(key, i);
+				}
+			}
+		};
+		Workload persistent = new Workload() {
+			public void run(Random rnd, int operations) throws Exception {
+				for (int i = 0; i < operations; i++) {
+					Integer key = rnd.nextInt(KEYS);
+					if (rnd.nextDouble() < READ_PROBABILITY)
+						found = atom.deref().valAt(key);
+					else
+						atom.swap(ASSOC, key, i);
+				}
+			}
+		};
+
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			System.out.println("Threads:" + threads
+					+ " ConcurrentHashMap:" + throughput(concurrent, threads) + "ops/ms"
+					+ " Atom:" + throughput(persistent, threads) + "ops/ms");
+		}
+	}
+
+	@Test
+	public void testWriteHeavy() throws Exception {
+		final Atom<IPersistentMap<Integer, Integer>> atom =
+				new Atom<IPersistentMap<Integer, Integer>>(PersistentHashMap.<Integer, Integer> emptyMap());
+		final StripedHashMap<Integer, Integer> striped = new StripedHashMap<Integer, Integer>();
+		final ConcurrentHashMap<Integer, Integer> cmap = new ConcurrentHashMap<Integer, Integer>();
+
+		Workload concurrent = new Workload() {
+			public void run(Random rnd, int operations) {
+				for (int i = 0; i < operations; i++)
+					cmap.put(rnd.nextInt(KEYS), i);
+			}
+		};
+		Workload single = new Workload() {
+			public void run(Random rnd, int operations) throws Exception {
+				for (int i = 0; i < operations; i++)
+					atom.swap(ASSOC, rnd.nextInt(KEYS), i);
+			}
+		};
+		Workload stripes = new Workload() {
+			public void run(Random rnd, int operations) {
+				for (int i = 0; i < operations; i++)
+					striped.put(rnd.nextInt(KEYS), i);
+			}
+		};
+
+		for (int threads = 1; threads <= 32; threads *= 2) {
+			System.out.println("Threads:" + threads
+					+ " ConcurrentHashMap:" + throughput(concurrent, threads) + "ops/ms"
+					+ " Atom:" + throughput(single, threads) + "ops/ms"
+					+ " StripedHashMap:" + throughput(stripes, threads) + "ops/ms");
+		}
+		found = striped.snapshot();
+	}
+
+	private static long throughput(final Workload workload, int threads) throws Exception {
+		final int operations = OPERATIONS / threads;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final Random rnd = new Random(t);
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						workload.run(rnd, operations);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return (long) operations * threads * 1000000 / (System.nanoTime() - begin);
+	}
+}
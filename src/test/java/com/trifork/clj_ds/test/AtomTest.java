@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.AFn;
+import com.trifork.clj_ds.Atom;
+import com.trifork.clj_ds.IFn;
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.PersistentHashMap;
+
+public class AtomTest {
+
+	static final IFn ASSOC = new AFn() {
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object m, Object k, Object v) {
+			return ((IPersistentMap<Object, Object>) m).assoc(k, v);
+		}
+	};
+
+	static final IFn INC = new AFn() {
+		public Object invoke(Object x) {
+			return (Integer) x + 1;
+		}
+	};
+
+	@Test
+	public final void testSwapFromManyThreads() throws Exception {
+		final Atom<IPersistentMap<Integer, Integer>> atom =
+				new Atom<IPersistentMap<Integer, Integer>>(PersistentHashMap.<Integer, Integer> emptyMap());
+		final Atom<Integer> counter = new Atom<Integer>(0);
+		final int threads = 4;
+		final int n = 5000;
+		List<Thread> ts = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int base = t * n;
+			ts.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < n; i++) {
+							atom.swap(ASSOC, base + i, i);
+							counter.swap(INC);
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		assertEquals(threads * n, atom.deref().count());
+		assertEquals(Integer.valueOf(threads * n), counter.deref());
+		for (int i = 0; i < threads * n; i++)
+			assertEquals(Integer.valueOf(i % n), atom.deref().valAt(i));
+	}
+
+	@Test
+	public final void testCompareAndSetAndReset() throws Exception {
+		Integer one = new Integer(1000);
+		Atom<Integer> atom = new Atom<Integer>(one);
+		assertFalse(atom.compareAndSet(new Integer(1000), 2));
+		assertSame(one, atom.deref());
+		assertTrue(atom.compareAndSet(one, 2));
+		assertEquals(Integer.valueOf(2), atom.deref());
+		assertEquals(Integer.valueOf(3), atom.reset(3));
+		assertEquals(Integer.valueOf(4), atom.swap(INC));
+	}
+
+	@Test
+	public final void testValidator() throws Exception {
+		IFn positive = new AFn() {
+			public Object invoke(Object x) {
+				return (Integer) x > 0;
+			}
+		};
+		Atom<Integer> atom = new Atom<Integer>(1, positive);
+		try {
+			atom.reset(0);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(Integer.valueOf(1), atom.deref());
+		assertEquals(Integer.valueOf(2), atom.swap(INC));
+
+		Atom<Integer> zero = new Atom<Integer>(0);
+		try {
+			zero.setValidator(positive);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(null, zero.getValidator());
+		try {
+			new Atom<Integer>(0, positive);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public final void testWatches() throws Exception {
+		final List<Object> calls = new ArrayList<Object>();
+		IFn watch = new AFn() {
+			public Object invoke(Object key, Object ref, Object oldv, Object newv) {
+				calls.add(key);
+				calls.add(oldv);
+				calls.add(newv);
+				return null;
+			}
+		};
+		Atom<Integer> atom = new Atom<Integer>(1);
+		assertSame(atom, atom.addWatch("w", watch));
+		atom.swap(INC);
+		atom.compareAndSet(7, 8);
+		atom.reset(5);
+		assertEquals(6, calls.size());
+		assertEquals(Arrays.asList((Object) "w", 1, 2, "w", 2, 5), calls);
+		atom.removeWatch("w");
+		atom.swap(INC);
+		assertEquals(6, calls.size());
+		assertEquals(0, atom.getWatches().count());
+	}
+}
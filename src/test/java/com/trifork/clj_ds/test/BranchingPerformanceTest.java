@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.IPersistentVector;
+import com.trifork.clj_ds.PersistentHashMap;
+import com.trifork.clj_ds.PersistentHashMap64;
+import com.trifork.clj_ds.PersistentVector;
+import com.trifork.clj_ds.PersistentVector64;
+
+/**
+ * Compares the 32-way and 64-way vectors and hash maps on random mixes of
+ * reads and updates. Wider nodes make lookups shallower and updates copy
+ * more, so the winner depends on the ratio of the two.
+ */
+public class BranchingPerformanceTest {
+	static final int OPS = 2000000;
+	static final int[] READ_PERCENT = { 100, 95, 50, 0 };
+
+	public Object found;
+
+	long mixVector(IPersistentVector<Integer> v, int[] indices, boolean[] writes) {
+		long t0 = System.nanoTime();
+		for (int k = 0; k < indices.length; k++) {
+			if (writes[k])
+				v = v.assocN(indices[k], k);
+			else
+				found = v.nth(indices[k]);
+		}
+		found = v;
+		return (System.nanoTime() - t0) / indices.length;
+	}
+
+	long mixMap(IPersistentMap<Integer, Integer> m, int[] keys, boolean[] writes) {
+		long t0 = System.nanoTime();
+		for (int k = 0; k < keys.length; k++) {
+			if (writes[k])
+				m = m.assoc(keys[k], k);
+			else
+				found = m.valAt(keys[k]);
+		}
+		found = m;
+		return (System.nanoTime() - t0) / keys.length;
+	}
+
+	@Test
+	public void testVectors() {
+		Random rnd = new Random(1);
+		for (int size : new int[] { 1000, 100000, 1000000 }) {
+			PersistentVector<Integer> v32 = PersistentVector.emptyVector();
+			PersistentVector64<Integer> v64 = PersistentVector64.emptyVector();
+			for (int i = 0; i < size; i++) {
+				v32 = v32.cons(i);
+				v64 = v64.cons(i);
+			}
+			int[] indices = new int[OPS];
+			boolean[] writes = new boolean[OPS];
+			for (int reads : READ_PERCENT) {
+				for (int k = 0; k < OPS; k++) {
+					indices[k] = rnd.nextInt(size);
+					writes[k] = rnd.nextInt(100) >= reads;
+				}
+				for (int round = 0; round < 3; round++) {
+					long ns32 = mixVector(v32, indices, writes);
+					long ns64 = mixVector(v64, indices, writes);
+					System.out.println("Vector size:" + size + " reads:" + reads + "% ns/op"
+							+ " PersistentVector:" + ns32
+							+ " PersistentVector64:" + ns64);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMaps() {
+		Random rnd = new Random(1);
+		for (int size : new int[] { 1000, 100000, 1000000 }) {
+			IPersistentMap<Integer, Integer> m32 = PersistentHashMap.emptyMap();
+			IPersistentMap<Integer, Integer> m64 = PersistentHashMap64.emptyMap();
+			int[] present = new int[size];
+			for (int i = 0; i < size; i++) {
+				present[i] = rnd.nextInt();
+				m32 = m32.assoc(present[i], i);
+				m64 = m64.assoc(present[i], i);
+			}
+			int[] keys = new int[OPS];
+			boolean[] writes = new boolean[OPS];
+			for (int reads : READ_PERCENT) {
+				for (int k = 0; k < OPS; k++) {
+					keys[k] = present[rnd.nextInt(size)];
+					writes[k] = rnd.nextInt(100) >= reads;
+				}
+				for (int round = 0; round < 3; round++) {
+					long ns32 = mixMap(m32, keys, writes);
+					long ns64 = mixMap(m64, keys, writes);
+					System.out.println("Map size:" + size + " reads:" + reads + "% ns/op"
+							+ " PersistentHashMap:" + ns32
+							+ " PersistentHashMap64:" + ns64);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.PersistentHashMap64;
+import com.trifork.clj_ds.PersistentVector64;
+
+public class Persistent64Test {
+
+	@Test
+	public final void testVectorRandomOperations() {
+		Random rnd = new Random(11);
+		List<Integer> expected = new ArrayList<Integer>();
+		PersistentVector64<Integer> v = PersistentVector64.emptyVector();
+		List<PersistentVector64<Integer>> versions = new ArrayList<PersistentVector64<Integer>>();
+		List<List<Integer>> models = new ArrayList<List<Integer>>();
+		for (int round = 0; round < 60; round++) {
+			// grows past three levels (262144 + tail) and back down
+			int target = round < 30 ? round * 10000 : (60 - round) * 10000;
+			while (expected.size() < target) {
+				v = v.cons(expected.size());
+				expected.add(expected.size());
+			}
+			while (expected.size() > target) {
+				v = v.pop();
+				expected.remove(expected.size() - 1);
+			}
+			for (int k = 0; k < 100 && !expected.isEmpty(); k++) {
+				int i = rnd.nextInt(expected.size());
+				v = v.assocN(i, -k);
+				expected.set(i, -k);
+			}
+			assertEquals(expected.size(), v.count());
+			for (int i = 0; i < expected.size(); i++)
+				assertEquals(expected.get(i), v.nth(i));
+			versions.add(v);
+			models.add(new ArrayList<Integer>(expected));
+		}
+		for (int i = 0; i < versions.size(); i++)
+			assertEquals(models.get(i), versions.get(i));
+	}
+
+	@Test
+	public final void testTransientVector() {
+		PersistentVector64<Integer> v = PersistentVector64.create(1, 2, 3);
+		PersistentVector64.TransientVector64<Integer> t = v.asTransient();
+		for (int i = 0; i < 300000; i++)
+			t.conj(i);
+		for (int i = 0; i < 300000; i += 7)
+			t.assocN(i + 3, -i);
+		for (int i = 0; i < 100000; i++)
+			t.pop();
+		PersistentVector64<Integer> p = t.persistentMap();
+		assertEquals(200003, p.count());
+		assertEquals(3, v.count());
+		int n = 0;
+		for (Iterator<Integer> it = p.iterator(); it.hasNext(); n++) {
+			int expected = n < 3 ? n + 1 : (n - 3) % 7 == 0 ? -(n - 3) : n - 3;
+			assertEquals(expected, (int) it.next());
+		}
+		assertEquals(p.count(), n);
+	}
+
+	@Test
+	public final void testMapRandomOperations() throws Exception {
+		Random rnd = new Random(42);
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		IPersistentMap<Integer, Integer> m = PersistentHashMap64.emptyMap();
+		for (int i = 0; i < 100000; i++) {
+			Integer k = rnd.nextInt(20000);
+			if (rnd.nextInt(3) == 0) {
+				expected.remove(k);
+				m = m.without(k);
+			} else {
+				expected.put(k, i);
+				m = m.assoc(k, i);
+			}
+		}
+		assertEquals(expected.size(), m.count());
+		for (Map.Entry<Integer, Integer> e : expected.entrySet())
+			assertEquals(e.getValue(), m.valAt(e.getKey()));
+		assertEquals(expected, m);
+		assertEquals(m, expected);
+		assertEquals(expected.hashCode(), m.hashCode());
+
+		List<Map.Entry<Integer, Integer>> forward = new ArrayList<Map.Entry<Integer, Integer>>();
+		for (Map.Entry<Integer, Integer> e : m)
+			forward.add(e);
+		int i = forward.size();
+		for (Iterator<Map.Entry<Integer, Integer>> it = m.reverseIterator(); it.hasNext();)
+			assertEquals(forward.get(--i), it.next());
+		assertEquals(0, i);
+		Iterator<Map.Entry<Integer, Integer>> from = m.iteratorFrom(forward.get(100).getKey());
+		for (i = 100; from.hasNext(); i++)
+			assertEquals(forward.get(i), from.next());
+		assertEquals(forward.size(), i);
+	}
+
+	@Test
+	public final void testMapCollisionsAndNull() throws Exception {
+		Map<Object, Integer> expected = new HashMap<Object, Integer>();
+		IPersistentMap<Object, Integer> m = PersistentHashMap64.emptyMap();
+		Random rnd = new Random(7);
+		List<Object> keys = new ArrayList<Object>();
+		for (int i = 0; i < 300; i++) {
+			// few distinct hashes, sharing long prefixes
+			keys.add(new PersistentChampMapTest.Colliding((rnd.nextInt(4) << 26) | rnd.nextInt(3), i));
+		}
+		keys.add(null);
+		for (int round = 0; round < 5000; round++) {
+			Object k = keys.get(rnd.nextInt(keys.size()));
+			if (rnd.nextBoolean()) {
+				expected.put(k, round);
+				m = m.assoc(k, round);
+			} else {
+				expected.remove(k);
+				m = m.without(k);
+			}
+			assertEquals(expected.size(), m.count());
+		}
+		assertEquals(expected, m);
+		for (Object k : keys)
+			assertEquals(expected.containsKey(k), m.containsKey(k));
+		for (Object k : keys)
+			m = m.without(k);
+		assertEquals(0, m.count());
+		assertFalse(m.iterator().hasNext());
+		assertNull(m.seq());
+		assertTrue(m.equals(PersistentHashMap64.emptyMap()));
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.AFn;
+import com.trifork.clj_ds.IFn;
+import com.trifork.clj_ds.IMapEntry;
+import com.trifork.clj_ds.ISeq;
+import com.trifork.clj_ds.PersistentAggregateMap;
+import com.trifork.clj_ds.RT;
+
+public class PersistentAggregateMapTest {
+
+	static final IFn SUM = new AFn() {
+		public Object invoke(Object a, Object b) {
+			return (Long) a + (Long) b;
+		}
+	};
+
+	static final IFn CONCAT = new AFn() {
+		public Object invoke(Object a, Object b) {
+			return (String) a + b;
+		}
+	};
+
+	static long sum(Map<Integer, Long> m) {
+		long s = 0;
+		for (Long v : m.values())
+			s += v;
+		return s;
+	}
+
+	static String concat(Map<Integer, String> m) {
+		StringBuilder s = new StringBuilder();
+		for (String v : m.values())
+			s.append(v);
+		return s.toString();
+	}
+
+	@Test
+	public final void testAggregate() throws Exception {
+		Random rnd = new Random(25);
+		TreeMap<Integer, Long> expected = new TreeMap<Integer, Long>();
+		PersistentAggregateMap<Integer, Long> m = new PersistentAggregateMap<Integer, Long>(SUM, 0L);
+		for (int round = 0; round < 20; round++) {
+			for (int k = 0; k < 2000; k++) {
+				Integer key = rnd.nextInt(10000);
+				if (rnd.nextInt(3) == 0) {
+					expected.remove(key);
+					m = m.without(key);
+				} else {
+					long v = rnd.nextInt(1000);
+					expected.put(key, v);
+					m = m.assoc(key, v);
+				}
+			}
+			assertEquals(expected, m);
+			assertEquals(sum(expected), (long) m.aggregate());
+			for (int k = 0; k < 200; k++) {
+				int lo = rnd.nextInt(10000) - 100;
+				int hi = lo + rnd.nextInt(3000);
+				assertEquals(sum(expected.subMap(lo, hi)), (long) m.aggregate(lo, hi));
+				assertEquals(sum(expected.headMap(hi)), (long) m.headAggregate(hi));
+				assertEquals(sum(expected.tailMap(lo)), (long) m.tailAggregate(lo));
+				assertEquals(0L, (long) m.aggregate(hi, lo));
+			}
+		}
+	}
+
+	@Test
+	public final void testAggregateOrder() throws Exception {
+		Random rnd = new Random(26);
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		PersistentAggregateMap<Integer, String> m = new PersistentAggregateMap<Integer, String>(CONCAT, "");
+		for (int k = 0; k < 3000; k++) {
+			Integer key = rnd.nextInt(500);
+			if (rnd.nextInt(4) == 0) {
+				expected.remove(key);
+				m = m.without(key);
+			} else {
+				String v = String.valueOf((char) ('a' + rnd.nextInt(26)));
+				expected.put(key, v);
+				m = m.assoc(key, v);
+			}
+			int lo = rnd.nextInt(520) - 10;
+			int hi = lo + rnd.nextInt(200);
+			assertEquals(concat(expected.subMap(lo, hi)), m.aggregate(lo, hi));
+		}
+		assertEquals(concat(expected), m.aggregate());
+	}
+
+	@Test
+	public final void testSeqs() throws Exception {
+		PersistentAggregateMap<Integer, Long> m = new PersistentAggregateMap<Integer, Long>(SUM, 0L);
+		assertNull(m.seq());
+		for (int i = 0; i < 100; i++)
+			m = m.assoc(i * 2, (long) i);
+		assertSame(m, m.assoc(10, m.valAt(10)));
+		assertEquals(100, RT.count(m.seq()));
+		ISeq s = m.seqFrom(51, true);
+		assertEquals(52, ((IMapEntry) s.first()).key());
+		assertEquals(74, RT.count(s));
+		s = m.seqFrom(51, false);
+		assertEquals(50, ((IMapEntry) s.first()).key());
+		assertEquals(26, RT.count(s));
+		assertEquals(198, ((IMapEntry) m.rseq().first()).key());
+		assertEquals(0, m.minKey());
+		assertEquals(198, m.maxKey());
+		assertEquals(0L, (long) ((PersistentAggregateMap<Integer, Long>) m.empty()).aggregate());
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IMapEntry;
+import com.trifork.clj_ds.ISeq;
+import com.trifork.clj_ds.ITransientMap;
+import com.trifork.clj_ds.PersistentBTreeMap;
+
+public class PersistentBTreeMapTest {
+
+	private static void checkSeq(Iterable<Map.Entry<Integer, Integer>> expected, ISeq s) {
+		for (Map.Entry<Integer, Integer> e : expected) {
+			IMapEntry<?, ?> entry = (IMapEntry<?, ?>) s.first();
+			assertEquals(e.getKey(), entry.key());
+			assertEquals(e.getValue(), entry.val());
+			s = s.next();
+		}
+		assertNull(s);
+	}
+
+	private static void check(NavigableMap<Integer, Integer> expected, PersistentBTreeMap<Integer, Integer> m,
+			Random rnd) throws Exception {
+		assertEquals(expected.size(), m.count());
+		assertEquals(expected, m);
+		checkSeq(expected.entrySet(), m.seq());
+		checkSeq(expected.descendingMap().entrySet(), m.rseq());
+		if (expected.isEmpty()) {
+			assertNull(m.minKey());
+			return;
+		}
+		assertEquals(expected.firstKey(), m.minKey());
+		assertEquals(expected.lastKey(), m.maxKey());
+		for (int k = 0; k < 20; k++) {
+			Integer from = expected.firstKey() - 2 + rnd.nextInt(expected.lastKey() - expected.firstKey() + 4);
+			checkSeq(expected.tailMap(from, true).entrySet(), m.seqFrom(from, true));
+			checkSeq(expected.headMap(from, true).descendingMap().entrySet(), m.seqFrom(from, false));
+			Iterator<Map.Entry<Integer, Integer>> it = m.iteratorFrom(from);
+			for (Map.Entry<Integer, Integer> e : expected.tailMap(from, true).entrySet())
+				assertEquals(e, it.next());
+			assertFalse(it.hasNext());
+		}
+	}
+
+	@Test
+	public final void testRandomOperations() throws Exception {
+		Random rnd = new Random(17);
+		NavigableMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		PersistentBTreeMap<Integer, Integer> m = PersistentBTreeMap.EMPTY;
+		List<PersistentBTreeMap<Integer, Integer>> versions = new ArrayList<PersistentBTreeMap<Integer, Integer>>();
+		List<Map<Integer, Integer>> models = new ArrayList<Map<Integer, Integer>>();
+		for (int round = 0; round < 40; round++) {
+			// alternately grow and shrink, so nodes split, merge and share keys
+			int removePercent = round % 2 == 0 ? 20 : 70;
+			int range = 1 + rnd.nextInt(50000);
+			for (int k = rnd.nextInt(20000); k > 0; k--) {
+				Integer key = rnd.nextInt(range);
+				if (rnd.nextInt(100) < removePercent) {
+					expected.remove(key);
+					m = m.without(key);
+				} else {
+					expected.put(key, k);
+					m = m.assoc(key, k);
+				}
+			}
+			check(expected, m, rnd);
+			versions.add(m);
+			models.add(new TreeMap<Integer, Integer>(expected));
+		}
+		for (int i = 0; i < versions.size(); i++)
+			assertEquals(models.get(i), versions.get(i));
+		for (Integer key : new ArrayList<Integer>(expected.keySet()))
+			m = m.without(key);
+		assertEquals(0, m.count());
+		assertNull(m.seq());
+		assertEquals(0, m.depth());
+	}
+
+	@Test
+	public final void testTransient() throws Exception {
+		Random rnd = new Random(23);
+		NavigableMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		PersistentBTreeMap<Integer, Integer> m = PersistentBTreeMap.EMPTY;
+		for (int round = 0; round < 20; round++) {
+			PersistentBTreeMap<Integer, Integer> before = m;
+			Map<Integer, Integer> beforeModel = new TreeMap<Integer, Integer>(expected);
+			ITransientMap<Integer, Integer> t = m.asTransient();
+			for (int k = rnd.nextInt(30000); k > 0; k--) {
+				Integer key = rnd.nextInt(40000);
+				if (rnd.nextInt(100) < (round % 2 == 0 ? 25 : 65)) {
+					expected.remove(key);
+					t = t.without(key);
+				} else {
+					expected.put(key, k);
+					t = t.assoc(key, k);
+				}
+			}
+			assertEquals(expected.size(), t.count());
+			m = (PersistentBTreeMap<Integer, Integer>) t.persistentMap();
+			check(expected, m, rnd);
+			assertEquals(beforeModel, before);
+		}
+	}
+
+	@Test
+	public final void testComparatorAndLookups() throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < 5000; i++)
+			keys.add(i);
+		Collections.shuffle(keys, new Random(4));
+		PersistentBTreeMap<Integer, String> m = new PersistentBTreeMap<Integer, String>(null,
+				Collections.reverseOrder(new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						return a.compareTo(b);
+					}
+				}));
+		for (Integer k : keys)
+			m = m.assoc(k, "v" + k);
+		assertEquals(4999, m.minKey());
+		assertEquals(0, m.maxKey());
+		assertEquals("v42", m.valAt(42));
+		assertEquals("v42", m.entryAt(42).val());
+		assertNull(m.entryAt(5000));
+		assertTrue(m.containsKey(0));
+		assertFalse(m.containsKey(-1));
+		assertEquals(m, m.assoc(7, m.valAt(7)));
+		assertTrue(m.depth() <= 3);
+		try {
+			m.assocEx(7, "x");
+			assertTrue(false);
+		} catch (Exception e) {
+			assertEquals("Key already present", e.getMessage());
+		}
+		// descending by the reversed comparator
+		IMapEntry<?, ?> first = (IMapEntry<?, ?>) m.seqFrom(100, true).first();
+		assertEquals(100, first.key());
+		assertEquals(99, ((IMapEntry<?, ?>) m.seqFrom(100, true).next().first()).key());
+	}
+}
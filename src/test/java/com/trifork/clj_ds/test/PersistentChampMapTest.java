@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.ITransientMap;
+import com.trifork.clj_ds.PersistentChampMap;
+import com.trifork.clj_ds.PersistentHashMap;
+
+public class PersistentChampMapTest {
+
+	/**
+	 * Key whose hash code is chosen by the test, to force collisions and shared prefixes.
+	 */
+	static final class Colliding {
+		final int hash;
+		final int id;
+
+		Colliding(int hash, int id) {
+			this.hash = hash;
+			this.id = id;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof Colliding && ((Colliding) o).id == id;
+		}
+
+		public String toString() {
+			return "c" + id + "/" + hash;
+		}
+	}
+
+	@Test
+	public final void testEmptyMap() {
+		PersistentChampMap<String, Integer> m = PersistentChampMap.emptyMap();
+		assertEquals(0, m.count());
+		assertFalse(m.iterator().hasNext());
+		assertNull(m.seq());
+		assertEquals(m, PersistentHashMap.emptyMap());
+	}
+
+	@Test
+	public final void testRandomOperations() throws Exception {
+		Random rnd = new Random(42);
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		IPersistentMap<Integer, Integer> m = PersistentChampMap.emptyMap();
+		for (int i = 0; i < 100000; i++) {
+			Integer k = rnd.nextInt(20000);
+			if (rnd.nextInt(3) == 0) {
+				expected.remove(k);
+				m = m.without(k);
+			} else {
+				expected.put(k, i);
+				m = m.assoc(k, i);
+			}
+		}
+		assertEquals(expected.size(), m.count());
+		for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+			assertEquals(e.getValue(), m.valAt(e.getKey()));
+		}
+		int n = 0;
+		for (Map.Entry<Integer, Integer> e : m) {
+			assertEquals(expected.get(e.getKey()), e.getValue());
+			n++;
+		}
+		assertEquals(expected.size(), n);
+		assertEquals(expected, m);
+		assertEquals(m, expected);
+		assertEquals(expected.hashCode(), m.hashCode());
+	}
+
+	@Test
+	public final void testCollisions() throws Exception {
+		Map<Colliding, Integer> expected = new HashMap<Colliding, Integer>();
+		IPersistentMap<Colliding, Integer> m = PersistentChampMap.emptyMap();
+		Random rnd = new Random(7);
+		List<Colliding> keys = new ArrayList<Colliding>();
+		for (int i = 0; i < 300; i++) {
+			// few distinct hashes, sharing long prefixes
+			keys.add(new Colliding((rnd.nextInt(4) << 20) | rnd.nextInt(3), i));
+		}
+		for (int round = 0; round < 5000; round++) {
+			Colliding k = keys.get(rnd.nextInt(keys.size()));
+			if (rnd.nextBoolean()) {
+				expected.put(k, round);
+				m = m.assoc(k, round);
+			} else {
+				expected.remove(k);
+				m = m.without(k);
+			}
+			assertEquals(expected.size(), m.count());
+		}
+		assertEquals(expected, m);
+		for (Colliding k : keys) {
+			assertEquals(expected.containsKey(k), m.containsKey(k));
+		}
+	}
+
+	@Test
+	public final void testCanonicalAfterRemoval() throws Exception {
+		Random rnd = new Random(3);
+		IPersistentMap<Object, Integer> small = PersistentChampMap.emptyMap();
+		IPersistentMap<Object, Integer> big = PersistentChampMap.emptyMap();
+		List<Object> extra = new ArrayList<Object>();
+		for (int i = 0; i < 2000; i++) {
+			Object k = i % 5 == 0 ? new Colliding(i % 40, i) : (Object) rnd.nextInt();
+			small = small.assoc(k, i);
+			big = big.assoc(k, i);
+		}
+		for (int i = 0; i < 2000; i++) {
+			Object k = i % 3 == 0 ? new Colliding(i % 40, -i - 1) : (Object) ("x" + i);
+			extra.add(k);
+			big = big.assoc(k, i);
+		}
+		for (Object k : extra) {
+			big = big.without(k);
+		}
+		assertEquals(small.count(), big.count());
+		assertTrue(small.equals(big));
+		assertTrue(big.equiv(small));
+	}
+
+	@Test
+	public final void testNullKey() throws Exception {
+		PersistentChampMap<String, Integer> m = PersistentChampMap.emptyMap();
+		m = m.assoc(null, 42).assoc("a", 1);
+		assertEquals(2, m.count());
+		assertEquals(42, (int) m.valAt(null));
+		Iterator<Map.Entry<String, Integer>> it = m.iterator();
+		assertNull(it.next().getKey());
+		assertEquals("a", it.next().getKey());
+		assertFalse(it.hasNext());
+		it = m.reverseIterator();
+		assertEquals("a", it.next().getKey());
+		assertNull(it.next().getKey());
+		assertFalse(it.hasNext());
+		assertEquals(1, m.without(null).count());
+	}
+
+	@Test
+	public final void testReverseIteratorAndIteratorFrom() {
+		IPersistentMap<Integer, Integer> m = PersistentChampMap.emptyMap();
+		for (int i = 0; i < 5000; i++) {
+			m = m.assoc(i * 31, i);
+		}
+		List<Integer> l = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> e : m) {
+			l.add(e.getKey());
+		}
+		int i = l.size();
+		for (Iterator<Map.Entry<Integer, Integer>> it = m.reverseIterator(); it.hasNext();) {
+			assertEquals(l.get(--i), it.next().getKey());
+		}
+		assertEquals(0, i);
+
+		i = 1234;
+		for (Iterator<Map.Entry<Integer, Integer>> it = m.iteratorFrom(l.get(i)); it.hasNext();) {
+			assertEquals(l.get(i++), it.next().getKey());
+		}
+		assertEquals(l.size(), i);
+		assertFalse(m.iteratorFrom(-1).hasNext());
+	}
+
+	@Test
+	public final void testTransient() {
+		PersistentChampMap<Integer, Integer> base = PersistentChampMap.emptyMap();
+		for (int i = 0; i < 1000; i++) {
+			base = base.assoc(i, i);
+		}
+		ITransientMap<Integer, Integer> t = base.asTransient();
+		for (int i = 0; i < 2000; i++) {
+			t = t.assoc(i, -i);
+		}
+		for (int i = 0; i < 2000; i += 2) {
+			t = t.without(i);
+		}
+		IPersistentMap<Integer, Integer> result = t.persistentMap();
+		assertEquals(1000, result.count());
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(i % 2 == 0 ? null : -i, result.valAt(i));
+		}
+		// the original is untouched
+		assertEquals(1000, base.count());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, (int) base.valAt(i));
+		}
+	}
+
+	static final int NUM_ITERS = 5;
+
+	/**
+	 * Compares iteration, equality and footprint against PersistentHashMap.
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Runtime rt = Runtime.getRuntime();
+
+		System.gc();
+		long before = rt.totalMemory() - rt.freeMemory();
+		IPersistentMap<Integer, Integer> phm = PersistentHashMap.create(range(n));
+		System.gc();
+		long phmBytes = rt.totalMemory() - rt.freeMemory() - before;
+
+		System.gc();
+		before = rt.totalMemory() - rt.freeMemory();
+		IPersistentMap<Integer, Integer> champ = PersistentChampMap.create(range(n));
+		System.gc();
+		long champBytes = rt.totalMemory() - rt.freeMemory() - before;
+		System.out.println("Footprint PersistentHashMap: " + phmBytes / 1024 + "K, PersistentChampMap: " + champBytes / 1024 + "K");
+
+		IPersistentMap<Integer, Integer> phm2 = PersistentHashMap.create(range(n));
+		IPersistentMap<Integer, Integer> champ2 = PersistentChampMap.create(range(n));
+		for (int count = 0; count < NUM_ITERS; count++) {
+			long start = System.nanoTime();
+			long sum = iterate(phm);
+			long end = System.nanoTime();
+			System.out.println("PersistentHashMap iteration ( " + count + ") " + sum + ": " + (end - start) / 1000);
+			start = System.nanoTime();
+			sum = iterate(champ);
+			end = System.nanoTime();
+			System.out.println("PersistentChampMap iteration ( " + count + ") " + sum + ": " + (end - start) / 1000);
+			start = System.nanoTime();
+			boolean eq = phm.equals(phm2);
+			end = System.nanoTime();
+			System.out.println("PersistentHashMap equals ( " + count + ") " + eq + ": " + (end - start) / 1000);
+			start = System.nanoTime();
+			eq = champ.equals(champ2);
+			end = System.nanoTime();
+			System.out.println("PersistentChampMap equals ( " + count + ") " + eq + ": " + (end - start) / 1000);
+		}
+	}
+
+	private static Map<Integer, Integer> range(int n) {
+		Map<Integer, Integer> m = new HashMap<Integer, Integer>(n * 2);
+		for (int i = 0; i < n; i++) {
+			m.put(i, i);
+		}
+		return m;
+	}
+
+	private static long iterate(IPersistentMap<Integer, Integer> m) {
+		long sum = 0;
+		for (Map.Entry<Integer, Integer> e : m) {
+			sum += e.getValue();
+		}
+		return sum;
+	}
+}
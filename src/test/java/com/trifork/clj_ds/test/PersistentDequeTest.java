@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IChunk;
+import com.trifork.clj_ds.IChunkedSeq;
+import com.trifork.clj_ds.ISeq;
+import com.trifork.clj_ds.PersistentDeque;
+
+public class PersistentDequeTest {
+
+	private static void check(List<Integer> expected, PersistentDeque<Integer> d) throws Exception {
+		assertEquals(expected.size(), d.count());
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i), d.nth(i));
+		assertEquals(expected, d);
+		List<Integer> chunked = new ArrayList<Integer>();
+		for (ISeq<Integer> s = d.chunkedSeq(); s != null; s = ((IChunkedSeq<Integer>) s).chunkedNext()) {
+			IChunk<Integer> c = ((IChunkedSeq<Integer>) s).chunkedFirst();
+			for (int i = 0; i < c.count(); i++)
+				chunked.add(c.nth(i));
+		}
+		assertEquals(expected, chunked);
+	}
+
+	@Test
+	public final void testRandomOperations() throws Exception {
+		Random rnd = new Random(3);
+		List<Integer> expected = new ArrayList<Integer>();
+		PersistentDeque<Integer> d = PersistentDeque.emptyDeque();
+		List<PersistentDeque<Integer>> versions = new ArrayList<PersistentDeque<Integer>>();
+		List<List<Integer>> models = new ArrayList<List<Integer>>();
+		for (int round = 0; round < 300; round++) {
+			// runs biased towards one end, so the tree grows and shrinks at both
+			int bias = rnd.nextInt(4);
+			for (int k = rnd.nextInt(5000); k > 0; k--) {
+				int op = rnd.nextInt(10);
+				if (op < 3) {
+					d = d.conjFirst(k);
+					expected.add(0, k);
+				} else if (op < 6) {
+					d = d.cons(-k);
+					expected.add(-k);
+				} else if (op == 6 && !expected.isEmpty()) {
+					int i = rnd.nextInt(expected.size());
+					d = d.assocN(i, round);
+					expected.set(i, round);
+				} else if (!expected.isEmpty()) {
+					if (bias < 2) {
+						d = d.popFirst();
+						expected.remove(0);
+					} else {
+						d = d.pop();
+						expected.remove(expected.size() - 1);
+					}
+				}
+				if (bias == 0 && op < 6) {
+					d = d.popFirst();
+					expected.remove(0);
+				}
+			}
+			check(expected, d);
+			if (!expected.isEmpty()) {
+				assertEquals(expected.get(0), d.peekFirst());
+				assertEquals(expected.get(expected.size() - 1), d.peek());
+			}
+			versions.add(d);
+			models.add(new ArrayList<Integer>(expected));
+		}
+		for (int i = 0; i < versions.size(); i++)
+			assertEquals(models.get(i), versions.get(i));
+	}
+
+	@Test
+	public final void testOneEnd() throws Exception {
+		List<Integer> expected = new ArrayList<Integer>();
+		PersistentDeque<Integer> d = PersistentDeque.emptyDeque();
+		for (int i = 0; i < 100000; i++) {
+			d = d.conjFirst(i);
+			expected.add(0, i);
+		}
+		check(expected, d);
+		// drain from the other end, through the leaves pushed at the front
+		while (d.count() > 0) {
+			assertEquals(expected.remove(expected.size() - 1), d.peek());
+			d = d.pop();
+		}
+		assertNull(d.peekFirst());
+		assertNull(d.seq());
+	}
+}
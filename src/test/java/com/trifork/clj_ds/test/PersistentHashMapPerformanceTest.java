@@ -4,6 +4,7 @@
 package com.trifork.clj_ds.test;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
@@ -396,4 +397,27 @@ public class PersistentHashMapPerformanceTest {
 		}
 		return map;	
 	}
+
+	/**
+	 * Collision flood: keys built from the blocks "Aa" and "BB" all have the
+	 * same String hashCode, as an attacker feeding request parameters could
+	 * arrange, so they all end up in a single HashCollisionNode.
+	 */
+	@Test
+	public void testCollisionFlood() throws Exception {
+		for (int n = 1000; n <= 16000; n *= 4) {
+			List<String> keys = PersistentHashMapTest.collidingKeys(n);
+			long start = System.nanoTime();
+			ITransientMap<String, String> tmap = PersistentHashMap.EMPTY.asTransient();
+			for (String key : keys)
+				tmap = tmap.assoc(key, key);
+			IPersistentMap<String, String> pmap = tmap.persistentMap();
+			long built = System.nanoTime();
+			for (String key : keys)
+				found = pmap.valAt(key);
+			long looked = System.nanoTime();
+			System.out.println("Colliding keys:" + n + " build:" + (built - start) / 1000000 + "ms lookup:"
+					+ (looked - built) / n + "ns/key");
+		}
+	}
 }
@@ -4,20 +4,27 @@
 package com.trifork.clj_ds.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import org.junit.Test;
 
+import com.trifork.clj_ds.AFn;
+import com.trifork.clj_ds.IFn;
 import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.ITransientMap;
 import com.trifork.clj_ds.PersistentHashMap;
 
 /**
@@ -134,6 +141,346 @@ public class PersistentHashMapTest {
 		
 	}
 
+	/**
+	 * Test method for {@link com.trifork.clj_ds.PersistentHashMap#createParallel(java.lang.Object[])}.
+	 */
+	@Test
+	public final void testCreateParallel() {
+		final int N = 200000;
+		Object[] init = new Object[2 * (N + 2)];
+		for (int i = 0; i < N; i++) {
+			// a few hash collisions and one duplicated key among the entries
+			init[2 * i] = i % 1000 == 0 ? (Object) ("" + i).hashCode() : "" + i;
+			init[2 * i + 1] = i;
+		}
+		init[2 * N] = null;
+		init[2 * N + 1] = -1;
+		init[2 * N + 2] = "7";
+		init[2 * N + 3] = -7;
+		PersistentHashMap<Object, Integer> sequential = PersistentHashMap.create(init);
+		PersistentHashMap<Object, Integer> parallel = PersistentHashMap.createParallel(init);
+		assertEquals(sequential.count(), parallel.count());
+		assertEquals(sequential, parallel);
+		assertEquals(-7, (int) parallel.get("7"));
+		assertEquals(-1, (int) parallel.get(null));
+
+		Map<Object, Integer> input = new HashMap<Object, Integer>(sequential);
+		assertEquals(sequential, PersistentHashMap.createParallel(input));
+
+		// the parallel built nodes must not be edited in place by a later transient
+		ITransientMap<Object, Integer> t = parallel.asTransient();
+		IPersistentMap<Object, Integer> changed = t.assoc("7", 7).without("8").persistentMap();
+		assertEquals(-7, (int) parallel.get("7"));
+		assertEquals(8, (int) parallel.get("8"));
+		assertEquals(7, (int) changed.valAt("7"));
+		assertEquals(parallel.count() - 1, changed.count());
+	}
+
+	private static PersistentHashMap<String, Integer> randomMap(Random rnd, int n, int range, Map<String, Integer> expected) {
+		PersistentHashMap<String, Integer> m = PersistentHashMap.emptyMap();
+		for (int i = 0; i < n; i++) {
+			int r = rnd.nextInt(range);
+			// "Aa" and "BB" have the same hash code, so these keys collide pairwise
+			String k = r % 20 == 0 ? (r % 40 == 0 ? "Aa" : "BB") + r / 40 : r == 1 ? null : "k" + r;
+			m = (PersistentHashMap<String, Integer>) m.assoc(k, i);
+			expected.put(k, i);
+		}
+		return m;
+	}
+
+	/**
+	 * Test method for {@link com.trifork.clj_ds.PersistentHashMap#merge(PersistentHashMap, IFn)},
+	 * {@link com.trifork.clj_ds.PersistentHashMap#intersection(PersistentHashMap, IFn)} and
+	 * {@link com.trifork.clj_ds.PersistentHashMap#difference(PersistentHashMap)}.
+	 */
+	@Test
+	public final void testSetAlgebra() {
+		Random rnd = new Random(11);
+		IFn sum = new AFn() {
+			public Object invoke(Object a, Object b) {
+				return (Integer) a + (Integer) b;
+			}
+		};
+		int[][] sizes = { { 0, 10 }, { 10, 0 }, { 50, 3000 }, { 3000, 50 }, { 5000, 5000 }, { 20000, 20 } };
+		for (int[] size : sizes) {
+			Map<String, Integer> ea = new HashMap<String, Integer>();
+			Map<String, Integer> eb = new HashMap<String, Integer>();
+			PersistentHashMap<String, Integer> a = randomMap(rnd, size[0], 4000, ea);
+			PersistentHashMap<String, Integer> b = randomMap(rnd, size[1], 4000, eb);
+
+			Map<String, Integer> expected = new HashMap<String, Integer>(ea);
+			expected.putAll(eb);
+			assertEquals(expected, a.merge(b));
+			assertEquals(expected.size(), a.merge(b).count());
+			for (Map.Entry<String, Integer> e : eb.entrySet()) {
+				if (ea.containsKey(e.getKey()))
+					expected.put(e.getKey(), ea.get(e.getKey()) + e.getValue());
+			}
+			assertEquals(expected, a.merge(b, sum));
+
+			expected = new HashMap<String, Integer>(ea);
+			expected.keySet().retainAll(eb.keySet());
+			assertEquals(expected, a.intersection(b));
+			assertEquals(expected.size(), a.intersection(b).count());
+
+			expected = new HashMap<String, Integer>(ea);
+			expected.keySet().removeAll(eb.keySet());
+			assertEquals(expected, a.difference(b));
+			assertEquals(expected.size(), a.difference(b).count());
+		}
+	}
+
+	@Test
+	public final void testSetAlgebraSharing() {
+		Random rnd = new Random(5);
+		PersistentHashMap<String, Integer> base = randomMap(rnd, 50000, 100000, new HashMap<String, Integer>());
+		assertSame(base, base.merge(base));
+		assertSame(base, base.merge(PersistentHashMap.<String, Integer> emptyMap()));
+		assertSame(base, base.intersection(base));
+		assertSame(base, base.difference(PersistentHashMap.<String, Integer> create("nokey", 1)));
+
+		String existing = base.iterator().next().getKey();
+		PersistentHashMap<String, Integer> changed = (PersistentHashMap<String, Integer>) base.assoc(existing, -1).assoc("new", -2);
+		PersistentHashMap<String, Integer> merged = base.merge(changed);
+		assertEquals(changed, merged);
+		assertEquals(base.count() + 1, merged.count());
+		assertSame(base, base.intersection(changed));
+		assertEquals(PersistentHashMap.create("new", -2), changed.difference(base));
+		assertEquals(base.count(), changed.intersection(base).count());
+		assertEquals(1, changed.difference(base).count());
+		assertEquals(0, base.difference(changed).count());
+		PersistentHashMap<String, Integer> shrunk = (PersistentHashMap<String, Integer>) base.without(existing);
+		assertEquals(base.count() - 1, base.intersection(shrunk).count());
+		assertEquals(1, base.difference(shrunk).count());
+	}
+
+	/**
+	 * A function given to merge or intersection is called on every key in
+	 * both maps, whether or not the maps share the entry.
+	 */
+	@Test
+	public final void testSetAlgebraSharedEntries() throws Exception {
+		Random rnd = new Random(7);
+		IFn sum = new AFn() {
+			public Object invoke(Object a, Object b) {
+				return (Integer) a + (Integer) b;
+			}
+		};
+		Map<String, Integer> entries = new HashMap<String, Integer>();
+		PersistentHashMap<String, Integer> m = randomMap(rnd, 5000, 10000, entries);
+		m = (PersistentHashMap<String, Integer>) m.assoc(null, 3);
+		entries.put(null, 3);
+		PersistentHashMap<String, Integer> copy = PersistentHashMap.create(entries);
+		Map<String, Integer> doubled = new HashMap<String, Integer>();
+		for (Map.Entry<String, Integer> e : entries.entrySet())
+			doubled.put(e.getKey(), 2 * e.getValue());
+		assertEquals(doubled, m.merge(m, sum));
+		assertEquals(doubled, m.merge(copy, sum));
+		assertEquals(doubled, m.intersection(m, sum));
+		assertEquals(doubled, m.intersection(copy, sum));
+		assertEquals(doubled.size(), m.merge(m, sum).count());
+		assertEquals(doubled.size(), m.intersection(m, sum).count());
+
+		// versions sharing all but one entry
+		String key = m.iterator().next().getKey();
+		PersistentHashMap<String, Integer> changed = (PersistentHashMap<String, Integer>) m.assoc(key, 100);
+		doubled.put(key, entries.get(key) + 100);
+		assertEquals(doubled, m.merge(changed, sum));
+		assertEquals(doubled, m.intersection(changed, sum));
+	}
+
+	/**
+	 * Test method for {@link com.trifork.clj_ds.PersistentHashMap#diff(PersistentHashMap, PersistentHashMap.DiffVisitor)}.
+	 */
+	@Test
+	public final void testDiff() {
+		Random rnd = new Random(17);
+		PersistentHashMap<String, Integer> older = randomMap(rnd, 20000, 30000, new HashMap<String, Integer>());
+		PersistentHashMap<String, Integer> newer = older;
+		for (int i = 0; i < 500; i++) {
+			int r = rnd.nextInt(30000);
+			String k = r % 20 == 0 ? (r % 40 == 0 ? "Aa" : "BB") + r / 40 : r == 1 ? null : "k" + r;
+			if (rnd.nextBoolean())
+				newer = (PersistentHashMap<String, Integer>) newer.without(k);
+			else
+				newer = (PersistentHashMap<String, Integer>) newer.assoc(k, rnd.nextInt(3));
+		}
+		final Map<String, Integer> applied = new HashMap<String, Integer>(older);
+		final List<String> reported = new ArrayList<String>();
+		older.diff(newer, new PersistentHashMap.DiffVisitor<String, Integer>() {
+			public void added(String key, Integer val) {
+				assertTrue(!applied.containsKey(key));
+				applied.put(key, val);
+				reported.add(key);
+			}
+
+			public void removed(String key, Integer val) {
+				assertEquals(applied.remove(key), val);
+				reported.add(key);
+			}
+
+			public void changed(String key, Integer oldVal, Integer newVal) {
+				assertEquals(applied.put(key, newVal), oldVal);
+				assertTrue(!oldVal.equals(newVal));
+				reported.add(key);
+			}
+		});
+		assertEquals(newer, applied);
+		assertEquals(reported.size(), new HashSet<String>(reported).size());
+
+		reported.clear();
+		older.diff(older, new PersistentHashMap.DiffVisitor<String, Integer>() {
+			public void added(String key, Integer val) {
+				reported.add(key);
+			}
+
+			public void removed(String key, Integer val) {
+				reported.add(key);
+			}
+
+			public void changed(String key, Integer oldVal, Integer newVal) {
+				reported.add(key);
+			}
+		});
+		assertEquals(0, reported.size());
+	}
+
+	/**
+	 * Test method for {@link com.trifork.clj_ds.PersistentHashMap#reduceKV(IFn, Object)} and
+	 * {@link com.trifork.clj_ds.PersistentHashMap#forEach(IFn)}.
+	 */
+	@Test
+	public final void testReduceKVAndForEach() throws Exception {
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		PersistentHashMap<String, Integer> m = randomMap(new Random(23), 30000, 40000, expected);
+		long sum = 0;
+		for (Integer v : expected.values())
+			sum += v;
+		Object total = m.reduceKV(new AFn() {
+			public Object invoke(Object acc, Object key, Object val) {
+				return (Long) acc + (Integer) val;
+			}
+		}, 0L);
+		assertEquals(sum, total);
+
+		final List<Object> keys = new ArrayList<Object>();
+		final Map<String, Integer> seen = new HashMap<String, Integer>();
+		m.forEach(new AFn() {
+			public Object invoke(Object key, Object val) {
+				keys.add(key);
+				seen.put((String) key, (Integer) val);
+				return null;
+			}
+		});
+		assertEquals(expected, seen);
+		List<Object> iterated = new ArrayList<Object>();
+		for (Map.Entry<String, Integer> e : m)
+			iterated.add(e.getKey());
+		assertEquals(iterated, keys);
+		assertEquals("x", PersistentHashMap.emptyMap().reduceKV(null, "x"));
+	}
+
+	/**
+	 * Test method for {@link com.trifork.clj_ds.PersistentHashMap.TransientHashMap#assocAll(Object[])} and
+	 * {@link com.trifork.clj_ds.PersistentHashMap.TransientHashMap#withoutAll(Object[])}.
+	 */
+	@Test
+	public final void testBatchAssocWithout() {
+		Random rnd = new Random(29);
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		PersistentHashMap<String, Integer> m = randomMap(rnd, 2000, 40000, expected);
+		for (int round = 0; round < 20; round++) {
+			PersistentHashMap<String, Integer> before = m;
+			Map<String, Integer> expectedBefore = new HashMap<String, Integer>(expected);
+			PersistentHashMap.TransientHashMap<String, Integer> t = m.asTransient();
+			int size = round == 0 ? 1 : rnd.nextInt(10000);
+			Object[] kvs = new Object[2 * size];
+			for (int i = 0; i < size; i++) {
+				int r = rnd.nextInt(40000);
+				String k = r % 20 == 0 ? (r % 40 == 0 ? "Aa" : "BB") + r / 40 : r == 1 ? null : "k" + r;
+				kvs[2 * i] = k;
+				kvs[2 * i + 1] = i;
+				expected.put(k, i);
+			}
+			t.assocAll(kvs);
+			Object[] keys = new Object[rnd.nextInt(size + 1)];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = kvs[2 * rnd.nextInt(size)];
+				if (i % 3 == 0)
+					keys[i] = "k" + rnd.nextInt(40000);
+				expected.remove(keys[i]);
+			}
+			t.withoutAll(keys);
+			m = (PersistentHashMap<String, Integer>) t.persistentMap();
+			assertEquals(expected.size(), m.count());
+			assertEquals(expected, m);
+			assertEquals(expectedBefore, before);
+		}
+		Object[] all = expected.keySet().toArray();
+		PersistentHashMap.TransientHashMap<String, Integer> t = m.asTransient();
+		assertEquals(0, t.withoutAll(all).count());
+		assertEquals(0, t.persistentMap().count());
+	}
+
+	/** Returns n distinct strings that all have the same hashCode. */
+	static List<String> collidingKeys(int n) {
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; keys.size() < n; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int b = 0; b < 16; b++)
+				sb.append((i >>> b & 1) == 0 ? "Aa" : "BB");
+			keys.add(sb.toString());
+		}
+		return keys;
+	}
+
+	@Test
+	public final void testCollisionFlood() throws Exception {
+		Random rnd = new Random(31);
+		List<String> keys = collidingKeys(1000);
+		Collections.shuffle(keys, rnd);
+		List<String> absent = keys.subList(800, 1000);
+		Map<Object, Integer> expected = new HashMap<Object, Integer>();
+		IPersistentMap<Object, Integer> m = PersistentHashMap.emptyMap();
+		for (int i = 0; i < 800; i++) {
+			m = m.assoc(keys.get(i), i);
+			expected.put(keys.get(i), i);
+		}
+		assertEquals(expected, m);
+		for (String k : absent)
+			assertFalse(m.containsKey(k));
+
+		// a key of another class in the same node falls back to a linear scan
+		Integer odd = Integer.valueOf(keys.get(0).hashCode());
+		IPersistentMap<Object, Integer> mixed = m.assoc(odd, -1).assoc(absent.get(0), -2);
+		assertEquals(Integer.valueOf(-1), mixed.valAt(odd));
+		assertEquals(Integer.valueOf(-2), mixed.valAt(absent.get(0)));
+		mixed = mixed.without(odd).assoc(absent.get(1), -3);
+		assertEquals(802, mixed.count());
+		for (int i = 0; i < 800; i++)
+			assertEquals(Integer.valueOf(i), mixed.valAt(keys.get(i)));
+
+		IPersistentMap<Object, Integer> before = m;
+		ITransientMap<Object, Integer> t = ((PersistentHashMap<Object, Integer>) m).asTransient();
+		for (int i = 0; i < 2000; i++) {
+			String k = keys.get(rnd.nextInt(1000));
+			if (rnd.nextBoolean()) {
+				t = t.without(k);
+				m = m.without(k);
+				expected.remove(k);
+			} else {
+				t = t.assoc(k, i);
+				m = m.assoc(k, i);
+				expected.put(k, i);
+			}
+		}
+		assertEquals(expected, t.persistentMap());
+		assertEquals(expected, m);
+		assertEquals(800, before.count());
+		for (int i = 0; i < 800; i++)
+			assertEquals(Integer.valueOf(i), before.valAt(keys.get(i)));
+	}
+
 	/**
 	 * Test method for {@link com.trifork.clj_ds.PersistentHashMap#create(java.lang.Object[])}.
 	 */
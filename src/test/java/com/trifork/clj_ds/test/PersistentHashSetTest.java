@@ -4,6 +4,7 @@
 package com.trifork.clj_ds.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import java.util.HashSet;
 
@@ -50,4 +51,33 @@ public class PersistentHashSetTest {
 		
 	}
 
+	@Test
+	public final void testUnionIntersectionDifference() {
+		PersistentHashSet<Integer> evens = PersistentHashSet.emptySet();
+		PersistentHashSet<Integer> threes = PersistentHashSet.emptySet();
+		HashSet<Integer> e = new HashSet<Integer>(), t = new HashSet<Integer>();
+		for (int i = 0; i < 3000; i++) {
+			if (i % 2 == 0) {
+				evens = (PersistentHashSet<Integer>) evens.cons(i);
+				e.add(i);
+			}
+			if (i % 3 == 0) {
+				threes = (PersistentHashSet<Integer>) threes.cons(i);
+				t.add(i);
+			}
+		}
+		HashSet<Integer> expected = new HashSet<Integer>(e);
+		expected.addAll(t);
+		assertEquals(expected, evens.union(threes));
+		assertEquals(expected.size(), evens.union(threes).count());
+		expected = new HashSet<Integer>(e);
+		expected.retainAll(t);
+		assertEquals(expected, evens.intersection(threes));
+		expected = new HashSet<Integer>(e);
+		expected.removeAll(t);
+		assertEquals(expected, evens.difference(threes));
+		assertSame(evens, evens.union(evens));
+		assertEquals(0, evens.difference(evens).count());
+	}
+
 }
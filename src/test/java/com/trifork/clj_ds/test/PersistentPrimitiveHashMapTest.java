@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.PersistentHashMap;
+import com.trifork.clj_ds.PersistentIntHashMap;
+import com.trifork.clj_ds.PersistentIntHashMap.TransientIntHashMap;
+import com.trifork.clj_ds.PersistentLongHashMap;
+import com.trifork.clj_ds.PersistentLongHashMap.TransientLongHashMap;
+
+public class PersistentPrimitiveHashMapTest {
+
+	@Test
+	public final void testLongRandomOperations() {
+		Random rnd = new Random(42);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		PersistentLongHashMap<Integer> m = PersistentLongHashMap.emptyMap();
+		for (int i = 0; i < 100000; i++) {
+			long k = rnd.nextInt(20000) * 0x100000001L;
+			if (rnd.nextInt(3) == 0) {
+				expected.remove(k);
+				m = m.withoutLong(k);
+			} else {
+				Integer v = i;
+				expected.put(k, v);
+				m = m.assocLong(k, v);
+			}
+		}
+		assertEquals(expected.size(), m.count());
+		for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+			assertEquals(e.getValue(), m.getLong(e.getKey().longValue()));
+			assertTrue(m.containsKeyLong(e.getKey().longValue()));
+		}
+		assertEquals(expected, m);
+		assertEquals(m, expected);
+		assertEquals(expected.hashCode(), m.hashCode());
+		assertNull(m.getLong(-1L));
+		assertNull(m.get((Object) 5));
+	}
+
+	@Test
+	public final void testIntRandomOperations() {
+		Random rnd = new Random(7);
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		PersistentIntHashMap<Integer> m = PersistentIntHashMap.emptyMap();
+		for (int i = 0; i < 100000; i++) {
+			int k = rnd.nextInt();
+			if (i % 4 == 3) {
+				Integer old = expected.keySet().iterator().next();
+				expected.remove(old);
+				m = m.withoutInt(old.intValue());
+			} else {
+				Integer v = i;
+				expected.put(k, v);
+				m = m.assocInt(k, v);
+			}
+		}
+		assertEquals(expected.size(), m.count());
+		for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+			assertEquals(e.getValue(), m.getInt(e.getKey().intValue()));
+		}
+		assertEquals(expected, m);
+	}
+
+	@Test
+	public final void testLongTransient() {
+		PersistentLongHashMap<String> base = PersistentLongHashMap.emptyMap();
+		for (long i = 0; i < 1000; i++) {
+			base = base.assocLong(i, "v" + i);
+		}
+		TransientLongHashMap<String> t = base.asTransient();
+		for (long i = 0; i < 2000; i++) {
+			t = t.assocLong(i, "t" + i);
+		}
+		for (long i = 0; i < 2000; i += 2) {
+			t = t.withoutLong(i);
+		}
+		assertEquals("t1", t.getLong(1L));
+		PersistentLongHashMap<String> result = (PersistentLongHashMap<String>) t.persistentMap();
+		assertEquals(1000, result.count());
+		for (long i = 0; i < 2000; i++) {
+			assertEquals(i % 2 == 0 ? null : "t" + i, result.getLong(i));
+		}
+		assertEquals(1000, base.count());
+		for (long i = 0; i < 1000; i++) {
+			assertEquals("v" + i, base.getLong(i));
+		}
+	}
+
+	/**
+	 * Maps from numbers to numbers, where the boxed and unboxed entry points
+	 * take the same argument types.
+	 */
+	@Test
+	public final void testBoxedValues() throws Exception {
+		PersistentLongHashMap<Long> lm = PersistentLongHashMap.emptyMap();
+		lm = lm.assoc(5L, 42L).assocLong(6L, 43L);
+		assertEquals(Long.valueOf(42L), lm.getLong(5L));
+		assertEquals(Long.valueOf(43L), lm.valAt(6L));
+		assertEquals(1, lm.without(5L).count());
+		assertEquals(1, lm.withoutLong(6L).count());
+		TransientLongHashMap<Long> lt = lm.asTransient();
+		lt.assoc(7L, 44L);
+		lt.assocLong(8L, 45L);
+		assertEquals(Long.valueOf(44L), lt.getLong(7L));
+		assertEquals(4, lt.persistentMap().count());
+
+		PersistentIntHashMap<Integer> im = PersistentIntHashMap.emptyMap();
+		im = im.assoc(5, 42).assocInt(6, 43);
+		assertEquals(Integer.valueOf(42), im.getInt(5));
+		assertEquals(Integer.valueOf(43), im.valAt(6));
+		assertEquals(1, im.without(5).count());
+		assertEquals(1, im.withoutInt(6).count());
+		TransientIntHashMap<Integer> it = im.asTransient();
+		it.assoc(7, 44);
+		it.assocInt(8, 45);
+		assertEquals(Integer.valueOf(44), it.getInt(7));
+		assertEquals(4, it.persistentMap().count());
+	}
+
+	@Test
+	public final void testForeignKeys() throws Exception {
+		PersistentLongHashMap<String> lm = PersistentLongHashMap.<String>emptyMap().assocLong(1L, "x");
+		assertTrue(lm.containsKey(1L));
+		assertFalse(lm.containsKey(Integer.valueOf(1)));
+		assertFalse(lm.containsKey("1"));
+		assertFalse(lm.containsKey(null));
+		assertFalse(lm.keySet().contains(Integer.valueOf(1)));
+		assertFalse(PersistentHashMap.create(1, "x").equals(lm));
+		assertTrue(PersistentHashMap.create(1L, "x").equals(lm));
+		assertTrue(lm.equals(PersistentHashMap.create(1L, "x")));
+
+		PersistentIntHashMap<String> im = PersistentIntHashMap.<String>emptyMap().assocInt(1, "x");
+		assertTrue(im.containsKey(1));
+		assertFalse(im.containsKey(Long.valueOf(1L)));
+		assertFalse(im.containsKey("1"));
+		assertFalse(im.containsKey(null));
+		assertFalse(im.keySet().contains(Long.valueOf(1L)));
+		assertFalse(PersistentHashMap.create(1L, "x").equals(im));
+		assertTrue(PersistentHashMap.create(1, "x").equals(im));
+		assertFalse(lm.equals(im));
+		assertFalse(im.equals(lm));
+	}
+
+	@Test
+	public final void testIterators() {
+		PersistentIntHashMap<Integer> m = PersistentIntHashMap.emptyMap();
+		for (int i = 0; i < 5000; i++) {
+			m = m.assocInt(i, Integer.valueOf(i));
+		}
+		List<Integer> l = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> e : m) {
+			assertEquals(e.getKey(), e.getValue());
+			l.add(e.getKey());
+		}
+		assertEquals(5000, l.size());
+		int i = l.size();
+		for (Iterator<Map.Entry<Integer, Integer>> it = m.reverseIterator(); it.hasNext();) {
+			assertEquals(l.get(--i), it.next().getKey());
+		}
+		assertEquals(0, i);
+		i = 321;
+		for (Iterator<Map.Entry<Integer, Integer>> it = m.iteratorFrom(l.get(i)); it.hasNext();) {
+			assertEquals(l.get(i++), it.next().getKey());
+		}
+		assertEquals(l.size(), i);
+		for (int k = 0; k < 5000; k++) {
+			m = m.withoutInt(k);
+		}
+		assertEquals(0, m.count());
+		assertFalse(m.iterator().hasNext());
+	}
+
+	static final int NUM_ITERS = 5;
+
+	/**
+	 * Compares build and lookup time of long keyed maps against PersistentHashMap.
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		for (int count = 0; count < NUM_ITERS; count++) {
+			long start = System.nanoTime();
+			IPersistentMap<Long, Object> phm = PersistentHashMap.emptyMap();
+			for (long i = 0; i < n; i++) {
+				phm = phm.assoc(i, phm);
+			}
+			long hits = 0;
+			for (long i = 0; i < n; i++) {
+				if (phm.valAt(i) != null) hits++;
+			}
+			long end = System.nanoTime();
+			System.out.println("PersistentHashMap ( " + count + ") " + hits + ": " + (end - start) / 1000);
+
+			start = System.nanoTime();
+			PersistentLongHashMap<Object> plm = PersistentLongHashMap.emptyMap();
+			for (long i = 0; i < n; i++) {
+				plm = plm.assocLong(i, plm);
+			}
+			hits = 0;
+			for (long i = 0; i < n; i++) {
+				if (plm.getLong(i) != null) hits++;
+			}
+			end = System.nanoTime();
+			System.out.println("PersistentLongHashMap ( " + count + ") " + hits + ": " + (end - start) / 1000);
+		}
+	}
+}
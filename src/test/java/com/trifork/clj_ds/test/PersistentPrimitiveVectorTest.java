@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IChunkedSeq;
+import com.trifork.clj_ds.IFn;
+import com.trifork.clj_ds.ISeq;
+import com.trifork.clj_ds.IntArrayChunk;
+import com.trifork.clj_ds.LongArrayChunk;
+import com.trifork.clj_ds.PersistentDoubleVector;
+import com.trifork.clj_ds.PersistentIntVector;
+import com.trifork.clj_ds.PersistentLongVector;
+import com.trifork.clj_ds.PersistentLongVector.TransientLongVector;
+import com.trifork.clj_ds.PersistentVector;
+
+public class PersistentPrimitiveVectorTest {
+
+	static final IFn.LLL PLUS = new IFn.LLL() {
+		public long invokePrim(long a, long b) {
+			return a + b;
+		}
+	};
+
+	private static void check(List<Long> expected, PersistentLongVector v) {
+		assertEquals(expected.size(), v.count());
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i).longValue(), v.nthLong(i));
+		assertEquals(expected, v);
+	}
+
+	@Test
+	public final void testLongRandomOperations() {
+		Random rnd = new Random(42);
+		List<Long> expected = new ArrayList<Long>();
+		PersistentLongVector v = PersistentLongVector.emptyVector();
+		List<PersistentLongVector> versions = new ArrayList<PersistentLongVector>();
+		List<List<Long>> models = new ArrayList<List<Long>>();
+		for (int round = 0; round < 400; round++) {
+			switch (rnd.nextInt(4)) {
+			case 0:
+				for (int k = rnd.nextInt(3000); k > 0 && v.count() > 0; k--) {
+					v = v.pop();
+					expected.remove(expected.size() - 1);
+				}
+				break;
+			case 1:
+				for (int k = rnd.nextInt(50); k > 0 && v.count() > 0; k--) {
+					int i = rnd.nextInt(v.count());
+					long x = rnd.nextLong();
+					v = v.assocN(i, x);
+					expected.set(i, x);
+				}
+				break;
+			case 2: {
+				TransientLongVector t = v.asTransient();
+				for (int k = rnd.nextInt(3000); k > 0; k--) {
+					int op = rnd.nextInt(4);
+					if (op == 0 && t.count() > 0) {
+						t.pop();
+						expected.remove(expected.size() - 1);
+					} else if (op == 1 && t.count() > 0) {
+						int i = rnd.nextInt(t.count());
+						t.assocN(i, (long) -k);
+						expected.set(i, (long) -k);
+					} else {
+						t.conj((long) k);
+						expected.add((long) k);
+					}
+				}
+				v = t.persistent();
+				break;
+			}
+			default:
+				for (int k = rnd.nextInt(3000); k > 0; k--) {
+					v = v.cons(k * 0x100000001L);
+					expected.add(k * 0x100000001L);
+				}
+			}
+			check(expected, v);
+			versions.add(v);
+			models.add(new ArrayList<Long>(expected));
+		}
+		// transients never write through to the versions they were made from
+		for (int i = 0; i < versions.size(); i++)
+			check(models.get(i), versions.get(i));
+	}
+
+	@Test
+	public final void testChunksAndReduce() throws Exception {
+		for (int n : new int[] { 0, 1, 31, 32, 33, 1056, 40000 }) {
+			long[] items = new long[n];
+			PersistentVector<Long> boxed = PersistentVector.emptyVector();
+			for (int i = 0; i < n; i++) {
+				items[i] = i * 3L;
+				boxed = boxed.cons(i * 3L);
+			}
+			PersistentLongVector v = PersistentLongVector.create(items);
+			assertEquals(boxed, v);
+			assertEquals(v, boxed);
+			assertEquals(boxed.hashCode(), v.hashCode());
+			assertEquals(3L * n * (n - 1) / 2, v.reduce(PLUS, 0));
+
+			long sum = 0;
+			int count = 0;
+			for (ISeq<Long> s = v.chunkedSeq(); s != null; s = ((IChunkedSeq<Long>) s).chunkedNext()) {
+				LongArrayChunk c = (LongArrayChunk) ((IChunkedSeq<Long>) s).chunkedFirst();
+				for (int i = 0; i < c.count(); i++)
+					assertEquals(items[count + i], c.nthLong(i));
+				count += c.count();
+				sum = c.reduce(PLUS, sum);
+			}
+			assertEquals(n, count);
+			assertEquals(v.reduce(PLUS, 0), sum);
+
+			count = 0;
+			for (ISeq<Long> s = v.seq(); s != null; s = s.next())
+				assertEquals(Long.valueOf(items[count++]), s.first());
+			assertEquals(n, count);
+			if (n == 0)
+				assertNull(v.seq());
+		}
+	}
+
+	@Test
+	public final void testIntAndDouble() throws Exception {
+		PersistentIntVector iv = PersistentIntVector.emptyVector();
+		PersistentDoubleVector dv = PersistentDoubleVector.emptyVector();
+		for (int i = 0; i < 5000; i++) {
+			iv = iv.cons(Integer.MAX_VALUE - i);
+			dv = dv.cons(i / 4.0);
+		}
+		iv = iv.assocN(100, -1).pop();
+		dv = dv.assocN(4998, -1.5).asTransient().conj(7.0).persistent();
+		assertEquals(4999, iv.count());
+		assertEquals(5001, dv.count());
+		assertEquals(-1, iv.nthInt(100));
+		assertEquals(Integer.valueOf(Integer.MAX_VALUE - 4998), iv.nth(4998));
+		assertEquals(-1.5, dv.nthDouble(4998), 0);
+		assertEquals(7.0, dv.peek(), 0);
+		// ints are summed as longs, so this does not overflow
+		assertEquals(4998L * Integer.MAX_VALUE - 4998L * 4999 / 2 + 99, iv.reduce(PLUS, 0));
+		IntArrayChunk c = (IntArrayChunk) iv.chunkedSeq().chunkedFirst();
+		assertEquals(Integer.MAX_VALUE - 31, c.nthInt(31));
+		assertEquals(4997 * 4998 / 8.0 + 4999 / 4.0 - 1.5 + 7.0, dv.reduce(new IFn.DDD() {
+			public double invokePrim(double a, double b) {
+				return a + b;
+			}
+		}, 0), 0);
+		assertTrue(dv.contains(7.0));
+	}
+
+	@Test
+	public final void testSorted() {
+		Random rnd = new Random(9);
+		for (int n : new int[] { 0, 1, 32, 33, 5000 }) {
+			PersistentLongVector lv = PersistentLongVector.emptyVector();
+			PersistentIntVector iv = PersistentIntVector.emptyVector();
+			PersistentDoubleVector dv = PersistentDoubleVector.emptyVector();
+			List<Long> expected = new ArrayList<Long>();
+			for (int i = 0; i < n; i++) {
+				long x = rnd.nextInt(1000) - 500;
+				lv = lv.cons(x);
+				iv = iv.cons((int) x);
+				dv = dv.cons(x / 2.0);
+				expected.add(x);
+			}
+			Collections.sort(expected);
+			PersistentLongVector ls = lv.sorted();
+			PersistentIntVector is = iv.sorted();
+			PersistentDoubleVector ds = dv.sorted();
+			assertEquals(expected, ls);
+			for (int i = 0; i < n; i++) {
+				assertEquals((long) expected.get(i), is.nthInt(i));
+				assertEquals(expected.get(i) / 2.0, ds.nthDouble(i), 0);
+			}
+			assertEquals(n, is.count());
+			assertEquals(n, ds.count());
+		}
+	}
+}
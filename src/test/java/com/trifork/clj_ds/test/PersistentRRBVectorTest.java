@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.PersistentRRBVector;
+import com.trifork.clj_ds.PersistentVector;
+
+public class PersistentRRBVectorTest {
+
+	private static void check(List<Integer> expected, PersistentRRBVector<Integer> v) {
+		assertEquals(expected.size(), v.count());
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i), v.nth(i));
+	}
+
+	private static PersistentRRBVector<Integer> range(int from, int n, List<Integer> expected) {
+		PersistentVector<Integer> v = PersistentVector.emptyVector();
+		for (int i = 0; i < n; i++) {
+			v = v.cons(from + i);
+			expected.add(from + i);
+		}
+		return PersistentRRBVector.create(v);
+	}
+
+	@Test
+	public final void testFromPersistentVector() {
+		for (int n : new int[] { 0, 1, 32, 33, 1024, 1056, 1057, 40000 }) {
+			List<Integer> expected = new ArrayList<Integer>();
+			PersistentRRBVector<Integer> v = range(0, n, expected);
+			check(expected, v);
+			for (int i = 0; i < 100; i++) {
+				v = v.cons(n + i);
+				expected.add(n + i);
+			}
+			check(expected, v);
+			while (v.count() > n / 2) {
+				v = v.pop();
+				expected.remove(expected.size() - 1);
+			}
+			check(expected, v);
+			assertEquals(expected, v);
+		}
+	}
+
+	@Test
+	public final void testRandomOperations() {
+		Random rnd = new Random(17);
+		List<List<Integer>> models = new ArrayList<List<Integer>>();
+		List<PersistentRRBVector<Integer>> vectors = new ArrayList<PersistentRRBVector<Integer>>();
+		for (int i = 0; i < 8; i++) {
+			List<Integer> expected = new ArrayList<Integer>();
+			vectors.add(range(i * 100000, rnd.nextInt(3000), expected));
+			models.add(expected);
+		}
+		for (int round = 0; round < 1500; round++) {
+			int a = rnd.nextInt(vectors.size());
+			PersistentRRBVector<Integer> v = vectors.get(a);
+			List<Integer> expected = new ArrayList<Integer>(models.get(a));
+			int n = v.count();
+			switch (rnd.nextInt(7)) {
+			case 0: {
+				int b = rnd.nextInt(vectors.size());
+				v = v.concat(vectors.get(b));
+				expected.addAll(models.get(b));
+				break;
+			}
+			case 1: {
+				int i = rnd.nextInt(n + 1);
+				PersistentRRBVector<Integer>[] parts = v.splitAt(i);
+				check(expected.subList(0, i), parts[0]);
+				v = parts[1];
+				expected = new ArrayList<Integer>(expected.subList(i, n));
+				break;
+			}
+			case 2: {
+				int i = rnd.nextInt(n + 1);
+				int j = i + rnd.nextInt(n - i + 1);
+				v = v.subvec(i, j);
+				expected = new ArrayList<Integer>(expected.subList(i, j));
+				break;
+			}
+			case 3: {
+				int i = rnd.nextInt(n + 1);
+				v = v.insertAt(i, -round);
+				expected.add(i, -round);
+				break;
+			}
+			case 4:
+				if (n > 0) {
+					int i = rnd.nextInt(n);
+					v = v.removeAt(i);
+					expected.remove(i);
+				}
+				break;
+			case 5:
+				if (n > 0) {
+					int i = rnd.nextInt(n);
+					v = v.assocN(i, round);
+					expected.set(i, round);
+				}
+				break;
+			default:
+				for (int k = rnd.nextInt(100); k > 0; k--) {
+					if (rnd.nextBoolean() && !expected.isEmpty()) {
+						v = v.pop();
+						expected.remove(expected.size() - 1);
+					} else {
+						v = v.cons(round);
+						expected.add(round);
+					}
+				}
+			}
+			check(expected, v);
+			// keep the vectors from growing without bound
+			if (v.count() > 50000) {
+				v = v.subvec(0, 20000);
+				expected = new ArrayList<Integer>(expected.subList(0, 20000));
+			}
+			int slot = rnd.nextInt(vectors.size());
+			vectors.set(slot, v);
+			models.set(slot, expected);
+		}
+	}
+
+	@Test
+	public final void testManySmallConcats() {
+		Random rnd = new Random(5);
+		List<Integer> expected = new ArrayList<Integer>();
+		PersistentRRBVector<Integer> v = PersistentRRBVector.emptyVector();
+		for (int i = 0; i < 3000; i++) {
+			List<Integer> added = new ArrayList<Integer>();
+			PersistentRRBVector<Integer> w = range(i * 100, 1 + rnd.nextInt(70), added);
+			if (rnd.nextInt(3) == 0) {
+				v = w.concat(v);
+				expected.addAll(0, added);
+			} else {
+				v = v.concat(w);
+				expected.addAll(added);
+			}
+		}
+		check(expected, v);
+	}
+
+	@Test
+	public final void testLargeConcatAndSplit() {
+		List<Integer> expected = new ArrayList<Integer>();
+		PersistentRRBVector<Integer> a = range(0, 1000000, expected);
+		PersistentRRBVector<Integer> b = range(1000000, 1000007, expected);
+		PersistentRRBVector<Integer> v = a.concat(b);
+		check(expected, v);
+		PersistentRRBVector<Integer>[] parts = v.splitAt(1234567);
+		check(expected.subList(0, 1234567), parts[0]);
+		check(expected.subList(1234567, expected.size()), parts[1]);
+		check(expected, parts[1].concat(parts[0]).splitAt(parts[1].count())[1].concat(parts[1]));
+	}
+}
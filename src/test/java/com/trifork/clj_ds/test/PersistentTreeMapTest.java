@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IMapEntry;
+import com.trifork.clj_ds.ISeq;
+import com.trifork.clj_ds.ITransientCollection;
+import com.trifork.clj_ds.ITransientMap;
+import com.trifork.clj_ds.PersistentTreeMap;
+import com.trifork.clj_ds.PersistentTreeSet;
+import com.trifork.clj_ds.RT;
+
+public class PersistentTreeMapTest {
+
+	@Test
+	public final void testOrderStatistics() throws Exception {
+		Random rnd = new Random(8);
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		PersistentTreeMap<Integer, Integer> m = PersistentTreeMap.EMPTY;
+		for (int round = 0; round < 20; round++) {
+			for (int k = 0; k < 2000; k++) {
+				Integer key = rnd.nextInt(10000);
+				if (rnd.nextInt(3) == 0) {
+					expected.remove(key);
+					m = m.without(key);
+				} else {
+					expected.put(key, k);
+					m = m.assoc(key, k);
+				}
+			}
+			List<Integer> keys = new ArrayList<Integer>(expected.keySet());
+			for (int i = 0; i < keys.size(); i += 7) {
+				assertEquals(keys.get(i), m.nth(i).key());
+				assertEquals(i, m.rank(keys.get(i)));
+			}
+			for (int k = 0; k < 100; k++) {
+				int lo = rnd.nextInt(10000) - 100;
+				int hi = lo + rnd.nextInt(3000);
+				assertEquals(expected.headMap(lo).size(), m.rank(lo));
+				assertEquals(expected.subMap(lo, hi).size(), m.countRange(lo, hi));
+				assertEquals(0, m.countRange(hi, lo));
+				int start = rnd.nextInt(keys.size());
+				int end = start + rnd.nextInt(keys.size() - start + 1);
+				ISeq s = m.slice(start, end);
+				assertEquals(end - start, RT.count(s));
+				for (int i = start; i < end; i++, s = s.next())
+					assertEquals(keys.get(i), ((IMapEntry) s.first()).key());
+				assertNull(s);
+			}
+		}
+	}
+
+	@Test
+	public final void testSetOrderStatistics() throws Exception {
+		PersistentTreeSet<Integer> s = PersistentTreeSet.EMPTY;
+		for (int i = 0; i < 1000; i++)
+			s = (PersistentTreeSet<Integer>) s.cons(i * 2);
+		assertEquals(Integer.valueOf(1000), s.nth(500));
+		assertEquals(500, s.rank(1000));
+		assertEquals(501, s.rank(1001));
+		assertEquals(50, s.countRange(100, 200));
+		ISeq<Integer> slice = s.slice(10, 13);
+		assertEquals(Integer.valueOf(20), slice.first());
+		assertEquals(Integer.valueOf(24), slice.next().next().first());
+		assertNull(slice.next().next().next());
+		try {
+			s.nth(1000);
+			assertEquals("no exception", null);
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public final void testSplitAndJoin() throws Exception {
+		Random rnd = new Random(13);
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		PersistentTreeMap<Integer, Integer> m = PersistentTreeMap.EMPTY;
+		for (int round = 0; round < 10; round++) {
+			for (int k = 0; k < 3000; k++) {
+				Integer key = rnd.nextInt(20000);
+				expected.put(key, k);
+				m = m.assoc(key, k);
+			}
+			for (int k = 0; k < 50; k++) {
+				int lo = rnd.nextInt(20400) - 200;
+				int hi = lo + rnd.nextInt(5000);
+				PersistentTreeMap<Integer, Integer>[] s = m.split(lo);
+				assertEquals(expected.headMap(lo), s[0]);
+				assertEquals(expected.tailMap(lo), s[1]);
+				assertEquals(expected.headMap(lo).size(), s[0].count());
+				assertEquals(m, PersistentTreeMap.join(s[0], s[1]));
+				PersistentTreeMap<Integer, Integer> sub = m.subMap(lo, hi);
+				assertEquals(expected.subMap(lo, hi), sub);
+				assertEquals(expected.subMap(lo, hi).size(), sub.count());
+				PersistentTreeMap<Integer, Integer> rest = m.withoutRange(lo, hi);
+				TreeMap<Integer, Integer> restModel = new TreeMap<Integer, Integer>(expected);
+				restModel.subMap(lo, hi).clear();
+				assertEquals(restModel, rest);
+				assertEquals(restModel.size(), rest.count());
+				// the results stay usable as ordinary maps
+				assertEquals(restModel.size() + 1, rest.assoc(lo, -1).count());
+				assertEquals(m.count(), m.withoutRange(lo, hi).count() + m.subMap(lo, hi).count());
+			}
+			Integer at = expected.firstKey();
+			if (rnd.nextBoolean())
+				m = PersistentTreeMap.join(m.split(at)[0], m.split(at)[1]);
+		}
+		assertSame(m, m.withoutRange(5, 5));
+		assertEquals(0, m.subMap(5, 5).count());
+		try {
+			PersistentTreeMap.join(m, m);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public final void testSetSplitAndJoin() throws Exception {
+		PersistentTreeSet<Integer> s = PersistentTreeSet.EMPTY;
+		for (int i = 0; i < 1000; i++)
+			s = (PersistentTreeSet<Integer>) s.cons(i);
+		PersistentTreeSet<Integer>[] parts = s.split(300);
+		assertEquals(300, parts[0].count());
+		assertEquals(Integer.valueOf(300), parts[1].nth(0));
+		assertEquals(s, PersistentTreeSet.join(parts[0], parts[1]));
+		assertEquals(100, s.subSet(100, 200).count());
+		assertEquals(Integer.valueOf(100), s.subSet(100, 200).nth(0));
+		assertEquals(900, s.withoutRange(100, 200).count());
+		assertEquals(Integer.valueOf(200), s.withoutRange(100, 200).nth(100));
+	}
+
+	@Test
+	public final void testCreateFromSorted() throws Exception {
+		for (int n : new int[] { 0, 1, 2, 3, 7, 8, 100, 1023, 1024, 1025, 50000 }) {
+			Integer[] keys = new Integer[n];
+			String[] vals = new String[n];
+			TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+			for (int i = 0; i < n; i++) {
+				keys[i] = i * 3;
+				vals[i] = "v" + i;
+				expected.put(keys[i], vals[i]);
+			}
+			PersistentTreeMap<Integer, String> m = PersistentTreeMap.createFromSorted(RT.DEFAULT_COMPARATOR, keys, vals);
+			assertEquals(expected, m);
+			assertEquals(n, m.count());
+			assertEquals(expected, PersistentTreeMap.createFromSorted(RT.DEFAULT_COMPARATOR, expected.entrySet().iterator()));
+			for (int i = 0; i < n; i += 1 + n / 50) {
+				assertEquals(keys[i], m.nth(i).key());
+				assertEquals("v" + i, m.valAt(keys[i]));
+			}
+			// still balances under later updates
+			for (int i = 0; i < n; i += 2)
+				m = m.without(keys[i]).assoc(keys[i] + 1, "x");
+			assertEquals(n, m.count());
+			PersistentTreeSet<Integer> set = PersistentTreeSet.createFromSorted(RT.DEFAULT_COMPARATOR, keys);
+			assertEquals(expected.keySet(), set);
+			assertEquals(expected.keySet(),
+					PersistentTreeSet.createFromSorted(RT.DEFAULT_COMPARATOR, expected.keySet().iterator()));
+		}
+		try {
+			PersistentTreeMap.createFromSorted(RT.DEFAULT_COMPARATOR, new Integer[] { 1, 3, 3 }, new Integer[3]);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			PersistentTreeSet.createFromSorted(RT.DEFAULT_COMPARATOR, new Integer[] { 1, 3, 2 });
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public final void testTransient() throws Exception {
+		Random rnd = new Random(24);
+		TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		PersistentTreeMap<Integer, Integer> m = PersistentTreeMap.EMPTY;
+		for (int round = 0; round < 20; round++) {
+			PersistentTreeMap<Integer, Integer> before = m;
+			Map<Integer, Integer> beforeExpected = new TreeMap<Integer, Integer>(expected);
+			ITransientMap<Integer, Integer> t = m.asTransient();
+			for (int k = 0; k < 3000; k++) {
+				Integer key = rnd.nextInt(20000);
+				if (rnd.nextInt(4) == 0) {
+					expected.remove(key);
+					t = t.without(key);
+				} else {
+					expected.put(key, k);
+					t = t.assoc(key, k);
+				}
+				assertEquals(expected.size(), t.count());
+				assertEquals(expected.get(key), t.valAt(key));
+			}
+			m = (PersistentTreeMap<Integer, Integer>) t.persistentMap();
+			assertEquals(expected, m);
+			assertEquals(beforeExpected, before);
+			assertTrue(m.depth() <= 2 * (32 - Integer.numberOfLeadingZeros(m.count() + 1)));
+			List<Integer> keys = new ArrayList<Integer>(expected.keySet());
+			for (int i = 0; i < keys.size(); i += 7) {
+				assertEquals(keys.get(i), m.nth(i).key());
+				assertEquals(i, m.rank(keys.get(i)));
+			}
+			try {
+				t.assoc(1, 1);
+				assertTrue(false);
+			} catch (IllegalAccessError e) {
+			}
+			// persistent updates of a map made by a transient leave it alone
+			Integer first = keys.get(0);
+			assertEquals(expected.size() - 1, m.without(first).count());
+			assertEquals(expected.get(first), m.valAt(first));
+		}
+		ITransientCollection<Integer> ts = PersistentTreeSet.EMPTY.asTransient();
+		for (int i = 0; i < 1000; i++)
+			ts = ts.conj(rnd.nextInt(500));
+		PersistentTreeSet<Integer> set = (PersistentTreeSet<Integer>) ts.persistent();
+		assertEquals(set.count(), RT.count(set.seq()));
+		assertEquals(PersistentTreeSet.create(set.seq()), set);
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.AFn;
+import com.trifork.clj_ds.IFn;
+import com.trifork.clj_ds.PersistentDeque;
+import com.trifork.clj_ds.PersistentLongVector;
+import com.trifork.clj_ds.PersistentQueue;
+import com.trifork.clj_ds.PersistentVector;
+
+import jsr166y.ForkJoinPool;
+
+/**
+ * Times the parallel operations of PersistentVector on pools of a growing
+ * number of threads. The functions do some arithmetic per element, so the
+ * timings show the cost of the functions rather than of the traversal.
+ */
+public class PersistentVectorPerformanceTest {
+	static final int SIZE = 1000000;
+	static final int GRANULARITY = 2048;
+
+	static Object work(Object x) {
+		double d = (Integer) x;
+		for (int i = 0; i < 50; i++)
+			d = Math.sqrt(d + i);
+		return d;
+	}
+
+	static final IFn WORK = new AFn() {
+		public Object invoke(Object x) {
+			return work(x);
+		}
+	};
+
+	static final IFn PREDICATE = new AFn() {
+		public Object invoke(Object x) {
+			return (Double) work(x) < 0;
+		}
+	};
+
+	static final IFn PLUS = new AFn() {
+		public Object invoke() {
+			return 0.0;
+		}
+
+		public Object invoke(Object x, Object y) {
+			return (Double) x + (Double) y;
+		}
+	};
+
+	static final IFn PLUS_WORK = new AFn() {
+		public Object invoke(Object acc, Object x) {
+			return (Double) acc + (Double) work(x);
+		}
+	};
+
+	public Object found;
+
+	@Test
+	public void testParallelOperations() throws Exception {
+		PersistentVector<Integer> vec = PersistentVector.emptyVector();
+		for (int i = 0; i < SIZE; i++)
+			vec = vec.cons(i);
+
+		for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			for (int round = 0; round < 3; round++) {
+				long t0 = System.nanoTime();
+				found = PersistentVector.pvectormap(pool, GRANULARITY, WORK, vec);
+				long t1 = System.nanoTime();
+				found = PersistentVector.pfilter(pool, GRANULARITY, PREDICATE, vec);
+				long t2 = System.nanoTime();
+				found = PersistentVector.pfold(pool, GRANULARITY, PLUS, PLUS_WORK, vec);
+				long t3 = System.nanoTime();
+				// matches nothing, so every part is searched
+				found = PersistentVector.pany(pool, GRANULARITY, PREDICATE, vec);
+				long t4 = System.nanoTime();
+				System.out.println("Threads:" + threads
+						+ " pvectormap:" + (t1 - t0) / 1000000 + "ms"
+						+ " pfilter:" + (t2 - t1) / 1000000 + "ms"
+						+ " pfold:" + (t3 - t2) / 1000000 + "ms"
+						+ " pany:" + (t4 - t3) / 1000000 + "ms");
+			}
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testConjAll() {
+		Object[] src = new Object[10000000];
+		for (int i = 0; i < src.length; i++)
+			src[i] = i;
+		for (int round = 0; round < 5; round++) {
+			long t0 = System.nanoTime();
+			PersistentVector.TransientVector<Object> t = PersistentVector.emptyVector().asTransient();
+			for (Object x : src)
+				t.conj(x);
+			found = t.persistent();
+			long t1 = System.nanoTime();
+			found = PersistentVector.emptyVector().conjAll(src, 0, src.length);
+			long t2 = System.nanoTime();
+			Object[] copy = new Object[src.length];
+			System.arraycopy(src, 0, copy, 0, src.length);
+			found = copy;
+			long t3 = System.nanoTime();
+			System.out.println("Load " + src.length
+					+ " conj:" + (t1 - t0) / 1000000 + "ms"
+					+ " conjAll:" + (t2 - t1) / 1000000 + "ms"
+					+ " System.arraycopy:" + (t3 - t2) / 1000000 + "ms");
+		}
+	}
+
+	/*
+	 * A sliding window: each step appends at the back and drops the front.
+	 * ArrayDeque is copied at every step to make it persistent. The window
+	 * size is counted separately, as PersistentQueue.count() is linear.
+	 */
+	@Test
+	public void testDeque() {
+		int steps = 1000000;
+		for (int window : new int[] { 100, 1000, 10000 }) {
+			for (int round = 0; round < 3; round++) {
+				long t0 = System.nanoTime();
+				PersistentDeque<Integer> d = PersistentDeque.emptyDeque();
+				for (int i = 0; i < steps; i++) {
+					d = d.cons(i);
+					if (i >= window)
+						d = d.popFirst();
+				}
+				found = d;
+				long t1 = System.nanoTime();
+				PersistentQueue<Integer> q = PersistentQueue.EMPTY;
+				for (int i = 0; i < steps; i++) {
+					q = q.cons(i);
+					if (i >= window)
+						q = q.pop();
+				}
+				found = q;
+				long t2 = System.nanoTime();
+				ArrayDeque<Integer> a = new ArrayDeque<Integer>();
+				for (int i = 0; i < steps / 100; i++) {
+					a = new ArrayDeque<Integer>(a);
+					a.addLast(i);
+					if (i >= window)
+						a.removeFirst();
+				}
+				found = a;
+				long t3 = System.nanoTime();
+				// and the same window sliding the other way
+				d = PersistentDeque.emptyDeque();
+				for (int i = 0; i < steps; i++) {
+					d = d.conjFirst(i);
+					if (i >= window)
+						d = d.pop();
+				}
+				found = d;
+				long t4 = System.nanoTime();
+				System.out.println("Window " + window + " ns/step"
+						+ " PersistentDeque:" + (t1 - t0) / steps
+						+ " PersistentQueue:" + (t2 - t1) / steps
+						+ " copied ArrayDeque:" + (t3 - t2) / (steps / 100)
+						+ " PersistentDeque reversed:" + (t4 - t3) / steps);
+			}
+		}
+	}
+
+	/*
+	 * Rewrites 5% of a 1M element vector per tick, at random indices.
+	 */
+	@Test
+	public void testAssocMany() throws Exception {
+		int size = 1000000;
+		PersistentVector<Integer> vec = PersistentVector.emptyVector();
+		for (int i = 0; i < size; i++)
+			vec = vec.cons(i);
+		Random rnd = new Random(1);
+		int[] indices = new int[size / 20];
+		Object[] vals = new Object[indices.length];
+		for (int round = 0; round < 10; round++) {
+			for (int k = 0; k < indices.length; k++) {
+				indices[k] = rnd.nextInt(size);
+				vals[k] = k;
+			}
+			long t0 = System.nanoTime();
+			PersistentVector<Integer> v = vec;
+			for (int k = 0; k < indices.length; k++)
+				v = v.assocN(indices[k], (Integer) vals[k]);
+			found = v;
+			long t1 = System.nanoTime();
+			found = vec.assocMany(indices, vals);
+			long t2 = System.nanoTime();
+			System.out.println("Tick of " + indices.length
+					+ " assocN:" + (t1 - t0) / 1000000 + "ms"
+					+ " assocMany:" + (t2 - t1) / 1000000 + "ms");
+		}
+	}
+
+	/*
+	 * Sorts random integers: through toArray, Arrays.sort and a conj per
+	 * element, then with sorted, parallelSorted and, unboxed, with
+	 * PersistentLongVector.sorted.
+	 */
+	@Test
+	public void testSorted() {
+		Comparator<Integer> natural = new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return a.compareTo(b);
+			}
+		};
+		Random rnd = new Random(1);
+		for (int size : new int[] { 1000000, 10000000, 50000000 }) {
+			// the boxed integers, both vectors and the sort's two arrays
+			if (size * 64L > Runtime.getRuntime().maxMemory()) {
+				System.out.println("Sort " + size + " skipped, needs a larger heap");
+				continue;
+			}
+			PersistentVector.TransientVector<Integer> t = PersistentVector.<Integer> emptyVector().asTransient();
+			PersistentLongVector.TransientLongVector lt = PersistentLongVector.emptyVector().asTransient();
+			for (int i = 0; i < size; i++) {
+				int x = rnd.nextInt();
+				t.conj(x);
+				lt.conj(x);
+			}
+			PersistentVector<Integer> vec = t.persistentMap();
+			PersistentLongVector lvec = lt.persistent();
+			t = null;
+			lt = null;
+			for (int round = 0; round < 3; round++) {
+				long t0 = System.nanoTime();
+				Object[] a = vec.toArray();
+				Arrays.sort(a);
+				PersistentVector.TransientVector<Object> ret = PersistentVector.emptyVector().asTransient();
+				for (Object x : a)
+					ret.conj(x);
+				found = ret.persistentMap();
+				a = null;
+				long t1 = System.nanoTime();
+				found = vec.sorted(natural);
+				long t2 = System.nanoTime();
+				found = vec.parallelSorted(natural);
+				long t3 = System.nanoTime();
+				found = lvec.sorted();
+				long t4 = System.nanoTime();
+				found = null;
+				System.out.println("Sort " + size
+						+ " toArray/conj:" + (t1 - t0) / 1000000 + "ms"
+						+ " sorted:" + (t2 - t1) / 1000000 + "ms"
+						+ " parallelSorted:" + (t3 - t2) / 1000000 + "ms"
+						+ " PersistentLongVector.sorted:" + (t4 - t3) / 1000000 + "ms");
+			}
+		}
+	}
+}
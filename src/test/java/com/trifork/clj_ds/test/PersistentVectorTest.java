@@ -5,7 +5,13 @@ package com.trifork.clj_ds.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -16,6 +22,8 @@ import com.trifork.clj_ds.ISeq;
 import com.trifork.clj_ds.PersistentVector;
 import com.trifork.clj_ds.Util;
 
+import jsr166y.ForkJoinPool;
+
 /**
  * @author krukow
  *
@@ -82,6 +90,186 @@ public class PersistentVectorTest {
 		}
 	}
 	
+	private static IFn lessThan(final int x) {
+		return new AFn() {
+			@Override
+			public Object invoke(Object arg1) {
+				return (Integer) arg1 < x;
+			}
+		};
+	}
+
+	private static IFn not(final IFn pred) {
+		return new AFn() {
+			@Override
+			public Object invoke(Object arg1) throws Exception {
+				return !(Boolean) pred.invoke(arg1);
+			}
+		};
+	}
+
+	@Test
+	public final void testParallelOperations() throws Exception {
+		IFn odd = new AFn() {
+			@Override
+			public Object invoke(Object arg1) {
+				return (Integer) arg1 % 2 == 1;
+			}
+		};
+		IFn times2 = new AFn() {
+			@Override
+			public Object invoke(Object arg1) {
+				return (Integer) arg1 * 2;
+			}
+		};
+		IFn plus = new AFn() {
+			@Override
+			public Object invoke() {
+				return 0L;
+			}
+
+			@Override
+			public Object invoke(Object arg1, Object arg2) {
+				return ((Number) arg1).longValue() + ((Number) arg2).longValue();
+			}
+		};
+		ForkJoinPool pool = new ForkJoinPool(3);
+		for (int n : new int[] { 0, 1, 2, 32, 1000, 1057, 40000 }) {
+			PersistentVector<Integer> vec = PersistentVector.emptyVector();
+			for (int i = 0; i < n; i++) {
+				vec = vec.cons(i * 3);
+			}
+			for (int granularity : new int[] { 1, 100, 512, 100000 }) {
+				PersistentVector<Integer> odds = PersistentVector.pfilter(pool, granularity, odd, vec);
+				assertEquals(n / 2, odds.count());
+				for (int i = 0; i < odds.count(); i++) {
+					assertEquals(Integer.valueOf(i * 6 + 3), odds.nth(i));
+				}
+				IPersistentVector doubled = PersistentVector.pvectormap(pool, granularity, times2, vec);
+				assertEquals(n, doubled.count());
+				for (int i = 0; i < n; i++) {
+					assertEquals(i * 6, doubled.nth(i));
+				}
+				assertEquals(3L * n * (n - 1) / 2, PersistentVector.pfold(pool, granularity, plus, plus, vec));
+
+				assertEquals(n > 1 ? 1 : -1, PersistentVector.pindexOf(pool, granularity, odd, vec));
+				assertEquals(n > 1, PersistentVector.pany(pool, granularity, odd, vec));
+				assertEquals(true, PersistentVector.pevery(pool, granularity, lessThan(3 * n), vec));
+				assertEquals(n == 0, PersistentVector.pevery(pool, granularity, lessThan(3 * n - 3), vec));
+				for (int target : new int[] { 0, n, 2 * n, 3 * n - 3 }) {
+					// the first element at least target
+					int first = (target + 2) / 3;
+					assertEquals(first < n ? first : -1,
+							PersistentVector.pindexOf(pool, granularity, not(lessThan(target)), vec));
+				}
+			}
+		}
+	}
+
+	@Test
+	public final void testConjAll() {
+		Random rnd = new Random(7);
+		Integer[] src = new Integer[1100000];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = i;
+		}
+		List<Integer> expected = new ArrayList<Integer>();
+		PersistentVector<Integer> vec = PersistentVector.emptyVector();
+		List<PersistentVector<Integer>> versions = new ArrayList<PersistentVector<Integer>>();
+		List<Integer> sizes = new ArrayList<Integer>();
+		while (vec.count() < 1100000) {
+			int len = rnd.nextInt(4) == 0 ? rnd.nextInt(100000) : rnd.nextInt(100);
+			int off = rnd.nextInt(src.length - len + 1);
+			vec = vec.conjAll(src, off, len);
+			expected.addAll(Arrays.asList(src).subList(off, off + len));
+			if (rnd.nextBoolean()) {
+				vec = vec.cons(-1);
+				expected.add(-1);
+			}
+			versions.add(vec);
+			sizes.add(expected.size());
+		}
+		assertEquals(expected, vec);
+		// later appends never write into the earlier versions
+		for (int v = 0; v < versions.size(); v++) {
+			assertEquals(expected.subList(0, sizes.get(v)), versions.get(v));
+		}
+		assertEquals(expected.subList(0, 1000), PersistentVector.create(expected.subList(0, 1000)));
+		assertEquals(vec, PersistentVector.emptyVector().conjAll(expected));
+	}
+
+	@Test
+	public final void testAssocMany() throws Exception {
+		IFn inc = new AFn() {
+			@Override
+			public Object invoke(Object arg1) {
+				return (Integer) arg1 + 1;
+			}
+		};
+		Random rnd = new Random(11);
+		for (int n : new int[] { 1, 32, 33, 1100, 40000 }) {
+			List<Integer> expected = new ArrayList<Integer>();
+			PersistentVector<Integer> vec = PersistentVector.emptyVector();
+			for (int i = 0; i < n; i++) {
+				vec = vec.cons(i);
+				expected.add(i);
+			}
+			List<Integer> original = new ArrayList<Integer>(expected);
+			PersistentVector<Integer> before = vec;
+			for (int round = 0; round < 20; round++) {
+				int k = rnd.nextInt(n / 10 + 2);
+				int[] indices = new int[k];
+				Object[] vals = new Object[k];
+				for (int j = 0; j < k; j++) {
+					// a few duplicates, where the last value must win
+					indices[j] = rnd.nextInt(4) == 0 && j > 0 ? indices[j - 1] : rnd.nextInt(n);
+					vals[j] = -round * 100000 - j;
+					expected.set(indices[j], (Integer) vals[j]);
+				}
+				vec = vec.assocMany(indices, vals);
+				assertEquals(expected, vec);
+				vec = vec.updateMany(indices, inc);
+				for (int i : indices) {
+					expected.set(i, expected.get(i) + 1);
+				}
+				assertEquals(expected, vec);
+			}
+			assertEquals(original, before);
+		}
+		PersistentVector<Integer> vec = PersistentVector.create(1, 2);
+		assertEquals(PersistentVector.create(1, 2, 3), vec.assocMany(new int[] { 2 }, new Object[] { 3 }));
+	}
+
+	@Test
+	public final void testSorted() {
+		// compares on i / 8 only, so that stability shows
+		Comparator<Integer> byEighth = new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return a / 8 < b / 8 ? -1 : a / 8 == b / 8 ? 0 : 1;
+			}
+		};
+		ForkJoinPool pool = new ForkJoinPool(4);
+		Random rnd = new Random(5);
+		for (int n : new int[] { 0, 1, 33, 1000, 100000 }) {
+			List<Integer> expected = new ArrayList<Integer>();
+			PersistentVector<Integer> vec = PersistentVector.emptyVector();
+			for (int i = 0; i < n; i++) {
+				int x = i % 3 == 0 ? i : rnd.nextInt(n);
+				vec = vec.cons(x);
+				expected.add(x);
+			}
+			List<Integer> original = new ArrayList<Integer>(expected);
+			Collections.sort(expected, byEighth);
+			assertEquals(expected, vec.sorted(byEighth));
+			assertEquals(expected, vec.parallelSorted(pool, 64, byEighth));
+			assertEquals(expected, vec.parallelSorted(pool, 1, byEighth));
+			assertEquals(expected, vec.parallelSorted(pool, 0, byEighth));
+			assertEquals(expected, vec.parallelSorted(byEighth));
+			assertEquals(original, vec);
+		}
+		pool.shutdown();
+	}
+
 	static final int NUM_ITERS = 5;
 	/**
 	 *  * NB: this methods takes a long time to run. Be patient.
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.ITransientMap;
+import com.trifork.clj_ds.PersistentBTreeMap;
+import com.trifork.clj_ds.PersistentTreeMap;
+import com.trifork.clj_ds.RT;
+
+/**
+ * Compares the red-black PersistentTreeMap with PersistentBTreeMap on
+ * random integer keys: building, lookups, short range scans, removals and
+ * the heap retained per entry.
+ */
+public class SortedMapPerformanceTest {
+	static final int OPS = 1000000;
+	static final int SCAN = 100;
+
+	public Object found;
+
+	static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	void run(String name, IPersistentMap<Integer, Integer> empty, int[] keys, int[] probes) throws Exception {
+		long m0 = usedMemory();
+		long t0 = System.nanoTime();
+		IPersistentMap<Integer, Integer> m = empty;
+		for (int i = 0; i < keys.length; i++)
+			m = m.assoc(keys[i], i);
+		long t1 = System.nanoTime();
+		long bytes = usedMemory() - m0;
+		long t2 = System.nanoTime();
+		for (int p : probes)
+			found = m.valAt(p);
+		long t3 = System.nanoTime();
+		for (int p : probes) {
+			Iterator<Map.Entry<Integer, Integer>> it = m.iteratorFrom(p);
+			for (int k = 0; k < SCAN && it.hasNext(); k++)
+				found = it.next();
+		}
+		long t4 = System.nanoTime();
+		IPersistentMap<Integer, Integer> r = m;
+		for (int p : probes)
+			r = r.without(p);
+		found = r;
+		long t5 = System.nanoTime();
+		System.out.println(name + " size:" + m.count()
+				+ " bytes/entry:" + bytes / m.count()
+				+ " assoc:" + (t1 - t0) / keys.length + "ns"
+				+ " valAt:" + (t3 - t2) / probes.length + "ns"
+				+ " scan " + SCAN + ":" + (t4 - t3) / probes.length + "ns"
+				+ " without:" + (t5 - t4) / probes.length + "ns");
+		found = m;
+	}
+
+	@Test
+	public void testSortedMaps() throws Exception {
+		Random rnd = new Random(1);
+		for (int size : new int[] { 1000000, 10000000 }) {
+			// two maps alive at a time, of up to 100 bytes an entry
+			if (size * 200L > Runtime.getRuntime().maxMemory()) {
+				System.out.println("Size " + size + " skipped, needs a larger heap");
+				continue;
+			}
+			int[] keys = new int[size];
+			for (int i = 0; i < size; i++)
+				keys[i] = rnd.nextInt();
+			int[] probes = new int[OPS];
+			for (int i = 0; i < OPS; i++)
+				probes[i] = keys[rnd.nextInt(size)];
+			for (int round = 0; round < 3; round++) {
+				run("PersistentTreeMap", PersistentTreeMap.EMPTY, keys, probes);
+				run("PersistentBTreeMap", PersistentBTreeMap.EMPTY, keys, probes);
+				long t0 = System.nanoTime();
+				ITransientMap<Integer, Integer> t = PersistentBTreeMap.EMPTY.asTransient();
+				for (int i = 0; i < size; i++)
+					t.assoc(keys[i], i);
+				found = t.persistentMap();
+				long t1 = System.nanoTime();
+				System.out.println("PersistentBTreeMap transient assoc:" + (t1 - t0) / size + "ns");
+				found = null;
+				t0 = System.nanoTime();
+				t = PersistentTreeMap.EMPTY.asTransient();
+				for (int i = 0; i < size; i++)
+					t.assoc(keys[i], i);
+				found = t.persistentMap();
+				t1 = System.nanoTime();
+				System.out.println("PersistentTreeMap transient assoc:" + (t1 - t0) / size + "ns");
+				found = null;
+			}
+		}
+	}
+
+	@Test
+	public void testCreateFromSorted() throws Exception {
+		int size = 2000000;
+		Integer[] keys = new Integer[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = i * 2;
+		for (int round = 0; round < 3; round++) {
+			found = null;
+			long t0 = System.nanoTime();
+			PersistentTreeMap<Integer, Integer> m = PersistentTreeMap.EMPTY;
+			for (int i = 0; i < size; i++)
+				m = m.assoc(keys[i], keys[i]);
+			long t1 = System.nanoTime();
+			m = null;
+			found = PersistentTreeMap.createFromSorted(RT.DEFAULT_COMPARATOR, keys, keys);
+			long t2 = System.nanoTime();
+			System.out.println("PersistentTreeMap sorted " + size + " assoc:" + (t1 - t0) / size
+					+ "ns createFromSorted:" + (t2 - t1) / size + "ns");
+		}
+	}
+}
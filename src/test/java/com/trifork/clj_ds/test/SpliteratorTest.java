@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.AFn;
+import com.trifork.clj_ds.IFn;
+import com.trifork.clj_ds.IPersistentMap;
+import com.trifork.clj_ds.ISpliterator;
+import com.trifork.clj_ds.PersistentHashMap;
+import com.trifork.clj_ds.PersistentHashSet;
+import com.trifork.clj_ds.PersistentTreeMap;
+import com.trifork.clj_ds.PersistentTreeSet;
+import com.trifork.clj_ds.PersistentVector;
+import com.trifork.clj_ds.Reducers;
+
+public class SpliteratorTest {
+
+	static final IFn PLUS = new AFn() {
+		public Object invoke() {
+			return 0L;
+		}
+
+		public Object invoke(Object acc, Object x) {
+			return (Long) acc + ((Number) x).longValue();
+		}
+	};
+
+	static final IFn KEY_PLUS = new AFn() {
+		public Object invoke() {
+			return 0L;
+		}
+
+		public Object invoke(Object acc, Object x) {
+			return (Long) acc + ((Number) ((Map.Entry) x).getKey()).longValue();
+		}
+	};
+
+	/**
+	 * Splits s down to parts of at most n elements, and collects the elements
+	 * of the parts in encounter order, after taking a few with tryAdvance first.
+	 */
+	private static void collect(ISpliterator s, int n, final List<Object> out) throws Exception {
+		IFn add = new AFn() {
+			public Object invoke(Object x) {
+				out.add(x);
+				return null;
+			}
+		};
+		if (s.estimateSize() > n) {
+			long size = s.estimateSize();
+			boolean sized = (s.characteristics() & ISpliterator.SIZED) != 0;
+			ISpliterator prefix = s.trySplit();
+			if (prefix != null) {
+				if (sized && (s.characteristics() & ISpliterator.SUBSIZED) != 0)
+					assertEquals(size, prefix.estimateSize() + s.estimateSize());
+				collect(prefix, n, out);
+				collect(s, n, out);
+				return;
+			}
+		}
+		s.tryAdvance(add);
+		s.forEachRemaining(add);
+		assertTrue(!s.tryAdvance(add));
+	}
+
+	private static List<Object> list(Iterable<?> coll) {
+		List<Object> l = new ArrayList<Object>();
+		for (Object o : coll)
+			l.add(o);
+		return l;
+	}
+
+	private static List<Object> keys(Iterable<? extends Map.Entry<?, ?>> coll) {
+		List<Object> l = new ArrayList<Object>();
+		for (Map.Entry<?, ?> e : coll)
+			l.add(e.getKey());
+		return l;
+	}
+
+	private static List<Object> keys(List<Object> entries) {
+		List<Object> l = new ArrayList<Object>();
+		for (Object e : entries)
+			l.add(((Map.Entry) e).getKey());
+		return l;
+	}
+
+	@Test
+	public final void testVector() throws Exception {
+		PersistentVector<Integer> v = PersistentVector.emptyVector();
+		for (int i = 0; i < 100003; i++) {
+			v = v.cons(i);
+		}
+		for (int n : new int[] { 1, 40, 5000, 1000000 }) {
+			List<Object> out = new ArrayList<Object>();
+			collect(v.splitIterator(), n, out);
+			assertEquals(list(v), out);
+		}
+		assertEquals(100003L * 100002 / 2, Reducers.fold(v.splitIterator(), PLUS, PLUS));
+		assertEquals(0L, Reducers.fold(PersistentVector.emptyVector().splitIterator(), PLUS, PLUS));
+	}
+
+	@Test
+	public final void testHashMapAndSet() throws Exception {
+		IPersistentMap<Long, Long> m = PersistentHashMap.emptyMap();
+		PersistentHashSet<Long> s = PersistentHashSet.emptySet();
+		long sum = 0;
+		for (long i = 0; i < 50000; i++) {
+			// Long hashes fold the high word in, so these collide in pairs
+			long k = i % 100 == 0 ? (i << 32) | i : i;
+			m = m.assoc(k, k);
+			s = (PersistentHashSet<Long>) s.cons(k);
+			sum += k;
+		}
+		m = m.assoc(null, 0L);
+		for (int n : new int[] { 1, 100, 100000 }) {
+			List<Object> out = new ArrayList<Object>();
+			collect(((PersistentHashMap<Long, Long>) m).splitIterator(), n, out);
+			assertEquals(keys(m), keys(out));
+			out.clear();
+			collect(s.splitIterator(), n, out);
+			assertEquals(list(s), out);
+		}
+		assertEquals(sum, Reducers.fold(s.splitIterator(), PLUS, PLUS));
+	}
+
+	@Test
+	public final void testTreeMapAndSet() throws Exception {
+		PersistentTreeMap<Integer, Integer> m = PersistentTreeMap.EMPTY;
+		PersistentTreeSet<Integer> s = PersistentTreeSet.EMPTY;
+		for (int i = 0; i < 20000; i++) {
+			int k = (i * 7919) % 20011;
+			m = m.assoc(k, i);
+			s = (PersistentTreeSet<Integer>) s.cons(k);
+		}
+		for (int n : new int[] { 1, 100, 100000 }) {
+			List<Object> out = new ArrayList<Object>();
+			collect(m.splitIterator(), n, out);
+			assertEquals(keys(m), keys(out));
+			out.clear();
+			collect(s.splitIterator(), n, out);
+			assertEquals(list(s), out);
+		}
+		long sum = 0;
+		for (Integer k : s)
+			sum += k;
+		assertEquals(sum, Reducers.fold(m.splitIterator(), PLUS, KEY_PLUS));
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package com.trifork.clj_ds.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.trifork.clj_ds.AFn;
+import com.trifork.clj_ds.IFn;
+import com.trifork.clj_ds.PersistentHashMap;
+import com.trifork.clj_ds.StripedHashMap;
+
+public class StripedHashMapTest {
+
+	static final IFn INC = new AFn() {
+		public Object invoke(Object x) {
+			return x == null ? 1 : (Integer) x + 1;
+		}
+	};
+
+	@Test
+	public final void testSingleThreaded() throws Exception {
+		for (int stripes : new int[] { 1, 3, 32, 100 }) {
+			Random rnd = new Random(stripes);
+			StripedHashMap<String, Integer> m = new StripedHashMap<String, Integer>(stripes);
+			Map<String, Integer> expected = new HashMap<String, Integer>();
+			for (int i = 0; i < 20000; i++) {
+				int r = rnd.nextInt(5000);
+				String k = r % 20 == 0 ? (r % 40 == 0 ? "Aa" : "BB") + r / 40 : r == 1 ? null : "k" + r;
+				switch (rnd.nextInt(4)) {
+				case 0:
+					assertEquals(expected.remove(k), m.remove(k));
+					break;
+				case 1:
+					assertEquals(expected.containsKey(k) ? expected.get(k) : null, m.putIfAbsent(k, i));
+					if (!expected.containsKey(k))
+						expected.put(k, i);
+					break;
+				default:
+					assertEquals(expected.put(k, i), m.put(k, i));
+				}
+			}
+			assertEquals(expected.size(), m.size());
+			for (String k : expected.keySet()) {
+				assertTrue(m.containsKey(k));
+				assertEquals(expected.get(k), m.get(k));
+			}
+			PersistentHashMap<String, Integer> snapshot = m.snapshot();
+			assertEquals(expected.size(), snapshot.count());
+			assertEquals(expected, snapshot);
+
+			// the snapshot is an ordinary persistent map, unaffected by later writes
+			m.put("new", -1);
+			m.remove(expected.keySet().iterator().next());
+			assertFalse(snapshot.containsKey("new"));
+			assertEquals(expected, snapshot);
+			assertEquals(Integer.valueOf(-1), snapshot.assoc("new", -1).valAt("new"));
+		}
+	}
+
+	@Test
+	public final void testEmpty() {
+		StripedHashMap<String, Integer> m = new StripedHashMap<String, Integer>();
+		assertEquals(0, m.size());
+		assertNull(m.get("a"));
+		assertEquals(0, m.snapshot().count());
+		assertNull(m.remove("a"));
+	}
+
+	@Test
+	public final void testConcurrentUpdates() throws Exception {
+		final StripedHashMap<Integer, Integer> m = new StripedHashMap<Integer, Integer>(8);
+		final int threads = 4;
+		final int n = 2000;
+		List<Thread> ts = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			ts.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < n; i++)
+							m.update(i % 500, INC);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		PersistentHashMap<Integer, Integer> snapshot = m.snapshot();
+		assertEquals(500, snapshot.count());
+		for (int i = 0; i < 500; i++)
+			assertEquals(Integer.valueOf(threads * n / 500), snapshot.valAt(i));
+	}
+}